@@ -0,0 +1,76 @@
+package cn.yxffcode.mtd.benchmark;
+
+import cn.yxffcode.mtd.core.merger.ResultMerger;
+import cn.yxffcode.mtd.core.merger.ResultMergerImpl;
+import cn.yxffcode.mtd.core.parser.ParsedSqlContext;
+import cn.yxffcode.mtd.core.parser.SQLParserImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 合并聚合函数的查询结果,没有group by时每个子表只返回一行,所以只按子表数测试
+ *
+ * @author gaohang on 16/3/22.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregateMergeBenchmark {
+
+  public enum Strategy {
+    COUNT("select count(*) from crawl_auto"),
+    MAX("select max(a.i) from crawl_auto a"),
+    MIN("select min(a.i) from crawl_auto a"),
+    SUM("select sum(a.i) from crawl_auto a");
+
+    private final String sql;
+
+    Strategy(String sql) {
+      this.sql = sql;
+    }
+  }
+
+  @Param({"COUNT", "MAX", "MIN", "SUM"})
+  public Strategy strategy;
+
+  @Param({"2", "16", "128"})
+  public int shards;
+
+  private ResultMerger resultMerger;
+  private ParsedSqlContext parsedSqlContext;
+  private Parameters parameters;
+  private List<Object> results;
+
+  @Setup public void setUp() {
+    resultMerger = ResultMergerImpl.getInstance();
+    parsedSqlContext =
+        new ParsedSqlContext(strategy.sql, SQLParserImpl.getInstance().parse(strategy.sql));
+    parameters = new Parameters();
+    results = new ArrayList<>(shards);
+    for (int i = 0; i < shards; i++) {
+      results.add(Collections.<Object>singletonList((long) i * 31));
+    }
+  }
+
+  @Benchmark public Object merge() throws SQLException {
+    return resultMerger.merge(results, parsedSqlContext, null, parameters);
+  }
+}
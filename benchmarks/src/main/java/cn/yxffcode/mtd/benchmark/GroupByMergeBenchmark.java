@@ -0,0 +1,109 @@
+package cn.yxffcode.mtd.benchmark;
+
+import cn.yxffcode.mtd.core.FieldMapping;
+import cn.yxffcode.mtd.core.merger.ResultMerger;
+import cn.yxffcode.mtd.core.merger.ResultMergerImpl;
+import cn.yxffcode.mtd.core.parser.ParsedSqlContext;
+import cn.yxffcode.mtd.core.parser.SQLParserImpl;
+import com.google.common.base.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 合并分组查询的结果,每个子表都包含所有groups个分组,按分组键升序.
+ * HASH不排序,使用hash表合并;SORTED按分组键排序,使用流式合并.
+ * <p/>
+ * 合并时会修改分组的第一条记录,多次合并只会改变聚合值,不影响耗时.
+ *
+ * @author gaohang on 16/3/25.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupByMergeBenchmark {
+
+  public enum Strategy {
+    HASH("select a.name as name, count(*) as cnt, max(a.id) as id from crawl_auto a "
+        + "group by a.name"),
+    SORTED("select a.name as name, count(*) as cnt, max(a.id) as id from crawl_auto a "
+        + "group by a.name order by a.name");
+
+    private final String sql;
+
+    Strategy(String sql) {
+      this.sql = sql;
+    }
+  }
+
+  private static final Supplier<FieldMapping> FIELD_MAPPING = new Supplier<FieldMapping>() {
+    @Override public FieldMapping get() {
+      return new FieldMapping() {
+        @Override public String map(String col) {
+          return col;
+        }
+      };
+    }
+  };
+
+  @Param({"HASH", "SORTED"})
+  public Strategy strategy;
+
+  @Param({"2", "16", "128"})
+  public int shards;
+
+  @Param({"10", "10000"})
+  public int groups;
+
+  private ResultMerger resultMerger;
+  private ParsedSqlContext parsedSqlContext;
+  private Parameters parameters;
+  private List<Object> results;
+
+  @Setup public void setUp() {
+    resultMerger = ResultMergerImpl.getInstance();
+    parsedSqlContext =
+        new ParsedSqlContext(strategy.sql, SQLParserImpl.getInstance().parse(strategy.sql));
+    parameters = new Parameters();
+    results = new ArrayList<>(shards);
+    for (int i = 0; i < shards; i++) {
+      List<GroupRow> shard = new ArrayList<>(groups);
+      for (int j = 0; j < groups; j++) {
+        shard.add(new GroupRow(String.format("name%08d", j), 1, i * groups + j));
+      }
+      results.add(shard);
+    }
+  }
+
+  @Benchmark public Object merge() throws SQLException {
+    return resultMerger.merge(results, parsedSqlContext, FIELD_MAPPING, parameters);
+  }
+
+  public static final class GroupRow {
+    private String name;
+    private long cnt;
+    private long id;
+
+    public GroupRow(String name, long cnt, long id) {
+      this.name = name;
+      this.cnt = cnt;
+      this.id = id;
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package cn.yxffcode.mtd.benchmark;
+
+import cn.yxffcode.mtd.core.ParameterSupplier;
+
+/**
+ * 基于数组的jdbc参数,按位置取参数
+ *
+ * @author gaohang on 16/3/22.
+ */
+final class Parameters implements ParameterSupplier {
+
+  private final Object[] parameters;
+
+  Parameters(Object... parameters) {
+    this.parameters = parameters;
+  }
+
+  @Override public int getParameterCount() {
+    return parameters.length;
+  }
+
+  @Override public Object getParameter(int parameterIndex) {
+    return parameters[parameterIndex];
+  }
+
+  @Override public Object getParameter(String propertyName) {
+    return null;
+  }
+}
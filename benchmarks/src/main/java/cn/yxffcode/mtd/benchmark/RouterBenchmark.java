@@ -0,0 +1,89 @@
+package cn.yxffcode.mtd.benchmark;
+
+import cn.yxffcode.mtd.config.Configuration;
+import cn.yxffcode.mtd.core.parser.ParsedSqlContext;
+import cn.yxffcode.mtd.core.parser.SQLParserImpl;
+import cn.yxffcode.mtd.core.router.AbstractRouter;
+import cn.yxffcode.mtd.core.router.Routers;
+import cn.yxffcode.mtd.core.router.ShardSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 计算子表名与子表序号,分别测试=,in,or,and四种条件
+ *
+ * @author gaohang on 16/3/22.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+
+  public enum Shape {
+    EQUALS("select a.i, a.name from crawl_auto a where a.i = ?", 7),
+    IN("select a.i, a.name from crawl_auto a where a.i in (?, ?, ?)", 7, 8, 9),
+    OR("select a.i, a.name from crawl_auto a where a.i = ? or a.i = ?", 7, 8),
+    AND("select a.i, a.name from crawl_auto a where a.i in (?, ?, ?) and a.i = ?", 7, 8, 9, 8);
+
+    private final String sql;
+    private final Object[] parameters;
+
+    Shape(String sql, Object... parameters) {
+      this.sql = sql;
+      this.parameters = parameters;
+    }
+  }
+
+  /**
+   * MOD使用配置文件中crawl_auto的路由,CHASH为16个子表的一致性hash
+   */
+  public enum Strategy {
+    MOD, CHASH
+  }
+
+  @Param({"EQUALS", "IN", "OR", "AND"})
+  public Shape shape;
+
+  @Param({"MOD", "CHASH"})
+  public Strategy strategy;
+
+  private AbstractRouter router;
+  private ParsedSqlContext parsedSqlContext;
+  private Parameters parameters;
+
+  @Setup public void setUp() {
+    if (strategy == Strategy.MOD) {
+      router = (AbstractRouter) Configuration.getInstance().getRouter("crawl_auto");
+    } else {
+      router = (AbstractRouter) Routers.CHASH.generateRouter(
+          "i, 160, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15");
+      router.setTableName("crawl_auto");
+    }
+    parsedSqlContext =
+        new ParsedSqlContext(shape.sql, SQLParserImpl.getInstance().parse(shape.sql));
+    parameters = new Parameters(shape.parameters);
+  }
+
+  @Benchmark public Set<String> subTableNames() {
+    return router.subTableNames(parsedSqlContext, parameters);
+  }
+
+  @Benchmark public ShardSet subTableOrdinals() {
+    return router.subTableOrdinals(parsedSqlContext, parameters);
+  }
+}
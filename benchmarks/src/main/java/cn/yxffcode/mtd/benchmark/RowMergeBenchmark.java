@@ -0,0 +1,120 @@
+package cn.yxffcode.mtd.benchmark;
+
+import cn.yxffcode.mtd.core.FieldMapping;
+import cn.yxffcode.mtd.core.merger.ResultMerger;
+import cn.yxffcode.mtd.core.merger.ResultMergerImpl;
+import cn.yxffcode.mtd.core.parser.ParsedSqlContext;
+import cn.yxffcode.mtd.core.parser.SQLParserImpl;
+import com.google.common.base.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 合并多行的查询结果,rows为所有子表的总行数,按id轮流分配到各个子表,每个子表内按id升序
+ *
+ * @author gaohang on 16/3/22.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowMergeBenchmark {
+
+  public enum Strategy {
+    DEFAULT("select a.id as id, a.name as name from crawl_auto a"),
+    DEFAULT_LIMIT("select a.id as id, a.name as name from crawl_auto a limit ?, ?"),
+    ORDER_BY("select a.id as id, a.name as name from crawl_auto a order by a.id"),
+    ORDER_BY_LIMIT(
+        "select a.id as id, a.name as name from crawl_auto a order by a.id limit ?, ?"),
+    DISTINCT("select distinct a.id as id, a.name as name from crawl_auto a");
+
+    private final String sql;
+
+    Strategy(String sql) {
+      this.sql = sql;
+    }
+  }
+
+  private static final Supplier<FieldMapping> FIELD_MAPPING = new Supplier<FieldMapping>() {
+    @Override public FieldMapping get() {
+      return new FieldMapping() {
+        @Override public String map(String col) {
+          return col;
+        }
+      };
+    }
+  };
+
+  @Param({"DEFAULT", "DEFAULT_LIMIT", "ORDER_BY", "ORDER_BY_LIMIT", "DISTINCT"})
+  public Strategy strategy;
+
+  @Param({"2", "16", "128"})
+  public int shards;
+
+  @Param({"10", "1000", "100000"})
+  public int rows;
+
+  private ResultMerger resultMerger;
+  private ParsedSqlContext parsedSqlContext;
+  private Parameters parameters;
+  private List<Object> results;
+
+  @Setup public void setUp() {
+    resultMerger = ResultMergerImpl.getInstance();
+    parsedSqlContext =
+        new ParsedSqlContext(strategy.sql, SQLParserImpl.getInstance().parse(strategy.sql));
+    parameters = new Parameters(rows / 10, 100);
+    results = new ArrayList<>(shards);
+    for (int i = 0; i < shards; i++) {
+      results.add(new ArrayList<Row>(rows / shards + 1));
+    }
+    for (int i = 0; i < rows; i++) {
+      @SuppressWarnings("unchecked") List<Row> shard = (List<Row>) results.get(i % shards);
+      shard.add(new Row(i, "name" + i));
+    }
+  }
+
+  @Benchmark public void merge(Blackhole blackhole) throws SQLException {
+    List<?> merged =
+        (List<?>) resultMerger.merge(results, parsedSqlContext, FIELD_MAPPING, parameters);
+    //遍历结果,延迟计算的合并结果也需要计入
+    for (int i = 0, j = merged.size(); i < j; i++) {
+      blackhole.consume(merged.get(i));
+    }
+  }
+
+  public static final class Row {
+    private long id;
+    private String name;
+
+    public Row(long id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package cn.yxffcode.mtd.benchmark;
+
+import cn.yxffcode.mtd.core.parser.SQLParserImpl;
+import cn.yxffcode.mtd.core.parser.ast.SqlStatement;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SQL解析,分别测试命中缓存与未命中缓存的情况
+ *
+ * @author gaohang on 16/3/22.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SqlParserBenchmark {
+
+  private static final String SQL = "select a.i as id, a.name as name from crawl_auto a "
+      + "where a.i in (?, ?) order by a.i limit ?, ?";
+
+  private SQLParserImpl sqlParser;
+  private long sequence;
+
+  @Setup public void setUp() {
+    sqlParser = SQLParserImpl.getInstance();
+    sqlParser.parse(SQL);
+  }
+
+  @Benchmark public SqlStatement parseHit() {
+    return sqlParser.parse(SQL);
+  }
+
+  /**
+   * 每次使用不同的字面值,保证不会命中缓存
+   */
+  @Benchmark public SqlStatement parseMiss() {
+    return sqlParser.parse(
+        "select a.i as id, a.name as name from crawl_auto a where a.i = " + (sequence++));
+  }
+}
@@ -0,0 +1,74 @@
+package cn.yxffcode.mtd.benchmark;
+
+import cn.yxffcode.mtd.core.parser.ParsedSqlContext;
+import cn.yxffcode.mtd.core.parser.SQLParserImpl;
+import cn.yxffcode.mtd.core.rewriter.SqlRewriter;
+import cn.yxffcode.mtd.core.rewriter.SqlRewriterImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 改写包含1到3个分表的SQL,每个分表路由到两个子表
+ *
+ * @author gaohang on 16/3/22.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SqlRewriterBenchmark {
+
+  private static final String[] SQLS = {
+      "select a.i, a.name from crawl_auto a where a.i in (?, ?) limit ?, ?",
+      "select a.i, l.msg from crawl_auto a join crawl_log l on a.i = l.auto_id "
+          + "where a.i in (?, ?) and l.log_id in (?, ?) limit ?, ?",
+      "select a.i, d.title, l.msg from crawl_auto a join crawl_detail d on a.i = d.auto_id "
+          + "join crawl_log l on a.i = l.auto_id "
+          + "where a.i in (?, ?) and d.auto_id in (?, ?) and l.log_id in (?, ?) limit ?, ?"};
+
+  @Param({"1", "2", "3"})
+  public int tables;
+
+  private SqlRewriter sqlRewriter;
+  private String sql;
+  private Parameters parameters;
+
+  @Setup public void setUp() {
+    sqlRewriter = SqlRewriterImpl.getInstance();
+    sql = SQLS[tables - 1];
+    Object[] values = new Object[tables * 2 + 2];
+    for (int i = 0; i < tables * 2; i++) {
+      values[i] = i % 2 + 1;
+    }
+    values[tables * 2] = 10;
+    values[tables * 2 + 1] = 20;
+    parameters = new Parameters(values);
+  }
+
+  /**
+   * ParsedSqlContext是每次调用创建的,这里也每次创建
+   */
+  @Benchmark public void rewrite(Blackhole blackhole) {
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+    Iterator<CharSequence> sqls = sqlRewriter.rewrite(parsedSqlContext, parameters);
+    while (sqls.hasNext()) {
+      blackhole.consume(sqls.next().toString());
+    }
+  }
+}
@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
@@ -43,6 +44,31 @@ public class Configuration {
    */
   private Map<String, Router> routers = Collections.emptyMap();
   private List<MappedStatementListener> listeners = Collections.emptyList();
+  /**
+   * keys are table name and values are the ordinal of the binding group.
+   * 同一个绑定组中的表按相同的字段分表,join时只需要组合后缀相同的子表.
+   */
+  private Map<String, Integer> bindingGroups = Collections.emptyMap();
+  /**
+   * distinct合并的记录数超过此值时使用临时文件去重,不大于0时只在内存中去重
+   */
+  private int distinctSpillRows;
+  /**
+   * 流式查询时子表SQL的fetch size,为null时使用MappedStatement中的配置
+   */
+  private Integer streamFetchSize;
+  /**
+   * 流式查询时每个子表最多缓存的记录数
+   */
+  private int streamBufferRows = 256;
+  /**
+   * 流式查询等待所有子表SQL开始执行的毫秒数,线程池没有足够的空闲线程时超时,改为不并发执行
+   */
+  private long streamStartTimeoutMillis = 1000;
+  /**
+   * 数据库的排序规则是否与合并时的比较一致,不一致时(如不区分大小写的字符串)子表的结果不能直接归并
+   */
+  private boolean orderByCollationTrusted = true;
 
   private Configuration() {
   }
@@ -66,6 +92,19 @@ public class Configuration {
       NodeList listenerConfig =
           (NodeList) xpath.evaluate("/dal/listener", document, XPathConstants.NODESET);
       parseListeners(nodeList, listenerConfig);
+
+      NodeList bindingConfig =
+          (NodeList) xpath.evaluate("/dal/binding", document, XPathConstants.NODESET);
+      parseBindings(bindingConfig);
+
+      Node distinctConfig = (Node) xpath.evaluate("/dal/distinct", document, XPathConstants.NODE);
+      parseDistinct(distinctConfig);
+
+      Node streamConfig = (Node) xpath.evaluate("/dal/stream", document, XPathConstants.NODE);
+      parseStream(streamConfig);
+
+      Node orderByConfig = (Node) xpath.evaluate("/dal/order-by", document, XPathConstants.NODE);
+      parseOrderBy(orderByConfig);
     }
 
     configRouters();
@@ -93,6 +132,80 @@ public class Configuration {
     listeners = Collections.unmodifiableList(listeners);
   }
 
+  private void parseBindings(NodeList bindingConfig) {
+    if (bindingConfig == null || bindingConfig.getLength() == 0) {
+      bindingGroups = Collections.emptyMap();
+      return;
+    }
+    bindingGroups = Maps.newHashMap();
+    for (int i = 0, j = bindingConfig.getLength(); i < j; i++) {
+      Node node = bindingConfig.item(i).getAttributes().getNamedItem("tables");
+      if (node == null || isBlank(node.getNodeValue())) {
+        throw new ConfigurationException("binding must has tables");
+      }
+      for (String table : StringUtils.split(node.getNodeValue(), ", ")) {
+        if (bindingGroups.put(table, i) != null) {
+          throw new ConfigurationException("table " + table + " is in more than one binding");
+        }
+      }
+    }
+    bindingGroups = Collections.unmodifiableMap(bindingGroups);
+  }
+
+  private void parseDistinct(Node distinctConfig) {
+    Integer spillRows = parseInt(distinctConfig, "spill-rows");
+    if (spillRows != null) {
+      distinctSpillRows = spillRows;
+    }
+  }
+
+  private void parseStream(Node streamConfig) {
+    streamFetchSize = parseInt(streamConfig, "fetch-size");
+    Integer bufferRows = parseInt(streamConfig, "buffer-rows");
+    if (bufferRows != null) {
+      if (bufferRows <= 0) {
+        throw new ConfigurationException("buffer-rows of stream must be positive");
+      }
+      streamBufferRows = bufferRows;
+    }
+    Integer startTimeout = parseInt(streamConfig, "start-timeout");
+    if (startTimeout != null) {
+      if (startTimeout <= 0) {
+        throw new ConfigurationException("start-timeout of stream must be positive");
+      }
+      streamStartTimeoutMillis = startTimeout;
+    }
+  }
+
+  private void parseOrderBy(Node orderByConfig) {
+    if (orderByConfig == null) {
+      return;
+    }
+    Node node = orderByConfig.getAttributes().getNamedItem("trust-collation");
+    if (node != null && !isBlank(node.getNodeValue())) {
+      orderByCollationTrusted = Boolean.parseBoolean(node.getNodeValue().trim());
+    }
+  }
+
+  /**
+   * @return 节点或属性不存在时返回null
+   */
+  private static Integer parseInt(Node config, String attribute) {
+    if (config == null) {
+      return null;
+    }
+    Node node = config.getAttributes().getNamedItem(attribute);
+    if (node == null || isBlank(node.getNodeValue())) {
+      return null;
+    }
+    try {
+      return Integer.parseInt(node.getNodeValue().trim());
+    } catch (NumberFormatException e) {
+      throw new ConfigurationException(
+          attribute + " of " + config.getNodeName() + " must be an integer");
+    }
+  }
+
   private void parseRouters(NodeList nodeList) throws ClassNotFoundException {
     if (nodeList == null || nodeList.getLength() == 0) {
       routers = Collections.emptyMap();
@@ -136,6 +249,40 @@ public class Configuration {
     return routers.get(tableName);
   }
 
+  /**
+   * @return 所有需要分表的表名
+   */
+  public Set<String> getRouteTables() {
+    return routers.keySet();
+  }
+
+  /**
+   * @return 表所在的绑定组,不属于任何绑定组时返回null
+   */
+  public Integer getBindingGroup(String tableName) {
+    return bindingGroups.get(tableName);
+  }
+
+  public int getDistinctSpillRows() {
+    return distinctSpillRows;
+  }
+
+  public Integer getStreamFetchSize() {
+    return streamFetchSize;
+  }
+
+  public int getStreamBufferRows() {
+    return streamBufferRows;
+  }
+
+  public long getStreamStartTimeoutMillis() {
+    return streamStartTimeoutMillis;
+  }
+
+  public boolean isOrderByCollationTrusted() {
+    return orderByCollationTrusted;
+  }
+
   public List<MappedStatementListener> getListeners() {
     return listeners;
   }
@@ -1,76 +1,192 @@
 package cn.yxffcode.mtd.core.merger;
 
-import com.google.common.collect.Maps;
-
 import java.math.BigDecimal;
-import java.util.Collections;
-import java.util.Map;
+import java.math.BigInteger;
 
 /**
- * 各种数据类型的加法器实现工具类,用作查询结果的合并
+ * 数值的累加与比较工具类,用作查询结果的合并.
+ * <p/>
+ * count,sum与avg的合并使用{@link Sum}累加,不对每次相加的结果装箱;max与min比较不同类型的数值时
+ * 使用{@link #compare(Number, Number)}.
  *
  * @author gaohang
  */
-public class Adders {
-  private static final Map<Class<?>, Add<Object>> ADDERS;
-
-  static {
-    Map<Class<?>, Add<Object>> tmp = Maps.newHashMap();
-    tmp.put(Integer.class, AddImpl.INTEGER);
-    tmp.put(Float.class, AddImpl.FLOAT);
-    tmp.put(Long.class, AddImpl.LONG);
-    tmp.put(Double.class, AddImpl.DOUBLE);
-    tmp.put(BigDecimal.class, AddImpl.BIG_DECIMAL);
-    tmp.put(Short.class, AddImpl.SHORT);
-    tmp.put(Byte.class, AddImpl.BYTE);
-    ADDERS = Collections.unmodifiableMap(tmp);
+final class Adders {
+  private Adders() {
   }
 
-  public static Add<Object> getNumberAdd(Class<?> c) {
-    return ADDERS.get(c);
+  /**
+   * 比较两个数值,类型可以不同,如不同的驱动返回的Integer与Long
+   */
+  static int compare(Number left, Number right) {
+    if (isIntegral(left) && isIntegral(right)) {
+      long lv = left.longValue();
+      long rv = right.longValue();
+      return lv < rv ? -1 : (lv == rv ? 0 : 1);
+    }
+    if (left instanceof BigDecimal || left instanceof BigInteger || right instanceof BigDecimal
+        || right instanceof BigInteger) {
+      return toBigDecimal(left).compareTo(toBigDecimal(right));
+    }
+    return Double.compare(left.doubleValue(), right.doubleValue());
   }
 
-  private enum AddImpl implements Add<Object> {
-    INTEGER {
-      @Override public Object add(Object left, Object right) {
-        return (Integer) left + (Integer) right;
-      }
-    },
-    FLOAT {
-      @Override public Object add(Object left, Object right) {
-        return (Float) left + (Float) right;
+  private static boolean isIntegral(Number value) {
+    return value instanceof Long || value instanceof Integer || value instanceof Short
+        || value instanceof Byte;
+  }
+
+  private static BigDecimal toBigDecimal(Number value) {
+    if (value instanceof BigDecimal) {
+      return (BigDecimal) value;
+    }
+    if (value instanceof BigInteger) {
+      return new BigDecimal((BigInteger) value);
+    }
+    if (value instanceof Double || value instanceof Float) {
+      return BigDecimal.valueOf(value.doubleValue());
+    }
+    return BigDecimal.valueOf(value.longValue());
+  }
+
+  /**
+   * 数值的累加器,整数按long累加,float与double按double累加,累加的过程中不创建对象;
+   * BigDecimal与BigInteger按BigDecimal累加,long溢出时已累加的部分也转为BigDecimal.
+   * <p/>
+   * 结果的类型由累加过的值中范围最大的类型决定:都是int时和超出int则提升为Long,超出long则提升为
+   * BigDecimal;有浮点数时为Double,都是float时为Float.
+   * <p/>
+   * 可以通过{@link #reset()}重复使用,不是线程安全的.
+   */
+  static final class Sum {
+    private static final int INT = 0;
+    private static final int LONG = 1;
+    private static final int BIG_INTEGER = 2;
+    private static final int BIG_DECIMAL = 3;
+    private static final int FLOAT = 4;
+    private static final int DOUBLE = 5;
+
+    private boolean empty = true;
+    private int type;
+    private long longSum;
+    private double doubleSum;
+    private BigDecimal decimalSum;
+
+    void reset() {
+      empty = true;
+      type = INT;
+      longSum = 0;
+      doubleSum = 0;
+      decimalSum = null;
+    }
+
+    /**
+     * @return 是否没有累加过任何非null的值
+     */
+    boolean isEmpty() {
+      return empty;
+    }
+
+    /**
+     * null被忽略
+     */
+    void add(Object value) {
+      if (value == null) {
+        return;
       }
-    },
-    LONG {
-      @Override public Object add(Object left, Object right) {
-        return (Long) left + (Long) right;
+      if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+        add(((Number) value).longValue(), INT);
+      } else if (value instanceof Long) {
+        add((Long) value, LONG);
+      } else if (value instanceof Double) {
+        add((Double) value, DOUBLE);
+      } else if (value instanceof Float) {
+        add((Float) value, FLOAT);
+      } else if (value instanceof BigDecimal) {
+        add((BigDecimal) value, BIG_DECIMAL);
+      } else if (value instanceof BigInteger) {
+        add(new BigDecimal((BigInteger) value), BIG_INTEGER);
+      } else {
+        throw new ResultMergeException("cannot add the values of type " + value.getClass());
       }
-    },
-    DOUBLE {
-      @Override public Object add(Object left, Object right) {
-        return (Double) left + (Double) right;
+    }
+
+    void addLong(long value) {
+      add(value, LONG);
+    }
+
+    void addDouble(double value) {
+      add(value, DOUBLE);
+    }
+
+    private void add(long value, int valueType) {
+      long sum = longSum + value;
+      if (((longSum ^ sum) & (value ^ sum)) < 0) {
+        //溢出,已累加的部分转为BigDecimal
+        BigDecimal overflow = BigDecimal.valueOf(longSum);
+        decimalSum = decimalSum == null ? overflow : decimalSum.add(overflow);
+        sum = value;
       }
-    },
-    BIG_DECIMAL {
-      @Override public Object add(Object left, Object right) {
-        return ((BigDecimal) left).add((BigDecimal) right);
+      longSum = sum;
+      mark(valueType);
+    }
+
+    private void add(double value, int valueType) {
+      doubleSum += value;
+      mark(valueType);
+    }
+
+    private void add(BigDecimal value, int valueType) {
+      decimalSum = decimalSum == null ? value : decimalSum.add(value);
+      mark(valueType);
+    }
+
+    private void mark(int valueType) {
+      empty = false;
+      type = Math.max(type, valueType);
+    }
+
+    /**
+     * @return 累加的结果,没有累加过任何值时为null
+     */
+    Object get() {
+      if (empty) {
+        return null;
       }
-    },
-    SHORT {
-      @Override public Object add(Object left, Object right) {
-        return (Short) left + (Short) right;
+      switch (type) {
+        case DOUBLE:
+          return doubleValue();
+        case FLOAT:
+          return (float) doubleValue();
+        case BIG_DECIMAL:
+          return decimalValue();
+        case BIG_INTEGER:
+          return decimalValue().toBigInteger();
+        default:
+          if (decimalSum != null) {
+            return decimalValue();
+          }
+          return type == INT && longSum == (int) longSum ? (Object) (int) longSum : longSum;
       }
-    },
-    BYTE {
-      @Override public Object add(Object left, Object right) {
-        return (Byte) left + (Byte) right;
+    }
+
+    /**
+     * @return 累加的结果转换成的long,没有累加过任何值时为0
+     */
+    long longValue() {
+      if (type <= LONG && decimalSum == null) {
+        return longSum;
       }
+      return type >= FLOAT ? (long) doubleValue() : decimalValue().longValue();
     }
-  }
 
+    private double doubleValue() {
+      return longSum + doubleSum + (decimalSum == null ? 0 : decimalSum.doubleValue());
+    }
 
-  public interface Add<T> {
-    T add(T left, T right);
+    private BigDecimal decimalValue() {
+      BigDecimal sum = BigDecimal.valueOf(longSum);
+      return decimalSum == null ? sum : decimalSum.add(sum);
+    }
   }
-
 }
@@ -0,0 +1,280 @@
+package cn.yxffcode.mtd.core.merger;
+
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * distinct查询结果的合并,按查询列表中所有列的值去重.
+ * <p/>
+ * 没有order by时按子表的顺序遍历,使用hash表记录已经出现的值,取到offset + rowCount条记录后即停止;
+ * 记录数超过spillRows时,去重的值按hash分区写入临时文件,每次只在内存中保存一个分区,
+ * 分区数最多为{@link #MAX_PARTITIONS},避免同时打开过多的文件.临时文件只用于去重的值,
+ * 子表的结果本身已经全部在内存中,所以内存占用仍然与记录数成正比,只是不再需要额外的hash表.
+ * 有order by时多路归并,重复的记录只可能出现在order by的值相同的一段记录中,
+ * 只需要保存这一段记录的值.
+ * <p/>
+ * 此类的对象缓存了上一次使用的类型的属性访问器,不是线程安全的,每次合并创建一个.
+ *
+ * @author gaohang on 16/3/26.
+ */
+final class DistinctMerger {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DistinctMerger.class);
+
+  /**
+   * 每写入一定数量的记录后重置ObjectOutputStream,避免其引用所有写过的对象
+   */
+  private static final int RESET_INTERVAL = 1024;
+  /**
+   * 同时打开的临时文件数的上限,记录数过多时每个分区的值可能超过spillRows
+   */
+  private static final int MAX_PARTITIONS = 64;
+
+  private final List<String> columns;
+
+  private Class<?> lastType;
+  private PropertyAccessor[] lastAccessors;
+
+  /**
+   * @param columns 查询列表中每一列对应的属性名,为空时(select *)按记录本身去重
+   */
+  DistinctMerger(List<String> columns) {
+    this.columns = columns;
+  }
+
+  /**
+   * @param offset    跳过的记录数
+   * @param rowCount  最多返回的记录数,{@link Integer#MAX_VALUE}表示不限制
+   * @param spillRows 记录总数超过此值时使用临时文件去重,不大于0时不使用临时文件
+   */
+  List<Object> hashMerge(List<List<Object>> results, int offset, int rowCount, int spillRows) {
+    if (rowCount <= 0) {
+      return Collections.emptyList();
+    }
+    long total = 0;
+    for (List<Object> rows : results) {
+      total += rows == null ? 0 : rows.size();
+    }
+    if (spillRows > 0 && total > spillRows) {
+      try {
+        return spillMerge(results, offset, rowCount,
+            (int) Math.min(total / spillRows + 1, MAX_PARTITIONS));
+      } catch (NotSerializableException e) {
+        LOGGER.warn("cannot spill distinct keys to disk, deduplicate in memory", e);
+      } catch (IOException e) {
+        throw new ResultMergeException("cannot spill distinct keys to disk", e);
+      }
+    }
+    Set<Object> seen = Sets.newHashSetWithExpectedSize((int) Math.min(total, 1 << 16));
+    List<Object> merged = new ArrayList<>();
+    int skip = Math.max(offset, 0);
+    for (List<Object> rows : results) {
+      if (rows == null) {
+        continue;
+      }
+      for (Object row : rows) {
+        if (!seen.add(distinctKey(row))) {
+          continue;
+        }
+        if (skip > 0) {
+          skip--;
+        } else {
+          merged.add(row);
+          if (merged.size() >= rowCount) {
+            return merged;
+          }
+        }
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * @param keys     order by子句,每个子表的结果都已经按其排序
+   * @param offset   跳过的记录数
+   * @param rowCount 最多返回的记录数,{@link Integer#MAX_VALUE}表示不限制
+   * @return 去重后的结果,子表的结果没有按keys排序时返回null
+   */
+  List<Object> sortedMerge(List<List<Object>> sortedLists, OrderByKeys keys, int offset,
+                           int rowCount) {
+    if (rowCount <= 0) {
+      return Collections.emptyList();
+    }
+    List<Object> merged = new ArrayList<>();
+    SortedListMerger.KeyMergeIterator rows = SortedListMerger.iterator(sortedLists, keys);
+    OrderByKeys.Key runKey = keys.newKey();
+    boolean started = false;
+    //order by的值相同的一段记录中已经出现的值
+    Set<Object> seen = Sets.newHashSet();
+    int skip = Math.max(offset, 0);
+    while (rows.hasNext()) {
+      Object row = rows.next();
+      if (!started || keys.compare(runKey, rows.key()) != 0) {
+        seen.clear();
+        keys.extract(row, runKey);
+        started = true;
+      }
+      if (!seen.add(distinctKey(row))) {
+        continue;
+      }
+      if (skip > 0) {
+        skip--;
+      } else {
+        merged.add(row);
+        if (merged.size() >= rowCount) {
+          break;
+        }
+      }
+    }
+    return rows.isUnsorted() ? null : merged;
+  }
+
+  /**
+   * 将(记录的序号,去重的值)按值的hash写入各个分区的临时文件,再逐个分区找出每个值第一次出现的序号,
+   * 内存中只保存一个分区的值以及标记保留哪些记录的BitSet
+   */
+  private List<Object> spillMerge(List<List<Object>> results, int offset, int rowCount,
+                                  int partitionCount) throws IOException {
+    File[] files = new File[partitionCount];
+    try {
+      ObjectOutputStream[] outs = new ObjectOutputStream[partitionCount];
+      try {
+        for (int i = 0; i < partitionCount; i++) {
+          files[i] = File.createTempFile("mtd-distinct-", ".tmp");
+          outs[i] = new ObjectOutputStream(
+              new BufferedOutputStream(new FileOutputStream(files[i])));
+        }
+        int index = 0;
+        for (List<Object> rows : results) {
+          if (rows == null) {
+            continue;
+          }
+          for (Object row : rows) {
+            Object key = distinctKey(row);
+            int partition = ((key == null ? 0 : key.hashCode()) & Integer.MAX_VALUE)
+                % partitionCount;
+            outs[partition].writeInt(index++);
+            outs[partition].writeObject(key);
+            if (index % RESET_INTERVAL == 0) {
+              for (ObjectOutputStream out : outs) {
+                out.reset();
+              }
+            }
+          }
+        }
+      } finally {
+        for (ObjectOutputStream out : outs) {
+          if (out != null) {
+            out.close();
+          }
+        }
+      }
+
+      BitSet kept = new BitSet();
+      for (File file : files) {
+        markFirstOccurrences(file, kept);
+      }
+
+      List<Object> merged = new ArrayList<>();
+      int skip = Math.max(offset, 0);
+      int index = 0;
+      for (List<Object> rows : results) {
+        if (rows == null) {
+          continue;
+        }
+        for (Object row : rows) {
+          if (!kept.get(index++)) {
+            continue;
+          }
+          if (skip > 0) {
+            skip--;
+          } else {
+            merged.add(row);
+            if (merged.size() >= rowCount) {
+              return merged;
+            }
+          }
+        }
+      }
+      return merged;
+    } finally {
+      for (File file : files) {
+        if (file != null && !file.delete()) {
+          file.deleteOnExit();
+        }
+      }
+    }
+  }
+
+  /**
+   * 分区中的序号是递增的,每个值第一次读到的序号即为其第一次出现的位置
+   */
+  private static void markFirstOccurrences(File file, BitSet kept) throws IOException {
+    Set<Object> seen = Sets.newHashSet();
+    try (ObjectInputStream in = new ObjectInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+        int index;
+        try {
+          index = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        if (seen.add(in.readObject())) {
+          kept.set(index);
+        }
+      }
+    } catch (ClassNotFoundException e) {
+      throw new ResultMergeException("cannot read the spilled distinct keys", e);
+    }
+  }
+
+  /**
+   * @return 只有一列时为该列的值,否则为各列的值组成的List
+   */
+  private Object distinctKey(Object row) {
+    if (columns.isEmpty() || row == null) {
+      return row;
+    }
+    PropertyAccessor[] accessors = accessors(row.getClass());
+    if (accessors.length == 1) {
+      return accessors[0].get(row);
+    }
+    Object[] values = new Object[accessors.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = accessors[i].get(row);
+    }
+    return Arrays.asList(values);
+  }
+
+  private PropertyAccessor[] accessors(Class<?> type) {
+    if (type == lastType) {
+      return lastAccessors;
+    }
+    PropertyAccessor[] accessors = new PropertyAccessor[columns.size()];
+    for (int i = 0; i < accessors.length; i++) {
+      accessors[i] = type == Object[].class ?
+          PropertyAccessor.forIndex(i) : PropertyAccessor.forProperty(type, columns.get(i));
+    }
+    lastType = type;
+    lastAccessors = accessors;
+    return accessors;
+  }
+}
@@ -0,0 +1,387 @@
+package cn.yxffcode.mtd.core.merger;
+
+import cn.yxffcode.mtd.core.parser.ast.AvgClause;
+import cn.yxffcode.mtd.core.parser.ast.GroupFunctionType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 分组查询以及包含聚合函数的查询结果的合并.
+ * <p/>
+ * 各子表返回的是每个分组在该子表中的部分聚合结果,同一个分组可能出现在多个子表中,合并时将
+ * 分组键相同的记录合并成一条:count与sum相加,max与min取最值,avg由改写得到的sum与count重新计算,
+ * 其它的列取第一条记录的值.合并后的记录复用每个分组的第一条记录,不创建新的对象;
+ * 有多条记录的分组,count,sum与avg在{@link Adders.Sum}中累加,合并结束时才写回记录.
+ * 没有group by时,如select count(*), max(ts), sum(amount),所有记录属于同一个分组,
+ * 每一列分别合并,所有的列在一次遍历中完成.
+ * <p/>
+ * 子表的结果没有按分组键排序时,使用以分组键为key的hash表合并,内存与分组数成正比;
+ * 子表的结果已经按分组键排序时,多路归并后同一个分组的记录是相邻的,只需要保存当前分组,
+ * 并且取到offset + rowCount个分组后即停止.
+ * <p/>
+ * 此类的对象缓存了上一次使用的类型的属性访问器,不是线程安全的,每次合并创建一个.
+ *
+ * @author gaohang on 16/3/25.
+ */
+final class GroupByMerger {
+
+  /**
+   * 查询列表中每一列对应的属性名,查询结果为数组时按属性在其中的位置取值
+   */
+  private final List<String> columns;
+  private final String[] keys;
+  private final String[] properties;
+  private final GroupFunctionType[] functions;
+  /**
+   * avg对应的sum与count的列名,其它函数为null
+   */
+  private final String[] sumLabels;
+  private final String[] countLabels;
+
+  private Class<?> lastType;
+  private Accessors lastAccessors;
+
+  /**
+   * @param columns    查询列表中每一列对应的属性名
+   * @param keys       分组键对应的属性名,没有group by时为空集合,所有记录合并成一条
+   * @param properties 聚合函数的结果对应的属性名
+   * @param functions  与properties一一对应的聚合函数
+   * @param avgClauses 按顺序与functions中的avg一一对应,avg没有被改写时为空集合
+   */
+  GroupByMerger(List<String> columns, List<String> keys, List<String> properties,
+                List<GroupFunctionType> functions, List<AvgClause> avgClauses) {
+    this.columns = columns;
+    this.keys = keys.toArray(new String[keys.size()]);
+    this.properties = properties.toArray(new String[properties.size()]);
+    this.functions = functions.toArray(new GroupFunctionType[functions.size()]);
+    this.sumLabels = new String[this.functions.length];
+    this.countLabels = new String[this.functions.length];
+    Iterator<AvgClause> avgs = avgClauses.iterator();
+    for (int i = 0; i < this.functions.length; i++) {
+      if (this.functions[i] != GroupFunctionType.AVG) {
+        continue;
+      }
+      if (!avgs.hasNext()) {
+        throw new ResultMergeException(
+            "The group function 'AVG' must be rewritten as SUM and COUNT");
+      }
+      //avg被改写时子表的结果为Map,合并后的平均值使用原始SQL中的列名
+      AvgClause avgClause = avgs.next();
+      this.properties[i] = avgClause.getLabel();
+      sumLabels[i] = avgClause.getSumLabel();
+      countLabels[i] = avgClause.getCountLabel();
+    }
+  }
+
+  /**
+   * @return 属性是否与分组键相同,不考虑顺序
+   */
+  boolean isGroupKeys(List<String> candidates) {
+    if (candidates.size() != keys.length) {
+      return false;
+    }
+    List<String> keyList = Arrays.asList(keys);
+    return keyList.containsAll(candidates) && candidates.containsAll(keyList);
+  }
+
+  /**
+   * 使用hash表合并,合并后的分组按第一次出现的顺序排列
+   */
+  List<Object> hashMerge(List<List<Object>> results) {
+    Map<Object, Object> groups = new LinkedHashMap<>();
+    for (List<Object> rows : results) {
+      if (rows == null) {
+        continue;
+      }
+      for (Object row : rows) {
+        Accessors accessors = accessors(row.getClass());
+        Object key = groupKey(row, accessors);
+        Object group = groups.get(key);
+        if (group == null) {
+          //只有一条记录的分组不需要累加器
+          groups.put(key, row);
+          continue;
+        }
+        if (!(group instanceof Group)) {
+          Group combined = new Group(functions.length);
+          combined.start(group, accessors(group.getClass()));
+          groups.put(key, combined);
+          group = combined;
+        }
+        combine((Group) group, row, accessors);
+      }
+    }
+    List<Object> merged = new ArrayList<>(groups.size());
+    for (Object group : groups.values()) {
+      merged.add(group instanceof Group ? finish((Group) group) : finish(group, null));
+    }
+    return merged;
+  }
+
+  /**
+   * 流式合并,每个子表的结果都已经按分组键排序
+   *
+   * @param groupKeys 分组键对应的order by子句,决定了子表结果的顺序
+   * @param offset    跳过的分组数
+   * @param rowCount  最多返回的分组数,{@link Integer#MAX_VALUE}表示不限制
+   */
+  List<Object> sortedMerge(List<List<Object>> sortedLists, OrderByKeys groupKeys, int offset,
+                           int rowCount) {
+    if (rowCount <= 0) {
+      return Collections.emptyList();
+    }
+    List<Object> merged = new ArrayList<>();
+    SortedListMerger.KeyMergeIterator rows = SortedListMerger.iterator(sortedLists, groupKeys);
+    OrderByKeys.Key groupKey = groupKeys.newKey();
+    Object group = null;
+    //当前分组的累加器,每个分组重复使用
+    Group combined = new Group(functions.length);
+    boolean isCombined = false;
+    int skip = Math.max(offset, 0);
+    while (rows.hasNext()) {
+      Object row = rows.next();
+      if (group != null && groupKeys.compare(groupKey, rows.key()) == 0) {
+        if (!isCombined) {
+          combined.start(group, accessors(group.getClass()));
+          isCombined = true;
+        }
+        combine(combined, row, accessors(row.getClass()));
+        continue;
+      }
+      if (group != null) {
+        //上一个分组已经完整
+        if (skip > 0) {
+          skip--;
+        } else {
+          merged.add(isCombined ? finish(combined) : finish(group, null));
+          if (merged.size() >= rowCount) {
+            return merged;
+          }
+        }
+      }
+      group = row;
+      isCombined = false;
+      groupKeys.extract(group, groupKey);
+    }
+    if (group != null && skip == 0) {
+      merged.add(isCombined ? finish(combined) : finish(group, null));
+    }
+    return merged;
+  }
+
+  /**
+   * @return 分组键只有一列时为该列的值,否则为各列的值组成的List
+   */
+  private Object groupKey(Object row, Accessors accessors) {
+    PropertyAccessor[] keyAccessors = accessors.keys;
+    if (keyAccessors.length == 0) {
+      return Collections.emptyList();
+    }
+    if (keyAccessors.length == 1) {
+      return keyAccessors[0].get(row);
+    }
+    Object[] values = new Object[keyAccessors.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = keyAccessors[i].get(row);
+    }
+    return Arrays.asList(values);
+  }
+
+  /**
+   * 将row中的部分聚合结果合并到group中
+   */
+  private void combine(Group group, Object row, Accessors accessors) {
+    for (int i = 0; i < functions.length; i++) {
+      switch (functions[i]) {
+        case COUNT:
+        case SUM:
+          add(group.sums[i], accessors.values[i], row);
+          break;
+        case MAX:
+        case MIN: {
+          PropertyAccessor accessor = accessors.values[i];
+          Object value = accessor.get(row);
+          if (value == null) {
+            break;
+          }
+          Object current = accessor.get(group.row);
+          int cmp = PropertyAccessor.compareValues(value, current);
+          if (current == null || (functions[i] == GroupFunctionType.MAX ? cmp > 0 : cmp < 0)) {
+            accessor.set(group.row, value);
+          }
+          break;
+        }
+        case AVG:
+          add(group.sums[i], accessors.sums[i], row);
+          add(group.counts[i], accessors.counts[i], row);
+          break;
+        default:
+          //非聚合的列取第一条记录的值
+      }
+    }
+  }
+
+  /**
+   * 基本类型的属性按基本类型累加,不装箱
+   */
+  private static void add(Adders.Sum sum, PropertyAccessor accessor, Object row) {
+    if (accessor.isLong()) {
+      sum.addLong(accessor.getLong(row));
+    } else if (accessor.isDouble()) {
+      sum.addDouble(accessor.getDouble(row));
+    } else {
+      sum.add(accessor.get(row));
+    }
+  }
+
+  /**
+   * 将累加的结果写回分组的第一条记录
+   */
+  private Object finish(Group group) {
+    Accessors accessors = accessors(group.row.getClass());
+    for (int i = 0; i < functions.length; i++) {
+      if (functions[i] == GroupFunctionType.COUNT || functions[i] == GroupFunctionType.SUM) {
+        accessors.values[i].set(group.row, group.sums[i].get());
+      }
+    }
+    return finish(group.row, group);
+  }
+
+  /**
+   * 由合并后的sum与count计算avg,并去掉改写时添加的列
+   *
+   * @param group 只有一条记录的分组为null,sum与count从记录中取
+   */
+  private Object finish(Object row, Group group) {
+    Accessors accessors = accessors(row.getClass());
+    for (int i = 0; i < functions.length; i++) {
+      if (functions[i] != GroupFunctionType.AVG) {
+        continue;
+      }
+      Object sum;
+      long total;
+      if (group == null) {
+        sum = accessors.sums[i].get(row);
+        Object count = accessors.counts[i].get(row);
+        total = count == null ? 0 : ((Number) count).longValue();
+      } else {
+        sum = group.sums[i].get();
+        total = group.counts[i].longValue();
+      }
+      accessors.values[i].set(row, sum == null || total == 0 ? null :
+          Mergers.average(sum, total));
+      if (row instanceof Map) {
+        removeIgnoreCase((Map<?, ?>) row, sumLabels[i]);
+        removeIgnoreCase((Map<?, ?>) row, countLabels[i]);
+      }
+    }
+    return row;
+  }
+
+  private static void removeIgnoreCase(Map<?, ?> row, String label) {
+    for (Iterator<?> keys = row.keySet().iterator(); keys.hasNext(); ) {
+      Object key = keys.next();
+      if (key instanceof String && label.equalsIgnoreCase((String) key)) {
+        keys.remove();
+      }
+    }
+  }
+
+  private Accessors accessors(Class<?> type) {
+    if (type == lastType) {
+      return lastAccessors;
+    }
+    Accessors accessors = new Accessors(keys.length, functions.length);
+    for (int i = 0; i < keys.length; i++) {
+      accessors.keys[i] = accessor(type, keys[i]);
+    }
+    for (int i = 0; i < functions.length; i++) {
+      accessors.values[i] = accessor(type, properties[i]);
+      if (functions[i] == GroupFunctionType.AVG) {
+        accessors.sums[i] = accessor(type, sumLabels[i]);
+        accessors.counts[i] = accessor(type, countLabels[i]);
+      }
+    }
+    lastType = type;
+    lastAccessors = accessors;
+    return accessors;
+  }
+
+  private PropertyAccessor accessor(Class<?> type, String property) {
+    if (type == Object[].class) {
+      int index = columns.indexOf(property);
+      if (index < 0) {
+        throw new ResultMergeException("cannot find the column '" + property
+            + "' in the array results");
+      }
+      return PropertyAccessor.forIndex(index);
+    }
+    return PropertyAccessor.forProperty(type, property);
+  }
+
+  /**
+   * 合并了多条记录的分组,count,sum与avg的部分结果在累加器中累加
+   */
+  private final class Group {
+    private Object row;
+    private final Adders.Sum[] sums;
+    private final Adders.Sum[] counts;
+
+    private Group(int valueCount) {
+      this.sums = new Adders.Sum[valueCount];
+      this.counts = new Adders.Sum[valueCount];
+      for (int i = 0; i < valueCount; i++) {
+        if (functions[i] == GroupFunctionType.COUNT || functions[i] == GroupFunctionType.SUM
+            || functions[i] == GroupFunctionType.AVG) {
+          sums[i] = new Adders.Sum();
+        }
+        if (functions[i] == GroupFunctionType.AVG) {
+          counts[i] = new Adders.Sum();
+        }
+      }
+    }
+
+    /**
+     * 以row作为分组的第一条记录,累加器从row中的值开始
+     */
+    private void start(Object row, Accessors accessors) {
+      this.row = row;
+      for (int i = 0; i < sums.length; i++) {
+        if (sums[i] == null) {
+          continue;
+        }
+        sums[i].reset();
+        if (functions[i] == GroupFunctionType.AVG) {
+          counts[i].reset();
+          add(sums[i], accessors.sums[i], row);
+          add(counts[i], accessors.counts[i], row);
+        } else {
+          add(sums[i], accessors.values[i], row);
+        }
+      }
+    }
+  }
+
+  /**
+   * 某个类型的分组键与聚合列的访问器
+   */
+  private static final class Accessors {
+    private final PropertyAccessor[] keys;
+    private final PropertyAccessor[] values;
+    private final PropertyAccessor[] sums;
+    private final PropertyAccessor[] counts;
+
+    private Accessors(int keyCount, int valueCount) {
+      this.keys = new PropertyAccessor[keyCount];
+      this.values = new PropertyAccessor[valueCount];
+      this.sums = new PropertyAccessor[valueCount];
+      this.counts = new PropertyAccessor[valueCount];
+    }
+  }
+}
@@ -0,0 +1,331 @@
+package cn.yxffcode.mtd.core.merger;
+
+import cn.yxffcode.mtd.core.ParameterSupplier;
+import cn.yxffcode.mtd.core.parser.ast.LimitClause;
+import cn.yxffcode.mtd.core.parser.ast.SelectStatement;
+import net.sf.jsqlparser.expression.Alias;
+import net.sf.jsqlparser.expression.BinaryExpression;
+import net.sf.jsqlparser.expression.DoubleValue;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.Function;
+import net.sf.jsqlparser.expression.JdbcParameter;
+import net.sf.jsqlparser.expression.LongValue;
+import net.sf.jsqlparser.expression.NullValue;
+import net.sf.jsqlparser.expression.Parenthesis;
+import net.sf.jsqlparser.expression.StringValue;
+import net.sf.jsqlparser.expression.operators.conditional.AndExpression;
+import net.sf.jsqlparser.expression.operators.conditional.OrExpression;
+import net.sf.jsqlparser.expression.operators.relational.EqualsTo;
+import net.sf.jsqlparser.expression.operators.relational.GreaterThan;
+import net.sf.jsqlparser.expression.operators.relational.GreaterThanEquals;
+import net.sf.jsqlparser.expression.operators.relational.MinorThan;
+import net.sf.jsqlparser.expression.operators.relational.MinorThanEquals;
+import net.sf.jsqlparser.expression.operators.relational.NotEqualsTo;
+import net.sf.jsqlparser.schema.Column;
+import net.sf.jsqlparser.statement.select.SelectExpressionItem;
+import net.sf.jsqlparser.statement.select.SelectItem;
+import org.apache.commons.lang3.StringUtils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按having过滤合并后的分组.
+ * <p/>
+ * 查询多个子表时having从子表的SQL中去掉,合并分组后再计算.having中的聚合函数与列按查询列表中
+ * 相同的表达式或者别名取合并后的值,所以必须出现在查询列表中,比如
+ * select name, count(*) from t group by name having count(*) > 2;
+ * select name from t group by name having count(*) > 2 不能合并,抛出{@link ResultMergeException}.
+ * 查询列表中有*时无法确定每一列的属性名,也不能合并.
+ * 支持and, or, not, 比较运算,字面值与jdbc参数,值为null的比较不成立.
+ *
+ * @author gaohang on 16/4/6.
+ */
+final class HavingFilter {
+
+  private final Condition condition;
+
+  private HavingFilter(Condition condition) {
+    this.condition = condition;
+  }
+
+  /**
+   * @param columns           查询列表中每一列对应的属性名,与合并后的分组中的属性一致
+   * @param parameterSupplier 原始SQL的参数,having中的参数在limit的参数之前
+   */
+  static HavingFilter compile(SelectStatement selectStatement, List<String> columns,
+                              ParameterSupplier parameterSupplier) {
+    if (columns.size() != selectStatement.getSelectItems().size()) {
+      throw new ResultMergeException(
+          "select * statement cannot merge results through having");
+    }
+    LimitClause limit = selectStatement.getLimitClause();
+    int firstParameter = parameterSupplier.getParameterCount()
+        - selectStatement.getHavingClause().getJdbcParameterCount()
+        - (limit == null ? 0 : limit.getJdbcParameterCount());
+    Compiler compiler = new Compiler(selectStatement.getSelectItems(), columns,
+        parameterSupplier, firstParameter);
+    return new HavingFilter(compiler.condition(selectStatement.getHaving()));
+  }
+
+  /**
+   * @return 满足having的分组,保持原来的顺序
+   */
+  List<Object> filter(List<Object> groups) {
+    List<Object> filtered = new ArrayList<>(groups.size());
+    for (Object group : groups) {
+      if (condition.test(group)) {
+        filtered.add(group);
+      }
+    }
+    return filtered;
+  }
+
+  /**
+   * 将having表达式编译为条件,jdbc参数按在SQL中出现的顺序取值
+   */
+  private static final class Compiler {
+    private final List<SelectItem> selectItems;
+    private final List<String> columns;
+    private final ParameterSupplier parameterSupplier;
+    private int nextParameter;
+
+    private Compiler(List<SelectItem> selectItems, List<String> columns,
+                     ParameterSupplier parameterSupplier, int firstParameter) {
+      this.selectItems = selectItems;
+      this.columns = columns;
+      this.parameterSupplier = parameterSupplier;
+      this.nextParameter = firstParameter;
+    }
+
+    private Condition condition(Expression expression) {
+      if (expression instanceof Parenthesis) {
+        Parenthesis parenthesis = (Parenthesis) expression;
+        Condition condition = condition(parenthesis.getExpression());
+        return parenthesis.isNot() ? not(condition) : condition;
+      }
+      if (expression instanceof AndExpression || expression instanceof OrExpression) {
+        BinaryExpression binary = (BinaryExpression) expression;
+        final Condition left = condition(binary.getLeftExpression());
+        final Condition right = condition(binary.getRightExpression());
+        Condition condition = expression instanceof AndExpression ? new Condition() {
+          @Override public boolean test(Object row) {
+            return left.test(row) && right.test(row);
+          }
+        } : new Condition() {
+          @Override public boolean test(Object row) {
+            return left.test(row) || right.test(row);
+          }
+        };
+        return binary.isNot() ? not(condition) : condition;
+      }
+      Comparison comparison = Comparison.of(expression);
+      if (comparison == null) {
+        throw new ResultMergeException(
+            "the having condition '" + expression + "' cannot be merged across sub tables");
+      }
+      BinaryExpression binary = (BinaryExpression) expression;
+      Condition condition = comparison.condition(value(binary.getLeftExpression()),
+          value(binary.getRightExpression()));
+      return binary.isNot() ? not(condition) : condition;
+    }
+
+    private Value value(Expression expression) {
+      if (expression instanceof JdbcParameter) {
+        return new Constant(parameterSupplier.getParameter(nextParameter++));
+      } else if (expression instanceof LongValue) {
+        return new Constant(((LongValue) expression).getValue());
+      } else if (expression instanceof DoubleValue) {
+        return new Constant(((DoubleValue) expression).getValue());
+      } else if (expression instanceof StringValue) {
+        return new Constant(((StringValue) expression).getValue());
+      } else if (expression instanceof NullValue) {
+        return new Constant(null);
+      } else if (expression instanceof Function || expression instanceof Column) {
+        int index = indexOf(expression);
+        if (index < 0) {
+          throw new ResultMergeException("'" + expression
+              + "' in having must be selected to merge results of sub tables");
+        }
+        return new Property(columns.get(index), index);
+      }
+      throw new ResultMergeException(
+          "the having operand '" + expression + "' cannot be merged across sub tables");
+    }
+
+    /**
+     * @return 与表达式相同,或者别名与列名相同的查询列的位置,没有时返回-1
+     */
+    private int indexOf(Expression expression) {
+      String text = normalize(expression.toString());
+      String columnName = expression instanceof Column && !(expression instanceof Function)
+          && (((Column) expression).getTable() == null
+          || ((Column) expression).getTable().getName() == null) ?
+          ((Column) expression).getColumnName() : null;
+      for (int i = 0, j = selectItems.size(); i < j; i++) {
+        if (!(selectItems.get(i) instanceof SelectExpressionItem)) {
+          //a.*等不能与having中的表达式对应
+          continue;
+        }
+        SelectExpressionItem item = (SelectExpressionItem) selectItems.get(i);
+        if (normalize(item.getExpression().toString()).equals(text)) {
+          return i;
+        }
+        Alias alias = item.getAlias();
+        if (columnName != null && alias != null
+            && StringUtils.equalsIgnoreCase(StringUtils.strip(alias.getName(), "`\""),
+            columnName)) {
+          return i;
+        }
+      }
+      if (columnName == null) {
+        return -1;
+      }
+      //没有表名的列可以与查询列表中带表名的列相同
+      for (int i = 0, j = selectItems.size(); i < j; i++) {
+        if (!(selectItems.get(i) instanceof SelectExpressionItem)) {
+          continue;
+        }
+        Expression selected = ((SelectExpressionItem) selectItems.get(i)).getExpression();
+        if (selected instanceof Column && !(selected instanceof Function)
+            && StringUtils.equalsIgnoreCase(((Column) selected).getColumnName(), columnName)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private static String normalize(String expression) {
+      return StringUtils.deleteWhitespace(expression).replace("`", "").toLowerCase();
+    }
+
+    private static Condition not(final Condition condition) {
+      return new Condition() {
+        @Override public boolean test(Object row) {
+          return !condition.test(row);
+        }
+      };
+    }
+  }
+
+  private enum Comparison {
+    EQ {
+      @Override boolean matches(int cmp) {
+        return cmp == 0;
+      }
+    },
+    NE {
+      @Override boolean matches(int cmp) {
+        return cmp != 0;
+      }
+    },
+    GT {
+      @Override boolean matches(int cmp) {
+        return cmp > 0;
+      }
+    },
+    GE {
+      @Override boolean matches(int cmp) {
+        return cmp >= 0;
+      }
+    },
+    LT {
+      @Override boolean matches(int cmp) {
+        return cmp < 0;
+      }
+    },
+    LE {
+      @Override boolean matches(int cmp) {
+        return cmp <= 0;
+      }
+    };
+
+    abstract boolean matches(int cmp);
+
+    Condition condition(final Value left, final Value right) {
+      return new Condition() {
+        @Override public boolean test(Object row) {
+          Object l = left.get(row);
+          Object r = right.get(row);
+          return l != null && r != null && matches(compare(l, r));
+        }
+      };
+    }
+
+    static Comparison of(Expression expression) {
+      if (expression instanceof EqualsTo) {
+        return EQ;
+      } else if (expression instanceof NotEqualsTo) {
+        return NE;
+      } else if (expression instanceof GreaterThan) {
+        return GT;
+      } else if (expression instanceof GreaterThanEquals) {
+        return GE;
+      } else if (expression instanceof MinorThan) {
+        return LT;
+      } else if (expression instanceof MinorThanEquals) {
+        return LE;
+      }
+      return null;
+    }
+
+    /**
+     * 数值与字符串比较时,字符串按数值比较
+     */
+    private static int compare(Object left, Object right) {
+      if (left instanceof Number && right instanceof String) {
+        return PropertyAccessor.compareValues(left, new BigDecimal((String) right));
+      }
+      if (left instanceof String && right instanceof Number) {
+        return PropertyAccessor.compareValues(new BigDecimal((String) left), right);
+      }
+      return PropertyAccessor.compareValues(left, right);
+    }
+  }
+
+  private interface Condition {
+    boolean test(Object row);
+  }
+
+  private interface Value {
+    Object get(Object row);
+  }
+
+  private static final class Constant implements Value {
+    private final Object value;
+
+    private Constant(Object value) {
+      this.value = value;
+    }
+
+    @Override public Object get(Object row) {
+      return value;
+    }
+  }
+
+  /**
+   * 合并后的分组中查询列的值,查询结果为数组时按列的位置取值
+   */
+  private static final class Property implements Value {
+    private final String property;
+    private final int index;
+    private Class<?> lastType;
+    private PropertyAccessor lastAccessor;
+
+    private Property(String property, int index) {
+      this.property = property;
+      this.index = index;
+    }
+
+    @Override public Object get(Object row) {
+      Class<?> type = row.getClass();
+      if (type != lastType) {
+        lastAccessor = type == Object[].class ?
+            PropertyAccessor.forIndex(index) : PropertyAccessor.forProperty(type, property);
+        lastType = type;
+      }
+      return lastAccessor.get(row);
+    }
+  }
+}
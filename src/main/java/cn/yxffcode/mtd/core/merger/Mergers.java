@@ -1,33 +1,47 @@
 package cn.yxffcode.mtd.core.merger;
 
+import cn.yxffcode.mtd.config.Configuration;
 import cn.yxffcode.mtd.core.FieldMapping;
 import cn.yxffcode.mtd.core.ParameterSupplier;
 import cn.yxffcode.mtd.core.parser.ParsedSqlContext;
+import cn.yxffcode.mtd.core.parser.ast.AvgClause;
+import cn.yxffcode.mtd.core.parser.ast.GroupFunctionType;
+import cn.yxffcode.mtd.core.parser.ast.LimitClause;
+import cn.yxffcode.mtd.core.parser.ast.SelectColumn;
 import cn.yxffcode.mtd.core.parser.ast.SelectStatement;
+import cn.yxffcode.mtd.lang.ImmutableIterator;
 import cn.yxffcode.mtd.utils.ListUtils;
-import cn.yxffcode.mtd.utils.Reflections;
 import com.google.common.base.Supplier;
-import com.google.common.collect.Ordering;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
 import net.sf.jsqlparser.expression.Alias;
 import net.sf.jsqlparser.expression.Expression;
 import net.sf.jsqlparser.schema.Column;
 import net.sf.jsqlparser.schema.Table;
 import net.sf.jsqlparser.statement.select.AllColumns;
 import net.sf.jsqlparser.statement.select.AllTableColumns;
-import net.sf.jsqlparser.statement.select.Limit;
 import net.sf.jsqlparser.statement.select.OrderByElement;
 import net.sf.jsqlparser.statement.select.SelectExpressionItem;
 import net.sf.jsqlparser.statement.select.SelectItem;
 import org.apache.commons.lang3.StringUtils;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
 import java.sql.SQLException;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 
-import static com.google.common.base.Preconditions.checkArgument;
-import static com.google.common.base.Preconditions.checkNotNull;
+import static cn.yxffcode.mtd.utils.CollectionUtils.isNotEmpty;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
 
 /**
  * 查询结果的合并逻辑
@@ -39,7 +53,39 @@ enum Mergers {
     @Override Object merge(List<Object> results, ParsedSqlContext parsedSqlContext,
                            Supplier<FieldMapping> fieldMappingSupplier,
                            ParameterSupplier parameterSupplier) throws SQLException {
-      throw new SQLException("The group function 'AVG' is not supported now!");
+      //各子表的avg已被改写成sum与count,查询结果为Map
+      if (!parsedSqlContext.isAvgRewritten()) {
+        throw new SQLException("The group function 'AVG' must be rewritten as SUM and COUNT");
+      }
+      Adders.Sum sum = new Adders.Sum();
+      long count = 0;
+      for (Object result : new GroupList(results)) {
+        if (!(result instanceof Map)) {
+          throw new SQLException("The rewritten AVG result must be a map, but was " + result);
+        }
+        Map<?, ?> row = (Map<?, ?>) result;
+        Object subCount = getIgnoreCase(row, AvgClause.COUNT_LABEL);
+        Object subSum = getIgnoreCase(row, AvgClause.SUM_LABEL);
+        if (subCount == null || subSum == null) {
+          continue;
+        }
+        count += ((Number) subCount).longValue();
+        sum.add(subSum);
+      }
+      return Collections.singletonList(count == 0 ? null : average(sum.get(), count));
+    }
+
+    private Object getIgnoreCase(Map<?, ?> row, String label) {
+      Object value = row.get(label);
+      if (value != null) {
+        return value;
+      }
+      for (Map.Entry<?, ?> en : row.entrySet()) {
+        if (StringUtils.equalsIgnoreCase(String.valueOf(en.getKey()), label)) {
+          return en.getValue();
+        }
+      }
+      return null;
     }
   },
 
@@ -51,18 +97,12 @@ enum Mergers {
       if (objects.size <= 1) {
         return objects;
       }
-      long sum = 0;
+      //有些驱动返回的count为BigDecimal或BigInteger
+      Adders.Sum sum = new Adders.Sum();
       for (Object result : objects) {
-        if (result == null) {
-          continue;
-        }
-        if (result instanceof Long) {
-          sum += ((Long) result);
-        } else if (result instanceof Integer) {
-          sum += ((Integer) result);
-        }
+        sum.add(result);
       }
-      return Arrays.asList(sum);
+      return Arrays.<Object>asList(sum.longValue());
     }
   },
   MAX {
@@ -73,13 +113,13 @@ enum Mergers {
       if (objects.size <= 1) {
         return objects;
       }
-      Comparable<Object> max = null;
+      Object max = null;
       for (Object current : objects) {
         if (current == null) {
           continue;
         }
-        if (max == null || max.compareTo(current) < 0) {
-          max = (Comparable<Object>) current;
+        if (max == null || PropertyAccessor.compareValues(max, current) < 0) {
+          max = current;
         }
       }
       return Arrays.asList(max);
@@ -93,13 +133,13 @@ enum Mergers {
       if (objects.size <= 1) {
         return objects;
       }
-      Comparable<Object> min = null;
+      Object min = null;
       for (Object current : objects) {
         if (current == null) {
           continue;
         }
-        if (min == null || min.compareTo(current) > 0) {
-          min = (Comparable<Object>) current;
+        if (min == null || PropertyAccessor.compareValues(min, current) > 0) {
+          min = current;
         }
       }
       return Arrays.asList(min);
@@ -109,106 +149,204 @@ enum Mergers {
     @Override Object merge(List<Object> results, ParsedSqlContext parsedSqlContext,
                            Supplier<FieldMapping> fieldMappingSupplier,
                            ParameterSupplier parameterSupplier) throws SQLException {
-      Adders.Add<Object> add = null;
-      Object sum = null;
       GroupList objects = new GroupList(results);
       if (objects.size <= 1) {
         return objects;
       }
+      Adders.Sum sum = new Adders.Sum();
       for (Object result : objects) {
-        if (result == null) {
+        sum.add(result);
+      }
+      return Arrays.asList(sum.get());
+    }
+  },
+  GROUP_BY {
+    @Override Object merge(List<Object> results, ParsedSqlContext parsedSqlContext,
+                           Supplier<FieldMapping> fieldMappingSupplier,
+                           ParameterSupplier parameterSupplier) throws SQLException {
+      SelectStatement selectStatement = (SelectStatement) parsedSqlContext.getSqlStatement();
+      //avg被改写时子表的结果为Map,按列名取值
+      FieldMapping fieldMapping = parsedSqlContext.isAvgRewritten() ?
+          IDENTITY_MAPPING : fieldMappingSupplier.get();
+      GroupByMerger merger = buildGroupByMerger(parsedSqlContext, fieldMapping);
+
+      LimitClause limit = selectStatement.getLimitClause();
+      int offset = limit == null ? 0 : getOffset(limit, parameterSupplier);
+      int rowCount = limit == null ? Integer.MAX_VALUE : getRowCount(limit, parameterSupplier);
+      List<OrderByElement> orderByEles = selectStatement.getOrderByElements();
+      List<String> orderByProperties = getOrderByProperties(selectStatement, fieldMapping);
+      //having从子表的SQL中去掉时,按合并后的分组过滤,过滤后才能处理limit
+      HavingFilter having = parsedSqlContext.isHavingRemoved() ? HavingFilter.compile(
+          selectStatement, havingColumns(parsedSqlContext, fieldMapping), parameterSupplier)
+          : null;
+      int keyCount = selectStatement.getGroupByColumnReferences().size();
+      if (keyCount > 0 && orderByProperties.size() >= keyCount
+          && isSortedBySubTables(selectStatement)
+          && merger.isGroupKeys(orderByProperties.subList(0, keyCount))) {
+        //order by以分组键开头,子表的结果已经按分组键排序,同一分组的记录在归并后相邻
+        OrderByKeys groupKeys = new OrderByKeys(orderByProperties.subList(0, keyCount),
+            orderByEles.subList(0, keyCount));
+        if (having == null) {
+          return merger.sortedMerge(asLists(results), groupKeys, offset, rowCount);
+        }
+        List<Object> merged = having.filter(
+            merger.sortedMerge(asLists(results), groupKeys, 0, Integer.MAX_VALUE));
+        return limit == null ? merged : ListUtils.subListCopy(merged, offset, rowCount);
+      }
+      List<Object> merged = merger.hashMerge(asLists(results));
+      if (having != null) {
+        merged = having.filter(merged);
+      }
+      if (!orderByProperties.isEmpty()) {
+        //按合并后的值排序,order by中可以包含聚合函数的别名
+        new OrderByKeys(orderByProperties, orderByEles).sort(merged);
+      }
+      return limit == null ? merged : ListUtils.subListCopy(merged, offset, rowCount);
+    }
+
+    private GroupByMerger buildGroupByMerger(ParsedSqlContext parsedSqlContext,
+                                             FieldMapping fieldMapping) throws SQLException {
+      SelectStatement selectStatement = (SelectStatement) parsedSqlContext.getSqlStatement();
+      List<SelectColumn> selectColumns = selectStatement.getSelectColumns();
+      if (selectColumns.isEmpty()) {
+        throw new ResultMergeException(
+            "select * statement cannot merge results through group by or group functions");
+      }
+      List<String> columns = new ArrayList<>(selectColumns.size());
+      for (SelectColumn selectColumn : selectColumns) {
+        columns.add(fieldMapping.map(selectColumn.getLabel()));
+      }
+      List<String> keys = new ArrayList<>();
+      for (Column column : selectStatement.getGroupByColumnReferences()) {
+        String label = getColumnLabel(column, selectStatement);
+        if (!isSelected(label, selectColumns)) {
+          //分组键不在查询结果中时无法区分不同的分组
+          throw new ResultMergeException("the group by column '" + column
+              + "' must be selected to merge results of sub tables");
+        }
+        keys.add(fieldMapping.map(label));
+      }
+      List<String> properties = new ArrayList<>();
+      List<GroupFunctionType> functions = new ArrayList<>();
+      for (SelectColumn selectColumn : selectColumns) {
+        if (!selectColumn.isAggregate()) {
           continue;
         }
-        if (sum == null) {
-          sum = result;
-          add = Adders.getNumberAdd(sum.getClass());
-          checkNotNull(add, "The group function 'SUM' does not supported the type '%s'",
-              sum.getClass());
-        } else {
-          sum = add.add(sum, result);
+        if (selectColumn.getFunction() == GroupFunctionType.AVG
+            && !parsedSqlContext.isAvgRewritten()) {
+          throw new SQLException("The group function 'AVG' must be rewritten as SUM and COUNT");
         }
+        properties.add(fieldMapping.map(selectColumn.getLabel()));
+        functions.add(selectColumn.getFunction());
+      }
+      List<AvgClause> avgClauses = parsedSqlContext.isAvgRewritten() ?
+          selectStatement.getAvgClauses() : Collections.<AvgClause>emptyList();
+      return new GroupByMerger(columns, keys, properties, functions, avgClauses);
+    }
+
+    /**
+     * @return 查询列表中每一列在合并后的分组中的属性名,avg被改写时为原始SQL中avg的列名
+     */
+    private List<String> havingColumns(ParsedSqlContext parsedSqlContext,
+                                       FieldMapping fieldMapping) {
+      SelectStatement selectStatement = (SelectStatement) parsedSqlContext.getSqlStatement();
+      Iterator<AvgClause> avgClauses = parsedSqlContext.isAvgRewritten() ?
+          selectStatement.getAvgClauses().iterator() : Collections.<AvgClause>emptyIterator();
+      List<String> columns = new ArrayList<>(selectStatement.getSelectColumns().size());
+      for (SelectColumn selectColumn : selectStatement.getSelectColumns()) {
+        columns.add(selectColumn.getFunction() == GroupFunctionType.AVG && avgClauses.hasNext() ?
+            avgClauses.next().getLabel() : fieldMapping.map(selectColumn.getLabel()));
       }
-      return Arrays.asList(sum);
+      return columns;
+    }
+
+    private boolean isSelected(String label, List<SelectColumn> selectColumns) {
+      for (SelectColumn selectColumn : selectColumns) {
+        if (StringUtils.equalsIgnoreCase(label, selectColumn.getLabel())) {
+          return true;
+        }
+      }
+      return false;
     }
   },
   DISTINCT {
     @Override Object merge(List<Object> results, ParsedSqlContext parsedSqlContext,
                            Supplier<FieldMapping> fieldMappingSupplier,
                            ParameterSupplier parameterSupplier) throws SQLException {
-      // TODO: 16/2/2 没有处理Distinct
-      return new GroupList(results);
+      SelectStatement selectStatement = (SelectStatement) parsedSqlContext.getSqlStatement();
+      FieldMapping fieldMapping = fieldMappingSupplier.get();
+      List<String> columns = new ArrayList<>(selectStatement.getSelectColumns().size());
+      for (SelectColumn selectColumn : selectStatement.getSelectColumns()) {
+        columns.add(fieldMapping.map(selectColumn.getLabel()));
+      }
+      DistinctMerger merger = new DistinctMerger(columns);
+
+      //子表SQL的limit已被改写为limit 0, offset + row_count,每个子表都返回了足够的不同记录
+      LimitClause limit = selectStatement.getLimitClause();
+      int offset = limit == null ? 0 : getOffset(limit, parameterSupplier);
+      int rowCount = limit == null ? Integer.MAX_VALUE : getRowCount(limit, parameterSupplier);
+      if (isNotEmpty(selectStatement.getOrderByElements())) {
+        OrderByKeys keys = new OrderByKeys(getOrderByProperties(selectStatement, fieldMapping),
+            selectStatement.getOrderByElements());
+        if (isSortedBySubTables(selectStatement)) {
+          List<Object> merged = merger.sortedMerge(asLists(results), keys, offset, rowCount);
+          if (merged != null) {
+            return merged;
+          }
+          //子表的结果与这里的比较不一致,重新排序
+        }
+        List<Object> distinct = merger.hashMerge(asLists(results), 0, Integer.MAX_VALUE,
+            Configuration.getInstance().getDistinctSpillRows());
+        return keys.top(Collections.singletonList(distinct), offset, rowCount);
+      }
+      return merger.hashMerge(asLists(results), offset, rowCount,
+          Configuration.getInstance().getDistinctSpillRows());
     }
   },
   ORDER_BY {
     @Override Object merge(List<Object> results, final ParsedSqlContext parsedSqlContext,
                            final Supplier<FieldMapping> fieldMappingSupplier,
                            final ParameterSupplier parameterSupplier) throws SQLException {
-      Ordering<Object> ordering = buildOrdering(parsedSqlContext, fieldMappingSupplier);
+      OrderByKeys keys = buildOrderByKeys(parsedSqlContext, fieldMappingSupplier);
 
       SelectStatement selectStatement = (SelectStatement) parsedSqlContext.getSqlStatement();
 
-      Limit limit = selectStatement.getLimit();
-      if (limit == null) {
-        //不需要limit
-        return ordering.sortedCopy(new GroupList(results));
+      LimitClause limit = selectStatement.getLimitClause();
+      int offset = limit == null ? 0 : getOffset(limit, parameterSupplier);
+      int rowCount = limit == null ? Integer.MAX_VALUE : getRowCount(limit, parameterSupplier);
+      List<List<Object>> lists = asLists(results);
+      //每个子表的查询结果都已经按order by排好序,只需要做多路归并
+      if (isSortedBySubTables(selectStatement)) {
+        List<Object> merged = SortedListMerger.merge(lists, keys, offset, rowCount);
+        if (merged != null) {
+          return merged;
+        }
       }
+      //数据库的排序与这里的比较不一致时,只保留前offset + rowCount条记录,不对所有记录排序
+      return keys.top(lists, offset, rowCount);
+    }
 
-      //offset和limit是最后两个参数
-      int parameterCount = parameterSupplier.getParameterCount();
-      int off = limit.isOffsetJdbcParameter() ?
-          (Integer) parameterSupplier.getParameter(parameterCount - 2) :
-          (int) limit.getOffset();
-
-      if (off < 0) {
-        off = 0;
-      }
-      int len = limit.isRowCountJdbcParameter() ?
-          (Integer) parameterSupplier.getParameter(parameterCount - 1) :
-          (int) limit.getRowCount();
-      List<Object> sorted = ordering.sortedCopy(new GroupList(results));
-      return ListUtils.subListCopy(sorted, off, len);
+    /**
+     * 只在{@link #isSortedBySubTables(SelectStatement)}时使用,依赖数据库按order by返回
+     */
+    @Override Iterator<Object> stream(List<Iterator<Object>> sources,
+                                      ParsedSqlContext parsedSqlContext,
+                                      Supplier<FieldMapping> fieldMappingSupplier,
+                                      ParameterSupplier parameterSupplier) {
+      OrderByKeys keys = buildOrderByKeys(parsedSqlContext, fieldMappingSupplier);
+      LimitClause limit = ((SelectStatement) parsedSqlContext.getSqlStatement()).getLimitClause();
+      Iterator<Object> rows = SortedListMerger.streamIterator(sources, keys);
+      return limit == null ? rows : limit(rows, getOffset(limit, parameterSupplier),
+          getRowCount(limit, parameterSupplier));
     }
 
-    private Ordering<Object> buildOrdering(final ParsedSqlContext parsedSqlContext,
-                                           final Supplier<FieldMapping> fieldMappingSupplier) {
+    private OrderByKeys buildOrderByKeys(final ParsedSqlContext parsedSqlContext,
+                                         final Supplier<FieldMapping> fieldMappingSupplier) {
 
       final SelectStatement selectStatement = (SelectStatement) parsedSqlContext.getSqlStatement();
-      return new Ordering<Object>() {
-        private List<OrderByElement> orderByEles = selectStatement.getOrderByElements();
-        private FieldMapping fieldMapping = fieldMappingSupplier.get();
-
-        @Override public int compare(Object left, Object right) {
-          //依次比较每一个order by子句
-          for (int i = 0, j = orderByEles.size(); i < j; i++) {
-            OrderByElement orderByEle = orderByEles.get(i);
-            if (orderByEle == null) {
-              continue;
-            }
-            String orderByColumnName = getOrderByColumnName(orderByEle, selectStatement);
-            //取值,这里比较麻烦,需要处理left不是复杂对象的情况,如果是基于jdbc,则相对容易
-            Comparable<Object> lv;
-            if (Reflections.hasField(fieldMapping.map(orderByColumnName), left.getClass())) {
-              lv = (Comparable<Object>) Reflections
-                  .getField(fieldMapping.map(orderByColumnName), left);
-            } else {
-              lv = (Comparable<Object>) left;//直接转型,这里忽略了属性不存在的情况,如果属性不存在,无法做排序,转型会出错
-            }
-
-            Object rv =
-                Reflections.hasField(fieldMapping.map(orderByColumnName), right.getClass()) ?
-                    Reflections.getField(fieldMapping.map(orderByColumnName), right) :
-                    (Comparable<Object>) right;
-
-            //比较大小
-            int cmp = lv.compareTo(rv);
-            if (cmp == 0) {//相等,则比较下一个字段
-              continue;
-            }
-            return orderByEle.isAsc() ? cmp : -cmp;
-          }
-          return 0;
-        }
-      };
+      //order by的列对应的属性只计算一次,不在每次比较时计算
+      return new OrderByKeys(getOrderByProperties(selectStatement, fieldMappingSupplier.get()),
+          selectStatement.getOrderByElements());
     }
   },
   DEFAULT {
@@ -217,92 +355,251 @@ enum Mergers {
                            final ParameterSupplier parameterSupplier) throws SQLException {
       SelectStatement selectStatement = (SelectStatement) parsedSqlContext.getSqlStatement();
       //不排序,但处理limit
-      Limit limit = selectStatement.getLimit();
+      LimitClause limit = selectStatement.getLimitClause();
       if (limit == null) {
         return new GroupList(results);
       }
 
-      int len = (int) limit.getRowCount();
-      int off = (int) limit.getOffset();
-      return ListUtils.subListCopy(new GroupList(results), off, len);
+      //子表SQL的limit已被改写为limit 0, offset + row_count,offset只在这里处理一次
+      return ListUtils.subList(new GroupList(results), getOffset(limit, parameterSupplier),
+          getRowCount(limit, parameterSupplier));
+    }
+
+    /**
+     * 依次读取每个子表的结果,前一个子表读完后才读取下一个
+     */
+    @Override Iterator<Object> stream(List<Iterator<Object>> sources,
+                                      ParsedSqlContext parsedSqlContext,
+                                      Supplier<FieldMapping> fieldMappingSupplier,
+                                      ParameterSupplier parameterSupplier) {
+      LimitClause limit = ((SelectStatement) parsedSqlContext.getSqlStatement()).getLimitClause();
+      Iterator<Object> rows = Iterators.concat(sources.iterator());
+      return limit == null ? rows : limit(rows, getOffset(limit, parameterSupplier),
+          getRowCount(limit, parameterSupplier));
+    }
+  };
+
+  private static final FieldMapping IDENTITY_MAPPING = new FieldMapping() {
+    @Override public String map(String col) {
+      return col;
     }
   };
 
-  private static String getOrderByColumnName(OrderByElement orderByEle,
-                                             SelectStatement selectStatement) {
-    Column orderByColumn = (Column) orderByEle.getExpression();
-    String orderByColumnName = orderByColumn.getColumnName();
-    Table orderByTable = orderByColumn.getTable();
-    //如果不同表中有相同字段,取出order by的字段的别名
+  /**
+   * 子表SQL保留了order by,所以子表的结果已经按order by排序,由statement决定.
+   * <p/>
+   * 按order by与distinct合并时,归并中发现子表的结果与这里的比较不一致(如不区分大小写的字符串),
+   * 自动改为重新排序;但只能发现归并读到的记录中的逆序,而分组合并在归并时会修改记录,不能重新合并,
+   * 所以数据库的排序规则与java的比较不一致时需要配置{@code <order-by trust-collation="false"/>},
+   * 始终在合并时重新排序.
+   */
+  static boolean isSortedBySubTables(SelectStatement selectStatement) {
+    return isNotEmpty(selectStatement.getOrderByElements())
+        && Configuration.getInstance().isOrderByCollationTrusted();
+  }
+
+  /**
+   * @return 与order by子句一一对应的属性名
+   */
+  private static List<String> getOrderByProperties(SelectStatement selectStatement,
+                                                   FieldMapping fieldMapping) {
+    List<OrderByElement> orderByEles = selectStatement.getOrderByElements();
+    List<String> properties = new ArrayList<>(orderByEles.size());
+    for (OrderByElement orderByEle : orderByEles) {
+      Column orderByColumn = (Column) orderByEle.getExpression();
+      properties.add(fieldMapping.map(getColumnLabel(orderByColumn, selectStatement)));
+    }
+    return properties;
+  }
+
+  /**
+   * @return 列在查询结果中的列名,查询列表中的列有别名时为别名
+   */
+  private static String getColumnLabel(Column column, SelectStatement selectStatement) {
+    String columnName = column.getColumnName();
+    String label = columnName;
+    Table table = column.getTable();
+    //如果不同表中有相同字段,取出字段的别名
     List<SelectItem> selectItems = selectStatement.getSelectItems();
     for (SelectItem selectItem : selectItems) {
       if (selectItem instanceof AllColumns || selectItem instanceof AllTableColumns) {
         //无法排序
         throw new ResultMergeException(
-            "select * statement cannot merge results through order by");
+            "select * statement cannot merge results through order by or group by");
       }
       SelectExpressionItem selectExpressionItem = (SelectExpressionItem) selectItem;
       Expression expression = selectExpressionItem.getExpression();
 
       //因为查询到结果后,mybatis会通过别名做映射,所以如果别名存在,应该将列名转换为别名
       Alias alias = selectExpressionItem.getAlias();
-      String aliasName = alias == null ? StringUtils.EMPTY : alias.getName();
       if (!(expression instanceof Column)) {
         continue;
       }
       Column selectColumn = (Column) expression;
-      String selectColumnName = selectColumn.getColumnName();
-      if (StringUtils.equals(orderByColumnName, selectColumnName)) {
+      if (StringUtils.equals(columnName, selectColumn.getColumnName())) {
         Table selectColumnTable = selectColumn.getTable();
         //别名相等时,结束查找,别名不等时,继续找是否有别名同时也匹配的
-        orderByColumnName = alias.getName();
-        if (selectColumnTable != null && orderByTable != null &&
-            StringUtils.equals(selectColumnTable.getName(), orderByTable.getName())) {
+        label = alias == null ? columnName : alias.getName();
+        if (selectColumnTable != null && table != null &&
+            StringUtils.equals(selectColumnTable.getName(), table.getName())) {
           break;
         }
       }
     }
-    return orderByColumnName;
+    return label;
+  }
+
+  /**
+   * 与mysql一致,定点数与整数的平均值为比原数多4位小数的定点数,浮点数的平均值为double
+   */
+  static Object average(Object sum, long count) {
+    if (sum instanceof Double || sum instanceof Float) {
+      return ((Number) sum).doubleValue() / count;
+    }
+    BigDecimal total;
+    if (sum instanceof BigDecimal) {
+      total = (BigDecimal) sum;
+    } else if (sum instanceof BigInteger) {
+      total = new BigDecimal((BigInteger) sum);
+    } else {
+      total = BigDecimal.valueOf(((Number) sum).longValue());
+    }
+    return total.divide(BigDecimal.valueOf(count), total.scale() + 4, RoundingMode.HALF_UP);
+  }
+
+  private static int getOffset(LimitClause limit, ParameterSupplier parameterSupplier) {
+    return (int) Math.min(Math.max(limit.getOffset(parameterSupplier), 0), Integer.MAX_VALUE);
+  }
+
+  private static int getRowCount(LimitClause limit, ParameterSupplier parameterSupplier) {
+    return (int) Math.min(Math.max(limit.getRowCount(parameterSupplier), 0), Integer.MAX_VALUE);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<List<Object>> asLists(List<Object> results) {
+    return (List<List<Object>>) (List<?>) results;
   }
 
   abstract Object merge(final List<Object> results, final ParsedSqlContext parsedSqlContext,
                         final Supplier<FieldMapping> fieldMappingSupplier,
                         final ParameterSupplier parameterSupplier) throws SQLException;
 
+  /**
+   * 流式合并,返回的Iterator按需从sources中读取记录,只有不需要所有记录的合并支持
+   */
+  Iterator<Object> stream(List<Iterator<Object>> sources, ParsedSqlContext parsedSqlContext,
+                          Supplier<FieldMapping> fieldMappingSupplier,
+                          ParameterSupplier parameterSupplier) {
+    throw new UnsupportedOperationException(name() + " cannot merge the results as streams");
+  }
 
   /**
-   * a group of list.using AbstractList to avoid O(n) time waste.
+   * 跳过offset条记录,最多返回rowCount条,取够后不再读取rows
    */
-  private static final class GroupList extends AbstractList<Object> {
+  private static Iterator<Object> limit(final Iterator<Object> rows, final int offset,
+                                        final int rowCount) {
+    return new AbstractIterator<Object>() {
+      private int skip = offset;
+      private int remaining = rowCount;
+
+      @Override protected Object computeNext() {
+        for (; skip > 0 && rows.hasNext(); skip--) {
+          rows.next();
+        }
+        if (remaining <= 0 || !rows.hasNext()) {
+          return endOfData();
+        }
+        remaining--;
+        return rows.next();
+      }
+    };
+  }
 
-    private List<List<Object>> lists;
-    private int size;
+
+  /**
+   * 多个子表结果首尾相连的只读视图,不复制记录.
+   * <p/>
+   * starts[i]为第i个子集合的第一条记录在视图中的下标,随机访问时二分查找所在的子集合,
+   * 顺序遍历时直接使用子集合的迭代器;subList返回的也是视图,limit不需要复制记录.
+   */
+  private static final class GroupList extends AbstractList<Object> implements RandomAccess {
+
+    private final List<List<Object>> lists;
+    private final int[] starts;
+    private final int size;
 
     private GroupList(List<Object> lists) {
       this.lists = new ArrayList<>(lists.size());
       for (Object obj : lists) {
         @SuppressWarnings("unchecked") List<Object> list = (List<Object>) obj;
-        size += list.size();
-        this.lists.add(list);
+        //忽略空集合,保证starts严格递增
+        if (list != null && !list.isEmpty()) {
+          this.lists.add(list);
+        }
       }
+      this.starts = new int[this.lists.size()];
+      int total = 0;
+      for (int i = 0; i < starts.length; i++) {
+        starts[i] = total;
+        total += this.lists.get(i).size();
+      }
+      this.size = total;
     }
 
     @Override public Object get(int index) {
-      checkArgument(index >= 0 && index < size);
-      //如果子集合比较多，可以换成二分查找
-      int remaining = index;
-      for (List<Object> list : lists) {
-        if (list.size() > remaining) {
-          return list.get(remaining);
-        }
-        remaining -= list.size();
+      checkElementIndex(index, size);
+      int i = Arrays.binarySearch(starts, index);
+      if (i < 0) {
+        //index落在第(插入点 - 1)个子集合中
+        i = -i - 2;
       }
-      return null;
+      return lists.get(i).get(index - starts[i]);
     }
 
     @Override public int size() {
       return size;
     }
+
+    @Override public Iterator<Object> iterator() {
+      return new ImmutableIterator<Object>() {
+        private int next;
+        private Iterator<Object> current = Collections.emptyIterator();
+
+        @Override public boolean hasNext() {
+          while (!current.hasNext()) {
+            if (next >= lists.size()) {
+              return false;
+            }
+            current = lists.get(next++).iterator();
+          }
+          return true;
+        }
+
+        @Override public Object next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return current.next();
+        }
+      };
+    }
+
+    /**
+     * @return 由各子集合的subList组成的视图,不复制记录
+     */
+    @Override public List<Object> subList(int fromIndex, int toIndex) {
+      checkPositionIndexes(fromIndex, toIndex, size);
+      List<Object> parts = new ArrayList<>();
+      for (int i = 0; i < starts.length && starts[i] < toIndex; i++) {
+        List<Object> list = lists.get(i);
+        int from = Math.max(fromIndex - starts[i], 0);
+        int to = Math.min(toIndex - starts[i], list.size());
+        if (from < to) {
+          parts.add(from == 0 && to == list.size() ? list : list.subList(from, to));
+        }
+      }
+      return new GroupList(parts);
+    }
   }
 
 }
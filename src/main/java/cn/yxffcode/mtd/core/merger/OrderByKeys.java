@@ -0,0 +1,259 @@
+package cn.yxffcode.mtd.core.merger;
+
+import net.sf.jsqlparser.statement.select.OrderByElement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * order by的组合排序键,每条记录只取一次排序键,比较时只比较取出的键,不再访问记录本身.
+ * <p/>
+ * 排序键按列保存在{@link Key}中,整数与浮点数保存为基本类型,其它值保存为Comparable.
+ * 每一列可以分别指定升序或降序,以及null在最前或最后,没有指定时与mysql一致,null小于任何值,
+ * 即升序时null在前,降序时null在后.
+ * <p/>
+ * 此类的对象缓存了上一次使用的类型的属性访问器,不是线程安全的,每次合并创建一个.
+ *
+ * @author gaohang on 16/3/23.
+ */
+final class OrderByKeys {
+
+  private static final byte NULL = 0;
+  private static final byte LONG = 1;
+  private static final byte DOUBLE = 2;
+  private static final byte OBJECT = 3;
+
+  private final String[] properties;
+  private final boolean[] ascs;
+  private final boolean[] nullsFirst;
+
+  private Class<?> lastType;
+  private PropertyAccessor[] lastAccessors;
+
+  /**
+   * @param properties  order by的列对应的属性名
+   * @param orderByEles 与properties一一对应的order by子句
+   */
+  OrderByKeys(List<String> properties, List<OrderByElement> orderByEles) {
+    int size = properties.size();
+    this.properties = properties.toArray(new String[size]);
+    this.ascs = new boolean[size];
+    this.nullsFirst = new boolean[size];
+    for (int i = 0; i < size; i++) {
+      OrderByElement orderByEle = orderByEles.get(i);
+      ascs[i] = orderByEle.isAsc();
+      OrderByElement.NullOrdering nullOrdering = orderByEle.getNullOrdering();
+      nullsFirst[i] = nullOrdering == null ?
+          ascs[i] :
+          nullOrdering == OrderByElement.NullOrdering.NULLS_FIRST;
+    }
+  }
+
+  Key newKey() {
+    return new Key(properties.length);
+  }
+
+  /**
+   * 取出row的排序键,保存到key中,key可以被重复使用
+   */
+  void extract(Object row, Key key) {
+    key.row = row;
+    PropertyAccessor[] accessors = accessors(row.getClass());
+    for (int i = 0; i < accessors.length; i++) {
+      PropertyAccessor accessor = accessors[i];
+      if (accessor.isLong()) {
+        key.types[i] = LONG;
+        key.longs[i] = accessor.getLong(row);
+      } else if (accessor.isDouble()) {
+        key.types[i] = DOUBLE;
+        key.doubles[i] = accessor.getDouble(row);
+      } else {
+        key.set(i, accessor.get(row));
+      }
+    }
+  }
+
+  int compare(Key left, Key right) {
+    for (int i = 0; i < properties.length; i++) {
+      byte lt = left.types[i];
+      byte rt = right.types[i];
+      int cmp;
+      if (lt == NULL || rt == NULL) {
+        if (lt == rt) {
+          continue;
+        }
+        //null的位置与升降序无关
+        return (lt == NULL) == nullsFirst[i] ? -1 : 1;
+      }
+      if (lt == LONG && rt == LONG) {
+        long lv = left.longs[i];
+        long rv = right.longs[i];
+        cmp = lv < rv ? -1 : (lv == rv ? 0 : 1);
+      } else if (lt != OBJECT && rt != OBJECT) {
+        cmp = Double.compare(left.doubleValue(i), right.doubleValue(i));
+      } else {
+        cmp = PropertyAccessor.compareValues(left.value(i), right.value(i));
+      }
+      if (cmp != 0) {
+        return ascs[i] ? cmp : -cmp;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * 对没有排序的记录排序,每条记录只取一次排序键,排序是稳定的
+   */
+  void sort(List<Object> rows) {
+    Key[] sorted = new Key[rows.size()];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = newKey();
+      extract(rows.get(i), sorted[i]);
+    }
+    Arrays.sort(sorted, new Comparator<Key>() {
+      @Override public int compare(Key left, Key right) {
+        return OrderByKeys.this.compare(left, right);
+      }
+    });
+    for (int i = 0; i < sorted.length; i++) {
+      rows.set(i, sorted[i].row);
+    }
+  }
+
+  /**
+   * 从没有排序的多个集合中取出排序后的第offset条开始的rowCount条记录.
+   * 使用大小为offset + rowCount的堆,堆顶为已选出的记录中排在最后的一条,不对所有记录排序;
+   * 排序键相同时按记录在集合中的先后顺序,与排序的结果一致.
+   */
+  List<Object> top(List<List<Object>> lists, int offset, int rowCount) {
+    long total = 0;
+    for (List<Object> rows : lists) {
+      total += rows == null ? 0 : rows.size();
+    }
+    offset = Math.max(offset, 0);
+    if (rowCount <= 0 || offset >= total) {
+      return Collections.emptyList();
+    }
+    long limit = Math.min((long) offset + rowCount, total);
+    if (limit == total) {
+      //需要所有记录时直接排序
+      List<Object> all = new ArrayList<>((int) total);
+      for (List<Object> rows : lists) {
+        if (rows != null) {
+          all.addAll(rows);
+        }
+      }
+      sort(all);
+      return all.subList(offset, all.size());
+    }
+    PriorityQueue<Key> heap = new PriorityQueue<>((int) limit, new Comparator<Key>() {
+      @Override public int compare(Key left, Key right) {
+        int cmp = OrderByKeys.this.compare(right, left);
+        return cmp != 0 ? cmp : Integer.compare(right.index, left.index);
+      }
+    });
+    Key candidate = newKey();
+    int index = 0;
+    for (List<Object> rows : lists) {
+      if (rows == null) {
+        continue;
+      }
+      for (Object row : rows) {
+        extract(row, candidate);
+        candidate.index = index++;
+        if (heap.size() < limit) {
+          heap.add(candidate);
+          candidate = newKey();
+        } else if (compare(candidate, heap.peek()) < 0) {
+          //淘汰堆顶,其排序键对象留给下一条记录使用
+          Key evicted = heap.poll();
+          heap.add(candidate);
+          candidate = evicted;
+        }
+      }
+    }
+    Object[] selected = new Object[heap.size()];
+    for (int i = selected.length - 1; i >= 0; i--) {
+      selected[i] = heap.poll().row;
+    }
+    return Arrays.asList(selected).subList(offset, selected.length);
+  }
+
+  private PropertyAccessor[] accessors(Class<?> type) {
+    if (type == lastType) {
+      return lastAccessors;
+    }
+    PropertyAccessor[] accessors = new PropertyAccessor[properties.length];
+    for (int i = 0; i < accessors.length; i++) {
+      accessors[i] = PropertyAccessor.forProperty(type, properties[i]);
+    }
+    lastType = type;
+    lastAccessors = accessors;
+    return accessors;
+  }
+
+  /**
+   * 一条记录的排序键
+   */
+  static final class Key {
+    private Object row;
+    /**
+     * 记录在所有集合中的序号,只在{@link #top}中使用
+     */
+    private int index;
+    private final byte[] types;
+    private final long[] longs;
+    private final double[] doubles;
+    private final Object[] objects;
+
+    private Key(int size) {
+      this.types = new byte[size];
+      this.longs = new long[size];
+      this.doubles = new double[size];
+      this.objects = new Object[size];
+    }
+
+    Object getRow() {
+      return row;
+    }
+
+    /**
+     * 包装类型的数值也按基本类型保存
+     */
+    private void set(int i, Object value) {
+      objects[i] = null;
+      if (value == null) {
+        types[i] = NULL;
+      } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+          || value instanceof Byte) {
+        types[i] = LONG;
+        longs[i] = ((Number) value).longValue();
+      } else if (value instanceof Double || value instanceof Float) {
+        types[i] = DOUBLE;
+        doubles[i] = ((Number) value).doubleValue();
+      } else {
+        types[i] = OBJECT;
+        objects[i] = value;
+      }
+    }
+
+    private double doubleValue(int i) {
+      return types[i] == LONG ? longs[i] : doubles[i];
+    }
+
+    private Object value(int i) {
+      switch (types[i]) {
+        case LONG:
+          return longs[i];
+        case DOUBLE:
+          return doubles[i];
+        default:
+          return objects[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,304 @@
+package cn.yxffcode.mtd.core.merger;
+
+import cn.yxffcode.mtd.utils.Reflections;
+import com.google.common.base.Throwables;
+import com.google.common.collect.MapMaker;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 按(类型,属性名)缓存的属性访问器,用于合并结果时读写order by, group by以及聚合函数的值.
+ * <p/>
+ * 属性通过MethodHandle读写,整数与浮点数类型的属性可以直接按基本类型读取,不需要装箱;
+ * 结果为Map时按列名取值,列名不区分大小写,结果为数组时按列在查询列表中的位置取值;
+ * 类型中不存在该属性时,使用对象本身的值,例如查询结果是单列的情况.
+ *
+ * @author gaohang on 16/3/22.
+ */
+abstract class PropertyAccessor {
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  /**
+   * 每个结果类型的属性名到访问器的映射.访问器引用了结果类型,使用ClassValue保存在类型上,
+   * 类型被回收时一起回收,不会因为缓存使其ClassLoader不能卸载
+   */
+  private static final ClassValue<ConcurrentMap<String, PropertyAccessor>> CACHE =
+      new ClassValue<ConcurrentMap<String, PropertyAccessor>>() {
+        @Override protected ConcurrentMap<String, PropertyAccessor> computeValue(Class<?> type) {
+          return new MapMaker().makeMap();
+        }
+      };
+
+  private static final PropertyAccessor SELF = new PropertyAccessor() {
+    @Override Object get(Object row) {
+      return row;
+    }
+  };
+
+  static PropertyAccessor forProperty(Class<?> type, String property) {
+    ConcurrentMap<String, PropertyAccessor> accessors = CACHE.get(type);
+    PropertyAccessor accessor = accessors.get(property);
+    if (accessor == null) {
+      accessor = create(type, property);
+      accessors.put(property, accessor);
+    }
+    return accessor;
+  }
+
+  /**
+   * @param index 列在查询列表中的位置,用于查询结果为数组的情况
+   */
+  static PropertyAccessor forIndex(int index) {
+    return new ArrayAccessor(index);
+  }
+
+  private static PropertyAccessor create(Class<?> type, String property) {
+    if (Map.class.isAssignableFrom(type)) {
+      return new MapAccessor(property);
+    }
+    Field field = Reflections.findField(type, property, null);
+    if (field == null) {
+      return SELF;
+    }
+    field.setAccessible(true);
+    MethodHandle getter;
+    MethodHandle setter;
+    try {
+      getter = LOOKUP.unreflectGetter(field);
+      setter = LOOKUP.unreflectSetter(field);
+    } catch (IllegalAccessException e) {
+      throw new ResultMergeException("cannot access field " + field, e);
+    }
+    Class<?> fieldType = field.getType();
+    if (fieldType == long.class || fieldType == int.class || fieldType == short.class
+        || fieldType == byte.class) {
+      return new LongAccessor(getter.asType(MethodType.methodType(long.class, Object.class)),
+          MethodHandles.explicitCastArguments(setter,
+              MethodType.methodType(void.class, Object.class, long.class)));
+    }
+    if (fieldType == double.class || fieldType == float.class) {
+      return new DoubleAccessor(getter.asType(MethodType.methodType(double.class, Object.class)),
+          MethodHandles.explicitCastArguments(setter,
+              MethodType.methodType(void.class, Object.class, double.class)));
+    }
+    return new ObjectAccessor(getter.asType(MethodType.methodType(Object.class, Object.class)),
+        setter.asType(MethodType.methodType(void.class, Object.class, Object.class)));
+  }
+
+  /**
+   * 取属性的值,基本类型会被装箱
+   */
+  abstract Object get(Object row);
+
+  /**
+   * 设置属性的值,基本类型的属性可以设置为任意数值类型,不能设置为null
+   */
+  void set(Object row, Object value) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * @return 属性是否为整数类型,是则可以通过{@link #getLong(Object)}取值,不需要装箱
+   */
+  boolean isLong() {
+    return false;
+  }
+
+  long getLong(Object row) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * @return 属性是否为浮点数类型,是则可以通过{@link #getDouble(Object)}取值,不需要装箱
+   */
+  boolean isDouble() {
+    return false;
+  }
+
+  double getDouble(Object row) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * null小于任何值,不同类型的数值按数值比较
+   */
+  @SuppressWarnings("unchecked")
+  static int compareValues(Object left, Object right) {
+    if (left == right) {
+      return 0;
+    }
+    if (left == null) {
+      return -1;
+    }
+    if (right == null) {
+      return 1;
+    }
+    if (left.getClass() != right.getClass() && left instanceof Number
+        && right instanceof Number) {
+      return Adders.compare((Number) left, (Number) right);
+    }
+    return ((Comparable<Object>) left).compareTo(right);
+  }
+
+  private static final class LongAccessor extends PropertyAccessor {
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+
+    /**
+     * @param setter (Object, long)void,long会被转换为字段的实际类型
+     */
+    private LongAccessor(MethodHandle getter, MethodHandle setter) {
+      this.getter = getter;
+      this.setter = setter;
+    }
+
+    @Override boolean isLong() {
+      return true;
+    }
+
+    @Override long getLong(Object row) {
+      try {
+        return (long) getter.invokeExact(row);
+      } catch (Throwable e) {
+        throw Throwables.propagate(e);
+      }
+    }
+
+    @Override Object get(Object row) {
+      return getLong(row);
+    }
+
+    @Override void set(Object row, Object value) {
+      try {
+        setter.invokeExact(row, ((Number) value).longValue());
+      } catch (Throwable e) {
+        throw Throwables.propagate(e);
+      }
+    }
+  }
+
+  private static final class DoubleAccessor extends PropertyAccessor {
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+
+    /**
+     * @param setter (Object, double)void,double会被转换为字段的实际类型
+     */
+    private DoubleAccessor(MethodHandle getter, MethodHandle setter) {
+      this.getter = getter;
+      this.setter = setter;
+    }
+
+    @Override boolean isDouble() {
+      return true;
+    }
+
+    @Override double getDouble(Object row) {
+      try {
+        return (double) getter.invokeExact(row);
+      } catch (Throwable e) {
+        throw Throwables.propagate(e);
+      }
+    }
+
+    @Override Object get(Object row) {
+      return getDouble(row);
+    }
+
+    @Override void set(Object row, Object value) {
+      try {
+        setter.invokeExact(row, ((Number) value).doubleValue());
+      } catch (Throwable e) {
+        throw Throwables.propagate(e);
+      }
+    }
+  }
+
+  private static final class ObjectAccessor extends PropertyAccessor {
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+
+    private ObjectAccessor(MethodHandle getter, MethodHandle setter) {
+      this.getter = getter;
+      this.setter = setter;
+    }
+
+    @Override Object get(Object row) {
+      try {
+        return (Object) getter.invokeExact(row);
+      } catch (Throwable e) {
+        throw Throwables.propagate(e);
+      }
+    }
+
+    @Override void set(Object row, Object value) {
+      try {
+        setter.invokeExact(row, value);
+      } catch (Throwable e) {
+        throw Throwables.propagate(e);
+      }
+    }
+  }
+
+  /**
+   * 按查询列表中的位置读写数组
+   */
+  private static final class ArrayAccessor extends PropertyAccessor {
+    private final int index;
+
+    private ArrayAccessor(int index) {
+      this.index = index;
+    }
+
+    @Override Object get(Object row) {
+      return ((Object[]) row)[index];
+    }
+
+    @Override void set(Object row, Object value) {
+      ((Object[]) row)[index] = value;
+    }
+  }
+
+  /**
+   * 按列名读写Map,数据库返回的列名大小写可能与SQL中不同,所以找不到时不区分大小写再找一次
+   */
+  private static final class MapAccessor extends PropertyAccessor {
+    private final String key;
+
+    private MapAccessor(String key) {
+      this.key = key;
+    }
+
+    @Override Object get(Object row) {
+      Map<?, ?> map = (Map<?, ?>) row;
+      Object value = map.get(key);
+      if (value != null || map.containsKey(key)) {
+        return value;
+      }
+      Object actualKey = actualKey(map);
+      return actualKey == null ? null : map.get(actualKey);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override void set(Object row, Object value) {
+      Map<Object, Object> map = (Map<Object, Object>) row;
+      Object actualKey = map.containsKey(key) ? key : actualKey(map);
+      map.put(actualKey == null ? key : actualKey, value);
+    }
+
+    private Object actualKey(Map<?, ?> map) {
+      for (Object candidate : map.keySet()) {
+        if (candidate instanceof String && key.equalsIgnoreCase((String) candidate)) {
+          return candidate;
+        }
+      }
+      return null;
+    }
+  }
+}
@@ -7,4 +7,8 @@ public class ResultMergeException extends RuntimeException {
   public ResultMergeException(String message) {
     super(message);
   }
+
+  public ResultMergeException(String message, Throwable cause) {
+    super(message, cause);
+  }
 }
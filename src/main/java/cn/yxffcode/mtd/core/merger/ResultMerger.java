@@ -6,6 +6,7 @@ import cn.yxffcode.mtd.core.parser.ParsedSqlContext;
 import com.google.common.base.Supplier;
 
 import java.sql.SQLException;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -22,4 +23,20 @@ public interface ResultMerger {
                Supplier<FieldMapping> fieldMappingSupplier, ParameterSupplier parameterSupplier)
       throws SQLException;
 
+  /**
+   * 是否可以流式合并,分组,聚合函数与distinct需要所有子表的结果才能合并
+   */
+  boolean isStreamable(ParsedSqlContext parsedSqlContext);
+
+  /**
+   * 流式合并,返回的Iterator按需从sources中读取记录,满足limit后不再读取.
+   * 有order by时每个子表的结果必须已经按order by排序.
+   *
+   * @param sources 每个子表的查询结果
+   * @throws UnsupportedOperationException {@link #isStreamable(ParsedSqlContext)}为false时
+   */
+  Iterator<Object> streamMerge(List<Iterator<Object>> sources, ParsedSqlContext parsedSqlContext,
+                               Supplier<FieldMapping> fieldMappingSupplier,
+                               ParameterSupplier parameterSupplier);
+
 }
@@ -4,13 +4,17 @@ import cn.yxffcode.mtd.core.FieldMapping;
 import cn.yxffcode.mtd.core.ParameterSupplier;
 import cn.yxffcode.mtd.core.parser.ParsedSqlContext;
 import cn.yxffcode.mtd.core.parser.ast.GroupFunctionType;
+import cn.yxffcode.mtd.core.parser.ast.SelectColumn;
 import cn.yxffcode.mtd.core.parser.ast.SelectStatement;
 import com.google.common.base.Supplier;
 import org.springframework.util.CollectionUtils;
 
 import java.sql.SQLException;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 
+import static cn.yxffcode.mtd.utils.CollectionUtils.isEmpty;
 import static cn.yxffcode.mtd.utils.CollectionUtils.isNotEmpty;
 
 /**
@@ -34,11 +38,17 @@ public class ResultMergerImpl implements ResultMerger {
       return null;
     }
 
-    if (results.size() == 1) {
+    if (results.size() == 1 && !parsedSqlContext.isAvgRewritten()) {
       return results.get(0);//不需要合并结果
     }
 
     SelectStatement selectStatement = (SelectStatement) parsedSqlContext.getSqlStatement();
+    if (isNotEmpty(selectStatement.getGroupByColumnReferences())
+        || isAggregateRows(selectStatement, parsedSqlContext, results)) {
+      //同一个分组可能分布在多个子表中,需要按分组键重新聚合,没有group by时所有记录为一个分组
+      return Mergers.GROUP_BY
+          .merge(results, parsedSqlContext, fieldMappingSupplier, parameterSupplier);
+    }
     GroupFunctionType groupFuncType =
         selectStatement.getGroupFuncType();
     if (groupFuncType == null) {
@@ -81,6 +91,83 @@ public class ResultMergerImpl implements ResultMerger {
     }
   }
 
+  @Override public boolean isStreamable(ParsedSqlContext parsedSqlContext) {
+    if (!(parsedSqlContext.getSqlStatement() instanceof SelectStatement)
+        || parsedSqlContext.isAvgRewritten()) {
+      return false;
+    }
+    SelectStatement selectStatement = (SelectStatement) parsedSqlContext.getSqlStatement();
+    if (isNotEmpty(selectStatement.getGroupByColumnReferences())
+        || selectStatement.getDistinct() != null) {
+      return false;
+    }
+    GroupFunctionType groupFuncType = selectStatement.getGroupFuncType();
+    if (groupFuncType != null && groupFuncType != GroupFunctionType.NONE) {
+      return false;
+    }
+    for (SelectColumn selectColumn : selectStatement.getSelectColumns()) {
+      if (selectColumn.isAggregate()) {
+        return false;
+      }
+    }
+    //子表的结果没有按order by排序时需要所有记录才能排序
+    return isEmpty(selectStatement.getOrderByElements())
+        || Mergers.isSortedBySubTables(selectStatement);
+  }
+
+  @Override public Iterator<Object> streamMerge(List<Iterator<Object>> sources,
+                                                ParsedSqlContext parsedSqlContext,
+                                                Supplier<FieldMapping> fieldMappingSupplier,
+                                                ParameterSupplier parameterSupplier) {
+    if (!isStreamable(parsedSqlContext)) {
+      throw new UnsupportedOperationException(
+          "cannot merge the results as streams: " + parsedSqlContext.getOriginSql());
+    }
+    SelectStatement selectStatement = (SelectStatement) parsedSqlContext.getSqlStatement();
+    Mergers merger = isNotEmpty(selectStatement.getOrderByElements()) ?
+        Mergers.ORDER_BY : Mergers.DEFAULT;
+    return merger.stream(sources, parsedSqlContext, fieldMappingSupplier, parameterSupplier);
+  }
+
+  /**
+   * @return 查询列表中包含聚合函数,并且每条记录包含多列,需要按列分别合并
+   */
+  private static boolean isAggregateRows(SelectStatement selectStatement,
+                                         ParsedSqlContext parsedSqlContext,
+                                         List<Object> results) {
+    List<SelectColumn> selectColumns = selectStatement.getSelectColumns();
+    boolean aggregate = false;
+    for (SelectColumn selectColumn : selectColumns) {
+      if (selectColumn.isAggregate()) {
+        aggregate = true;
+        break;
+      }
+    }
+    if (!aggregate) {
+      return false;
+    }
+    if (selectColumns.size() > 1) {
+      return true;
+    }
+    if (parsedSqlContext.isAvgRewritten()) {
+      //只查询avg函数时由AVG合并
+      return false;
+    }
+    //只查询一个聚合函数,但结果被映射成了对象,Map或者数组
+    for (Object result : results) {
+      List<?> rows = (List<?>) result;
+      if (rows != null && !rows.isEmpty() && rows.get(0) != null) {
+        return !isSimpleValue(rows.get(0));
+      }
+    }
+    return false;
+  }
+
+  private static boolean isSimpleValue(Object value) {
+    return value instanceof Number || value instanceof CharSequence || value instanceof Date
+        || value instanceof Boolean || value instanceof Character;
+  }
+
   private static final class ResultMergerImplHolder {
     private static final ResultMergerImpl INSTANCE = new ResultMergerImpl();
   }
@@ -0,0 +1,177 @@
+package cn.yxffcode.mtd.core.merger;
+
+import cn.yxffcode.mtd.lang.ImmutableIterator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * 多路归并,用于合并各子表已经按order by排好序的查询结果.
+ * <p/>
+ * 堆中只保存每个子表结果的当前位置,取到offset + rowCount条记录后即停止,
+ * 时间复杂度为O((offset + rowCount) * log k),k为子表的数量.
+ * <p/>
+ * 归并时每条读到的记录都与同一子表的前一条记录比较,发现子表的结果没有按这里的比较排序时
+ * (比如数据库的排序规则不区分大小写),{@link KeyMergeIterator#isUnsorted()}为true,
+ * 调用方改为不依赖子表顺序的合并方式.只检查归并读到的记录,没有读到的记录中的逆序不会被发现.
+ *
+ * @author gaohang on 16/3/15.
+ */
+final class SortedListMerger {
+  private SortedListMerger() {
+  }
+
+  /**
+   * 每条记录只在成为其子表的当前记录时取一次排序键,堆中只比较排序键
+   *
+   * @param sortedLists 各子表的查询结果,每个list都已经按keys排序
+   * @param offset      跳过的记录数
+   * @param rowCount    最多返回的记录数,{@link Integer#MAX_VALUE}表示不限制
+   * @return 归并后的结果,子表的结果没有按keys排序时返回null
+   */
+  static List<Object> merge(List<List<Object>> sortedLists, OrderByKeys keys, int offset,
+                            int rowCount) {
+    if (rowCount <= 0) {
+      return Collections.emptyList();
+    }
+    long total = 0;
+    for (List<Object> list : sortedLists) {
+      total += list == null ? 0 : list.size();
+    }
+    long available = Math.max(total - Math.max(offset, 0), 0);
+    List<Object> merged = new ArrayList<>((int) Math.min(available, rowCount));
+    int skip = Math.max(offset, 0);
+    KeyMergeIterator rows = iterator(sortedLists, keys);
+    while (rows.hasNext() && merged.size() < rowCount) {
+      Object row = rows.next();
+      if (skip > 0) {
+        skip--;
+      } else {
+        merged.add(row);
+      }
+    }
+    return rows.isUnsorted() ? null : merged;
+  }
+
+  /**
+   * 按排序键逐条归并,不保存归并后的结果
+   */
+  static KeyMergeIterator iterator(List<List<Object>> sortedLists, OrderByKeys keys) {
+    List<Iterator<Object>> sources = new ArrayList<>(sortedLists.size());
+    for (List<Object> list : sortedLists) {
+      sources.add(list == null ? Collections.emptyIterator() : list.iterator());
+    }
+    return new KeyMergeIterator(sources, keys);
+  }
+
+  /**
+   * 按排序键逐条归并,每个子表的记录在其前一条记录被取走后才读取,可用于流式合并
+   *
+   * @param sources 各子表的查询结果,每个都已经按order by排序
+   */
+  static KeyMergeIterator streamIterator(List<Iterator<Object>> sources, OrderByKeys keys) {
+    return new KeyMergeIterator(sources, keys);
+  }
+
+  /**
+   * 多路归并的迭代器,{@link #key()}为上一次{@link #next()}返回的记录的排序键,
+   * 在下一次调用hasNext()或next()之前有效
+   */
+  static final class KeyMergeIterator extends ImmutableIterator<Object> {
+    private final OrderByKeys keys;
+    private final PriorityQueue<KeyCursor> heap;
+    private KeyCursor current;
+    private boolean unsorted;
+
+    private KeyMergeIterator(List<Iterator<Object>> sources, final OrderByKeys keys) {
+      this.keys = keys;
+      this.heap = new PriorityQueue<>(Math.max(sources.size(), 1),
+          new Comparator<KeyCursor>() {
+            @Override public int compare(KeyCursor left, KeyCursor right) {
+              int cmp = keys.compare(left.key, right.key);
+              //值相等时按子表的顺序输出,保证结果稳定
+              return cmp != 0 ? cmp : left.ordinal - right.ordinal;
+            }
+          });
+      for (int i = 0, j = sources.size(); i < j; i++) {
+        Iterator<Object> rows = sources.get(i);
+        if (!rows.hasNext()) {
+          continue;
+        }
+        KeyCursor cursor = new KeyCursor(rows, i, keys.newKey(), keys.newKey());
+        keys.extract(rows.next(), cursor.key);
+        heap.add(cursor);
+      }
+    }
+
+    @Override public boolean hasNext() {
+      advance();
+      return !heap.isEmpty();
+    }
+
+    @Override public Object next() {
+      advance();
+      if (heap.isEmpty()) {
+        throw new NoSuchElementException();
+      }
+      current = heap.poll();
+      return current.key.getRow();
+    }
+
+    OrderByKeys.Key key() {
+      return current.key;
+    }
+
+    /**
+     * @return 是否读到了比同一子表的前一条记录小的记录
+     */
+    boolean isUnsorted() {
+      return unsorted;
+    }
+
+    /**
+     * 上一条记录所在的子表延迟到下一次取记录时再前进,保证{@link #key()}有效
+     */
+    private void advance() {
+      if (current == null) {
+        return;
+      }
+      KeyCursor cursor = current;
+      current = null;
+      if (cursor.rows.hasNext()) {
+        //新记录的排序键放在备用的key中,与前一条记录比较后交换
+        OrderByKeys.Key previous = cursor.key;
+        keys.extract(cursor.rows.next(), cursor.spare);
+        if (!unsorted && keys.compare(cursor.spare, previous) < 0) {
+          unsorted = true;
+        }
+        cursor.key = cursor.spare;
+        cursor.spare = previous;
+        heap.add(cursor);
+      }
+    }
+  }
+
+  /**
+   * 指向某个子表结果中的当前记录,并保存当前记录的排序键,spare用于读取下一条记录的排序键
+   */
+  private static final class KeyCursor {
+    private final Iterator<Object> rows;
+    private final int ordinal;
+    private OrderByKeys.Key key;
+    private OrderByKeys.Key spare;
+
+    private KeyCursor(Iterator<Object> rows, int ordinal, OrderByKeys.Key key,
+                      OrderByKeys.Key spare) {
+      this.rows = rows;
+      this.ordinal = ordinal;
+      this.key = key;
+      this.spare = spare;
+    }
+  }
+}
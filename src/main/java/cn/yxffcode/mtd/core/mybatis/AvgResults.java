@@ -0,0 +1,146 @@
+package cn.yxffcode.mtd.core.mybatis;
+
+import cn.yxffcode.mtd.core.parser.ParsedSqlContext;
+import cn.yxffcode.mtd.core.parser.ast.SelectStatement;
+import cn.yxffcode.mtd.utils.MappedStatementUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ResultMap;
+import org.apache.ibatis.mapping.ResultMapping;
+import org.apache.ibatis.reflection.MetaObject;
+import org.apache.ibatis.session.Configuration;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * avg被改写为sum与count后,子表的查询结果需要以Map的形式返回,合并得到的平均值或者分组需要转换成
+ * 原始MappedStatement的结果类型.
+ *
+ * @author gaohang on 16/3/24.
+ * @see cn.yxffcode.mtd.core.parser.ast.AvgClause
+ */
+final class AvgResults {
+  private AvgResults() {
+  }
+
+  /**
+   * @return 执行子表SQL使用的MappedStatement
+   */
+  static MappedStatement subMappedStatement(MappedStatement ms,
+                                            ParsedSqlContext parsedSqlContext) {
+    return parsedSqlContext.isAvgRewritten() ?
+        MappedStatementUtils.getMapResultMappedStatement(ms) : ms;
+  }
+
+  /**
+   * @param merged 合并后的结果,只查询avg函数时只包含一个平均值,分组查询时为每个分组的Map
+   * @param ms     原始的MappedStatement
+   */
+  static Object convert(Object merged, ParsedSqlContext parsedSqlContext, MappedStatement ms) {
+    if (!parsedSqlContext.isAvgRewritten()) {
+      return merged;
+    }
+    List<?> values = (List<?>) merged;
+    List<ResultMap> resultMaps = ms.getResultMaps();
+    if (values.isEmpty() || resultMaps.isEmpty()) {
+      return values;
+    }
+    Class<?> type = resultMaps.get(0).getType();
+    if (!(values.get(0) instanceof Map)) {
+      Object avg = values.get(0);
+      return avg == null ? values : Collections.singletonList(convert((Number) avg, type));
+    }
+    if (Map.class.isAssignableFrom(type)) {
+      return values;
+    }
+    List<Object> rows = new ArrayList<>(values.size());
+    for (Object value : values) {
+      rows.add(toResultObject((Map<?, ?>) value, parsedSqlContext, ms, resultMaps.get(0)));
+    }
+    return rows;
+  }
+
+  /**
+   * 将分组查询合并后的Map转换成结果类型,简单类型取查询列表中的第一列,其它类型按resultMap中的映射
+   * 或者列名与属性名的对应关系设置属性
+   */
+  private static Object toResultObject(Map<?, ?> row, ParsedSqlContext parsedSqlContext,
+                                       MappedStatement ms, ResultMap resultMap) {
+    Configuration configuration = ms.getConfiguration();
+    Class<?> type = resultMap.getType();
+    if (configuration.getTypeHandlerRegistry().hasTypeHandler(type)) {
+      SelectStatement selectStatement = (SelectStatement) parsedSqlContext.getSqlStatement();
+      Object value = getIgnoreCase(row, selectStatement.getSelectColumns().get(0).getLabel());
+      return value instanceof Number ? convert((Number) value, type) : value;
+    }
+    Object result = configuration.getObjectFactory().create(type);
+    MetaObject metaObject = configuration.newMetaObject(result);
+    for (Map.Entry<?, ?> en : row.entrySet()) {
+      String column = String.valueOf(en.getKey());
+      String property = getMappedProperty(resultMap, column);
+      if (property == null) {
+        property = metaObject.findProperty(column, configuration.isMapUnderscoreToCamelCase());
+      }
+      if (property == null || !metaObject.hasSetter(property)) {
+        continue;
+      }
+      Object value = en.getValue();
+      if (value instanceof Number) {
+        value = convert((Number) value, metaObject.getSetterType(property));
+      }
+      metaObject.setValue(property, value);
+    }
+    return result;
+  }
+
+  private static String getMappedProperty(ResultMap resultMap, String column) {
+    for (ResultMapping mapping : resultMap.getResultMappings()) {
+      if (StringUtils.equalsIgnoreCase(mapping.getColumn(), column)) {
+        return mapping.getProperty();
+      }
+    }
+    return null;
+  }
+
+  private static Object getIgnoreCase(Map<?, ?> row, String label) {
+    for (Map.Entry<?, ?> en : row.entrySet()) {
+      if (StringUtils.equalsIgnoreCase(String.valueOf(en.getKey()), label)) {
+        return en.getValue();
+      }
+    }
+    return null;
+  }
+
+  private static Object convert(Number avg, Class<?> type) {
+    if (type.isInstance(avg)) {
+      return avg;
+    }
+    if (type == Double.class || type == double.class) {
+      return avg.doubleValue();
+    }
+    if (type == Float.class || type == float.class) {
+      return avg.floatValue();
+    }
+    if (type == Long.class || type == long.class) {
+      return avg.longValue();
+    }
+    if (type == Integer.class || type == int.class) {
+      return avg.intValue();
+    }
+    if (type == BigDecimal.class) {
+      return new BigDecimal(avg.toString());
+    }
+    if (type == BigInteger.class) {
+      return new BigDecimal(avg.toString()).toBigInteger();
+    }
+    if (type == String.class) {
+      return avg.toString();
+    }
+    return avg;
+  }
+}
@@ -9,6 +9,7 @@ import cn.yxffcode.mtd.core.parser.SQLParserImpl;
 import cn.yxffcode.mtd.core.parser.ast.SqlStatement;
 import cn.yxffcode.mtd.core.rewriter.SqlRewriter;
 import cn.yxffcode.mtd.core.rewriter.SqlRewriterImpl;
+import cn.yxffcode.mtd.utils.MappedStatementUtils;
 import com.google.common.base.Splitter;
 import com.google.common.base.Supplier;
 import com.google.common.collect.Lists;
@@ -20,7 +21,6 @@ import org.apache.ibatis.mapping.BoundSql;
 import org.apache.ibatis.mapping.MappedStatement;
 import org.apache.ibatis.mapping.ResultMap;
 import org.apache.ibatis.mapping.ResultMapping;
-import org.apache.ibatis.mapping.SqlSource;
 import org.apache.ibatis.plugin.Interceptor;
 import org.apache.ibatis.plugin.Intercepts;
 import org.apache.ibatis.plugin.Invocation;
@@ -70,6 +70,7 @@ public class MatrixTableInterceptor implements Interceptor {
   private SQLParser sqlParser = SQLParserImpl.getInstance();
   private SqlRewriter sqlRewriter = SqlRewriterImpl.getInstance();
   private ResultMerger resultMerger = ResultMergerImpl.getInstance();
+  private RouteFilter routeFilter = RouteFilter.getInstance();
 
   @Override public Object intercept(Invocation invocation) throws Throwable {
 
@@ -88,9 +89,15 @@ public class MatrixTableInterceptor implements Interceptor {
     Object[] args = invocation.getArgs();
     MappedStatement ms = (MappedStatement) args[0];
     Object parameter = args[1];
+    if (routeFilter.isNeverRouted(ms)) {
+      return invocation.proceed();
+    }
 
     BoundSql boundSql = ms.getBoundSql(parameter);
     String sql = boundSql.getSql();
+    if (!routeFilter.isRouted(ms, sql)) {
+      return invocation.proceed();
+    }
 
     Map<String, String> parsedHeadComment = parseHeadComment(sql);
     sql = normalizeSql(sql);
@@ -105,20 +112,19 @@ public class MatrixTableInterceptor implements Interceptor {
       return invocation.proceed();
     }
 
-    MappedStatement nms = null;
-
+    //MappedStatement被所有调用共享,不能修改,使用缓存的副本并在当前线程绑定BoundSql
+    args[0] = MappedStatementUtils.getBoundMappedStatement(ms);
     List<Object> results = Lists.newArrayList();
-    for (; sqls.hasNext(); ) {
-      if (nms == null) {
-        //must create a new MappedStatement because of MappedStatement object is a singleton and
-        // shared by all invokers.
-        nms = copyMappedStatement(ms, boundSql);
-        args[0] = nms;
+    BoundSql previous = ThreadBoundSqlSource.bind(boundSql);
+    try {
+      for (; sqls.hasNext(); ) {
+        CharSequence s = sqls.next();
+        setField(boundSql, "sql", s.toString());
+        Object result = invocation.getMethod().invoke(invocation.getTarget(), args);
+        results.add(result);
       }
-      CharSequence s = sqls.next();
-      setField(boundSql, "sql", s.toString());
-      Object result = invocation.getMethod().invoke(invocation.getTarget(), args);
-      results.add(result);
+    } finally {
+      ThreadBoundSqlSource.restore(previous);
     }
     if (results.size() == 0) {
       return invocation.proceed();
@@ -129,24 +135,6 @@ public class MatrixTableInterceptor implements Interceptor {
     return resultMerger.merge(results, parsedSqlContext, null, null);
   }
 
-  private MappedStatement copyMappedStatement(MappedStatement ms, BoundSql boundSql) {
-    return copyMappedStatement(ms, new BoundSqlSource(boundSql));
-  }
-
-  private MappedStatement copyMappedStatement(MappedStatement ms, SqlSource sqlSource) {
-    MappedStatement nms;
-    nms = new MappedStatement.Builder(ms.getConfiguration(), ms.getId(), sqlSource,
-        ms.getSqlCommandType()).cache(ms.getCache()).databaseId(ms.getDatabaseId())
-        .fetchSize(ms.getFetchSize()).flushCacheRequired(true).keyGenerator(ms.getKeyGenerator())
-        .parameterMap(ms.getParameterMap()).resource(ms.getResource())
-        .resultMaps(ms.getResultMaps()).resultSetType(ms.getResultSetType())
-        .statementType(ms.getStatementType()).timeout(ms.getTimeout()).useCache(ms.isUseCache())
-        .build();
-    setField(nms, "keyColumns", ms.getKeyColumns());
-    setField(nms, "keyProperties", ms.getKeyProperties());
-    return nms;
-  }
-
   private void setField(Object target, String field, Object value) {
     Field ss = ReflectionUtils.findField(target.getClass(), field);
     ss.setAccessible(true);
@@ -158,11 +146,17 @@ public class MatrixTableInterceptor implements Interceptor {
 
     Object[] args = invocation.getArgs();
     final MappedStatement ms = (MappedStatement) args[0];
+    if (routeFilter.isNeverRouted(ms)) {
+      return invocation.proceed();
+    }
 
     final BoundSql boundSql = args.length == FULL_PARAM_COUNT ?
         (BoundSql) args[FULL_PARAM_COUNT - 1] :
         ms.getBoundSql(args[1]);
     String sql = boundSql.getSql().trim();
+    if (!routeFilter.isRouted(ms, sql)) {
+      return invocation.proceed();
+    }
 
     Map<String, String> parsedHeadComment = parseHeadComment(sql);
     sql = normalizeSql(sql);
@@ -176,24 +170,28 @@ public class MatrixTableInterceptor implements Interceptor {
       //no rewriter
       return invocation.proceed();
     }
+    MappedStatementUtils
+        .removeTrailingParameters(boundSql, parsedSqlContext.getInlinedParameterCount());
 
-    MappedStatement mappedStatement = null;
+    //需要使用修改后的MappedStatement,不能使用原始的,需要保证原始对象不变
+    args[0] = AvgResults
+        .subMappedStatement(MappedStatementUtils.getBoundMappedStatement(ms), parsedSqlContext);
     List<Object> results = new ArrayList<>();
-    for (; sqls.hasNext(); ) {
-      CharSequence next = sqls.next();
-      if (next == null || next.length() == 0) {
-        continue;
-      }
-      setField(boundSql, "sql", next.toString());
-      //需要使用修改后的MappedStatement,不能使用原始的,需要保证原始对象不变
-      if (mappedStatement == null) {
-        mappedStatement = copyMappedStatement(ms, boundSql);
-        args[0] = mappedStatement;
+    BoundSql previous = ThreadBoundSqlSource.bind(boundSql);
+    try {
+      for (; sqls.hasNext(); ) {
+        CharSequence next = sqls.next();
+        if (next == null || next.length() == 0) {
+          continue;
+        }
+        setField(boundSql, "sql", next.toString());
+        Object result = invocation.proceed();
+        results.add(result);
       }
-      Object result = invocation.proceed();
-      results.add(result);
+    } finally {
+      ThreadBoundSqlSource.restore(previous);
     }
-    return resultMerger.merge(results, parsedSqlContext, new Supplier<FieldMapping>() {
+    Object merged = resultMerger.merge(results, parsedSqlContext, new Supplier<FieldMapping>() {
       @Override public FieldMapping get() {
         return new FieldMapping() {
           @Override public String map(String col) {
@@ -220,6 +218,7 @@ public class MatrixTableInterceptor implements Interceptor {
         };
       }
     }, parameterSupplier);
+    return AvgResults.convert(merged, parsedSqlContext, ms);
   }
 
   private String normalizeSql(String sql) {
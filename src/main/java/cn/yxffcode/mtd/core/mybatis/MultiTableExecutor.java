@@ -1,16 +1,16 @@
 package cn.yxffcode.mtd.core.mybatis;
 
+import cn.yxffcode.mtd.core.merger.ResultMerger;
+import cn.yxffcode.mtd.core.merger.ResultMergerImpl;
+import cn.yxffcode.mtd.core.parser.ParsedSqlContext;
+import cn.yxffcode.mtd.core.parser.SQLParser;
+import cn.yxffcode.mtd.core.parser.SQLParserImpl;
+import cn.yxffcode.mtd.core.parser.ast.SqlStatement;
+import cn.yxffcode.mtd.core.rewriter.SqlRewriter;
+import cn.yxffcode.mtd.core.rewriter.SqlRewriterImpl;
+import cn.yxffcode.mtd.utils.MappedStatementUtils;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Maps;
-import com.limiku.spider.multimybatis.core.ast.SqlStatement;
-import com.limiku.spider.multimybatis.core.merger.ResultMerger;
-import com.limiku.spider.multimybatis.core.merger.ResultMergerImpl;
-import com.limiku.spider.multimybatis.core.parser.ParsedSqlContext;
-import com.limiku.spider.multimybatis.core.parser.SQLParser;
-import com.limiku.spider.multimybatis.core.parser.SQLParserImpl;
-import com.limiku.spider.multimybatis.core.rewriter.SqlRewriter;
-import com.limiku.spider.multimybatis.core.rewriter.SqlRewriterImpl;
-import com.limiku.spider.multimybatis.utils.MappedStatementUtils;
 import org.apache.ibatis.cache.CacheKey;
 import org.apache.ibatis.executor.BatchResult;
 import org.apache.ibatis.executor.Executor;
@@ -35,6 +35,9 @@ import java.util.Map;
  * <p/>
  * 因为需要修改MappedStatement中的Sql,所以原始的MappedStatement需要被复制才能执行,不能修改原始SQL
  * <p/>
+ * 复制的MappedStatement按原始MappedStatement缓存,BoundSql通过{@link ThreadBoundSqlSource}绑定到
+ * 当前线程,不需要每次调用都复制.
+ * <p/>
  * 当且仅当传入此对象的MappedStatement是通过{@link BoundSqlSource}复杂过的才可以不需要再次复制,此时
  * {@link #mappedStatementCopyOnWrite}可以为false.
  *
@@ -48,6 +51,7 @@ public class MultiTableExecutor implements Executor {
   private SQLParser sqlParser = SQLParserImpl.getInstance();
   private ResultMerger resultMerger = ResultMergerImpl.getInstance();
   private SqlRewriter sqlRewriter = SqlRewriterImpl.getInstance();
+  private RouteFilter routeFilter = RouteFilter.getInstance();
 
   private final Executor internalExecutor;
   private final boolean mappedStatementCopyOnWrite;
@@ -62,12 +66,22 @@ public class MultiTableExecutor implements Executor {
   }
 
   @Override public int update(MappedStatement ms, Object parameter) throws SQLException {
-    if (mappedStatementCopyOnWrite) {
-      return doUpdate(MappedStatementUtils.copyBoundMappedStatement(ms,
-          ms.getBoundSql(parameter)), parameter);
-    } else {
+    if (routeFilter.isNeverRouted(ms)) {
+      return internalExecutor.update(ms, parameter);
+    }
+    BoundSql boundSql = ms.getBoundSql(parameter);
+    if (!routeFilter.isRouted(ms, boundSql.getSql())) {
+      return internalExecutor.update(ms, parameter);
+    }
+    if (!mappedStatementCopyOnWrite) {
       return doUpdate(ms, parameter);
     }
+    BoundSql previous = ThreadBoundSqlSource.bind(boundSql);
+    try {
+      return doUpdate(MappedStatementUtils.getBoundMappedStatement(ms), parameter);
+    } finally {
+      ThreadBoundSqlSource.restore(previous);
+    }
   }
 
   @Override public <E> List<E> query(MappedStatement ms,
@@ -75,22 +89,44 @@ public class MultiTableExecutor implements Executor {
                                      ResultHandler resultHandler,
                                      CacheKey cacheKey,
                                      BoundSql boundSql) throws SQLException {
-    if (mappedStatementCopyOnWrite) {
-      return doQueryForList(MappedStatementUtils.copyBoundMappedStatement(ms,
-          ms.getBoundSql(parameter)), parameter, rowBounds, resultHandler, cacheKey, boundSql);
-    } else {
-      return doQueryForList(ms, parameter, rowBounds, resultHandler, cacheKey, boundSql);
+    if (routeFilter.isNeverRouted(ms)) {
+      return internalExecutor.query(ms, parameter, rowBounds, resultHandler, cacheKey, boundSql);
+    }
+    BoundSql bound = boundSql == null ? ms.getBoundSql(parameter) : boundSql;
+    if (!routeFilter.isRouted(ms, bound.getSql())) {
+      return internalExecutor.query(ms, parameter, rowBounds, resultHandler, cacheKey, boundSql);
+    }
+    if (!mappedStatementCopyOnWrite) {
+      return doQueryForList(ms, parameter, rowBounds, resultHandler, cacheKey, bound);
+    }
+    BoundSql previous = ThreadBoundSqlSource.bind(bound);
+    try {
+      return doQueryForList(MappedStatementUtils.getBoundMappedStatement(ms), parameter,
+          rowBounds, resultHandler, cacheKey, bound);
+    } finally {
+      ThreadBoundSqlSource.restore(previous);
     }
   }
 
   @Override public <E> List<E> query(MappedStatement ms,
                                      Object parameter, RowBounds rowBounds,
                                      ResultHandler resultHandler) throws SQLException {
-    if (mappedStatementCopyOnWrite) {
-      return doQueryForList(MappedStatementUtils.copyBoundMappedStatement(ms,
-          ms.getBoundSql(parameter)), parameter, rowBounds, resultHandler, null, null);
-    } else {
-      return doQueryForList(ms, parameter, rowBounds, resultHandler, null, null);
+    if (routeFilter.isNeverRouted(ms)) {
+      return internalExecutor.query(ms, parameter, rowBounds, resultHandler);
+    }
+    BoundSql boundSql = ms.getBoundSql(parameter);
+    if (!routeFilter.isRouted(ms, boundSql.getSql())) {
+      return internalExecutor.query(ms, parameter, rowBounds, resultHandler);
+    }
+    if (!mappedStatementCopyOnWrite) {
+      return doQueryForList(ms, parameter, rowBounds, resultHandler, null, boundSql);
+    }
+    BoundSql previous = ThreadBoundSqlSource.bind(boundSql);
+    try {
+      return doQueryForList(MappedStatementUtils.getBoundMappedStatement(ms), parameter,
+          rowBounds, resultHandler, null, boundSql);
+    } finally {
+      ThreadBoundSqlSource.restore(previous);
     }
   }
 
@@ -101,7 +137,7 @@ public class MultiTableExecutor implements Executor {
 
     Map<String, String> parsedHeadComment = parseHeadComment(sql);
     sql = normalizeSql(sql);
-    SqlStatement statement = (SqlStatement) sqlParser.parse(sql, true);
+    SqlStatement statement = sqlParser.parse(sql);
     ParsedSqlContext parsedSqlContext = new ParsedSqlContext(sql, statement);
     parsedSqlContext.setParsedHeadComment(parsedHeadComment);
 
@@ -111,6 +147,8 @@ public class MultiTableExecutor implements Executor {
       //no rewriter
       return internalExecutor.update(ms, parameter);
     }
+    MappedStatementUtils
+        .removeTrailingParameters(boundSql, parsedSqlContext.getInlinedParameterCount());
 
     int updateCount = -1;
     for (; sqls.hasNext(); ) {
@@ -136,7 +174,7 @@ public class MultiTableExecutor implements Executor {
     Map<String, String> parsedHeadComment = parseHeadComment(sql);
     sql = normalizeSql(sql);
 
-    SqlStatement sqlStatement = (SqlStatement) sqlParser.parse(sql, true);
+    SqlStatement sqlStatement = sqlParser.parse(sql);
 
     MybatisParameterSupplier parameterSupplier = new MybatisParameterSupplier(boundSql);
     ParsedSqlContext parsedSqlContext = new ParsedSqlContext(sql, sqlStatement);
@@ -150,6 +188,9 @@ public class MultiTableExecutor implements Executor {
       }
       return internalExecutor.query(ms, params, rowBounds, resultHandler, cacheKey, boundSql);
     }
+    MappedStatementUtils
+        .removeTrailingParameters(boundSql, parsedSqlContext.getInlinedParameterCount());
+    MappedStatement subMappedStatement = AvgResults.subMappedStatement(ms, parsedSqlContext);
     List<Object> all = new ArrayList<>(1);
     while (sqls.hasNext()) {
       CharSequence next = sqls.next();
@@ -157,13 +198,14 @@ public class MultiTableExecutor implements Executor {
       if (cacheKey == null) {
         cacheKey = createCacheKey(ms, params, rowBounds, boundSql);
       }
-      List<E> result =
-          internalExecutor.query(ms, params, rowBounds, resultHandler, cacheKey, boundSql);
+      List<E> result = internalExecutor
+          .query(subMappedStatement, params, rowBounds, resultHandler, cacheKey, boundSql);
       all.add(result);
     }
 
-    return (List<E>) resultMerger
-        .merge(all, parsedSqlContext, new MybatisFieldMappingSupplier(ms), parameterSupplier);
+    return (List<E>) AvgResults.convert(resultMerger
+        .merge(all, parsedSqlContext, new MybatisFieldMappingSupplier(ms), parameterSupplier),
+        parsedSqlContext, ms);
   }
 
   private Map<String, String> parseHeadComment(String sql) {
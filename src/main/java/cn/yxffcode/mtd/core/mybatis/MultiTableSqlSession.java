@@ -1,13 +1,18 @@
 package cn.yxffcode.mtd.core.mybatis;
 
+import cn.yxffcode.mtd.core.ParameterSupplier;
 import cn.yxffcode.mtd.core.merger.ResultMerger;
 import cn.yxffcode.mtd.core.merger.ResultMergerImpl;
 import cn.yxffcode.mtd.core.parser.ParsedSqlContext;
 import cn.yxffcode.mtd.core.parser.SQLParser;
 import cn.yxffcode.mtd.core.parser.SQLParserImpl;
+import cn.yxffcode.mtd.core.parser.ast.LimitClause;
+import cn.yxffcode.mtd.core.parser.ast.SelectStatement;
 import cn.yxffcode.mtd.core.rewriter.SqlRewriter;
 import cn.yxffcode.mtd.core.rewriter.SqlRewriterImpl;
+import cn.yxffcode.mtd.utils.MappedStatementUtils;
 import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.apache.ibatis.binding.BindingException;
 import org.apache.ibatis.exceptions.ExceptionFactory;
@@ -15,12 +20,12 @@ import org.apache.ibatis.exceptions.TooManyResultsException;
 import org.apache.ibatis.executor.BatchResult;
 import org.apache.ibatis.executor.ErrorContext;
 import org.apache.ibatis.executor.Executor;
-import org.apache.ibatis.executor.result.DefaultMapResultHandler;
 import org.apache.ibatis.executor.result.DefaultResultContext;
+import org.apache.ibatis.executor.result.DefaultMapResultHandler;
 import org.apache.ibatis.mapping.BoundSql;
 import org.apache.ibatis.mapping.MappedStatement;
-import org.apache.ibatis.mapping.SqlSource;
 import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ResultContext;
 import org.apache.ibatis.session.ResultHandler;
 import org.apache.ibatis.session.RowBounds;
 import org.apache.ibatis.session.SqlSession;
@@ -36,6 +41,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import static cn.yxffcode.mtd.utils.CollectionUtils.isNotEmpty;
+
 /**
  * 支持分表的SqlSession
  *
@@ -49,15 +56,27 @@ public class MultiTableSqlSession implements SqlSession {
   private SQLParser sqlParser = SQLParserImpl.getInstance();
   private ResultMerger resultMerger = ResultMergerImpl.getInstance();
   private SqlRewriter sqlRewriter = SqlRewriterImpl.getInstance();
+  private RouteFilter routeFilter = RouteFilter.getInstance();
 
   private Configuration configuration;
   private Executor executor;
+  /**
+   * 为null时表示子表SQL在{@link #executor}上串行执行
+   */
+  private final ParallelQueryExecutor parallelQueryExecutor;
 
   private boolean dirty;
 
   public MultiTableSqlSession(Configuration configuration, Executor executor) {
+    this(configuration, executor, null);
+  }
+
+  public MultiTableSqlSession(Configuration configuration, Executor executor,
+                              ParallelQueryConfig parallelQueryConfig) {
     this.configuration = configuration;
     this.executor = executor;
+    this.parallelQueryExecutor = parallelQueryConfig == null ?
+        null : new ParallelQueryExecutor(configuration, parallelQueryConfig);
     this.dirty = false;
   }
 
@@ -122,8 +141,14 @@ public class MultiTableSqlSession implements SqlSession {
 
   private <E> List<E> doQueryForList(RowBounds rowBounds, MappedStatement ms, Object params)
       throws SQLException {
+    if (routeFilter.isNeverRouted(ms)) {
+      return executor.query(ms, params, rowBounds, Executor.NO_RESULT_HANDLER);
+    }
     BoundSql boundSql = ms.getBoundSql(params);
     String sql = boundSql.getSql().trim();
+    if (!routeFilter.isRouted(ms, sql)) {
+      return executor.query(ms, params, rowBounds, Executor.NO_RESULT_HANDLER);
+    }
     Map<String, String> parsedHeadComment = parseHeadComment(sql);
     sql = normalizeSql(sql);
 
@@ -136,22 +161,55 @@ public class MultiTableSqlSession implements SqlSession {
     if (sqls == null) {
       return executor.query(ms, params, rowBounds, Executor.NO_RESULT_HANDLER);
     }
-    MappedStatement mappedStatement = null;
-    List<Object> all = new ArrayList<>(1);
-    while (sqls.hasNext()) {
-      CharSequence next = sqls.next();
-      if (mappedStatement == null) {
-        mappedStatement = copyMappedStatement(ms, boundSql);
+    MappedStatementUtils
+        .removeTrailingParameters(boundSql, parsedSqlContext.getInlinedParameterCount());
+    return (List<E>) queryAndMerge(ms, params, rowBounds, boundSql, parsedSqlContext, sqls,
+        parameterSupplier);
+  }
+
+  /**
+   * 查询所有子表,合并后返回
+   */
+  private List<?> queryAndMerge(MappedStatement ms, Object params, RowBounds rowBounds,
+                                BoundSql boundSql, ParsedSqlContext parsedSqlContext,
+                                Iterator<CharSequence> sqls,
+                                MybatisParameterSupplier parameterSupplier)
+      throws SQLException {
+    if (isParallelQueryAllowed()) {
+      List<CharSequence> subSqls = Lists.newArrayList(sqls);
+      if (subSqls.size() > 1) {
+        List<Object> all = parallelQueryExecutor
+            .query(AvgResults.subMappedStatement(ms, parsedSqlContext), params, rowBounds,
+                boundSql, subSqls);
+        return (List<?>) AvgResults.convert(resultMerger
+            .merge(all, parsedSqlContext, new MybatisFieldMappingSupplier(ms), parameterSupplier),
+            parsedSqlContext, ms);
       }
-      setField(boundSql, "sql", next.toString());
-      List<E> result =
-          executor.query(mappedStatement, params, rowBounds, Executor.NO_RESULT_HANDLER);
-      all.add(result);
+      sqls = subSqls.iterator();
     }
+    List<Object> all = querySubTables(ms, params, rowBounds, boundSql, parsedSqlContext, sqls);
+    return (List<?>) AvgResults.convert(resultMerger
+        .merge(all, parsedSqlContext, new MybatisFieldMappingSupplier(ms), parameterSupplier),
+        parsedSqlContext, ms);
+  }
 
-    return (List<E>) resultMerger
-        .merge(all, parsedSqlContext, new MybatisFieldMappingSupplier(mappedStatement),
-            parameterSupplier);
+  private List<Object> querySubTables(MappedStatement ms, Object params, RowBounds rowBounds,
+                                      BoundSql boundSql, ParsedSqlContext parsedSqlContext,
+                                      Iterator<CharSequence> sqls) throws SQLException {
+    MappedStatement mappedStatement = AvgResults
+        .subMappedStatement(MappedStatementUtils.getBoundMappedStatement(ms), parsedSqlContext);
+    List<Object> all = new ArrayList<>(1);
+    BoundSql previous = ThreadBoundSqlSource.bind(boundSql);
+    try {
+      while (sqls.hasNext()) {
+        CharSequence next = sqls.next();
+        setField(boundSql, "sql", next.toString());
+        all.add(executor.query(mappedStatement, params, rowBounds, Executor.NO_RESULT_HANDLER));
+      }
+    } finally {
+      ThreadBoundSqlSource.restore(previous);
+    }
+    return all;
   }
 
   public void select(String statement, Object parameter, ResultHandler handler) {
@@ -178,8 +236,16 @@ public class MultiTableSqlSession implements SqlSession {
   private void doQueryWithoutResult(Object parameter, RowBounds rowBounds, ResultHandler handler,
                                     MappedStatement ms, Object params)
       throws SQLException {
+    if (routeFilter.isNeverRouted(ms)) {
+      executor.query(ms, params, rowBounds, handler);
+      return;
+    }
     BoundSql boundSql = ms.getBoundSql(params);
     String sql = boundSql.getSql().trim();
+    if (!routeFilter.isRouted(ms, sql)) {
+      executor.query(ms, params, rowBounds, handler);
+      return;
+    }
     Map<String, String> parsedHeadComment = parseHeadComment(sql);
     sql = normalizeSql(sql);
 
@@ -191,15 +257,75 @@ public class MultiTableSqlSession implements SqlSession {
 
     if (sqls == null) {
       executor.query(ms, wrapCollection(parameter), rowBounds, handler);
+      return;
+    }
+    MappedStatementUtils
+        .removeTrailingParameters(boundSql, parsedSqlContext.getInlinedParameterCount());
+    if (!resultMerger.isStreamable(parsedSqlContext)) {
+      //分组,聚合函数与distinct需要所有子表的结果才能合并
+      handleResults(queryAndMerge(ms, params, rowBounds, boundSql, parsedSqlContext, sqls,
+          parameterSupplier), handler);
+      return;
+    }
+    cn.yxffcode.mtd.config.Configuration dalConfig =
+        cn.yxffcode.mtd.config.Configuration.getInstance();
+    List<CharSequence> subSqls = Lists.newArrayList(sqls);
+    SelectStatement selectStatement = (SelectStatement) parsedSqlContext.getSqlStatement();
+    boolean ordered = isNotEmpty(selectStatement.getOrderByElements());
+    if (subSqls.size() > 1 && isParallelQueryAllowed()) {
+      QueryStreams streams = parallelQueryExecutor.stream(ms, params, rowBounds, boundSql,
+          subSqls, dalConfig.getStreamFetchSize(), dalConfig.getStreamBufferRows(),
+          dalConfig.getStreamStartTimeoutMillis());
+      if (streams != null) {
+        try {
+          handleResults(resultMerger.streamMerge(streams.getSources(), parsedSqlContext,
+              new MybatisFieldMappingSupplier(ms), parameterSupplier), handler);
+        } finally {
+          streams.close();
+        }
+        return;
+      }
+    }
+    if (subSqls.size() > 1 && ordered) {
+      //不能同时执行所有子表SQL时,只能在所有子表的结果返回后归并,内存中会保存所有子表的结果.
+      //需要有序导出大量记录时,maxQueryParallelism与maxSessionParallelism不能小于子表数
+      handleResults(queryAndMerge(ms, params, rowBounds, boundSql, parsedSqlContext,
+          subSqls.iterator(), parameterSupplier), handler);
+      return;
     }
-    MappedStatement mappedStatement = null;
-    while (sqls.hasNext()) {
-      CharSequence next = sqls.next();
-      if (mappedStatement == null) {
-        mappedStatement = copyMappedStatement(ms, boundSql);
+    //依次执行子表SQL,满足limit后不再执行剩余的SQL;只有一个子表时limit没有被改写,不需要处理
+    LimitResultHandler limitHandler = new LimitResultHandler(handler,
+        subSqls.size() > 1 ? selectStatement.getLimitClause() : null, parameterSupplier);
+    MappedStatement mappedStatement =
+        MappedStatementUtils.getStreamMappedStatement(ms, dalConfig.getStreamFetchSize());
+    BoundSql previous = ThreadBoundSqlSource.bind(boundSql);
+    try {
+      for (CharSequence next : subSqls) {
+        if (limitHandler.isDone()) {
+          break;
+        }
+        setField(boundSql, "sql", next.toString());
+        executor.query(mappedStatement, params, rowBounds, limitHandler);
       }
-      setField(boundSql, "sql", next.toString());
-      executor.query(mappedStatement, params, rowBounds, handler);
+    } finally {
+      ThreadBoundSqlSource.restore(previous);
+    }
+  }
+
+  private void handleResults(List<?> rows, ResultHandler handler) {
+    if (rows != null) {
+      handleResults(rows.iterator(), handler);
+    }
+  }
+
+  /**
+   * 将合并后的记录逐条交给handler,handler停止后不再读取
+   */
+  private void handleResults(Iterator<?> rows, ResultHandler handler) {
+    DefaultResultContext context = new DefaultResultContext();
+    while (!context.isStopped() && rows.hasNext()) {
+      context.nextResultObject(rows.next());
+      handler.handleResult(context);
     }
   }
 
@@ -228,9 +354,14 @@ public class MultiTableSqlSession implements SqlSession {
   }
 
   private int doUpdate(MappedStatement ms, Object parameter) throws SQLException {
-
+    if (routeFilter.isNeverRouted(ms)) {
+      return executor.update(ms, parameter);
+    }
     BoundSql boundSql = ms.getBoundSql(parameter);
     String sql = boundSql.getSql();
+    if (!routeFilter.isRouted(ms, sql)) {
+      return executor.update(ms, parameter);
+    }
 
     Map<String, String> parsedHeadComment = parseHeadComment(sql);
     sql = normalizeSql(sql);
@@ -244,21 +375,23 @@ public class MultiTableSqlSession implements SqlSession {
       return executor.update(ms, parameter);
     }
 
-    MappedStatement nms = null;
+    //MappedStatement object is a singleton and shared by all invokers, so use the cached copy
+    // whose BoundSql is bound to current thread.
+    MappedStatement nms = MappedStatementUtils.getBoundMappedStatement(ms);
 
     int updateCount = -1;
-    for (; sqls.hasNext(); ) {
-      if (nms == null) {
-        //must create a new MappedStatement because of MappedStatement object is a singleton and
-        // shared by all invokers.
-        nms = copyMappedStatement(ms, boundSql);
-      }
-      CharSequence s = sqls.next();
-      setField(boundSql, "sql", s.toString());
-      if (updateCount < 0) {
-        updateCount = 0;
+    BoundSql previous = ThreadBoundSqlSource.bind(boundSql);
+    try {
+      for (; sqls.hasNext(); ) {
+        CharSequence s = sqls.next();
+        setField(boundSql, "sql", s.toString());
+        if (updateCount < 0) {
+          updateCount = 0;
+        }
+        updateCount += executor.update(nms, parameter);
       }
-      updateCount += executor.update(nms, parameter);
+    } finally {
+      ThreadBoundSqlSource.restore(previous);
     }
     if (updateCount < 0) {
       return executor.update(ms, parameter);
@@ -343,6 +476,13 @@ public class MultiTableSqlSession implements SqlSession {
     executor.clearLocalCache();
   }
 
+  /**
+   * 并发查询时每条子表SQL使用独立的连接,看不到当前事务中未提交的修改,所以有修改时只能串行查询
+   */
+  private boolean isParallelQueryAllowed() {
+    return parallelQueryExecutor != null && !dirty;
+  }
+
   private boolean isCommitOrRollbackRequired(boolean force) {
     return dirty || force;
   }
@@ -378,24 +518,6 @@ public class MultiTableSqlSession implements SqlSession {
     return Collections.emptyMap();
   }
 
-  private MappedStatement copyMappedStatement(MappedStatement ms, BoundSql boundSql) {
-    return copyMappedStatement(ms, new BoundSqlSource(boundSql));
-  }
-
-  private MappedStatement copyMappedStatement(MappedStatement ms, SqlSource sqlSource) {
-    MappedStatement nms;
-    nms = new MappedStatement.Builder(ms.getConfiguration(), ms.getId(), sqlSource,
-        ms.getSqlCommandType()).cache(ms.getCache()).databaseId(ms.getDatabaseId())
-        .fetchSize(ms.getFetchSize()).flushCacheRequired(true).keyGenerator(ms.getKeyGenerator())
-        .parameterMap(ms.getParameterMap()).resource(ms.getResource())
-        .resultMaps(ms.getResultMaps()).resultSetType(ms.getResultSetType())
-        .statementType(ms.getStatementType()).timeout(ms.getTimeout()).useCache(ms.isUseCache())
-        .build();
-    setField(nms, "keyColumns", ms.getKeyColumns());
-    setField(nms, "keyProperties", ms.getKeyProperties());
-    return nms;
-  }
-
   private void setField(Object target, String field, Object value) {
     Field ss = ReflectionUtils.findField(target.getClass(), field);
     ss.setAccessible(true);
@@ -410,6 +532,46 @@ public class MultiTableSqlSession implements SqlSession {
     return sql;
   }
 
+  /**
+   * 依次接收各子表的记录,跳过offset条后交给handler,交给handler的记录数满足limit或者handler停止后
+   * 停止当前的子表SQL
+   */
+  private static final class LimitResultHandler implements ResultHandler {
+    private final ResultHandler handler;
+    private final DefaultResultContext context = new DefaultResultContext();
+    private long skip;
+    private long remaining;
+
+    private LimitResultHandler(ResultHandler handler, LimitClause limit,
+                               ParameterSupplier parameterSupplier) {
+      this.handler = handler;
+      this.skip = limit == null ? 0 : Math.max(limit.getOffset(parameterSupplier), 0);
+      this.remaining = limit == null ?
+          Long.MAX_VALUE : Math.max(limit.getRowCount(parameterSupplier), 0);
+    }
+
+    @Override public void handleResult(ResultContext subContext) {
+      if (skip > 0) {
+        skip--;
+        return;
+      }
+      if (isDone()) {
+        subContext.stop();
+        return;
+      }
+      context.nextResultObject(subContext.getResultObject());
+      handler.handleResult(context);
+      remaining--;
+      if (isDone()) {
+        subContext.stop();
+      }
+    }
+
+    private boolean isDone() {
+      return remaining <= 0 || context.isStopped();
+    }
+  }
+
   public static class StrictMap<V> extends HashMap<String, V> {
 
     private static final long serialVersionUID = -5741767162221585340L;
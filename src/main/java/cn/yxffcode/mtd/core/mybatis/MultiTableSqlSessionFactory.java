@@ -24,9 +24,19 @@ import java.sql.SQLException;
 public class MultiTableSqlSessionFactory implements SqlSessionFactory {
 
   private final Configuration configuration;
+  private final ParallelQueryConfig parallelQueryConfig;
 
   public MultiTableSqlSessionFactory(Configuration configuration) {
+    this(configuration, null);
+  }
+
+  /**
+   * @param parallelQueryConfig 为null时子表SQL串行执行
+   */
+  public MultiTableSqlSessionFactory(Configuration configuration,
+                                     ParallelQueryConfig parallelQueryConfig) {
     this.configuration = configuration;
+    this.parallelQueryConfig = parallelQueryConfig;
   }
 
   public SqlSession openSession() {
@@ -75,7 +85,7 @@ public class MultiTableSqlSessionFactory implements SqlSessionFactory {
           getTransactionFactoryFromEnvironment(environment);
       tx = transactionFactory.newTransaction(environment.getDataSource(), level, autoCommit);
       final Executor executor = configuration.newExecutor(tx, execType, autoCommit);
-      return new MultiTableSqlSession(configuration, executor);
+      return new MultiTableSqlSession(configuration, executor, parallelQueryConfig);
     } catch (Exception e) {
       closeTransaction(tx); // may have fetched a connection so lets call close()
       throw ExceptionFactory.wrapException("Error opening session.  Cause: " + e, e);
@@ -91,7 +101,7 @@ public class MultiTableSqlSessionFactory implements SqlSessionFactory {
           getTransactionFactoryFromEnvironment(environment);
       final Transaction tx = transactionFactory.newTransaction(connection);
       final Executor executor = configuration.newExecutor(tx, execType, connection.getAutoCommit());
-      return new MultiTableSqlSession(configuration, executor);
+      return new MultiTableSqlSession(configuration, executor, parallelQueryConfig);
     } catch (Exception e) {
       throw ExceptionFactory.wrapException("Error opening session.  Cause: " + e, e);
     } finally {
@@ -18,13 +18,17 @@ import java.util.List;
 class MybatisParameterSupplier implements ParameterSupplier {
 
   private final BoundSql boundSql;
+  /**
+   * 改写SQL时可能会去掉BoundSql中的部分参数,这里保留原始SQL的参数
+   */
+  private final List<ParameterMapping> parameterMappings;
 
   public MybatisParameterSupplier(BoundSql boundSql) {
     this.boundSql = boundSql;
+    this.parameterMappings = boundSql.getParameterMappings();
   }
 
   @Override public int getParameterCount() {
-    List<ParameterMapping> parameterMappings = boundSql.getParameterMappings();
     return parameterMappings == null ? 0 : parameterMappings.size();
   }
 
@@ -32,7 +36,6 @@ class MybatisParameterSupplier implements ParameterSupplier {
    * @see org.apache.ibatis.executor.parameter.DefaultParameterHandler
    */
   @Override public Object getParameter(int parameterIndex) {
-    List<ParameterMapping> parameterMappings = boundSql.getParameterMappings();
     if (parameterMappings != null) {
 
       ParameterMapping parameterMapping = parameterMappings.get(parameterIndex);
@@ -48,7 +51,6 @@ class MybatisParameterSupplier implements ParameterSupplier {
   }
 
   @Override public Object getParameter(String propertyName) {
-    List<ParameterMapping> parameterMappings = boundSql.getParameterMappings();
     if (parameterMappings != null) {
       Object parameterObject = boundSql.getParameterObject();
       return getValue(propertyName, parameterObject);
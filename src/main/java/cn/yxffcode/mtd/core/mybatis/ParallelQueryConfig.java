@@ -0,0 +1,43 @@
+package cn.yxffcode.mtd.core.mybatis;
+
+import java.util.concurrent.ExecutorService;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * 并发查询子表的配置,子表SQL会被提交到{@link #getExecutorService()}中执行,每条子表SQL使用独立的连接.
+ * <p/>
+ * maxQueryParallelism限制一次逻辑查询同时执行的子表SQL数,maxSessionParallelism限制一个SqlSession
+ * 同时占用的连接数.
+ *
+ * @author gaohang on 16/3/14.
+ */
+public class ParallelQueryConfig {
+
+  private final ExecutorService executorService;
+  private final int maxQueryParallelism;
+  private final int maxSessionParallelism;
+
+  public ParallelQueryConfig(ExecutorService executorService, int maxQueryParallelism,
+                             int maxSessionParallelism) {
+    checkNotNull(executorService);
+    checkArgument(maxQueryParallelism > 0, "maxQueryParallelism must be positive");
+    checkArgument(maxSessionParallelism > 0, "maxSessionParallelism must be positive");
+    this.executorService = executorService;
+    this.maxQueryParallelism = maxQueryParallelism;
+    this.maxSessionParallelism = maxSessionParallelism;
+  }
+
+  public ExecutorService getExecutorService() {
+    return executorService;
+  }
+
+  public int getMaxQueryParallelism() {
+    return maxQueryParallelism;
+  }
+
+  public int getMaxSessionParallelism() {
+    return maxSessionParallelism;
+  }
+}
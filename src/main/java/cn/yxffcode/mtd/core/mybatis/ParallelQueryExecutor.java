@@ -0,0 +1,201 @@
+package cn.yxffcode.mtd.core.mybatis;
+
+import cn.yxffcode.mtd.utils.MappedStatementUtils;
+import cn.yxffcode.mtd.utils.Reflections;
+import org.apache.ibatis.executor.ErrorContext;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+import org.apache.ibatis.transaction.Transaction;
+import org.apache.ibatis.transaction.TransactionFactory;
+import org.apache.ibatis.transaction.managed.ManagedTransactionFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 并发执行一次逻辑查询改写后的多条子表SQL,每条SQL从{@link Environment}中获取独立的连接执行,
+ * 执行完成后立即关闭.返回结果的顺序与SQL的顺序一致,可直接交给
+ * {@link cn.yxffcode.mtd.core.merger.ResultMerger}合并.
+ * <p/>
+ * 每个SqlSession持有一个此类的对象,{@link #sessionPermits}用于限制一个SqlSession同时占用的连接数.
+ * <p/>
+ * {@link #stream}同时执行所有的子表SQL,记录逐条交给合并的线程,用于流式合并;
+ * 线程池可能被多个SqlSession共享,没有足够的空闲线程同时执行所有子表SQL时,
+ * 等待开始执行超时后停止流式查询,由调用者改为不并发执行,不会使合并一直阻塞.
+ *
+ * @author gaohang on 16/3/14.
+ */
+class ParallelQueryExecutor {
+
+  private final Configuration configuration;
+  private final ParallelQueryConfig config;
+  private final Semaphore sessionPermits;
+
+  ParallelQueryExecutor(Configuration configuration, ParallelQueryConfig config) {
+    this.configuration = configuration;
+    this.config = config;
+    this.sessionPermits = new Semaphore(config.getMaxSessionParallelism());
+  }
+
+  List<Object> query(final MappedStatement ms, final Object params, final RowBounds rowBounds,
+                     final BoundSql boundSql,
+                     final List<? extends CharSequence> sqls) throws SQLException {
+    final Object[] results = new Object[sqls.size()];
+    final AtomicInteger nextSql = new AtomicInteger();
+
+    //每个worker依次领取未执行的SQL,worker的数量即为本次查询的最大并发数
+    int workerCount = Math.min(sqls.size(), config.getMaxQueryParallelism());
+    List<Future<Void>> workers = new ArrayList<>(workerCount);
+    try {
+      for (int i = 0; i < workerCount; i++) {
+        workers.add(config.getExecutorService().submit(new Callable<Void>() {
+          @Override public Void call() throws Exception {
+            for (int idx = nextSql.getAndIncrement(); idx < results.length;
+                 idx = nextSql.getAndIncrement()) {
+              sessionPermits.acquire();
+              try {
+                results[idx] = doQuery(MappedStatementUtils.getBoundMappedStatement(ms), params,
+                    rowBounds, boundSql, sqls.get(idx).toString(), Executor.NO_RESULT_HANDLER);
+              } finally {
+                sessionPermits.release();
+                ErrorContext.instance().reset();
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> worker : workers) {
+        worker.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("interrupted while querying sub tables", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLException) {
+        throw (SQLException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new SQLException(cause);
+    } finally {
+      //出错时不再执行剩余的SQL
+      nextSql.set(results.length);
+      for (Future<Void> worker : workers) {
+        worker.cancel(true);
+      }
+    }
+    return Arrays.asList(results);
+  }
+
+  /**
+   * 同时执行所有子表SQL,每条SQL使用独立的连接,查询结果逐条放入有界队列,不等待SQL执行完成.
+   * 子表SQL数超过一次查询或一个SqlSession允许的并发数,或者在startTimeoutMillis内没有全部开始执行时
+   * 不能同时执行,返回null.
+   *
+   * @param fetchSize          子表SQL的fetch size,为null时使用ms中的配置
+   * @param bufferRows         每条SQL最多缓存的记录数
+   * @param startTimeoutMillis 等待所有子表SQL开始执行的毫秒数
+   */
+  QueryStreams stream(final MappedStatement ms, final Object params, final RowBounds rowBounds,
+                      final BoundSql boundSql, final List<? extends CharSequence> sqls,
+                      Integer fetchSize, int bufferRows, long startTimeoutMillis) {
+    int count = sqls.size();
+    if (count > config.getMaxQueryParallelism() || !sessionPermits.tryAcquire(count)) {
+      return null;
+    }
+    final QueryStreams streams = new QueryStreams(count, bufferRows, sessionPermits, count);
+    final MappedStatement streamMs = MappedStatementUtils.getStreamMappedStatement(ms, fetchSize);
+    try {
+      for (int i = 0; i < count; i++) {
+        final int idx = i;
+        streams.addProducer(config.getExecutorService().submit(new Callable<Void>() {
+          @Override public Void call() throws Exception {
+            streams.started();
+            Throwable error = null;
+            try {
+              if (!streams.isClosed()) {
+                doQuery(streamMs, params, rowBounds, boundSql, sqls.get(idx).toString(),
+                    streams.handler(idx));
+              }
+            } catch (Throwable e) {
+              error = e;
+            } finally {
+              streams.end(idx, error);
+              ErrorContext.instance().reset();
+            }
+            return null;
+          }
+        }));
+      }
+    } catch (RuntimeException e) {
+      streams.close();
+      throw e;
+    }
+    if (!streams.awaitStarted(startTimeoutMillis)) {
+      //线程池中没有足够的空闲线程,已经开始的SQL会在队列满后等待没有开始的SQL
+      streams.close();
+      return null;
+    }
+    return streams;
+  }
+
+  private Object doQuery(MappedStatement boundMs, Object params, RowBounds rowBounds,
+                         BoundSql boundSql, String sql, ResultHandler handler)
+      throws SQLException {
+    final Environment environment = configuration.getEnvironment();
+    Transaction tx = getTransactionFactoryFromEnvironment(environment)
+        .newTransaction(environment.getDataSource(), null, true);
+    Executor executor = configuration.newExecutor(tx, ExecutorType.SIMPLE, true);
+    try {
+      BoundSql subBoundSql = copyBoundSql(boundSql, sql);
+      BoundSql previous = ThreadBoundSqlSource.bind(subBoundSql);
+      try {
+        return executor.query(boundMs, params, rowBounds, handler);
+      } finally {
+        ThreadBoundSqlSource.restore(previous);
+      }
+    } finally {
+      executor.close(false);
+    }
+  }
+
+  /**
+   * 多个线程同时执行时不能共享BoundSql,需要为每条子表SQL创建独立的BoundSql
+   */
+  private BoundSql copyBoundSql(BoundSql boundSql, String sql) {
+    BoundSql copy = new BoundSql(configuration, sql, boundSql.getParameterMappings(),
+        boundSql.getParameterObject());
+    @SuppressWarnings("unchecked") Map<String, Object> additionalParameters =
+        (Map<String, Object>) Reflections.getField("additionalParameters", boundSql);
+    if (additionalParameters != null) {
+      for (Map.Entry<String, Object> en : additionalParameters.entrySet()) {
+        copy.setAdditionalParameter(en.getKey(), en.getValue());
+      }
+    }
+    return copy;
+  }
+
+  private TransactionFactory getTransactionFactoryFromEnvironment(Environment environment) {
+    if (environment == null || environment.getTransactionFactory() == null) {
+      return new ManagedTransactionFactory();
+    }
+    return environment.getTransactionFactory();
+  }
+}
@@ -0,0 +1,232 @@
+package cn.yxffcode.mtd.core.mybatis;
+
+import cn.yxffcode.mtd.lang.ImmutableIterator;
+import com.google.common.base.Throwables;
+import org.apache.ibatis.session.ResultContext;
+import org.apache.ibatis.session.ResultHandler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同时执行的多条子表SQL的查询结果.执行SQL的线程通过{@link #handler(int)}将记录逐条放入每条SQL
+ * 各自的有界队列,合并的线程通过{@link #getSources()}按需读取,内存中最多缓存bufferRows * SQL数条记录.
+ * <p/>
+ * 合并结束或出错时必须调用{@link #close()},未执行完的SQL在放入下一条记录时停止,
+ * 所有SQL结束后释放占用的连接数.
+ * <p/>
+ * 合并时需要同时读取所有SQL的结果,一条SQL没有开始执行时其他SQL会在队列满后一直等待,
+ * 所以开始合并前需要通过{@link #awaitStarted(long)}确认所有SQL都已经开始执行.
+ *
+ * @author gaohang on 16/3/27.
+ */
+final class QueryStreams {
+  private static final Object END = new Object();
+  private static final Object NULL = new Object();
+  /**
+   * 队列已满或为空时等待的时间,超时后检查是否已经关闭或者SQL已经结束
+   */
+  private static final long WAIT_MILLIS = 50;
+
+  private final List<BlockingQueue<Object>> queues;
+  private final List<Future<?>> producers;
+  private final Semaphore permits;
+  private final int permitCount;
+  private final CountDownLatch started;
+
+  private volatile boolean closed;
+  private volatile Throwable error;
+
+  /**
+   * @param permits     执行SQL占用的连接数,关闭时释放
+   * @param permitCount 已经获取的连接数
+   */
+  QueryStreams(int count, int bufferRows, Semaphore permits, int permitCount) {
+    this.queues = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      queues.add(new ArrayBlockingQueue<>(bufferRows));
+    }
+    this.producers = new ArrayList<>(count);
+    this.permits = permits;
+    this.permitCount = permitCount;
+    this.started = new CountDownLatch(count);
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * 按SQL的顺序添加执行SQL的任务
+   */
+  void addProducer(Future<?> producer) {
+    producers.add(producer);
+  }
+
+  /**
+   * 执行SQL的线程开始执行时调用
+   */
+  void started() {
+    started.countDown();
+  }
+
+  /**
+   * @return 所有SQL是否在timeoutMillis内开始执行
+   */
+  boolean awaitStarted(long timeoutMillis) {
+    try {
+      return started.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * @return 将第index条SQL的记录放入其队列的ResultHandler,已经关闭时停止读取记录
+   */
+  ResultHandler handler(final int index) {
+    final BlockingQueue<Object> queue = queues.get(index);
+    return new ResultHandler() {
+      @Override public void handleResult(ResultContext context) {
+        Object row = context.getResultObject();
+        if (!put(queue, row == null ? NULL : row)) {
+          context.stop();
+        }
+      }
+    };
+  }
+
+  /**
+   * 第index条SQL执行结束,error为执行时的异常,正常结束时为null
+   */
+  void end(int index, Throwable error) {
+    if (error != null && this.error == null) {
+      this.error = error;
+    }
+    put(queues.get(index), END);
+  }
+
+  /**
+   * @return 每条SQL的查询结果,与SQL的顺序一致,只能在合并的线程中读取
+   */
+  List<Iterator<Object>> getSources() {
+    List<Iterator<Object>> sources = new ArrayList<>(queues.size());
+    for (int i = 0; i < queues.size(); i++) {
+      final int index = i;
+      sources.add(new ImmutableIterator<Object>() {
+        private Object next;
+        private boolean ended;
+
+        @Override public boolean hasNext() {
+          if (next == null && !ended) {
+            Object row = take(index);
+            if (row == END) {
+              ended = true;
+            } else {
+              next = row;
+            }
+          }
+          return next != null;
+        }
+
+        @Override public Object next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          Object row = next;
+          next = null;
+          return row == NULL ? null : row;
+        }
+      });
+    }
+    return sources;
+  }
+
+  /**
+   * 停止所有SQL,取消还没有开始执行的SQL,等待执行SQL的线程结束后释放连接数
+   */
+  void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (BlockingQueue<Object> queue : queues) {
+      queue.clear();
+    }
+    boolean interrupted = false;
+    try {
+      for (Future<?> producer : producers) {
+        producer.cancel(false);
+        while (true) {
+          try {
+            producer.get();
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          } catch (ExecutionException | CancellationException e) {
+            //执行SQL的异常已经通过end记录
+            break;
+          }
+        }
+      }
+    } finally {
+      permits.release(permitCount);
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * @return 关闭时返回false
+   */
+  private boolean put(BlockingQueue<Object> queue, Object row) {
+    try {
+      while (!closed) {
+        if (queue.offer(row, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  private Object take(int index) {
+    BlockingQueue<Object> queue = queues.get(index);
+    Object row;
+    try {
+      row = queue.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+      while (row == null) {
+        if (index >= producers.size() || producers.get(index).isDone()) {
+          //执行SQL的线程被中断时可能没有放入END
+          row = queue.poll();
+          if (row == null) {
+            row = END;
+          }
+          break;
+        }
+        row = queue.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while reading the sub table results", e);
+    }
+    if (row == END && error != null) {
+      throw Throwables.propagate(error);
+    }
+    return row;
+  }
+}
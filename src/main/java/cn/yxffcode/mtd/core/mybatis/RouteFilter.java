@@ -0,0 +1,100 @@
+package cn.yxffcode.mtd.core.mybatis;
+
+import cn.yxffcode.mtd.config.Configuration;
+import cn.yxffcode.mtd.core.router.RouteTableMatcher;
+import cn.yxffcode.mtd.utils.Reflections;
+import com.google.common.collect.MapMaker;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.builder.xml.dynamic.DynamicSqlSource;
+import org.apache.ibatis.builder.xml.dynamic.MixedSqlNode;
+import org.apache.ibatis.builder.xml.dynamic.SqlNode;
+import org.apache.ibatis.builder.xml.dynamic.TextSqlNode;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlSource;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 在解析SQL之前判断SQL是否需要分表,不需要分表的SQL直接使用原始的MappedStatement执行,
+ * 不需要解析,改写与合并结果.
+ * <p/>
+ * SQL不变的MappedStatement会缓存判断的结果,包含动态标签或${}的MappedStatement每次都需要判断.
+ *
+ * @author gaohang on 16/3/20.
+ */
+final class RouteFilter {
+
+  private final RouteTableMatcher matcher;
+  /**
+   * SQL不变的MappedStatement是否需要分表,key为弱引用
+   */
+  private final ConcurrentMap<MappedStatement, Boolean> verdicts =
+      new MapMaker().weakKeys().makeMap();
+
+  private RouteFilter() {
+    this.matcher = new RouteTableMatcher(Configuration.getInstance().getRouteTables());
+  }
+
+  static RouteFilter getInstance() {
+    return RouteFilterHolder.INSTANCE;
+  }
+
+  /**
+   * @return 已经确定不需要分表时返回true,没有判断过或者SQL可能变化时返回false
+   */
+  boolean isNeverRouted(MappedStatement ms) {
+    return Boolean.FALSE.equals(verdicts.get(ms));
+  }
+
+  /**
+   * @param sql MappedStatement生成的SQL
+   * @return SQL中是否可能包含需要分表的表
+   */
+  boolean isRouted(MappedStatement ms, String sql) {
+    Boolean verdict = verdicts.get(ms);
+    if (verdict != null) {
+      return verdict;
+    }
+    boolean routed = matcher.matches(sql);
+    if (isStaticSource(ms.getSqlSource())) {
+      verdicts.put(ms, routed);
+    }
+    return routed;
+  }
+
+  private static boolean isStaticSource(SqlSource sqlSource) {
+    if (sqlSource instanceof StaticSqlSource) {
+      return true;
+    }
+    if (!(sqlSource instanceof DynamicSqlSource)) {
+      return false;
+    }
+    return isStaticNode((SqlNode) Reflections.getField("rootSqlNode", sqlSource));
+  }
+
+  /**
+   * 只由不包含${}的文本组成的SqlNode生成的SQL不会变化
+   */
+  private static boolean isStaticNode(SqlNode sqlNode) {
+    if (sqlNode instanceof TextSqlNode) {
+      String text = (String) Reflections.getField("text", sqlNode);
+      return text != null && !text.contains("${");
+    }
+    if (sqlNode instanceof MixedSqlNode) {
+      @SuppressWarnings("unchecked") List<SqlNode> contents =
+          (List<SqlNode>) Reflections.getField("contents", sqlNode);
+      for (SqlNode content : contents) {
+        if (!isStaticNode(content)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private static final class RouteFilterHolder {
+    private static final RouteFilter INSTANCE = new RouteFilter();
+  }
+}
@@ -0,0 +1,49 @@
+package cn.yxffcode.mtd.core.mybatis;
+
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.SqlSource;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * 返回当前线程绑定的BoundSql的SqlSource,与{@link BoundSqlSource}不同,此类的对象不与某一次调用
+ * 绑定,所以使用它的MappedStatement可以被所有调用共享,不需要每次调用都复制MappedStatement.
+ * <p/>
+ * 调用方需要在执行前通过{@link #bind(BoundSql)}绑定BoundSql,执行后通过{@link #restore(BoundSql)}
+ * 恢复,可以嵌套使用.
+ *
+ * @author gaohang on 16/3/21.
+ * @see cn.yxffcode.mtd.utils.MappedStatementUtils#getBoundMappedStatement
+ */
+public final class ThreadBoundSqlSource implements SqlSource {
+
+  public static final ThreadBoundSqlSource INSTANCE = new ThreadBoundSqlSource();
+
+  private static final ThreadLocal<BoundSql> BOUND_SQL = new ThreadLocal<>();
+
+  private ThreadBoundSqlSource() {
+  }
+
+  /**
+   * @return 之前绑定的BoundSql,需要传给{@link #restore(BoundSql)}
+   */
+  public static BoundSql bind(BoundSql boundSql) {
+    BoundSql previous = BOUND_SQL.get();
+    BOUND_SQL.set(boundSql);
+    return previous;
+  }
+
+  public static void restore(BoundSql previous) {
+    if (previous == null) {
+      BOUND_SQL.remove();
+    } else {
+      BOUND_SQL.set(previous);
+    }
+  }
+
+  @Override public BoundSql getBoundSql(Object parameterObject) {
+    BoundSql boundSql = BOUND_SQL.get();
+    checkState(boundSql != null, "no BoundSql is bound to current thread");
+    return boundSql;
+  }
+}
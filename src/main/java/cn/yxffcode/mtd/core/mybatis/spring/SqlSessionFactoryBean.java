@@ -1,5 +1,6 @@
 package cn.yxffcode.mtd.core.mybatis.spring;
 
+import cn.yxffcode.mtd.core.mybatis.ParallelQueryConfig;
 import org.apache.ibatis.builder.xml.XMLConfigBuilder;
 import org.apache.ibatis.builder.xml.XMLMapperBuilder;
 import org.apache.ibatis.executor.ErrorContext;
@@ -75,6 +76,8 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
 
   private DatabaseIdProvider databaseIdProvider = new DefaultDatabaseIdProvider();
 
+  private ParallelQueryConfig parallelQueryConfig;
+
   public DatabaseIdProvider getDatabaseIdProvider() {
     return databaseIdProvider;
   }
@@ -135,6 +138,13 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
     this.transactionFactory = transactionFactory;
   }
 
+  /**
+   * 设置后分表查询的多条子表SQL会并发执行
+   */
+  public void setParallelQueryConfig(ParallelQueryConfig parallelQueryConfig) {
+    this.parallelQueryConfig = parallelQueryConfig;
+  }
+
   public void setEnvironment(String environment) {
     this.environment = environment;
   }
@@ -271,7 +281,7 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
       }
     }
 
-    return this.sqlSessionFactoryBuilder.build(configuration);
+    return this.sqlSessionFactoryBuilder.build(configuration, parallelQueryConfig);
   }
 
   public SqlSessionFactory getObject() throws Exception {
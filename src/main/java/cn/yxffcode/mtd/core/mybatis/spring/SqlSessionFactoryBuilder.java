@@ -1,6 +1,7 @@
 package cn.yxffcode.mtd.core.mybatis.spring;
 
 import cn.yxffcode.mtd.core.mybatis.MultiTableSqlSessionFactory;
+import cn.yxffcode.mtd.core.mybatis.ParallelQueryConfig;
 import org.apache.ibatis.builder.xml.XMLConfigBuilder;
 import org.apache.ibatis.exceptions.ExceptionFactory;
 import org.apache.ibatis.executor.ErrorContext;
@@ -78,4 +79,8 @@ class SqlSessionFactoryBuilder {
     return new MultiTableSqlSessionFactory(config);
   }
 
+  public SqlSessionFactory build(Configuration config, ParallelQueryConfig parallelQueryConfig) {
+    return new MultiTableSqlSessionFactory(config, parallelQueryConfig);
+  }
+
 }
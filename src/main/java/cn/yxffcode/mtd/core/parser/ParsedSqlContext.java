@@ -14,6 +14,18 @@ public class ParsedSqlContext {
   private final String originSql;
   private final SqlStatement sqlStatement;
   private Map<String, String> parsedHeadComment = Collections.emptyMap();
+  /**
+   * 改写SQL时被替换成字面值的jdbc参数个数,这些参数总是SQL中的最后几个参数,执行改写后的SQL时需要去掉
+   */
+  private int inlinedParameterCount;
+  /**
+   * avg函数是否被改写成了sum与count,改写后子表的查询结果需要以Map的形式返回
+   */
+  private boolean avgRewritten;
+  /**
+   * having是否从子表的SQL中去掉了,去掉后合并分组时需要按having过滤
+   */
+  private boolean havingRemoved;
 
   public ParsedSqlContext(String originSql, SqlStatement sqlStatement) {
     this.originSql = originSql;
@@ -35,4 +47,28 @@ public class ParsedSqlContext {
   public void setParsedHeadComment(Map<String, String> parsedHeadComment) {
     this.parsedHeadComment = parsedHeadComment;
   }
+
+  public int getInlinedParameterCount() {
+    return inlinedParameterCount;
+  }
+
+  public void setInlinedParameterCount(int inlinedParameterCount) {
+    this.inlinedParameterCount = inlinedParameterCount;
+  }
+
+  public boolean isAvgRewritten() {
+    return avgRewritten;
+  }
+
+  public void setAvgRewritten(boolean avgRewritten) {
+    this.avgRewritten = avgRewritten;
+  }
+
+  public boolean isHavingRemoved() {
+    return havingRemoved;
+  }
+
+  public void setHavingRemoved(boolean havingRemoved) {
+    this.havingRemoved = havingRemoved;
+  }
 }
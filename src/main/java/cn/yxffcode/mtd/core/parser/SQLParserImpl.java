@@ -1,17 +1,28 @@
 package cn.yxffcode.mtd.core.parser;
 
+import cn.yxffcode.mtd.core.parser.ast.AvgClause;
+import cn.yxffcode.mtd.core.parser.ast.GroupFunctionType;
+import cn.yxffcode.mtd.core.parser.ast.HavingClause;
+import cn.yxffcode.mtd.core.parser.ast.LimitClause;
+import cn.yxffcode.mtd.core.parser.ast.SelectColumn;
+import cn.yxffcode.mtd.core.parser.ast.SelectStatement;
 import cn.yxffcode.mtd.core.parser.ast.SqlStatement;
 import cn.yxffcode.mtd.core.parser.ast.StatementUtils;
+import cn.yxffcode.mtd.core.rewriter.RewriteTemplate;
+import com.google.common.base.Function;
 import com.google.common.base.Throwables;
 import net.sf.jsqlparser.parser.CCJSqlParserManager;
 import net.sf.jsqlparser.parser.JSqlParser;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
-import java.util.concurrent.Callable;
-import java.util.concurrent.FutureTask;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * SQL 解析器的实现类，主要是将SQL解析后存放到cache中，
@@ -21,9 +32,18 @@ import java.util.concurrent.FutureTask;
  */
 public class SQLParserImpl implements SQLParser {
   private static final Logger LOGGER = LoggerFactory.getLogger(SQLParserImpl.class);
+  private static final String SNAPSHOT_PROPERTY = "limiku.db.parser.snapshot";
+  private static final int SNAPSHOT_SIZE = 1000;
+
   private final SqlStatementCache globalCache = SqlStatementCache.instance();
+  private final Function<String, SqlStatement> loader = new Function<String, SqlStatement>() {
+    @Override public SqlStatement apply(String sql) {
+      final SqlStatement sqlStatement = doParseSql(sql);
+      LOGGER.debug("successfully parse a sql:{}", sql);
+      return sqlStatement;
+    }
+  };
   private JSqlParser parser = new CCJSqlParserManager();
-  ;
 
   private SQLParserImpl() {
   }
@@ -32,35 +52,38 @@ public class SQLParserImpl implements SQLParser {
     return SQLParserImplHolder.INSTANCE;
   }
 
+  /**
+   * 配置了预热文件时,启动时解析文件中的SQL,JVM退出时保存最常用的SQL
+   */
+  private void warmUp() {
+    String snapshot = System.getProperty(SNAPSHOT_PROPERTY);
+    if (StringUtils.isBlank(snapshot)) {
+      return;
+    }
+    final File file = new File(snapshot);
+    try {
+      int loaded = globalCache.warmUp(file, loader);
+      LOGGER.info("warm up sql parser cache with {} sqls from {}", loaded, file);
+    } catch (IOException e) {
+      LOGGER.warn("cannot warm up sql parser cache from " + file, e);
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread("sql-parser-cache-snapshot") {
+      @Override public void run() {
+        try {
+          globalCache.saveSnapshot(file, SNAPSHOT_SIZE);
+        } catch (IOException e) {
+          LOGGER.warn("cannot save sql parser cache snapshot to " + file, e);
+        }
+      }
+    });
+  }
+
   private SqlStatement nestedParseSql(final String sql) {
     if (sql == null) {
       throw new IllegalArgumentException("sql must not be null");
     }
-    //为了防止多次重复初始化，所以使用了future task来确保初始化只进行一次
-    // SQL 会被 parse 结果会被缓存起来
-    //相对于双重校验锁,FutureTask更加并发友好
-    FutureTask<SqlStatement> future = globalCache.getFutureTask(sql);
-    if (future == null) {
-      future = new FutureTask<>(new Callable<SqlStatement>() {
-        public SqlStatement call() throws Exception {
-          final SqlStatement sqlStatement = doParseSql(sql);
-          LOGGER.debug("successfully parse a sql:{}", sql);
-          StringBuilder sb = new StringBuilder();
-          LOGGER.debug("parsed sql:" + sb.toString());
-          return sqlStatement;
-        }
-      });
-      future = globalCache.setFutureTaskIfAbsent(sql, future);
-      //FutureTask.run方法使用CAS保证只执行一次.
-      future.run();
-    }
-    try {
-      return future.get();
-    } catch (Exception e) {
-      Throwables.propagate(e);
-      //不会返回null,因为Throwables.propagate会抛出RuntimeException
-      return null;
-    }
+    //同一条SQL只会被解析一次,解析的结果会被缓存起来
+    return globalCache.get(sql, loader);
   }
 
   /**
@@ -68,7 +91,19 @@ public class SQLParserImpl implements SQLParser {
    */
   private SqlStatement doParseSql(String sql) {
     try (Reader in = new StringReader(sql)) {
-      return StatementUtils.parseStatement(parser.parse(in));
+      SqlStatement sqlStatement = StatementUtils.parseStatement(parser.parse(in));
+      if (sqlStatement instanceof SelectStatement) {
+        SelectStatement selectStatement = (SelectStatement) sqlStatement;
+        if (selectStatement.getLimit() != null) {
+          selectStatement.setLimitClause(LimitClause.locate(sql, selectStatement.getLimit()));
+        }
+        selectStatement.setAvgClauses(locateAvgClauses(sql, selectStatement));
+        if (selectStatement.getHaving() != null) {
+          selectStatement.setHavingClause(HavingClause.locate(sql, selectStatement));
+        }
+      }
+      sqlStatement.setRewriteTemplate(RewriteTemplate.compile(sql, sqlStatement));
+      return sqlStatement;
     } catch (Exception e) {
       Throwables.propagate(e);
       return null;
@@ -76,22 +111,20 @@ public class SQLParserImpl implements SQLParser {
   }
 
   /**
-   * 根据SQL获取对应的javaSQL对象
-   *
-   * @param sql
-   * @return java SQL 对象。 如果cache中没有则返回空
+   * 查询列表中的avg函数,查询多个子表时需要改写为sum与count
    */
-  private SqlStatement getStatement(String sql) {
-    try {
-      FutureTask<SqlStatement> future = globalCache.getFutureTask(sql);
-      if (future == null) {
-        return null;
-      } else {
-        return future.get();
+  private List<AvgClause> locateAvgClauses(String sql, SelectStatement selectStatement) {
+    int avgCount = 0;
+    for (SelectColumn selectColumn : selectStatement.getSelectColumns()) {
+      if (selectColumn.getFunction() == GroupFunctionType.AVG) {
+        avgCount++;
       }
-    } catch (Exception e) {
-      throw new RuntimeException(e);
     }
+    if (avgCount == 0) {
+      return Collections.emptyList();
+    }
+    List<AvgClause> avgClauses = AvgClause.locate(sql, selectStatement);
+    return avgClauses != null && avgClauses.size() == avgCount ? avgClauses : null;
   }
 
   public SqlStatement parse(String sql) {
@@ -105,5 +138,9 @@ public class SQLParserImpl implements SQLParser {
 
   private static final class SQLParserImplHolder {
     private static final SQLParserImpl INSTANCE = new SQLParserImpl();
+
+    static {
+      INSTANCE.warmUp();
+    }
   }
 }
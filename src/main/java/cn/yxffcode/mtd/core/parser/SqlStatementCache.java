@@ -1,38 +1,105 @@
 package cn.yxffcode.mtd.core.parser;
 
 import cn.yxffcode.mtd.core.parser.ast.SqlStatement;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EntryWeigher;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import net.sf.jsqlparser.statement.Statement;
 import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * 可有于缓存解析后的SQL,实际上缓存的是{@link Statement}对象
+ * <p/>
+ * 缓存分为两层:解析成功的SQL保存在有界的LRU缓存中,权重为SQL的长度或者固定为1;
+ * 解析失败的SQL保存在失败缓存中,超过negativeExpireMillis后会重新解析.
+ * 未命中时通过putIfAbsent放入FutureTask,同一条SQL只解析一次,不需要全局锁.
+ * <p/>
+ * 可通过系统属性配置全局实例:
+ * <ul>
+ * <li>limiku.db.parser.cachesize 缓存的SQL条数,默认389</li>
+ * <li>limiku.db.parser.cacheweight 缓存的SQL总长度,配置后按SQL长度计算权重,忽略cachesize</li>
+ * <li>limiku.db.parser.negativettl 解析失败的SQL的缓存时间,单位毫秒,默认60000</li>
+ * <li>limiku.db.parser.snapshot 预热文件,启动时解析文件中的SQL,JVM退出时保存最常用的SQL</li>
+ * </ul>
  *
  * @author gaohang
  */
 public class SqlStatementCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SqlStatementCache.class);
 
   private static final int DEFAULT_CACHE_SIZE = 389;
-  private final int capacity;
-  private final Map<String, StatementItem> cache;
-  private final ReentrantLock lock = new ReentrantLock();
-  private SqlStatementCache() {
-    int size = DEFAULT_CACHE_SIZE;
-    String propSize = System.getProperty("limiku.db.parser.cachesize");
-    if (propSize != null) {
-      size = NumberUtils.toInt(propSize, DEFAULT_CACHE_SIZE);
-    }
-    capacity = size;
-    ConcurrentLinkedHashMap<String, StatementItem> map =
+  private static final long DEFAULT_NEGATIVE_EXPIRE_MILLIS = 60000;
+  private static final int MAX_NEGATIVE_ENTRIES = 128;
+
+  private final ConcurrentLinkedHashMap<String, StatementItem> cache;
+  private final ConcurrentMap<String, FailedItem> failures;
+  private final long negativeExpireMillis;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong negativeHitCount = new AtomicLong();
+  private final AtomicLong loadSuccessCount = new AtomicLong();
+  private final AtomicLong loadFailureCount = new AtomicLong();
+  private final AtomicLong totalLoadTime = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * @param capacity             缓存的最大权重
+   * @param weighByLength        true表示每条SQL的权重为SQL的长度,false表示权重为1
+   * @param negativeExpireMillis 解析失败的SQL的缓存时间
+   */
+  public SqlStatementCache(long capacity, boolean weighByLength, long negativeExpireMillis) {
+    checkArgument(capacity > 0, "capacity must be positive");
+    checkArgument(negativeExpireMillis >= 0, "negativeExpireMillis must not be negative");
+    this.negativeExpireMillis = negativeExpireMillis;
+    ConcurrentLinkedHashMap.Builder<String, StatementItem> builder =
         new ConcurrentLinkedHashMap.Builder<String, StatementItem>()
-            .initialCapacity(capacity)
-            .maximumWeightedCapacity(capacity).build();
-    this.cache = map;
+            .initialCapacity((int) Math.min(capacity, DEFAULT_CACHE_SIZE))
+            .maximumWeightedCapacity(capacity)
+            .listener(new EvictionListener<String, StatementItem>() {
+              @Override public void onEviction(String sql, StatementItem item) {
+                evictionCount.incrementAndGet();
+              }
+            });
+    if (weighByLength) {
+      builder.weigher(new EntryWeigher<String, StatementItem>() {
+        @Override public int weightOf(String sql, StatementItem item) {
+          return Math.max(sql.length(), 1);
+        }
+      });
+    }
+    this.cache = builder.build();
+    this.failures = new ConcurrentLinkedHashMap.Builder<String, FailedItem>()
+        .maximumWeightedCapacity(MAX_NEGATIVE_ENTRIES).build();
   }
 
   public static final SqlStatementCache instance() {
@@ -43,85 +110,267 @@ public class SqlStatementCache {
     return cache.size();
   }
 
-  private StatementItem get(String sql) {
-    return cache.get(sql);
-  }
-
-  public FutureTask<SqlStatement> getFutureTask(String sql) {
-    StatementItem StatementItem = get(sql);
-    if (StatementItem != null) {
-      return StatementItem.getFutureStatement();
-    } else {
-      return null;
+  /**
+   * 从缓存中获取解析后的SQL,没有时使用loader解析,解析失败时抛出原始的异常
+   */
+  public SqlStatement get(String sql, final Function<String, SqlStatement> loader) {
+    StatementItem item = cache.get(sql);
+    if (item != null) {
+      hitCount.incrementAndGet();
+      item.hits.incrementAndGet();
+      return getStatement(item.future);
+    }
+    FailedItem failed = failures.get(sql);
+    if (failed != null) {
+      if (failed.expireAt > System.currentTimeMillis()) {
+        negativeHitCount.incrementAndGet();
+        throw Throwables.propagate(failed.cause);
+      }
+      failures.remove(sql, failed);
     }
 
+    missCount.incrementAndGet();
+    StatementItem newItem = new StatementItem(sql, loader);
+    item = cache.putIfAbsent(sql, newItem);
+    if (item != null) {
+      //其它线程正在解析或已经解析完成
+      item.hits.incrementAndGet();
+      return getStatement(item.future);
+    }
+    long start = System.nanoTime();
+    newItem.future.run();
+    totalLoadTime.addAndGet(System.nanoTime() - start);
+    try {
+      SqlStatement sqlStatement = getStatement(newItem.future);
+      loadSuccessCount.incrementAndGet();
+      return sqlStatement;
+    } catch (RuntimeException e) {
+      loadFailureCount.incrementAndGet();
+      cache.remove(sql, newItem);
+      if (negativeExpireMillis > 0) {
+        failures.put(sql, new FailedItem(e, System.currentTimeMillis() + negativeExpireMillis));
+      }
+      throw e;
+    }
   }
 
-  public FutureTask<SqlStatement> setFutureTaskIfAbsent(String sql,
-                                                        FutureTask<SqlStatement> future) {
-    StatementItem StatementItem = get(sql);
-    FutureTask<SqlStatement> returnFutureTask;
-    if (StatementItem == null) {
-      //完全没有的情况，在这种情况下，肯定是因为还没有现成请求过解析某条sql
-      lock.lock();
-      try {
-        // 双检查lock
-        StatementItem = get(sql);
-        if (StatementItem == null) {
-
-          StatementItem = new StatementItem();
-
-          put(sql, StatementItem);
+  private SqlStatement getStatement(FutureTask<SqlStatement> future) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          throw Throwables.propagate(e.getCause());
         }
-      } finally {
-
-        lock.unlock();
       }
-      //cas 更新ItemValue中的Statement对象
-      returnFutureTask = StatementItem.setFutureStatementIfAbsent(future);
-
-    } else if (StatementItem.getFutureStatement() == null) {
-      //cas 更新ItemValue中的Statement对象
-      returnFutureTask = StatementItem.setFutureStatementIfAbsent(future);
-    } else {
-      returnFutureTask = StatementItem.getFutureStatement();
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
     }
+  }
 
-    return returnFutureTask;
+  public Stats stats() {
+    return new Stats(hitCount.get(), missCount.get(), negativeHitCount.get(),
+        loadSuccessCount.get(), loadFailureCount.get(), totalLoadTime.get(), evictionCount.get(),
+        cache.size(), cache.weightedSize());
+  }
 
+  /**
+   * 将命中次数最多的SQL保存到文件中,用于下次启动时预热
+   *
+   * @param limit 最多保存的SQL条数
+   */
+  public void saveSnapshot(File file, int limit) throws IOException {
+    //命中次数在排序过程中可能变化,先取快照
+    final Map<String, Integer> hits = Maps.newHashMap();
+    for (StatementItem item : cache.values()) {
+      hits.put(item.sql, item.hits.get());
+    }
+    List<String> sqls = Lists.newArrayList(hits.keySet());
+    Collections.sort(sqls, new Comparator<String>() {
+      @Override public int compare(String left, String right) {
+        return Integer.compare(hits.get(right), hits.get(left));
+      }
+    });
+    File tmp = new File(file.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      for (int i = 0, j = Math.min(limit, sqls.size()); i < j; i++) {
+        byte[] sql = sqls.get(i).getBytes(Charsets.UTF_8);
+        out.writeInt(sql.length);
+        out.write(sql);
+      }
+    }
+    if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+      throw new IOException("cannot save snapshot to " + file);
+    }
   }
 
-  protected void put(String sql, StatementItem StatementItem) {
-    cache.put(sql, StatementItem);
+  /**
+   * 解析文件中的SQL并放入缓存,解析失败的SQL会被忽略
+   *
+   * @return 成功解析的SQL条数
+   */
+  public int warmUp(File file, Function<String, SqlStatement> loader) throws IOException {
+    if (!file.isFile()) {
+      return 0;
+    }
+    int loaded = 0;
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        byte[] sql = new byte[length];
+        in.readFully(sql);
+        try {
+          get(new String(sql, Charsets.UTF_8), loader);
+          loaded++;
+        } catch (RuntimeException e) {
+          LOGGER.debug("ignore sql in snapshot", e);
+        }
+      }
+    }
+    return loaded;
   }
 
+  /**
+   * 缓存的统计信息
+   */
+  public static final class Stats {
+    private final long hitCount;
+    private final long missCount;
+    private final long negativeHitCount;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTime;
+    private final long evictionCount;
+    private final int size;
+    private final long weightedSize;
 
-  private static final class ParserCacheHolder {
-    private static final SqlStatementCache INSTANCE = new SqlStatementCache();
-  }
+    private Stats(long hitCount, long missCount, long negativeHitCount, long loadSuccessCount,
+                  long loadFailureCount, long totalLoadTime, long evictionCount, int size,
+                  long weightedSize) {
+      this.hitCount = hitCount;
+      this.missCount = missCount;
+      this.negativeHitCount = negativeHitCount;
+      this.loadSuccessCount = loadSuccessCount;
+      this.loadFailureCount = loadFailureCount;
+      this.totalLoadTime = totalLoadTime;
+      this.evictionCount = evictionCount;
+      this.size = size;
+      this.weightedSize = weightedSize;
+    }
 
+    public long getHitCount() {
+      return hitCount;
+    }
 
-  private static final class StatementItem {
+    public long getMissCount() {
+      return missCount;
+    }
+
+    /**
+     * @return 命中解析失败缓存的次数
+     */
+    public long getNegativeHitCount() {
+      return negativeHitCount;
+    }
+
+    public long getLoadSuccessCount() {
+      return loadSuccessCount;
+    }
+
+    public long getLoadFailureCount() {
+      return loadFailureCount;
+    }
 
     /**
-     * 缓存的整个sql
+     * @return 解析SQL的总耗时,单位纳秒
      */
-    private AtomicReference<FutureTask<SqlStatement>> futureStatement =
-        new AtomicReference<>();
+    public long getTotalLoadTime() {
+      return totalLoadTime;
+    }
+
+    public long getEvictionCount() {
+      return evictionCount;
+    }
+
+    public int getSize() {
+      return size;
+    }
 
-    public FutureTask<SqlStatement> getFutureStatement() {
-      return futureStatement.get();
+    public long getWeightedSize() {
+      return weightedSize;
     }
 
-    public FutureTask<SqlStatement> setFutureStatementIfAbsent(FutureTask<SqlStatement> future) {
-      //如果原值为null则会原子的设置新值进去。并且返回新值
-      if (futureStatement.compareAndSet(null, future)) {
-        return future;
+    public double getHitRate() {
+      long requestCount = hitCount + missCount + negativeHitCount;
+      return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    @Override public String toString() {
+      return "Stats{" +
+          "hitCount=" + hitCount +
+          ", missCount=" + missCount +
+          ", negativeHitCount=" + negativeHitCount +
+          ", loadSuccessCount=" + loadSuccessCount +
+          ", loadFailureCount=" + loadFailureCount +
+          ", totalLoadTime=" + totalLoadTime +
+          ", evictionCount=" + evictionCount +
+          ", size=" + size +
+          ", weightedSize=" + weightedSize +
+          '}';
+    }
+  }
+
+  private static final class ParserCacheHolder {
+    private static final SqlStatementCache INSTANCE;
+
+    static {
+      long weight = NumberUtils.toLong(System.getProperty("limiku.db.parser.cacheweight"), 0);
+      long negativeExpireMillis = NumberUtils.toLong(
+          System.getProperty("limiku.db.parser.negativettl"), DEFAULT_NEGATIVE_EXPIRE_MILLIS);
+      if (weight > 0) {
+        INSTANCE = new SqlStatementCache(weight, true, negativeExpireMillis);
       } else {
-        //如果里面的值已经不为null，则读取该值
-        return futureStatement.get();
+        int size = NumberUtils.toInt(System.getProperty("limiku.db.parser.cachesize"),
+            DEFAULT_CACHE_SIZE);
+        INSTANCE = new SqlStatementCache(size, false, negativeExpireMillis);
       }
     }
+  }
 
+  private static final class StatementItem {
+    private final String sql;
+    private final FutureTask<SqlStatement> future;
+    private final AtomicInteger hits = new AtomicInteger();
+
+    private StatementItem(final String sql, final Function<String, SqlStatement> loader) {
+      this.sql = sql;
+      this.future = new FutureTask<>(new Callable<SqlStatement>() {
+        @Override public SqlStatement call() throws Exception {
+          return loader.apply(sql);
+        }
+      });
+    }
+  }
+
+  private static final class FailedItem {
+    private final RuntimeException cause;
+    private final long expireAt;
+
+    private FailedItem(RuntimeException cause, long expireAt) {
+      this.cause = cause;
+      this.expireAt = expireAt;
+    }
   }
 }
@@ -0,0 +1,203 @@
+package cn.yxffcode.mtd.core.parser.ast;
+
+import net.sf.jsqlparser.expression.Alias;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.Function;
+import net.sf.jsqlparser.parser.Token;
+import net.sf.jsqlparser.statement.select.SelectExpressionItem;
+import net.sf.jsqlparser.statement.select.SelectItem;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static cn.yxffcode.mtd.core.parser.ast.StatementUtils.beginOffset;
+import static cn.yxffcode.mtd.core.parser.ast.StatementUtils.endOffset;
+
+/**
+ * 查询列表中的avg函数在原始SQL中的位置.
+ * <p/>
+ * 查询多个子表时,各子表的平均值不能直接合并,需要将avg(x)改写为sum(x)与count(x),
+ * 由合并查询结果时计算准确的平均值,子表只需要查询一次.
+ *
+ * @author gaohang on 16/3/24.
+ */
+public final class AvgClause {
+
+  /**
+   * 改写后sum与count的别名,合并查询结果时通过别名取值,第二个及以后的avg函数的别名带有序号
+   */
+  public static final String SUM_LABEL = "mtd_avg_sum";
+  public static final String COUNT_LABEL = "mtd_avg_count";
+
+  /**
+   * 查询列表中avg函数(包括别名)的位置
+   */
+  private final int start;
+  private final int end;
+  private final String argument;
+  private final String label;
+  private final int ordinal;
+  private final boolean distinct;
+
+  private AvgClause(int start, int end, String argument, String label, int ordinal,
+                    boolean distinct) {
+    this.start = start;
+    this.end = end;
+    this.argument = argument;
+    this.label = label;
+    this.ordinal = ordinal;
+    this.distinct = distinct;
+  }
+
+  /**
+   * 定位最外层查询列表中的所有avg函数,按在SQL中出现的顺序返回.
+   * <p/>
+   * 由语法树判断查询列是否为avg函数,位置由语法树中的token给出,SQL前面的注释不影响定位.
+   *
+   * @param sql             被解析的原始SQL,语法树中的位置与此SQL对应
+   * @param selectStatement 解析sql得到的查询语句
+   * @return 不能定位时返回null
+   */
+  public static List<AvgClause> locate(String sql, SelectStatement selectStatement) {
+    List<SelectItem> selectItems = selectStatement.getSelectItems();
+    //查询列表中每一列的第一个与最后一个token
+    List<Token[]> items = selectItemTokens(StatementUtils.firstToken(selectStatement));
+    if (items == null || items.size() != selectItems.size()) {
+      return null;
+    }
+    int[] lineStarts = StatementUtils.lineStarts(sql);
+    List<AvgClause> clauses = new ArrayList<>(1);
+    for (int i = 0; i < items.size(); i++) {
+      if (!(selectItems.get(i) instanceof SelectExpressionItem)) {
+        continue;
+      }
+      SelectExpressionItem item = (SelectExpressionItem) selectItems.get(i);
+      Expression expression = item.getExpression();
+      if (!(expression instanceof Function)
+          || !StringUtils.equalsIgnoreCase(((Function) expression).getName(), "avg")) {
+        continue;
+      }
+      Token first = items.get(i)[0];
+      Token last = items.get(i)[1];
+      Token open = first;
+      while (open != last && !"(".equals(open.image)) {
+        open = open.next;
+      }
+      Token close = matchingClose(open, last);
+      if (close == null) {
+        return null;
+      }
+      int itemStart = beginOffset(first, lineStarts);
+      int argumentEnd = beginOffset(close, lineStarts);
+      String argument = sql.substring(endOffset(open, lineStarts), argumentEnd).trim();
+      Alias alias = item.getAlias();
+      String label = alias == null ?
+          sql.substring(itemStart, argumentEnd + 1) : StringUtils.strip(alias.getName(), "`\"");
+      clauses.add(new AvgClause(itemStart, endOffset(last, lineStarts), argument, label,
+          clauses.size(), ((Function) expression).isDistinct()));
+    }
+    return clauses;
+  }
+
+  /**
+   * 从select开始,按与select同一层的逗号切分查询列表,直到同一层的from
+   *
+   * @return 每一列的第一个与最后一个token,不能切分时返回null
+   */
+  private static List<Token[]> selectItemTokens(Token select) {
+    if (select == null || !"select".equalsIgnoreCase(select.image)) {
+      return null;
+    }
+    Token start = select.next;
+    if (start != null && ("distinct".equalsIgnoreCase(start.image)
+        || "all".equalsIgnoreCase(start.image))) {
+      start = start.next;
+    }
+    List<Token[]> items = new ArrayList<>();
+    int depth = 0;
+    Token first = null;
+    Token last = null;
+    for (Token token = start; token != null && token.image.length() > 0; token = token.next) {
+      String image = token.image;
+      if (depth == 0 && ("from".equalsIgnoreCase(image) || ",".equals(image))) {
+        if (first == null) {
+          return null;
+        }
+        items.add(new Token[] {first, last});
+        if (",".equals(image)) {
+          first = null;
+          continue;
+        }
+        return items;
+      }
+      if ("(".equals(image)) {
+        depth++;
+      } else if (")".equals(image)) {
+        depth--;
+      }
+      if (first == null) {
+        first = token;
+      }
+      last = token;
+    }
+    return null;
+  }
+
+  private static Token matchingClose(Token open, Token last) {
+    if (!"(".equals(open.image)) {
+      return null;
+    }
+    int depth = 0;
+    for (Token token = open; token != null; token = token.next) {
+      if ("(".equals(token.image)) {
+        depth++;
+      } else if (")".equals(token.image) && --depth == 0) {
+        return token;
+      }
+      if (token == last) {
+        break;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return 用于替换avg函数的sum与count
+   */
+  public String toSumAndCount() {
+    return new StringBuilder("sum(").append(argument).append(") as ").append(getSumLabel())
+        .append(", count(").append(argument).append(") as ").append(getCountLabel())
+        .toString();
+  }
+
+  /**
+   * @return 原始SQL中avg函数的别名,没有别名时为函数本身
+   */
+  public String getLabel() {
+    return label;
+  }
+
+  /**
+   * @return 是否为avg(distinct x),各子表去重后的sum与count不能合并为准确的平均值
+   */
+  public boolean isDistinct() {
+    return distinct;
+  }
+
+  public String getSumLabel() {
+    return ordinal == 0 ? SUM_LABEL : SUM_LABEL + '_' + ordinal;
+  }
+
+  public String getCountLabel() {
+    return ordinal == 0 ? COUNT_LABEL : COUNT_LABEL + '_' + ordinal;
+  }
+
+  public int getStart() {
+    return start;
+  }
+
+  public int getEnd() {
+    return end;
+  }
+}
@@ -1,5 +1,6 @@
 package cn.yxffcode.mtd.core.parser.ast;
 
+import cn.yxffcode.mtd.core.rewriter.RewriteTemplate;
 import com.google.common.collect.Sets;
 import net.sf.jsqlparser.expression.Expression;
 import net.sf.jsqlparser.schema.Table;
@@ -13,6 +14,7 @@ import java.util.Set;
 public class DeleteStatement implements SqlStatement {
   private Table table;
   private Set<String> tableNames = Collections.emptySet();
+  private RewriteTemplate rewriteTemplate;
   private Expression where;
 
   public Table getTable() {
@@ -37,6 +39,14 @@ public class DeleteStatement implements SqlStatement {
     this.where = where;
   }
 
+  @Override public RewriteTemplate getRewriteTemplate() {
+    return rewriteTemplate;
+  }
+
+  @Override public void setRewriteTemplate(RewriteTemplate rewriteTemplate) {
+    this.rewriteTemplate = rewriteTemplate;
+  }
+
   @Override public Set<String> getTableNames() {
     return tableNames;
   }
@@ -0,0 +1,100 @@
+package cn.yxffcode.mtd.core.parser.ast;
+
+import net.sf.jsqlparser.expression.ExpressionVisitorAdapter;
+import net.sf.jsqlparser.expression.JdbcParameter;
+import net.sf.jsqlparser.parser.Token;
+import net.sf.jsqlparser.statement.select.SubSelect;
+
+import static cn.yxffcode.mtd.core.parser.ast.StatementUtils.beginOffset;
+import static cn.yxffcode.mtd.core.parser.ast.StatementUtils.endOffset;
+
+/**
+ * 最外层查询的having子句在原始SQL中的位置.
+ * <p/>
+ * 查询多个子表时,每个子表中的分组只有部分聚合结果,having不能在子表中判断,
+ * 需要从子表的SQL中去掉,合并分组后再按having过滤.
+ *
+ * @author gaohang on 16/4/6.
+ */
+public final class HavingClause {
+
+  private final int start;
+  private final int end;
+  private final int jdbcParameterCount;
+
+  private HavingClause(int start, int end, int jdbcParameterCount) {
+    this.start = start;
+    this.end = end;
+    this.jdbcParameterCount = jdbcParameterCount;
+  }
+
+  /**
+   * 从select开始查找与select同一层的having,到同一层的order by, limit等子句为止
+   *
+   * @return 不能定位或者having中有子查询时返回null
+   */
+  public static HavingClause locate(String sql, SelectStatement selectStatement) {
+    final int[] parameters = new int[1];
+    final boolean[] hasSubSelect = new boolean[1];
+    selectStatement.getHaving().accept(new ExpressionVisitorAdapter() {
+      @Override public void visit(JdbcParameter parameter) {
+        parameters[0]++;
+      }
+
+      @Override public void visit(SubSelect subSelect) {
+        hasSubSelect[0] = true;
+      }
+    });
+    if (hasSubSelect[0]) {
+      return null;
+    }
+    Token having = null;
+    Token last = null;
+    int depth = 0;
+    for (Token token = StatementUtils.firstToken(selectStatement);
+         token != null && token.image.length() > 0; token = token.next) {
+      String image = token.image;
+      if (depth == 0 && having != null && isClauseEnd(image)) {
+        break;
+      }
+      if ("(".equals(image)) {
+        depth++;
+      } else if (")".equals(image)) {
+        depth--;
+      } else if (depth == 0 && having == null && "having".equalsIgnoreCase(image)) {
+        having = token;
+        continue;
+      }
+      if (having != null) {
+        last = token;
+      }
+    }
+    if (last == null) {
+      return null;
+    }
+    int[] lineStarts = StatementUtils.lineStarts(sql);
+    return new HavingClause(beginOffset(having, lineStarts), endOffset(last, lineStarts),
+        parameters[0]);
+  }
+
+  private static boolean isClauseEnd(String image) {
+    return "order".equalsIgnoreCase(image) || "limit".equalsIgnoreCase(image)
+        || "for".equalsIgnoreCase(image) || "union".equalsIgnoreCase(image)
+        || ";".equals(image);
+  }
+
+  /**
+   * @return having中的jdbc参数个数,这些参数在limit的参数之前
+   */
+  public int getJdbcParameterCount() {
+    return jdbcParameterCount;
+  }
+
+  public int getStart() {
+    return start;
+  }
+
+  public int getEnd() {
+    return end;
+  }
+}
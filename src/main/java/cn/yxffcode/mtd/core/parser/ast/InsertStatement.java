@@ -1,5 +1,6 @@
 package cn.yxffcode.mtd.core.parser.ast;
 
+import cn.yxffcode.mtd.core.rewriter.RewriteTemplate;
 import com.google.common.collect.Sets;
 import net.sf.jsqlparser.expression.operators.relational.ItemsList;
 import net.sf.jsqlparser.schema.Column;
@@ -15,6 +16,7 @@ import java.util.Set;
 public class InsertStatement implements SqlStatement {
   private Table table;
   private Set<String> tableNames = Collections.emptySet();
+  private RewriteTemplate rewriteTemplate;
   private List<Column> columns = Collections.emptyList();
   private ItemsList itemsList;
   private SelectStatement selectStatement;
@@ -57,6 +59,14 @@ public class InsertStatement implements SqlStatement {
     this.selectStatement = selectStatement;
   }
 
+  @Override public RewriteTemplate getRewriteTemplate() {
+    return rewriteTemplate;
+  }
+
+  @Override public void setRewriteTemplate(RewriteTemplate rewriteTemplate) {
+    this.rewriteTemplate = rewriteTemplate;
+  }
+
   @Override public Set<String> getTableNames() {
     return tableNames;
   }
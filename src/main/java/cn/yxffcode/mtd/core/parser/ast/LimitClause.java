@@ -0,0 +1,154 @@
+package cn.yxffcode.mtd.core.parser.ast;
+
+import cn.yxffcode.mtd.core.ParameterSupplier;
+import net.sf.jsqlparser.statement.select.Limit;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 查询语句的limit子句,记录了limit在原始SQL中的位置以及offset,row count的取值方式.
+ * <p/>
+ * limit中的jdbc参数总是SQL中的最后几个参数,所以可以通过{@link ParameterSupplier}取值.
+ * 支持"limit row_count", "limit offset, row_count"和"limit row_count offset offset"三种写法.
+ *
+ * @author gaohang on 16/3/16.
+ */
+public final class LimitClause {
+
+  private static final Pattern LIMIT_PATTERN = Pattern.compile(
+      "\\blimit\\s+(\\?|\\d+)(?:\\s*,\\s*(\\?|\\d+)|\\s+offset\\s+(\\?|\\d+))?"
+          + "(?:\\s+for\\s+update)?\\s*;?\\s*$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+  private static final int LITERAL = -1;
+
+  /**
+   * limit子句在原始SQL中的位置,不能定位时为-1
+   */
+  private final int start;
+  private final int end;
+
+  private final long offset;
+  private final long rowCount;
+
+  /**
+   * 参数在limit子句的jdbc参数中的顺序,字面值时为{@link #LITERAL}
+   */
+  private final int offsetParameter;
+  private final int rowCountParameter;
+
+  private LimitClause(int start, int end, long offset, long rowCount, int offsetParameter,
+                      int rowCountParameter) {
+    this.start = start;
+    this.end = end;
+    this.offset = offset;
+    this.rowCount = rowCount;
+    this.offsetParameter = offsetParameter;
+    this.rowCountParameter = rowCountParameter;
+  }
+
+  /**
+   * 在原始SQL中定位limit子句,定位不到时返回的对象不能用于改写SQL
+   */
+  public static LimitClause locate(String sql, Limit limit) {
+    if (limit.isLimitAll() || limit.isLimitNull()) {
+      return new LimitClause(-1, -1, 0, Integer.MAX_VALUE, LITERAL, LITERAL);
+    }
+    Matcher matcher = LIMIT_PATTERN.matcher(sql);
+    if (!matcher.find()) {
+      //按"limit offset, row_count"处理
+      int offsetParameter = limit.isOffsetJdbcParameter() ? 0 : LITERAL;
+      int rowCountParameter = limit.isRowCountJdbcParameter() ? offsetParameter + 1 : LITERAL;
+      return new LimitClause(-1, -1, limit.getOffset(), limit.getRowCount(), offsetParameter,
+          rowCountParameter);
+    }
+    String first = matcher.group(1);
+    String offsetToken;
+    String rowCountToken;
+    if (matcher.group(2) != null) {
+      offsetToken = first;
+      rowCountToken = matcher.group(2);
+    } else if (matcher.group(3) != null) {
+      rowCountToken = first;
+      offsetToken = matcher.group(3);
+    } else {
+      rowCountToken = first;
+      offsetToken = null;
+    }
+    int parameterCount = 0;
+    int offsetParameter = LITERAL;
+    int rowCountParameter = LITERAL;
+    //按在SQL中出现的顺序给jdbc参数编号
+    boolean offsetFirst = offsetToken != null && matcher.group(3) == null;
+    if (offsetFirst && "?".equals(offsetToken)) {
+      offsetParameter = parameterCount++;
+    }
+    if ("?".equals(rowCountToken)) {
+      rowCountParameter = parameterCount++;
+    }
+    if (!offsetFirst && "?".equals(offsetToken)) {
+      offsetParameter = parameterCount++;
+    }
+    long offset = offsetToken == null || offsetParameter != LITERAL ?
+        0 : Long.parseLong(offsetToken);
+    long rowCount = rowCountParameter != LITERAL ? 0 : Long.parseLong(rowCountToken);
+    //for update等后缀保持不变
+    int end = matcher.group(2) != null ? matcher.end(2) :
+        matcher.group(3) != null ? matcher.end(3) : matcher.end(1);
+    return new LimitClause(matcher.start(), end, offset, rowCount, offsetParameter,
+        rowCountParameter);
+  }
+
+  public long getOffset(ParameterSupplier parameterSupplier) {
+    if (offsetParameter == LITERAL) {
+      return offset;
+    }
+    return getParameter(parameterSupplier, offsetParameter);
+  }
+
+  public long getRowCount(ParameterSupplier parameterSupplier) {
+    if (rowCountParameter == LITERAL) {
+      return rowCount;
+    }
+    return getParameter(parameterSupplier, rowCountParameter);
+  }
+
+  private long getParameter(ParameterSupplier parameterSupplier, int limitParameterIndex) {
+    int index = parameterSupplier.getParameterCount() - getJdbcParameterCount()
+        + limitParameterIndex;
+    Object value = parameterSupplier.getParameter(index);
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+    return Long.parseLong(String.valueOf(value));
+  }
+
+  /**
+   * @return limit子句中jdbc参数的个数
+   */
+  public int getJdbcParameterCount() {
+    return (offsetParameter == LITERAL ? 0 : 1) + (rowCountParameter == LITERAL ? 0 : 1);
+  }
+
+  public boolean isLocated() {
+    return start >= 0;
+  }
+
+  /**
+   * @return limit子句在原始SQL中的开始位置,不能定位时为-1
+   */
+  public int getStart() {
+    return start;
+  }
+
+  public int getEnd() {
+    return end;
+  }
+
+  /**
+   * @return 以字面值表示的limit子句
+   */
+  public static String toSql(long offset, long rowCount) {
+    return new StringBuilder("limit ").append(offset).append(", ").append(rowCount).toString();
+  }
+}
@@ -0,0 +1,46 @@
+package cn.yxffcode.mtd.core.parser.ast;
+
+import net.sf.jsqlparser.schema.Column;
+
+/**
+ * 查询列表中的一列,记录了查询结果中的列名以及聚合函数,用于合并分组查询的结果.
+ *
+ * @author gaohang on 16/3/25.
+ */
+public final class SelectColumn {
+
+  private final String label;
+  private final Column column;
+  private final GroupFunctionType function;
+
+  public SelectColumn(String label, Column column, GroupFunctionType function) {
+    this.label = label;
+    this.column = column;
+    this.function = function;
+  }
+
+  /**
+   * @return 查询结果中的列名,有别名时为别名,否则为列名或表达式本身
+   */
+  public String getLabel() {
+    return label;
+  }
+
+  /**
+   * @return 直接查询的列,表达式或函数时为null
+   */
+  public Column getColumn() {
+    return column;
+  }
+
+  /**
+   * @return 聚合函数的类型,不是聚合函数时为{@link GroupFunctionType#NONE}
+   */
+  public GroupFunctionType getFunction() {
+    return function;
+  }
+
+  public boolean isAggregate() {
+    return function != GroupFunctionType.NONE;
+  }
+}
@@ -1,5 +1,6 @@
 package cn.yxffcode.mtd.core.parser.ast;
 
+import cn.yxffcode.mtd.core.rewriter.RewriteTemplate;
 import cn.yxffcode.mtd.utils.CollectionUtils;
 import com.google.common.collect.Sets;
 import net.sf.jsqlparser.expression.Expression;
@@ -21,11 +22,17 @@ public class SelectStatement implements SqlStatement {
   public static final SelectStatement EMPTY = new SelectStatement();
   private List<Table> tables = Collections.emptyList();
   private Set<String> tableNames = Collections.emptySet();
+  private RewriteTemplate rewriteTemplate;
   private Limit limit;
+  private LimitClause limitClause;
+  private List<AvgClause> avgClauses = Collections.emptyList();
   private List<OrderByElement> orderByElements = Collections.emptyList();
   private Expression where;
   private List<Column> groupByColumnReferences = Collections.emptyList();
+  private Expression having;
+  private HavingClause havingClause;
   private List<SelectItem> selectItems = Collections.emptyList();
+  private List<SelectColumn> selectColumns = Collections.emptyList();
   private GroupFunctionType groupFuncType = GroupFunctionType.NONE;
   private Distinct distinct;
 
@@ -53,6 +60,28 @@ public class SelectStatement implements SqlStatement {
     this.limit = limit;
   }
 
+  /**
+   * @return 原始SQL中的limit子句,只有最外层的查询语句才有
+   */
+  public LimitClause getLimitClause() {
+    return limitClause;
+  }
+
+  public void setLimitClause(LimitClause limitClause) {
+    this.limitClause = limitClause;
+  }
+
+  /**
+   * @return 需要改写为sum与count的avg函数的位置,没有时为空集合,不能定位时为null
+   */
+  public List<AvgClause> getAvgClauses() {
+    return avgClauses;
+  }
+
+  public void setAvgClauses(List<AvgClause> avgClauses) {
+    this.avgClauses = avgClauses;
+  }
+
   public List<OrderByElement> getOrderByElements() {
     return orderByElements;
   }
@@ -78,6 +107,25 @@ public class SelectStatement implements SqlStatement {
     this.groupByColumnReferences = groupByColumnReferences;
   }
 
+  public Expression getHaving() {
+    return having;
+  }
+
+  public void setHaving(Expression having) {
+    this.having = having;
+  }
+
+  /**
+   * @return 原始SQL中的having子句,没有having或者不能定位时为null
+   */
+  public HavingClause getHavingClause() {
+    return havingClause;
+  }
+
+  public void setHavingClause(HavingClause havingClause) {
+    this.havingClause = havingClause;
+  }
+
   public GroupFunctionType getGroupFuncType() {
     return groupFuncType;
   }
@@ -102,6 +150,25 @@ public class SelectStatement implements SqlStatement {
     this.selectItems = selectItems;
   }
 
+  /**
+   * @return 查询列表中每一列的描述,查询列表中有*时为空集合
+   */
+  public List<SelectColumn> getSelectColumns() {
+    return selectColumns;
+  }
+
+  public void setSelectColumns(List<SelectColumn> selectColumns) {
+    this.selectColumns = selectColumns;
+  }
+
+  @Override public RewriteTemplate getRewriteTemplate() {
+    return rewriteTemplate;
+  }
+
+  @Override public void setRewriteTemplate(RewriteTemplate rewriteTemplate) {
+    this.rewriteTemplate = rewriteTemplate;
+  }
+
   @Override public Set<String> getTableNames() {
     return tableNames;
   }
@@ -1,5 +1,7 @@
 package cn.yxffcode.mtd.core.parser.ast;
 
+import cn.yxffcode.mtd.core.rewriter.RewriteTemplate;
+
 import java.util.Set;
 
 /**
@@ -7,4 +9,11 @@ import java.util.Set;
  */
 public interface SqlStatement {
   Set<String> getTableNames();
+
+  /**
+   * @return 改写SQL的模板,与解析后的语句一起缓存
+   */
+  RewriteTemplate getRewriteTemplate();
+
+  void setRewriteTemplate(RewriteTemplate rewriteTemplate);
 }
@@ -2,8 +2,12 @@ package cn.yxffcode.mtd.core.parser.ast;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import net.sf.jsqlparser.expression.Alias;
 import net.sf.jsqlparser.expression.Expression;
 import net.sf.jsqlparser.expression.Function;
+import net.sf.jsqlparser.parser.Node;
+import net.sf.jsqlparser.parser.SimpleNode;
+import net.sf.jsqlparser.parser.Token;
 import net.sf.jsqlparser.schema.Column;
 import net.sf.jsqlparser.schema.Table;
 import net.sf.jsqlparser.statement.Statement;
@@ -79,7 +83,7 @@ public final class StatementUtils {
     selectBody.accept(new SelectVisitorAdapter() {
       @Override public void visit(PlainSelect plainSelect) {
 
-        GroupFunctionType groupFuncType = parseGroupFuncType(plainSelect, selectBody);
+        GroupFunctionType groupFuncType = parseGroupFuncType(plainSelect);
         if (groupFuncType != null) {
           selectStatement.setGroupFuncType(groupFuncType);
         }
@@ -112,6 +116,12 @@ public final class StatementUtils {
         List<SelectItem> selectItems = plainSelect.getSelectItems();
         if (isNotEmpty(selectItems)) {
           selectStatement.setSelectItems(selectItems);
+          selectStatement.setSelectColumns(parseSelectColumns(selectItems));
+        }
+
+        Expression having = plainSelect.getHaving();
+        if (having != null) {
+          selectStatement.setHaving(having);
         }
 
         final List<Expression> groupByColumnReferences = plainSelect.getGroupByColumnReferences();
@@ -131,27 +141,63 @@ public final class StatementUtils {
     return selectStatement;
   }
 
-  private static GroupFunctionType parseGroupFuncType(PlainSelect plainSelect,
-                                                      SelectBody selectBody) {
+  private static GroupFunctionType parseGroupFuncType(PlainSelect plainSelect) {
     List<SelectItem> selectItems = plainSelect.getSelectItems();
     if (isNotEmpty(selectItems) && selectItems.size() == 1) {
       SelectItem selectItem = selectItems.get(0);
       if (selectItem instanceof SelectExpressionItem) {
         Expression expression = ((SelectExpressionItem) selectItem).getExpression();
         if (expression instanceof Function) {
-          String functionName = ((Function) expression).getName().toUpperCase();
-          try {
-            return GroupFunctionType.valueOf(functionName);
-          } catch (IllegalArgumentException e) {
-            throw new UnsupportedStatementException("unknown function:" + functionName + " "
-                + "sql:" + selectBody.toString());
-          }
+          //非聚合函数,如now(),与普通的列相同
+          return toGroupFunctionType((Function) expression);
         }
       }
     }
     return null;
   }
 
+  /**
+   * @return 查询列表中有*时返回空集合,此时无法合并分组查询的结果
+   */
+  private static List<SelectColumn> parseSelectColumns(List<SelectItem> selectItems) {
+    List<SelectColumn> columns = Lists.newArrayListWithCapacity(selectItems.size());
+    for (SelectItem selectItem : selectItems) {
+      if (!(selectItem instanceof SelectExpressionItem)) {
+        return Collections.emptyList();
+      }
+      SelectExpressionItem item = (SelectExpressionItem) selectItem;
+      Expression expression = item.getExpression();
+      Alias alias = item.getAlias();
+      Column column = expression instanceof Column ? (Column) expression : null;
+      String label;
+      if (alias != null) {
+        label = alias.getName();
+      } else if (column != null) {
+        label = column.getColumnName();
+      } else {
+        label = expression.toString();
+      }
+      GroupFunctionType function = expression instanceof Function ?
+          toGroupFunctionType((Function) expression) : null;
+      columns.add(new SelectColumn(label, column,
+          function == null ? GroupFunctionType.NONE : function));
+    }
+    return Collections.unmodifiableList(columns);
+  }
+
+  /**
+   * @return 不是聚合函数时返回null
+   */
+  private static GroupFunctionType toGroupFunctionType(Function function) {
+    String name = function.getName().toUpperCase();
+    for (GroupFunctionType type : GroupFunctionType.values()) {
+      if (type != GroupFunctionType.NONE && type.name().equals(name)) {
+        return type;
+      }
+    }
+    return null;
+  }
+
   public static UpdateStatement parseUpdate(Update update) {
     checkNotNull(update);
     UpdateStatement updateStatement = new UpdateStatement();
@@ -203,4 +249,52 @@ public final class StatementUtils {
     }
     return tables == null ? null : Collections.unmodifiableList(tables);
   }
+
+  /**
+   * 语法树中token的行列号从1开始,第i行在sql中的起始位置为lineStarts[i - 1],
+   * 换行符为\n, \r或\r\n
+   */
+  public static int[] lineStarts(String sql) {
+    List<Integer> starts = Lists.newArrayList(0);
+    for (int i = 0, j = sql.length(); i < j; i++) {
+      char c = sql.charAt(i);
+      if (c == '\n' || (c == '\r' && (i + 1 == j || sql.charAt(i + 1) != '\n'))) {
+        starts.add(i + 1);
+      }
+    }
+    int[] lineStarts = new int[starts.size()];
+    for (int i = 0; i < lineStarts.length; i++) {
+      lineStarts[i] = starts.get(i);
+    }
+    return lineStarts;
+  }
+
+  /**
+   * @return 语句的第一个token,即select,SQL前面的注释不是语法树中的token;没有语法树时返回null
+   */
+  public static Token firstToken(SelectStatement selectStatement) {
+    List<Table> tables = selectStatement.getTables();
+    if (tables == null || tables.isEmpty() || tables.get(0).getASTNode() == null) {
+      return null;
+    }
+    Node root = tables.get(0).getASTNode();
+    while (root.jjtGetParent() != null) {
+      root = root.jjtGetParent();
+    }
+    return ((SimpleNode) root).jjtGetFirstToken();
+  }
+
+  /**
+   * @return token在sql中的起始位置
+   */
+  public static int beginOffset(Token token, int[] lineStarts) {
+    return lineStarts[token.beginLine - 1] + token.beginColumn - 1;
+  }
+
+  /**
+   * @return token在sql中的结束位置,不包含
+   */
+  public static int endOffset(Token token, int[] lineStarts) {
+    return lineStarts[token.endLine - 1] + token.endColumn;
+  }
 }
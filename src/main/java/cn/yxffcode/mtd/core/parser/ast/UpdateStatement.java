@@ -1,5 +1,6 @@
 package cn.yxffcode.mtd.core.parser.ast;
 
+import cn.yxffcode.mtd.core.rewriter.RewriteTemplate;
 import cn.yxffcode.mtd.utils.CollectionUtils;
 import com.google.common.collect.Sets;
 import net.sf.jsqlparser.expression.Expression;
@@ -16,6 +17,7 @@ import java.util.Set;
 public class UpdateStatement implements SqlStatement {
   private List<Table> tables = Collections.emptyList();
   private Set<String> tableNames = Collections.emptySet();
+  private RewriteTemplate rewriteTemplate;
   private List<Column> columns = Collections.emptyList();
   private List<Expression> expressions = Collections.emptyList();
   private Expression where;
@@ -60,6 +62,14 @@ public class UpdateStatement implements SqlStatement {
     this.where = where;
   }
 
+  @Override public RewriteTemplate getRewriteTemplate() {
+    return rewriteTemplate;
+  }
+
+  @Override public void setRewriteTemplate(RewriteTemplate rewriteTemplate) {
+    this.rewriteTemplate = rewriteTemplate;
+  }
+
   @Override public Set<String> getTableNames() {
     return tableNames;
   }
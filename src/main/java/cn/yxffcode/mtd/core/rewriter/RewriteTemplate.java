@@ -0,0 +1,295 @@
+package cn.yxffcode.mtd.core.rewriter;
+
+import cn.yxffcode.mtd.core.parser.ast.DeleteStatement;
+import cn.yxffcode.mtd.core.parser.ast.InsertStatement;
+import cn.yxffcode.mtd.core.parser.ast.SelectStatement;
+import cn.yxffcode.mtd.core.parser.ast.SqlStatement;
+import cn.yxffcode.mtd.core.parser.ast.StatementUtils;
+import cn.yxffcode.mtd.core.parser.ast.UpdateStatement;
+import com.google.common.collect.Lists;
+import net.sf.jsqlparser.parser.Node;
+import net.sf.jsqlparser.parser.SimpleNode;
+import net.sf.jsqlparser.parser.Token;
+import net.sf.jsqlparser.schema.Column;
+import net.sf.jsqlparser.schema.Table;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * 预编译的SQL改写模板,将原始SQL按逻辑表名出现的位置切分成若干片段,改写时只需要依次拼接片段与实际表名.
+ * <p/>
+ * 逻辑表名的位置来自jsqlparser语法树中的{@link Table}与带表名前缀的{@link Column}节点,
+ * 另外还会处理SQL注释(hint)中以"_表名_"形式出现的表名.模板与解析后的{@link SqlStatement}
+ * 一起缓存,每条SQL只需要编译一次.
+ *
+ * @author gaohang on 16/3/17.
+ */
+public final class RewriteTemplate {
+
+  /**
+   * 长度为slots.length + 1
+   */
+  private final String[] fragments;
+  /**
+   * 每个位置对应的逻辑表在{@link #logicTables}中的下标
+   */
+  private final int[] slots;
+  /**
+   * 每个位置在原始SQL中的文本,不需要替换时使用
+   */
+  private final String[] slotTexts;
+  private final String[] logicTables;
+  private final int fixedLength;
+
+  private RewriteTemplate(String[] fragments, int[] slots, String[] slotTexts,
+                          String[] logicTables) {
+    this.fragments = fragments;
+    this.slots = slots;
+    this.slotTexts = slotTexts;
+    this.logicTables = logicTables;
+    int length = 0;
+    for (String fragment : fragments) {
+      length += fragment.length();
+    }
+    this.fixedLength = length;
+  }
+
+  /**
+   * 编译SQL,模板中只包含{@link SqlStatement#getTableNames()}中的表
+   *
+   * @param sql          被解析的原始SQL,语法树中的位置与此SQL对应
+   * @param sqlStatement 解析sql得到的语句
+   */
+  public static RewriteTemplate compile(String sql, SqlStatement sqlStatement) {
+    Set<String> tableNames = sqlStatement.getTableNames();
+    String[] logicTables = tableNames.toArray(new String[tableNames.size()]);
+    for (int i = 0; i < logicTables.length; i++) {
+      logicTables[i] = unquote(logicTables[i]);
+    }
+    List<Slot> found = Lists.newArrayList();
+    Table table = firstTable(sqlStatement);
+    if (table != null && table.getASTNode() != null && logicTables.length > 0) {
+      int[] lineStarts = StatementUtils.lineStarts(sql);
+      Node root = table.getASTNode();
+      while (root.jjtGetParent() != null) {
+        root = root.jjtGetParent();
+      }
+      collectSlots(root, sql, lineStarts, logicTables, found);
+    }
+    collectHintSlots(sql, logicTables, found);
+
+    Collections.sort(found, new Comparator<Slot>() {
+      @Override public int compare(Slot left, Slot right) {
+        return left.start - right.start;
+      }
+    });
+    List<String> fragments = new ArrayList<>(found.size() + 1);
+    List<Slot> slots = new ArrayList<>(found.size());
+    int last = 0;
+    for (Slot slot : found) {
+      if (slot.start < last) {
+        //重叠的位置只保留一个
+        continue;
+      }
+      fragments.add(sql.substring(last, slot.start));
+      slots.add(slot);
+      last = slot.end;
+    }
+    fragments.add(sql.substring(last));
+
+    int[] slotIndexes = new int[slots.size()];
+    String[] slotTexts = new String[slots.size()];
+    for (int i = 0; i < slotIndexes.length; i++) {
+      Slot slot = slots.get(i);
+      slotIndexes[i] = slot.table;
+      slotTexts[i] = sql.substring(slot.start, slot.end);
+    }
+    return new RewriteTemplate(fragments.toArray(new String[fragments.size()]), slotIndexes,
+        slotTexts, logicTables);
+  }
+
+  /**
+   * @return 模板中的逻辑表名,{@link #render(String[])}的参数与之一一对应
+   */
+  public String[] getLogicTables() {
+    return logicTables.clone();
+  }
+
+  public int getLogicTableCount() {
+    return logicTables.length;
+  }
+
+  public int indexOf(String logicTable) {
+    return indexOf(logicTables, unquote(logicTable));
+  }
+
+  /**
+   * @param physicalTables 下标与{@link #getLogicTables()}对应的实际表名,为null时保持原表名
+   */
+  public String render(String[] physicalTables) {
+    checkArgument(physicalTables.length == logicTables.length);
+    int length = fixedLength;
+    for (int i = 0; i < slots.length; i++) {
+      String physicalTable = physicalTables[slots[i]];
+      length += physicalTable == null ? slotTexts[i].length() : physicalTable.length();
+    }
+    StringBuilder sql = new StringBuilder(length);
+    for (int i = 0; i < slots.length; i++) {
+      sql.append(fragments[i]);
+      String physicalTable = physicalTables[slots[i]];
+      sql.append(physicalTable == null ? slotTexts[i] : physicalTable);
+    }
+    return sql.append(fragments[slots.length]).toString();
+  }
+
+  /**
+   * 将原始SQL中[start, end)的文本替换成replacement,得到新的模板.被替换的文本中不能包含表名.
+   */
+  public RewriteTemplate replace(int start, int end, String replacement) {
+    int offset = 0;
+    for (int i = 0; i < fragments.length; i++) {
+      int fragmentEnd = offset + fragments[i].length();
+      if (start >= offset && end <= fragmentEnd) {
+        String[] newFragments = fragments.clone();
+        newFragments[i] = new StringBuilder(fragments[i].length() + replacement.length())
+            .append(fragments[i], 0, start - offset).append(replacement)
+            .append(fragments[i], end - offset, fragments[i].length()).toString();
+        return new RewriteTemplate(newFragments, slots, slotTexts, logicTables);
+      }
+      if (i < slots.length) {
+        offset = fragmentEnd + slotTexts[i].length();
+      }
+    }
+    throw new IllegalArgumentException(
+        "cannot replace a table name, [" + start + ", " + end + ")");
+  }
+
+  private static void collectSlots(Node node, String sql, int[] lineStarts, String[] logicTables,
+                                   List<Slot> slots) {
+    if (node instanceof SimpleNode) {
+      SimpleNode simpleNode = (SimpleNode) node;
+      Object value = simpleNode.jjtGetValue();
+      Token nameToken = null;
+      if (value instanceof Table) {
+        //表名是Table节点的最后一个token,前面可能有库名
+        nameToken = simpleNode.jjtGetLastToken();
+      } else if (value instanceof Column && ((Column) value).getTable() != null
+          && ((Column) value).getTable().getName() != null) {
+        //table.column,表名在最后一个"."之前
+        nameToken = tokenBeforeLastDot(simpleNode);
+      }
+      if (nameToken != null) {
+        addSlot(nameToken, sql, lineStarts, logicTables, slots);
+      }
+    }
+    for (int i = 0, j = node.jjtGetNumChildren(); i < j; i++) {
+      collectSlots(node.jjtGetChild(i), sql, lineStarts, logicTables, slots);
+    }
+  }
+
+  private static Token tokenBeforeLastDot(SimpleNode node) {
+    Token last = node.jjtGetLastToken();
+    Token beforePrevious = null;
+    Token previous = null;
+    for (Token token = node.jjtGetFirstToken(); token != null && token != last;
+         token = token.next) {
+      beforePrevious = previous;
+      previous = token;
+    }
+    return previous != null && ".".equals(previous.image) ? beforePrevious : null;
+  }
+
+  private static void addSlot(Token token, String sql, int[] lineStarts, String[] logicTables,
+                              List<Slot> slots) {
+    int table = indexOf(logicTables, unquote(token.image));
+    if (table < 0) {
+      return;
+    }
+    int start = lineStarts[token.beginLine - 1] + token.beginColumn - 1;
+    int end = start + token.image.length();
+    checkState(sql.regionMatches(start, token.image, 0, token.image.length()),
+        "cannot locate table %s in sql:%s", token.image, sql);
+    if (isQuoted(token.image)) {
+      start++;
+      end--;
+    }
+    slots.add(new Slot(start, end, table));
+  }
+
+  /**
+   * 处理注释中的hint,如 / *+ index(_table_ idx) * /
+   */
+  private static void collectHintSlots(String sql, String[] logicTables, List<Slot> slots) {
+    int commentStart = sql.indexOf("/*");
+    while (commentStart >= 0) {
+      int commentEnd = sql.indexOf("*/", commentStart + 2);
+      if (commentEnd < 0) {
+        return;
+      }
+      for (int i = 0; i < logicTables.length; i++) {
+        String name = logicTables[i];
+        for (int from = commentStart; from < commentEnd; ) {
+          int at = StringUtils.indexOfIgnoreCase(sql, '_' + name + '_', from);
+          if (at < 0 || at + name.length() + 2 > commentEnd) {
+            break;
+          }
+          slots.add(new Slot(at + 1, at + 1 + name.length(), i));
+          from = at + name.length() + 1;
+        }
+      }
+      commentStart = sql.indexOf("/*", commentEnd + 2);
+    }
+  }
+
+  private static int indexOf(String[] logicTables, String name) {
+    for (int i = 0; i < logicTables.length; i++) {
+      if (StringUtils.equalsIgnoreCase(logicTables[i], name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isQuoted(String name) {
+    return name.length() >= 2 && (name.charAt(0) == '`' || name.charAt(0) == '"')
+        && name.charAt(name.length() - 1) == name.charAt(0);
+  }
+
+  private static String unquote(String name) {
+    return isQuoted(name) ? name.substring(1, name.length() - 1) : name;
+  }
+
+  private static Table firstTable(SqlStatement sqlStatement) {
+    List<Table> tables = null;
+    if (sqlStatement instanceof SelectStatement) {
+      tables = ((SelectStatement) sqlStatement).getTables();
+    } else if (sqlStatement instanceof UpdateStatement) {
+      tables = ((UpdateStatement) sqlStatement).getTables();
+    } else if (sqlStatement instanceof DeleteStatement) {
+      return ((DeleteStatement) sqlStatement).getTable();
+    } else if (sqlStatement instanceof InsertStatement) {
+      return ((InsertStatement) sqlStatement).getTable();
+    }
+    return tables == null || tables.isEmpty() ? null : tables.get(0);
+  }
+
+  private static final class Slot {
+    private final int start;
+    private final int end;
+    private final int table;
+
+    private Slot(int start, int end, int table) {
+      this.start = start;
+      this.end = end;
+      this.table = table;
+    }
+  }
+}
@@ -3,23 +3,29 @@ package cn.yxffcode.mtd.core.rewriter;
 import cn.yxffcode.mtd.config.Configuration;
 import cn.yxffcode.mtd.core.ParameterSupplier;
 import cn.yxffcode.mtd.core.parser.ParsedSqlContext;
+import cn.yxffcode.mtd.core.parser.ast.AvgClause;
+import cn.yxffcode.mtd.core.parser.ast.HavingClause;
+import cn.yxffcode.mtd.core.parser.ast.LimitClause;
+import cn.yxffcode.mtd.core.parser.ast.SelectStatement;
+import cn.yxffcode.mtd.core.parser.ast.SqlStatement;
+import cn.yxffcode.mtd.core.parser.ast.UnsupportedStatementException;
+import cn.yxffcode.mtd.core.rewriter.SubTableCombinations.SubTables;
+import cn.yxffcode.mtd.core.router.AbstractRouter;
 import cn.yxffcode.mtd.core.router.Router;
 import cn.yxffcode.mtd.lang.ImmutableIterator;
 import com.google.common.base.Function;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import org.springframework.util.CollectionUtils;
 
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+
+import static cn.yxffcode.mtd.utils.CollectionUtils.isNotEmpty;
 
 /**
  * 对原始SQL做重写,将原始SQL转换成目标SQL,转换后的目标SQL可能不只一条.
@@ -30,7 +36,6 @@ import java.util.regex.Pattern;
  */
 public class SqlRewriterImpl implements SqlRewriter {
 
-  private static final Set<String> EMPTY_SUB_TABLE_SET = Collections.emptySet();
   private Configuration configuration = Configuration.getInstance();
 
   private SqlRewriterImpl() {
@@ -42,55 +47,10 @@ public class SqlRewriterImpl implements SqlRewriter {
 
   @Override public Iterator<CharSequence> rewrite(final ParsedSqlContext parsedSqlContext,
                                                   ParameterSupplier parameterSupplier) {
-    Set<String> tableNames = parsedSqlContext.getSqlStatement().getTableNames();
-
-    List<Map<String/*逻辑表名*/, String/*实际表名*/>> tables = Lists.newLinkedList();
-
-    //依次计算两个集合的笛卡尔积
-    for (String tableName : tableNames) {
-      Router router = configuration.getRouter(tableName);
-      Set<String> subnames = getSubTableNames(parsedSqlContext, parameterSupplier, router);
-      if (CollectionUtils.isEmpty(subnames)) {
-        continue;
-      }
-      if (tables.isEmpty()) {
-        for (String subname : subnames) {
-          Map<String, String> element = Maps.newHashMap();
-          element
-              .put(tableName, new StringBuilder(tableName).append('_').append(subname).toString());
-          tables.add(element);
-        }
-      } else {
-        //笛卡尔集
-        Iterator<String> iterator = subnames.iterator();
-        //至少有一个元素
-        if (iterator.hasNext()) {
-
-          String first = iterator.next();
-
-          //为了减少map中元素的copy次数,先处理后面的元素,最后再处理第一个元素最后处理
-          //更新所有已经确定的集合
-          int len = tables.size();
-          while (iterator.hasNext()) {
-            String next = iterator.next();
-            //创建新的map
-            for (int i = 0; i < len; i++) {
-              Map<String, String> element = tables.get(i);
-              HashMap<String, String> newElement = Maps.newHashMap(element);
-              newElement.put(tableName, next);
-            }
-          }
-
-          //处理第一个元素
-          for (int i = 0; i < len; i++) {
-            Map<String, String> element = tables.get(i);
-            element
-                .put(tableName, new StringBuilder(tableName).append('_').append(first).toString());
-          }
-        }
-      }
-    }
-    if (CollectionUtils.isEmpty(tables)) {
+    RewriteTemplate template = getRewriteTemplate(parsedSqlContext);
+    SubTableCombinations combinations =
+        combine(parsedSqlContext, parameterSupplier, template.getLogicTables());
+    if (combinations.isEmpty()) {
       //没有子表
       return new ImmutableIterator<CharSequence>() {
         private boolean hasNext = true;
@@ -105,221 +65,211 @@ public class SqlRewriterImpl implements SqlRewriter {
         }
       };
     }
+    //从后向前依次改写limit, having与avg,保证前面的子句在原始SQL中的位置不变
+    final RewriteTemplate sqlTemplate = combinations.size() > 1 ? splitAvg(parsedSqlContext,
+        removeHaving(parsedSqlContext,
+            pushDownLimit(parsedSqlContext, parameterSupplier, template))) : template;
     //转换SQL,使用Lazy的方式可在访问DB出错的情况下减少最终SQL的生成
-    return Iterators
-        .transform(tables.iterator(), new Function<Map<String, String>, CharSequence>() {
-          @Override public CharSequence apply(Map<String, String> tab) {
-            return replcaeMultiTableName(parsedSqlContext.getOriginSql(), tab);
-          }
-        });
-  }
-
-  private Set<String> getSubTableNames(ParsedSqlContext parsedSqlContext,
-                                       ParameterSupplier parameterSupplier, Router router) {
-    Set<String> names = router == null ?
-        EMPTY_SUB_TABLE_SET :
-        router.subTableNames(parsedSqlContext, parameterSupplier);
-    if (CollectionUtils.isEmpty(names)) {
-      return EMPTY_SUB_TABLE_SET;
-    }
-    return names;
+    return Iterators.transform(combinations.iterator(), new Function<String[], CharSequence>() {
+      @Override public CharSequence apply(String[] physicalTables) {
+        return sqlTemplate.render(physicalTables);
+      }
+    });
   }
 
   /**
-   * 替换SQL语句中虚拟表名为实际表名。 会 替换_tableName$ 替换_tableName_ 替换tableName.
-   * 替换tableName( 增加替换 _tableName, ,tableName, ,tableName_
-   *
-   * @param originalSql SQL语句
-   * @param virtualName 虚拟表名
-   * @param actualName  实际表名
-   * @return 返回替换后的SQL语句。
+   * 计算每个逻辑表需要访问的子表,同一个绑定组中的表按相同的后缀配对,其它表之间做笛卡尔积
    */
-  private String replaceTableName(String originalSql, String virtualName, String actualName) {
-    boolean padding = false;
-    if (virtualName.equalsIgnoreCase(actualName)) {
-      return originalSql;
-    }
-    List<Object> sqlPieces;
-    List<Object> tmpPieces = parseAPatternBegin(virtualName, originalSql,
-        new StringBuilder("\\s").append(virtualName).append("$").toString(), padding);
-
-    tmpPieces = parseAPattern(virtualName, tmpPieces,
-        new StringBuilder("\\s").append(virtualName).append("\\s").toString(), padding);
-    tmpPieces = parseAPattern(virtualName, tmpPieces,
-        new StringBuilder(".").append(virtualName).append("\\.").toString(), padding);
-    tmpPieces = parseAPattern(virtualName, tmpPieces,
-        new StringBuilder("\\s").append(virtualName).append("\\(").toString(), padding);
-    tmpPieces = parseAPatternByCalcTable(virtualName, tmpPieces,
-        new StringBuilder("//*+.*").append("_").append(virtualName).append("_").append(".*/*/")
-            .toString(), padding);
-    tmpPieces = parseAPattern(virtualName, tmpPieces,
-        new StringBuilder("\\s").append(virtualName).append("\\,").toString(), padding);
-    tmpPieces = parseAPattern(virtualName, tmpPieces,
-        new StringBuilder("\\,").append(virtualName).append("\\s").toString(), padding);
-    // 替换,tableName,
-    tmpPieces = parseAPattern(virtualName, tmpPieces,
-        new StringBuilder("\\,").append(virtualName).append("\\,").toString(), padding);
-    sqlPieces = tmpPieces;
-    // 生成最终SQL
-    StringBuilder buffer = new StringBuilder();
-    boolean first = true;
-    for (Object piece : sqlPieces) {
-      if (!(piece instanceof String)) {
-        throw new IllegalArgumentException("should not be here ! table is " + piece);
+  private SubTableCombinations combine(ParsedSqlContext parsedSqlContext,
+                                       ParameterSupplier parameterSupplier,
+                                       String[] logicTables) {
+    SubTableCombinations combinations = new SubTableCombinations(logicTables.length);
+    Map<Integer, List<Integer>> bindings = null;
+    SubTables[] subTables = new SubTables[logicTables.length];
+    for (int i = 0; i < logicTables.length; i++) {
+      Router router = configuration.getRouter(logicTables[i]);
+      if (router == null) {
+        continue;
       }
-      if (!first) {
-        buffer.append(actualName);
-      } else {
-        first = false;
+      SubTables routed = route(logicTables[i], router, parsedSqlContext, parameterSupplier);
+      if (routed.isEmpty()) {
+        continue;
       }
-      buffer.append(piece);
-    }
-
-    return buffer.toString();
-  }
-
-  private String replcaeMultiTableName(String originalSql, Map<String, String> tableToBeReplaced) {
-    boolean padding = true;
-
-    if (tableToBeReplaced.size() == 1) {
-      for (Map.Entry<String, String> entry : tableToBeReplaced.entrySet()) {
-        return replaceTableName(originalSql, entry.getKey(), entry.getValue());
+      subTables[i] = routed;
+      Integer group = configuration.getBindingGroup(logicTables[i]);
+      if (group == null) {
+        combinations.add(i, routed);
+        continue;
+      }
+      if (bindings == null) {
+        bindings = Maps.newLinkedHashMap();
       }
+      List<Integer> members = bindings.get(group);
+      if (members == null) {
+        members = Lists.newArrayListWithCapacity(2);
+        bindings.put(group, members);
+      }
+      members.add(i);
+    }
+    if (bindings == null) {
+      return combinations;
     }
-    List<Object> sqlPieces = null;
-    for (Map.Entry<String, String> entry : tableToBeReplaced.entrySet()) {
-      String virtualName = entry.getKey();
-      // tab$
-      if (sqlPieces == null) {
-        // 第一次进入，第二次以后进入就会有sqlPieces了
-        sqlPieces = parseAPatternBegin(virtualName, originalSql,
-            new StringBuilder("\\s").append(virtualName).append("$").toString(), padding);
-      } else {
-        // tab$
-        sqlPieces = parseAPattern(virtualName, sqlPieces,
-            new StringBuilder("\\s").append(virtualName).append("$").toString(), padding);
+    for (List<Integer> members : bindings.values()) {
+      int[] indexes = new int[members.size()];
+      List<SubTables> memberTables = new ArrayList<>(members.size());
+      for (int i = 0; i < indexes.length; i++) {
+        indexes[i] = members.get(i);
+        memberTables.add(subTables[indexes[i]]);
       }
-
-      // tab
-      sqlPieces = parseAPattern(virtualName, sqlPieces,
-          new StringBuilder("\\s").append(virtualName).append("\\s").toString(), padding);
-      // table.
-      sqlPieces = parseAPattern(virtualName, sqlPieces,
-          new StringBuilder(".").append(virtualName).append("\\.").toString(), padding);
-      // tab(
-      sqlPieces = parseAPattern(virtualName, sqlPieces,
-          new StringBuilder("\\s").append(virtualName).append("\\(").toString(), padding);
-      // /*+ hint */
-      sqlPieces = parseAPatternByCalcTable(virtualName, sqlPieces,
-          new StringBuilder("//*+.*").append("_").append(virtualName).append("_").append(".*/*/")
-              .toString(), padding);
-      sqlPieces = parseAPattern(virtualName, sqlPieces,
-          new StringBuilder("\\s").append(virtualName).append("\\,").toString(), padding);
-      sqlPieces = parseAPattern(virtualName, sqlPieces,
-          new StringBuilder("\\,").append(virtualName).append("\\s").toString(), padding);
-      // 替换,tableName,
-      sqlPieces = parseAPattern(virtualName, sqlPieces,
-          new StringBuilder("\\,").append(virtualName).append("\\,").toString(), padding);
+      combinations.addColocated(indexes, memberTables);
     }
+    return combinations;
+  }
 
-    // 生成最终SQL
-    StringBuilder buffer = new StringBuilder();
-    for (Object piece : sqlPieces) {
-      if (piece instanceof String) {
-        buffer.append(piece);
-      } else if (piece instanceof LogicTable) {
-        buffer.append(tableToBeReplaced.get(((LogicTable) piece).logictable));
-      }
+  /**
+   * {@link AbstractRouter}按子表的序号路由,自定义的Router只给出子表的后缀
+   */
+  private static SubTables route(String logicTable, Router router,
+                                 ParsedSqlContext parsedSqlContext,
+                                 ParameterSupplier parameterSupplier) {
+    if (router instanceof AbstractRouter) {
+      AbstractRouter abstractRouter = (AbstractRouter) router;
+      return SubTables.of(abstractRouter,
+          abstractRouter.subTableOrdinals(parsedSqlContext, parameterSupplier));
     }
-    return buffer.toString();
+    Set<String> suffixes = router.subTableNames(parsedSqlContext, parameterSupplier);
+    return SubTables.of(logicTable,
+        suffixes == null ? Collections.<String>emptySet() : suffixes);
   }
 
-  private List<Object> parseAPatternBegin(String virtualName, String originalSql, String pattern,
-                                          boolean padding) {
-    Pattern pattern1 = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
-    List<Object> pieces1 = new LinkedList<Object>();
-    Matcher matcher1 = pattern1.matcher(originalSql);
-    int start1 = 0;
-    while (matcher1.find(start1)) {
-      pieces1.add(originalSql.substring(start1, matcher1.start() + 1));
-      start1 = matcher1.end();
-      if (padding) {
-        // TODO: 大小写要验证一下
-        pieces1.add(new LogicTable(virtualName));
+  /**
+   * 查询多个子表时,每个子表都需要返回前offset + row_count条记录,由合并查询结果时再处理offset,
+   * 所以将limit offset, row_count改写为limit 0, offset + row_count.分组查询的每个分组都可能分布在
+   * 多个子表中,子表需要返回所有分组,所以去掉limit子句.
+   * <p/>
+   * limit中的jdbc参数会被替换成字面值,调用方需要根据{@link ParsedSqlContext#getInlinedParameterCount()}
+   * 去掉对应的参数.
+   */
+  private RewriteTemplate pushDownLimit(ParsedSqlContext parsedSqlContext,
+                                        ParameterSupplier parameterSupplier,
+                                        RewriteTemplate template) {
+    SqlStatement sqlStatement = parsedSqlContext.getSqlStatement();
+    if (!(sqlStatement instanceof SelectStatement)) {
+      return template;
+    }
+    LimitClause limitClause = ((SelectStatement) sqlStatement).getLimitClause();
+    if (limitClause == null) {
+      return template;
+    }
+    boolean grouped = isNotEmpty(((SelectStatement) sqlStatement).getGroupByColumnReferences());
+    long offset = Math.max(limitClause.getOffset(parameterSupplier), 0);
+    if (!grouped && offset == 0 && limitClause.getJdbcParameterCount() == 0) {
+      return template;
+    }
+    if (!limitClause.isLocated()) {
+      throw new UnsupportedStatementException(
+          "cannot locate the limit clause of sql:" + parsedSqlContext.getOriginSql());
+    }
+    parsedSqlContext.setInlinedParameterCount(limitClause.getJdbcParameterCount());
+    if (grouped) {
+      String sql = parsedSqlContext.getOriginSql();
+      int start = limitClause.getStart();
+      while (start > 0 && Character.isWhitespace(sql.charAt(start - 1))) {
+        start--;
       }
+      return template.replace(start, limitClause.getEnd(), "");
     }
+    long rowCount = offset + limitClause.getRowCount(parameterSupplier);
+    return template.replace(limitClause.getStart(), limitClause.getEnd(),
+        LimitClause.toSql(0, rowCount));
+  }
 
-    pieces1.add(originalSql.substring(start1));
-    return pieces1;
+  /**
+   * 查询多个子表时,每个子表中的分组只有部分聚合结果,不能按having过滤,比如having count(*) > 2
+   * 的分组在每个子表中可能都只有一条记录.去掉子表SQL中的having,由合并查询结果时过滤合并后的分组,
+   * having中的jdbc参数在limit的参数之前,与limit的参数一起从子表SQL的参数中去掉.
+   * <p/>
+   * 合并后的分组中只有查询列表中的值,having中的聚合函数与列必须出现在查询列表中,否则合并时抛出
+   * {@link cn.yxffcode.mtd.core.merger.ResultMergeException};只查询一个子表时having不会被去掉,没有此限制.
+   */
+  private RewriteTemplate removeHaving(ParsedSqlContext parsedSqlContext,
+                                       RewriteTemplate template) {
+    SqlStatement sqlStatement = parsedSqlContext.getSqlStatement();
+    if (!(sqlStatement instanceof SelectStatement)
+        || ((SelectStatement) sqlStatement).getHaving() == null) {
+      return template;
+    }
+    SelectStatement selectStatement = (SelectStatement) sqlStatement;
+    if (!isNotEmpty(selectStatement.getGroupByColumnReferences())) {
+      throw new UnsupportedStatementException(
+          "having without group by cannot be merged across sub tables, sql:"
+              + parsedSqlContext.getOriginSql());
+    }
+    HavingClause havingClause = selectStatement.getHavingClause();
+    if (havingClause == null) {
+      throw new UnsupportedStatementException(
+          "cannot locate the having clause of sql:" + parsedSqlContext.getOriginSql());
+    }
+    parsedSqlContext.setHavingRemoved(true);
+    parsedSqlContext.setInlinedParameterCount(
+        parsedSqlContext.getInlinedParameterCount() + havingClause.getJdbcParameterCount());
+    String sql = parsedSqlContext.getOriginSql();
+    int start = havingClause.getStart();
+    while (start > 0 && Character.isWhitespace(sql.charAt(start - 1))) {
+      start--;
+    }
+    return template.replace(start, havingClause.getEnd(), "");
   }
 
-  private List<Object> parseAPatternByCalcTable(String virtualName, List<Object> pieces,
-                                                String pattern, boolean padding) {
-    List<Object> pieces2 = new LinkedList<Object>();
-    for (Object piece : pieces) {
-      if (piece instanceof String) {
-        String strpiece = (String) piece;
-        Pattern pattern2 = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
-        Matcher matcher2 = pattern2.matcher(strpiece);
-        int start2 = 0;
-        while (matcher2.find(start2)) {
-          int tableNameStart = matcher2.group().toUpperCase().indexOf(virtualName.toUpperCase())
-              //+ start2;
-              + matcher2.start();
-          int tableNameEnd = tableNameStart + virtualName.length();
-          pieces2.add(strpiece.substring(start2, tableNameStart));
-          start2 = tableNameEnd;
-          if (padding) {
-            pieces2.add(new LogicTable(virtualName));
-          }
-        }
-        pieces2.add(strpiece.substring(start2));
-      } else {
-        pieces2.add(piece);
+  /**
+   * 查询多个子表时,将avg(x)改写为sum(x), count(x),由合并查询结果时计算平均值.
+   * 改写后调用方需要以Map的形式获取子表的查询结果,见{@link ParsedSqlContext#isAvgRewritten()}.
+   */
+  private RewriteTemplate splitAvg(ParsedSqlContext parsedSqlContext, RewriteTemplate template) {
+    SqlStatement sqlStatement = parsedSqlContext.getSqlStatement();
+    if (!(sqlStatement instanceof SelectStatement)) {
+      return template;
+    }
+    List<AvgClause> avgClauses = ((SelectStatement) sqlStatement).getAvgClauses();
+    if (avgClauses == null) {
+      throw new UnsupportedStatementException(
+          "cannot locate the avg function of sql:" + parsedSqlContext.getOriginSql());
+    }
+    if (avgClauses.isEmpty()) {
+      return template;
+    }
+    for (AvgClause avgClause : avgClauses) {
+      if (avgClause.isDistinct()) {
+        throw new UnsupportedStatementException(
+            "avg(distinct) cannot be merged across sub tables, sql:"
+                + parsedSqlContext.getOriginSql());
       }
     }
-    return pieces2;
+    parsedSqlContext.setAvgRewritten(true);
+    //从后向前改写,保证前面的avg在原始SQL中的位置不变
+    RewriteTemplate rewritten = template;
+    for (int i = avgClauses.size() - 1; i >= 0; i--) {
+      AvgClause avgClause = avgClauses.get(i);
+      rewritten = rewritten
+          .replace(avgClause.getStart(), avgClause.getEnd(), avgClause.toSumAndCount());
+    }
+    return rewritten;
   }
 
-  private List<Object> parseAPattern(String virtualName, List<Object> pieces, String pattern,
-                                     boolean padding) {
-    List<Object> result = new LinkedList<Object>();
-    for (Object piece : pieces) {
-      if (piece instanceof String) {
-        String strpiece = (String) piece;
-        Pattern pattern2 = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
-        Matcher matcher2 = pattern2.matcher(strpiece);
-        int fromIndex = 0;
-        while (matcher2.find(fromIndex)) {
-          result
-              .add(strpiece.substring(fromIndex - 1 < 0 ? 0 : fromIndex - 1, matcher2.start() + 1));
-          fromIndex = matcher2.end();
-          if (padding) {
-            result.add(new LogicTable(virtualName));
-          }
-        }
-        result.add(strpiece.substring(fromIndex - 1 < 0 ? 0 : fromIndex - 1));
-      } else {
-        result.add(piece);
-      }
+  /**
+   * 模板随解析结果一起缓存,解析时没有编译模板的语句在第一次改写时编译
+   */
+  private RewriteTemplate getRewriteTemplate(ParsedSqlContext parsedSqlContext) {
+    SqlStatement sqlStatement = parsedSqlContext.getSqlStatement();
+    RewriteTemplate template = sqlStatement.getRewriteTemplate();
+    if (template == null) {
+      template = RewriteTemplate.compile(parsedSqlContext.getOriginSql(), sqlStatement);
+      sqlStatement.setRewriteTemplate(template);
     }
-    return result;
+    return template;
   }
 
   private static final class SqlRewriterImplHolder {
     private static final SqlRewriterImpl INSTANCE = new SqlRewriterImpl();
   }
-
-
-  private static final class LogicTable {
-    public String logictable;
-
-    public LogicTable(String logicTable) {
-      this.logictable = logicTable;
-    }
-
-    public String toString() {
-      return "logictable:" + logictable;
-    }
-  }
 }
@@ -0,0 +1,221 @@
+package cn.yxffcode.mtd.core.rewriter;
+
+import cn.yxffcode.mtd.core.router.AbstractRouter;
+import cn.yxffcode.mtd.core.router.Router;
+import cn.yxffcode.mtd.core.router.ShardSet;
+import cn.yxffcode.mtd.lang.ImmutableIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * 多表查询时各逻辑表子表的组合,按下标懒惰地计算笛卡尔积,每次返回一组实际表名.
+ * <p/>
+ * 同一个绑定组(co-located)中的表按相同的分表后缀配对,而不是做笛卡尔积,
+ * 适用于按同一个字段分表的表之间的join.
+ *
+ * @author gaohang on 16/3/18.
+ */
+final class SubTableCombinations {
+
+  private final int tableCount;
+  private final List<Dimension> dimensions = Lists.newArrayList();
+
+  /**
+   * @param tableCount 逻辑表的数量,返回的数组长度与之相同
+   */
+  SubTableCombinations(int tableCount) {
+    this.tableCount = tableCount;
+  }
+
+  /**
+   * 增加一个单独做笛卡尔积的逻辑表
+   *
+   * @param index     逻辑表的下标
+   * @param subTables 逻辑表需要访问的子表
+   */
+  void add(int index, SubTables subTables) {
+    dimensions.add(new Dimension(new int[] {index}, new String[][] {subTables.names}));
+  }
+
+  /**
+   * 增加一组绑定的逻辑表,只组合后缀相同的子表.如果没有相同的后缀,则退化成笛卡尔积.
+   *
+   * @param members 与indexes对应的每个逻辑表需要访问的子表
+   */
+  void addColocated(int[] indexes, List<SubTables> members) {
+    //positions[i]中为第i个逻辑表与第一个逻辑表后缀相同的子表的位置,按第一个逻辑表的顺序
+    int[][] positions = new int[indexes.length][members.get(0).suffixes.length];
+    int common = 0;
+    List<Map<String, Integer>> lookups = new ArrayList<>(indexes.length);
+    for (SubTables member : members) {
+      lookups.add(member.positions());
+    }
+    outer:
+    for (int j = 0; j < positions[0].length; j++) {
+      String suffix = members.get(0).suffixes[j];
+      for (int i = 1; i < indexes.length; i++) {
+        Integer position = lookups.get(i).get(suffix);
+        if (position == null) {
+          continue outer;
+        }
+        positions[i][common] = position;
+      }
+      positions[0][common++] = j;
+    }
+    if (common == 0) {
+      for (int i = 0; i < indexes.length; i++) {
+        add(indexes[i], members.get(i));
+      }
+      return;
+    }
+    String[][] names = new String[indexes.length][common];
+    for (int i = 0; i < indexes.length; i++) {
+      for (int j = 0; j < common; j++) {
+        names[i][j] = members.get(i).names[positions[i][j]];
+      }
+    }
+    dimensions.add(new Dimension(indexes, names));
+  }
+
+  boolean isEmpty() {
+    return dimensions.isEmpty();
+  }
+
+  /**
+   * @return 组合的数量
+   */
+  long size() {
+    long size = 1;
+    for (Dimension dimension : dimensions) {
+      size *= dimension.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return 每个元素的下标与逻辑表的下标对应,没有分表的逻辑表为null
+   */
+  Iterator<String[]> iterator() {
+    final List<Dimension> dims = new ArrayList<>(dimensions);
+    return new ImmutableIterator<String[]>() {
+      //每个维度当前的位置,最后一个维度变化最快
+      private final int[] positions = new int[dims.size()];
+      private boolean hasNext = size() > 0;
+
+      @Override public boolean hasNext() {
+        return hasNext;
+      }
+
+      @Override public String[] next() {
+        if (!hasNext) {
+          throw new NoSuchElementException();
+        }
+        String[] physicalTables = new String[tableCount];
+        for (int i = 0; i < positions.length; i++) {
+          dims.get(i).fill(physicalTables, positions[i]);
+        }
+        hasNext = increase();
+        return physicalTables;
+      }
+
+      private boolean increase() {
+        for (int i = positions.length - 1; i >= 0; i--) {
+          if (++positions[i] < dims.get(i).size()) {
+            return true;
+          }
+          positions[i] = 0;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * 一个逻辑表需要访问的子表,第i个子表的后缀为suffixes[i],实际表名为names[i].
+   * <p/>
+   * 实际表名只在这里生成,单独组合与绑定组合的逻辑表使用相同的表名:{@link AbstractRouter}由
+   * {@link AbstractRouter#physicalTableName(int)}给出,其它Router为配置的表名_后缀,与之相同.
+   */
+  static final class SubTables {
+    private final String[] suffixes;
+    private final String[] names;
+
+    private SubTables(String[] suffixes, String[] names) {
+      this.suffixes = suffixes;
+      this.names = names;
+    }
+
+    /**
+     * @param shards 子表的序号,子表按序号的顺序组合
+     */
+    static SubTables of(AbstractRouter router, ShardSet shards) {
+      String[] suffixes = new String[shards.size()];
+      String[] names = new String[suffixes.length];
+      int i = 0;
+      for (int ordinal = shards.first(); ordinal >= 0; ordinal = shards.next(ordinal + 1)) {
+        suffixes[i] = router.subTableName(ordinal);
+        names[i++] = router.physicalTableName(ordinal);
+      }
+      return new SubTables(suffixes, names);
+    }
+
+    /**
+     * @param tableName 配置Router时的表名
+     * @param suffixes  {@link Router#subTableNames}给出的子表后缀
+     */
+    static SubTables of(String tableName, Collection<String> suffixes) {
+      String[] suffixArray = suffixes.toArray(new String[suffixes.size()]);
+      String[] names = new String[suffixArray.length];
+      for (int i = 0; i < names.length; i++) {
+        names[i] = new StringBuilder(tableName.length() + suffixArray[i].length() + 1)
+            .append(tableName).append('_').append(suffixArray[i]).toString();
+      }
+      return new SubTables(suffixArray, names);
+    }
+
+    boolean isEmpty() {
+      return suffixes.length == 0;
+    }
+
+    private Map<String, Integer> positions() {
+      Map<String, Integer> positions = Maps.newHashMapWithExpectedSize(suffixes.length);
+      for (int i = 0; i < suffixes.length; i++) {
+        positions.put(suffixes[i], i);
+      }
+      return positions;
+    }
+  }
+
+  /**
+   * 笛卡尔积中的一个维度,包含一个逻辑表或者一组绑定的逻辑表
+   */
+  private static final class Dimension {
+    private final int[] indexes;
+    /**
+     * names[i][j]为第i个逻辑表的第j个子表
+     */
+    private final String[][] names;
+
+    private Dimension(int[] indexes, String[][] names) {
+      this.indexes = indexes;
+      this.names = names;
+    }
+
+    private int size() {
+      return names[0].length;
+    }
+
+    private void fill(String[] physicalTables, int position) {
+      for (int i = 0; i < indexes.length; i++) {
+        physicalTables[indexes[i]] = names[i][position];
+      }
+    }
+  }
+}
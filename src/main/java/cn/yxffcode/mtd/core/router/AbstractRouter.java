@@ -8,20 +8,31 @@ import cn.yxffcode.mtd.core.parser.ast.SelectStatement;
 import cn.yxffcode.mtd.core.parser.ast.SqlStatement;
 import cn.yxffcode.mtd.core.parser.ast.StatementUtils;
 import cn.yxffcode.mtd.core.parser.ast.UpdateStatement;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Sets;
 import net.sf.jsqlparser.expression.Alias;
 import net.sf.jsqlparser.expression.BinaryExpression;
 import net.sf.jsqlparser.expression.DoubleValue;
 import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.ExpressionVisitorAdapter;
 import net.sf.jsqlparser.expression.Function;
 import net.sf.jsqlparser.expression.JdbcParameter;
 import net.sf.jsqlparser.expression.LongValue;
+import net.sf.jsqlparser.expression.Parenthesis;
 import net.sf.jsqlparser.expression.StringValue;
+import net.sf.jsqlparser.expression.operators.conditional.AndExpression;
+import net.sf.jsqlparser.expression.operators.conditional.OrExpression;
+import net.sf.jsqlparser.expression.operators.relational.Between;
 import net.sf.jsqlparser.expression.operators.relational.EqualsTo;
 import net.sf.jsqlparser.expression.operators.relational.ExpressionList;
+import net.sf.jsqlparser.expression.operators.relational.GreaterThan;
+import net.sf.jsqlparser.expression.operators.relational.GreaterThanEquals;
 import net.sf.jsqlparser.expression.operators.relational.InExpression;
 import net.sf.jsqlparser.expression.operators.relational.ItemsList;
+import net.sf.jsqlparser.expression.operators.relational.MinorThan;
+import net.sf.jsqlparser.expression.operators.relational.MinorThanEquals;
 import net.sf.jsqlparser.expression.operators.relational.MultiExpressionList;
 import net.sf.jsqlparser.schema.Column;
 import net.sf.jsqlparser.schema.Table;
@@ -30,14 +41,18 @@ import net.sf.jsqlparser.statement.select.SubSelect;
 import org.apache.commons.lang3.StringUtils;
 
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static cn.yxffcode.mtd.utils.CollectionUtils.isEmpty;
 import static cn.yxffcode.mtd.utils.CollectionUtils.isNotEmpty;
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * Abstract implementation of Router, it's a convenient super class for specific routers.
@@ -48,18 +63,54 @@ public abstract class AbstractRouter implements Router {
 
   private final String column;
   private String tableName;
+  /**
+   * 以解析后的SQL为key缓存路由计划,key为弱引用,
+   * SqlStatement从SQL解析的缓存中移除后路由计划也会被回收
+   */
+  private final ConcurrentMap<SqlStatement, RoutePlan> routePlans =
+      new MapMaker().weakKeys().makeMap();
+  /**
+   * 子表名的序号,构造时指定的子表按其顺序编号,其它子表名按第一次出现的顺序分配,
+   * 路由时用序号的BitSet计算条件的交集与并集
+   */
+  private final ConcurrentMap<String, Integer> ordinals = new ConcurrentHashMap<>();
+  private volatile String[] ordinalNames = new String[0];
+  /**
+   * 序号对应的实际表名,按需生成
+   */
+  private volatile String[] physicalNames = new String[0];
+  /**
+   * 构造时指定的所有子表
+   */
+  private final Set<String> fixedSubNames;
 
   public AbstractRouter(String column) {
-    this.column = column;
+    this(column, Collections.<String>emptyList());
   }
 
   /**
-   * FIXME:路由逻辑比较复杂,可用多态替换
+   * @param subNames 所有子表的后缀,第i个子表的序号为i,{@link #allSubNames()}默认返回这些子表
    */
-  public Set<String> subTableNames(ParsedSqlContext parsedSqlContext,
-                                   final ParameterSupplier parameterSupplier) {
+  public AbstractRouter(String column, List<String> subNames) {
+    this.column = column;
+    this.fixedSubNames = ImmutableSet.copyOf(subNames);
+    checkArgument(fixedSubNames.size() == subNames.size(), "duplicate sub table names");
+    for (String subName : subNames) {
+      ordinal(subName);
+    }
+  }
 
-    final Set<String> suffixes = Sets.newHashSet();
+  /**
+   * where条件编译为{@link RouteCondition},按and取交集,or取并集计算子表.
+   * <p/>
+   * 此方法以及按序号访问子表的方法不在{@link Router}接口中,自定义的Router只需要实现
+   * {@link Router#subTableNames(ParsedSqlContext, ParameterSupplier)}
+   *
+   * @return 需要访问的子表的序号
+   */
+  public ShardSet subTableOrdinals(ParsedSqlContext parsedSqlContext,
+                                   ParameterSupplier parameterSupplier) {
+    BitSet shards = new BitSet();
 
     //处理头注释表示的强制指定子表
     // FIXME: 16/1/21 在SQL解析的时候处理注释中的别名,目前注释中不支持别名
@@ -69,183 +120,366 @@ public abstract class AbstractRouter implements Router {
         String columnValueFlag = en.getValue();
         Object parameter = parameterSupplier.getParameter(columnValueFlag);
         if (parameter == null) {
-          doWithColumnValue(columnValueFlag, suffixes);
+          doWithColumnValue(columnValueFlag, shards);
         } else {
-          doWithColumnValue(parameter, suffixes);
+          doWithColumnValue(parameter, shards);
         }
       }
     }
 
-    SqlStatement sqlStatement = parsedSqlContext.getSqlStatement();
-    // FIXME: 16/1/17 目前只支持 = , in 所有条件都需要列名与Router的相等,每个分支中都有列名过虑,是否可以先提前做列名的过虑
-    if (sqlStatement instanceof SelectStatement) {
-      //需要考虑子查询
-      SelectStatement select = (SelectStatement) sqlStatement;
+    return ShardSet.of(getRoutePlan(parsedSqlContext.getSqlStatement())
+        .route(this, parameterSupplier, shards));
+  }
+
+  @Override public Set<String> subTableNames(ParsedSqlContext parsedSqlContext,
+                                             ParameterSupplier parameterSupplier) {
+    ShardSet shards = subTableOrdinals(parsedSqlContext, parameterSupplier);
+    Set<String> suffixes = Sets.newHashSetWithExpectedSize(shards.size());
+    for (int i = shards.first(); i >= 0; i = shards.next(i + 1)) {
+      suffixes.add(subTableName(i));
+    }
+    return suffixes;
+  }
+
+  /**
+   * @return 序号对应的子表后缀
+   */
+  public String subTableName(int ordinal) {
+    return ordinalNames[ordinal];
+  }
+
+  /**
+   * @return 序号对应的实际表名,即表名_后缀,同一个序号总是返回同一个String对象
+   */
+  public String physicalTableName(int ordinal) {
+    String[] names = physicalNames;
+    if (ordinal < names.length && names[ordinal] != null) {
+      return names[ordinal];
+    }
+    synchronized (ordinals) {
+      names = Arrays.copyOf(physicalNames, Math.max(physicalNames.length, ordinal + 1));
+      if (names[ordinal] == null) {
+        names[ordinal] = tableName + '_' + subTableName(ordinal);
+      }
+      physicalNames = names;
+      return names[ordinal];
+    }
+  }
+
+  private RoutePlan getRoutePlan(SqlStatement sqlStatement) {
+    RoutePlan routePlan = routePlans.get(sqlStatement);
+    if (routePlan == null) {
+      //并发编译时结果相同,不需要加锁
+      routePlan = new PlanCompiler().compile(sqlStatement);
+      routePlans.put(sqlStatement, routePlan);
+    }
+    return routePlan;
+  }
 
-      Expression where = select.getWhere();
+  /**
+   * 编译路由计划,只在每条SQL第一次路由时执行.
+   * <p/>
+   * 因为jsqlparser的JdbcParameter对象没有给出参数的位置,需要按参数在SQL中出现的顺序遍历语法树来确定
+   * 参数的位置,与分表字段无关的条件中的参数也需要计数.
+   */
+  private final class PlanCompiler {
+    private int jdbcParameterIndex = -1;
+
+    RoutePlan compile(SqlStatement sqlStatement) {
+      if (sqlStatement instanceof SelectStatement) {
+        //需要考虑子查询
+        SelectStatement select = (SelectStatement) sqlStatement;
+        return compileWhere(select.getWhere(), select.getTables());
+      } else if (sqlStatement instanceof UpdateStatement) {
+        UpdateStatement update = (UpdateStatement) sqlStatement;
+        return compileWhere(update.getWhere(), update.getTables());
+      } else if (sqlStatement instanceof InsertStatement) {
+        InsertStatement insertStatement = (InsertStatement) sqlStatement;
+        //检查插入的主表名
+        ItemsList itemsList = insertStatement.getItemsList();
+        Table table = insertStatement.getTable();
+        if (!StringUtils.equalsIgnoreCase(table.getName(), tableName)) {
+          return new RoutePlan(RoutePlan.Mode.EXACT);
+        }
+        //取column
+        List<Column> columnsList = insertStatement.getColumns();
+        if (isEmpty(columnsList)) {
+          return new RoutePlan(RoutePlan.Mode.EXACT);
+        }
+        if (!(itemsList instanceof ExpressionList)) {
+          //insert into table_name select xxx这种语句必须强制指定表
+          return new RoutePlan(RoutePlan.Mode.NONE);
+        }
+
+        RoutePlan routePlan = new RoutePlan(RoutePlan.Mode.DEFAULT);
+        ExpressionList expressionList = (ExpressionList) itemsList;
+        List<Expression> expressions = expressionList.getExpressions();
+        if (isEmpty(expressions)) {
+          return new RoutePlan(RoutePlan.Mode.EXACT);
+        }
+        List<Table> tables = Arrays.asList(table);
+        List<RouteCondition> conditions = Lists.newArrayList();
+        for (int i = 0, j = columnsList.size(); i < j; i++) {
+          //同一张表时,通过Column的值做路由,插入语句中第i个列对应第i个值
+          Expression value = expressions.get(i);
+          if (isRouteColumn(tables, columnsList.get(i))) {
+            conditions.add(values(Collections.singletonList(value), routePlan));
+          } else {
+            countParameters(value);
+          }
+        }
+        if (!conditions.isEmpty()) {
+          routePlan.setCondition(RouteCondition.or(conditions));
+        }
+        return routePlan;
+      } else if (sqlStatement instanceof DeleteStatement) {
+        DeleteStatement delete = (DeleteStatement) sqlStatement;
+        return compileWhere(delete.getWhere(), Arrays.asList(delete.getTable()));
+      }
+      return new RoutePlan(RoutePlan.Mode.DEFAULT);
+    }
+
+    private RoutePlan compileWhere(Expression where, List<Table> tables) {
       if (where == null) {
         //没有条件
-        return allSubNames();
+        return new RoutePlan(RoutePlan.Mode.ALL);
       }
-      //对SQL子句做广度优先搜索
-      dfs(parameterSupplier, suffixes, where, select.getTables());
-    } else if (sqlStatement instanceof UpdateStatement) {
-      UpdateStatement update = (UpdateStatement) sqlStatement;
-      Expression where = update.getWhere();
-      if (where == null) {
-        return allSubNames();
+      RoutePlan routePlan = new RoutePlan(RoutePlan.Mode.DEFAULT);
+      RouteCondition condition = compile(where, tables, routePlan);
+      routePlan.setCondition(condition == RouteCondition.ANY ? null : condition);
+      return routePlan;
+    }
+
+    private RouteCondition compile(Expression exp, List<Table> tables, RoutePlan routePlan) {
+      if (exp instanceof AndExpression || exp instanceof OrExpression) {
+        return compileConditional((BinaryExpression) exp, tables, routePlan);
+      } else if (exp instanceof Parenthesis) {
+        Parenthesis parenthesis = (Parenthesis) exp;
+        if (parenthesis.isNot()) {
+          countParameters(parenthesis.getExpression());
+          return RouteCondition.ANY;
+        }
+        return compile(parenthesis.getExpression(), tables, routePlan);
+      } else if (exp instanceof EqualsTo) {
+        return compileEquals((EqualsTo) exp, tables, routePlan);
+      } else if (exp instanceof GreaterThan || exp instanceof GreaterThanEquals
+          || exp instanceof MinorThan || exp instanceof MinorThanEquals) {
+        return compileCompare((BinaryExpression) exp, tables);
+      } else if (exp instanceof Between) {
+        return compileBetween((Between) exp, tables);
+      } else if (exp instanceof InExpression) {
+        return compileIn((InExpression) exp, tables, routePlan);
       }
-      //对SQL子句做广度优先搜索
-      dfs(parameterSupplier, suffixes, where, update.getTables());
-    } else if (sqlStatement instanceof InsertStatement) {
-      InsertStatement insertStatement = (InsertStatement) sqlStatement;
-      //检查插入的主表名
-      ItemsList itemsList = insertStatement.getItemsList();
-      Table table = insertStatement.getTable();
-      if (!StringUtils.equalsIgnoreCase(table.getName(), this.tableName)) {
-        return suffixes;
+      countParameters(exp);
+      return RouteCondition.ANY;
+    }
+
+    /**
+     * and/or,同一种连接的条件平铺为一层,避免很长的or条件递归过深
+     */
+    private RouteCondition compileConditional(BinaryExpression exp, List<Table> tables,
+                                              RoutePlan routePlan) {
+      if (exp.isNot()) {
+        countParameters(exp);
+        return RouteCondition.ANY;
+      }
+      Class<?> type = exp.getClass();
+      List<RouteCondition> conditions = Lists.newArrayList();
+      LinkedList<Expression> expressions = Lists.newLinkedList();
+      expressions.add(exp);
+      while (!expressions.isEmpty()) {
+        Expression current = expressions.removeFirst();
+        if (current.getClass() == type && !((BinaryExpression) current).isNot()) {
+          //必须要先加入右子树,再加入左子树,保证左子树先于右子树遍历
+          expressions.addFirst(((BinaryExpression) current).getRightExpression());
+          expressions.addFirst(((BinaryExpression) current).getLeftExpression());
+        } else {
+          conditions.add(compile(current, tables, routePlan));
+        }
       }
-      //取column
-      List<Column> columnsList = insertStatement.getColumns();
-      if (isEmpty(columnsList)) {
-        return suffixes;
+      if (exp instanceof AndExpression) {
+        conditions.removeAll(Collections.singleton(RouteCondition.ANY));
+        if (conditions.isEmpty()) {
+          return RouteCondition.ANY;
+        }
+        return conditions.size() == 1 ? conditions.get(0) : RouteCondition.and(conditions);
       }
-      if (!(itemsList instanceof ExpressionList)) {
-        //insert into table_name select xxx这种语句必须强制指定表
-        return Collections.emptySet();
+      if (conditions.contains(RouteCondition.ANY)) {
+        return RouteCondition.ANY;
       }
+      return conditions.size() == 1 ? conditions.get(0) : RouteCondition.or(conditions);
+    }
 
-      ExpressionList expressionList = (ExpressionList) itemsList;
-      List<Expression> expressions = expressionList.getExpressions();
-      if (isEmpty(expressions)) {
-        return suffixes;
+    private RouteCondition compileEquals(EqualsTo eq, List<Table> tables, RoutePlan routePlan) {
+      Expression left = eq.getLeftExpression();
+      Expression right = eq.getRightExpression();
+      if (!isRouteColumn(tables, left) && isRouteColumn(tables, right)) {
+        //? = id
+        left = right;
+        right = eq.getLeftExpression();
       }
-      List<Table> tables = Arrays.asList(table);
-      for (int i = 0, j = columnsList.size(); i < j; i++) {
-        //同一张表时,通过Column的值做路由,插入语句中第i个列对应第i个值
-        doRoute(parameterSupplier, suffixes, tables, columnsList.get(i), expressions.get(i));
+      if (eq.isNot()) {
+        countParameters(eq);
+        return RouteCondition.ANY;
       }
-    } else if (sqlStatement instanceof DeleteStatement) {
-      DeleteStatement delete = (DeleteStatement) sqlStatement;
-      Expression where = delete.getWhere();
-      if (where == null) {
-        return allSubNames();
+      if (!isRouteColumn(tables, left)) {
+        countParameters(left);
+        if (right instanceof SubSelect) {
+          //子查询中的表也需要路由
+          compileSubSelect((SubSelect) right, routePlan);
+        } else {
+          countParameters(right);
+        }
+        return RouteCondition.ANY;
       }
-      dfs(parameterSupplier, suffixes, where, Arrays.asList(delete.getTable()));
+      return values(Collections.singletonList(right), routePlan);
     }
-    return suffixes.isEmpty() ? allSubNames() : suffixes;
-  }
 
-  /**
-   * 对Expression做深度优先搜索
-   */
-  private void dfs(final ParameterSupplier parameterSupplier, final Set<String> suffixes,
-                   Expression where, final List<Table> tables) {
-    LinkedList<Expression> expressions = Lists.newLinkedList();
-    expressions.add(where);
-    //因为jsqlparser的JdbcParameter对象没有给出参数的位置,
-    // 根据jsqlparser解析后的语法树,需要使用深度优先搜索来确定参数的位置
-    int jdbcParameterIndex = -1;
-    while (!expressions.isEmpty()) {
-      Expression exp = expressions.removeFirst();
-      if (exp instanceof EqualsTo) {
-        EqualsTo eq = (EqualsTo) exp;
-        Object rightExpression = eq.getRightExpression();
-        if (rightExpression instanceof SubSelect) {
-          SelectBody selectBody = ((SubSelect) rightExpression).getSelectBody();
-          if (selectBody != null) {
-            SelectStatement subselectStatement = StatementUtils.parseSelectBody(selectBody);
-            suffixes.addAll(subTableNames(new ParsedSqlContext(StringUtils.EMPTY,
-                subselectStatement), parameterSupplier));
-          }
-        } else if (rightExpression instanceof JdbcParameter) {
-          rightExpression = ++jdbcParameterIndex;
-        }
-        doRoute(parameterSupplier, suffixes, tables, eq.getLeftExpression(), rightExpression);
+    private RouteCondition compileCompare(BinaryExpression cmp, List<Table> tables) {
+      Expression left = cmp.getLeftExpression();
+      Expression right = cmp.getRightExpression();
+      boolean greater = cmp instanceof GreaterThan || cmp instanceof GreaterThanEquals;
+      boolean inclusive = cmp instanceof GreaterThanEquals || cmp instanceof MinorThanEquals;
+      if (!isRouteColumn(tables, left) && isRouteColumn(tables, right)) {
+        //? < id 等价于 id > ?
+        left = right;
+        right = cmp.getLeftExpression();
+        greater = !greater;
       }
-      if (exp instanceof BinaryExpression) {
-        BinaryExpression or = (BinaryExpression) exp;
-        Expression leftExpression = or.getLeftExpression();
-        Expression rightExpression = or.getRightExpression();
-        //必须要先加入右子树,再加入左子树,保证左子树先于右子树遍历
-        expressions.addFirst(rightExpression);
-        expressions.addFirst(leftExpression);
-      } else if (exp instanceof InExpression) {
-        InExpression in = (InExpression) exp;
-        final Expression leftExpression = in.getLeftExpression();
-        ItemsList rightItemsList = in.getRightItemsList();
-        if (rightItemsList instanceof SubSelect) {
-          doRoute(parameterSupplier, suffixes, tables, leftExpression, rightItemsList);
-        } else if (rightItemsList instanceof ExpressionList) {
-          List<Expression> inElements = ((ExpressionList) rightItemsList).getExpressions();
-          if (isNotEmpty(inElements)) {
-            for (Expression inElement : inElements) {
-              if (inElement instanceof JdbcParameter) {
-                ++jdbcParameterIndex;
-                doRoute(parameterSupplier, suffixes, tables, leftExpression, jdbcParameterIndex);
-              } else {
-                doRoute(parameterSupplier, suffixes, tables, leftExpression, inElement);
-              }
+      if (cmp.isNot() || !isRouteColumn(tables, left)) {
+        countParameters(cmp);
+        return RouteCondition.ANY;
+      }
+      RouteCondition.Bound bound = toBound(right, inclusive);
+      return greater ? RouteCondition.range(bound, null) : RouteCondition.range(null, bound);
+    }
+
+    private RouteCondition compileBetween(Between between, List<Table> tables) {
+      if (between.isNot() || !isRouteColumn(tables, between.getLeftExpression())) {
+        countParameters(between);
+        return RouteCondition.ANY;
+      }
+      RouteCondition.Bound lower = toBound(between.getBetweenExpressionStart(), true);
+      RouteCondition.Bound upper = toBound(between.getBetweenExpressionEnd(), true);
+      return RouteCondition.range(lower, upper);
+    }
+
+    private RouteCondition compileIn(InExpression in, List<Table> tables, RoutePlan routePlan) {
+      ItemsList rightItemsList = in.getRightItemsList();
+      if (in.isNot() || !isRouteColumn(tables, in.getLeftExpression())) {
+        countParameters(in);
+        return RouteCondition.ANY;
+      }
+      List<Expression> inElements = Lists.newArrayList();
+      if (rightItemsList instanceof ExpressionList) {
+        List<Expression> expressions = ((ExpressionList) rightItemsList).getExpressions();
+        if (isNotEmpty(expressions)) {
+          inElements.addAll(expressions);
+        }
+      } else if (rightItemsList instanceof MultiExpressionList) {
+        List<ExpressionList> exprList = ((MultiExpressionList) rightItemsList).getExprList();
+        if (isNotEmpty(exprList)) {
+          for (ExpressionList expressionList : exprList) {
+            List<Expression> expressions = expressionList.getExpressions();
+            if (isNotEmpty(expressions)) {
+              inElements.addAll(expressions);
             }
           }
-        } else if (rightItemsList instanceof MultiExpressionList) {
-          List<ExpressionList> exprList = ((MultiExpressionList) rightItemsList).getExprList();
-          if (isNotEmpty(exprList)) {
-            for (ExpressionList expressionList : exprList) {
-              List<Expression> inElements = ((ExpressionList) expressionList).getExpressions();
-              if (isNotEmpty(inElements)) {
-                for (Expression inElement : inElements) {
-                  if (inElement instanceof JdbcParameter) {
-                    ++jdbcParameterIndex;
-                    doRoute(parameterSupplier, suffixes, tables, leftExpression,
-                        jdbcParameterIndex);
-                  } else {
-                    doRoute(parameterSupplier, suffixes, tables, leftExpression, inElement);
-                  }
-                }
-              }
+        }
+      } else {
+        //子查询
+        countParameters(in);
+        return RouteCondition.ALL;
+      }
+      return values(inElements, routePlan);
+    }
+
+    /**
+     * 分表字段等于其中一个值,值不是jdbc参数或者字面值时不能路由,比如子查询,函数
+     */
+    private RouteCondition values(List<Expression> elements, RoutePlan routePlan) {
+      List<RouteCondition.Bound> values = Lists.newArrayListWithCapacity(elements.size());
+      boolean routable = true;
+      for (Expression element : elements) {
+        if (element instanceof SubSelect) {
+          compileSubSelect((SubSelect) element, routePlan);
+          routable = false;
+          continue;
+        }
+        RouteCondition.Bound value = toBound(element, true);
+        if (value == null) {
+          routable = false;
+        } else {
+          values.add(value);
+        }
+      }
+      return routable ? RouteCondition.values(values) : RouteCondition.ALL;
+    }
+
+    private void compileSubSelect(SubSelect subSelect, RoutePlan routePlan) {
+      SelectBody selectBody = subSelect.getSelectBody();
+      if (selectBody != null) {
+        SelectStatement subselectStatement = StatementUtils.parseSelectBody(selectBody);
+        routePlan.addSubPlan(compile(subselectStatement));
+      }
+    }
+
+    /**
+     * @return 不是jdbc参数或者字面值时返回null,表示不限制此边界
+     */
+    private RouteCondition.Bound toBound(Expression element, boolean inclusive) {
+      if (element instanceof JdbcParameter) {
+        return RouteCondition.Bound.parameter(++jdbcParameterIndex, inclusive);
+      } else if (element instanceof LongValue) {
+        return RouteCondition.Bound.literal(((LongValue) element).getValue(), inclusive);
+      } else if (element instanceof DoubleValue) {
+        return RouteCondition.Bound.literal(((DoubleValue) element).getValue(), inclusive);
+      } else if (element instanceof StringValue) {
+        return RouteCondition.Bound.literal(((StringValue) element).getValue(), inclusive);
+      }
+      countParameters(element);
+      return null;
+    }
+
+    /**
+     * 跳过不参与路由的条件中的jdbc参数
+     */
+    private void countParameters(Expression exp) {
+      exp.accept(new ExpressionVisitorAdapter() {
+        @Override public void visit(JdbcParameter parameter) {
+          ++jdbcParameterIndex;
+        }
+
+        @Override public void visit(SubSelect subSelect) {
+          SelectBody selectBody = subSelect.getSelectBody();
+          if (selectBody != null) {
+            Expression where = StatementUtils.parseSelectBody(selectBody).getWhere();
+            if (where != null) {
+              where.accept(this);
             }
           }
         }
-      }
+      });
     }
   }
 
   /**
-   * eg:leftElement = rightElement,一般为Column
-   * leftElement >= rightElement
+   * @return element是否为分表字段,带别名时,需要别名匹配
    */
-  private void doRoute(ParameterSupplier parameterSupplier, Set<String> suffixes,
-                       List<Table> tables, Object leftElement, Object rightElement) {
-    if (leftElement instanceof Column && !(leftElement instanceof Function)) {
-      String col = ((Column) leftElement).getColumnName();
-      if (!StringUtils.equalsIgnoreCase(col, column)) {
-        return;
-      }
-      Table columnAlias = ((Column) leftElement).getTable();
-      //带别名时,需要别名匹配
-      boolean acceptCol = isAcceptCol(tables, columnAlias);
-      if (!acceptCol) {
-        return;
-      }
-      if (rightElement instanceof Integer) {
-        Integer index = (Integer) rightElement;
-        Object parameter = parameterSupplier.getParameter(index);
-        doWithColumnValue(parameter, suffixes);
-      } else if (rightElement instanceof LongValue) {
-        doWithColumnValue(((LongValue) rightElement).getValue(), suffixes);
-      } else if (rightElement instanceof DoubleValue) {
-        doWithColumnValue(((DoubleValue) rightElement).getValue(), suffixes);
-      } else if (rightElement instanceof StringValue) {
-        doWithColumnValue(((StringValue) rightElement).getValue(), suffixes);
-      } else {
-        //比如子查询,大于小于,暂时不支持
-        suffixes.addAll(allSubNames());
-      }
+  private boolean isRouteColumn(List<Table> tables, Object element) {
+    if (!(element instanceof Column) || element instanceof Function) {
+      return false;
     }
+    String col = ((Column) element).getColumnName();
+    return StringUtils.equalsIgnoreCase(col, column)
+        && isAcceptCol(tables, ((Column) element).getTable());
   }
 
   private boolean isAcceptCol(List<Table> tables, Table columnAlias) {
+    if (columnAlias != null && columnAlias.getName() == null) {
+      //jsqlparser解析没有表名的列时,Column.getTable()返回没有名字的Table
+      columnAlias = null;
+    }
     boolean acceptCol = false;
     for (Table table : tables) {
       Alias tableAlias = table.getAlias();
@@ -264,16 +498,102 @@ public abstract class AbstractRouter implements Router {
     return acceptCol;
   }
 
+  /**
+   * 所有子表的序号加入shards,序号不是由子表名分配的Router需要覆盖此方法
+   */
+  void addAllShards(BitSet shards) {
+    Set<String> subNames = allSubNames();
+    if (subNames == fixedSubNames) {
+      shards.set(0, fixedSubNames.size());
+    } else {
+      addOrdinals(subNames, shards);
+    }
+  }
+
+  private void addOrdinals(Set<String> suffixes, BitSet shards) {
+    for (String suffix : suffixes) {
+      shards.set(ordinal(suffix));
+    }
+  }
+
+  /**
+   * @return 子表名的序号,第一次出现的子表名分配新的序号
+   */
+  protected final int ordinal(String subName) {
+    Integer ordinal = ordinals.get(subName);
+    if (ordinal != null) {
+      return ordinal;
+    }
+    synchronized (ordinals) {
+      ordinal = ordinals.get(subName);
+      if (ordinal == null) {
+        //先发布子表名,保证读到序号时一定可以读到子表名
+        String[] names = Arrays.copyOf(ordinalNames, ordinalNames.length + 1);
+        ordinal = ordinalNames.length;
+        names[ordinal] = subName;
+        ordinalNames = names;
+        ordinals.put(subName, ordinal);
+      }
+      return ordinal;
+    }
+  }
+
   public String getTableName() {
     return tableName;
   }
 
   public void setTableName(String tableName) {
-    this.tableName = tableName;
+    synchronized (ordinals) {
+      this.tableName = tableName;
+      this.physicalNames = new String[0];
+    }
   }
 
-  protected abstract Set<String> allSubNames();
+  /**
+   * @return 所有子表,默认为构造时指定的子表
+   */
+  protected Set<String> allSubNames() {
+    return fixedSubNames;
+  }
 
   protected abstract void doWithColumnValue(Object value, Set<String> suffixes);
 
+  /**
+   * 将值所在的子表的序号加入shards,默认通过{@link #doWithColumnValue(Object, Set)}计算子表名,
+   * 子表固定的Router可以覆盖此方法直接计算序号,避免生成子表名
+   */
+  protected void doWithColumnValue(Object value, BitSet shards) {
+    Set<String> suffixes = Sets.newHashSetWithExpectedSize(1);
+    doWithColumnValue(value, suffixes);
+    addOrdinals(suffixes, shards);
+  }
+
+  /**
+   * 分表字段在一个范围内时的子表,比如 >, <, between
+   *
+   * @param lower 下界,为null时表示没有下界
+   * @param upper 上界,为null时表示没有上界
+   * @return 不能按范围路由时返回false,此时需要查询所有子表
+   */
+  protected boolean doWithColumnRange(Object lower, boolean lowerInclusive, Object upper,
+                                      boolean upperInclusive, Set<String> suffixes) {
+    return false;
+  }
+
+  /**
+   * 将范围内的子表的序号加入shards,默认通过
+   * {@link #doWithColumnRange(Object, boolean, Object, boolean, Set)}计算子表名
+   *
+   * @return 不能按范围路由时返回false,此时需要查询所有子表
+   */
+  protected boolean doWithColumnRange(Object lower, boolean lowerInclusive, Object upper,
+                                      boolean upperInclusive, BitSet shards) {
+    Set<String> suffixes = Sets.newHashSet();
+    if (!doWithColumnRange(lower, lowerInclusive, upper, upperInclusive, suffixes)) {
+      return false;
+    }
+    addOrdinals(suffixes, shards);
+    return true;
+  }
+
 }
@@ -0,0 +1,125 @@
+package cn.yxffcode.mtd.core.router;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * 一致性hash分表,chash(id, 160, 0, 1, 2)表示每个子表在hash环上有160个虚拟节点,子表后缀为0, 1, 2.
+ * 值的hash落在环上,顺时针方向的第一个虚拟节点所在的子表即为值所在的子表.
+ * <p/>
+ * 增加子表时只有落在新子表虚拟节点上的值需要迁移,比如从16个子表增加到20个子表时约迁移1/5的数据.
+ * 环预先计算为按hash排序的数组,路由时二分查找.
+ * <p/>
+ * 整数与其十进制字符串的hash相同,比如 id = 5 与 id = '5' 路由到同一个子表.
+ *
+ * @author gaohang on 16/3/30.
+ */
+public class ConsistentHashRouter extends AbstractRouter {
+
+  private final HashFunction hashFunction;
+  /**
+   * 虚拟节点的hash,升序
+   */
+  private final int[] hashes;
+  /**
+   * hashes[i]对应的子表的序号
+   */
+  private final int[] owners;
+
+  /**
+   * @param virtualNodes 每个子表的虚拟节点数
+   * @param subNames     子表的后缀,虚拟节点由后缀计算,与子表的顺序无关
+   */
+  public ConsistentHashRouter(String column, int virtualNodes, List<String> subNames,
+                              HashFunction hashFunction) {
+    super(column, subNames);
+    checkArgument(virtualNodes > 0, "virtual nodes must be positive");
+    checkArgument(!subNames.isEmpty(), "no sub table");
+    this.hashFunction = hashFunction;
+
+    //高32位为hash,低32位为子表的序号,排序后hash相同的虚拟节点按子表的序号排列
+    long[] nodes = new long[subNames.size() * virtualNodes];
+    int n = 0;
+    for (int i = 0; i < subNames.size(); i++) {
+      for (int j = 0; j < virtualNodes; j++) {
+        int hash = hashFunction.hashString(subNames.get(i) + '#' + j, Charsets.UTF_8).asInt();
+        nodes[n++] = ((long) hash << 32) | i;
+      }
+    }
+    Arrays.sort(nodes);
+    int[] hashes = new int[nodes.length];
+    int[] owners = new int[nodes.length];
+    int size = 0;
+    for (long node : nodes) {
+      int hash = (int) (node >> 32);
+      if (size > 0 && hashes[size - 1] == hash) {
+        //hash冲突时保留序号小的子表
+        continue;
+      }
+      hashes[size] = hash;
+      owners[size++] = (int) node;
+    }
+    this.hashes = Arrays.copyOf(hashes, size);
+    this.owners = Arrays.copyOf(owners, size);
+  }
+
+  @Override protected void doWithColumnValue(Object value, Set<String> suffixes) {
+    suffixes.add(subTableName(shardOf(value)));
+  }
+
+  @Override protected void doWithColumnValue(Object value, BitSet shards) {
+    shards.set(shardOf(value));
+  }
+
+  private int shardOf(Object value) {
+    int i = Arrays.binarySearch(hashes, hash(value));
+    if (i < 0) {
+      i = -i - 1;
+      if (i == hashes.length) {
+        i = 0;
+      }
+    }
+    return owners[i];
+  }
+
+  private int hash(Object value) {
+    if (value instanceof Integer || value instanceof Long
+        || value instanceof Short || value instanceof Byte) {
+      return hashFunction.hashLong(((Number) value).longValue()).asInt();
+    }
+    String s = value.toString();
+    if (isCanonicalLong(s)) {
+      try {
+        return hashFunction.hashLong(Long.parseLong(s)).asInt();
+      } catch (NumberFormatException e) {
+        //超出long的范围,按字符串处理
+      }
+    }
+    return hashFunction.hashString(s, Charsets.UTF_8).asInt();
+  }
+
+  /**
+   * @return 是否可能为Long.toString()生成的字符串,即没有多余的0和正号
+   */
+  private static boolean isCanonicalLong(String s) {
+    int start = s.startsWith("-") ? 1 : 0;
+    int length = s.length() - start;
+    if (length == 0 || length > 19 || (s.charAt(start) == '0' && (length > 1 || start > 0))) {
+      return false;
+    }
+    for (int i = start; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+}
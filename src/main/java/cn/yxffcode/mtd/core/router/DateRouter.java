@@ -0,0 +1,266 @@
+package cn.yxffcode.mtd.core.router;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ObjectArrays;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang3.time.DateUtils;
+import org.apache.commons.lang3.time.FastDateFormat;
+
+import java.text.ParseException;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * 按时间分桶分表,date(create_time, 'yyyyMM', '201501')表示按月分表,子表后缀为yyyyMM格式的月份,
+ * 从201501开始到当前月份为止,随时间增加;date(create_time, 'yyyyMM', '201501', '201712')表示子表固定为
+ * 201501到201712.格式中最小的单位为分桶的粒度,支持年(yyyy),月(yyyyMM),日(yyyyMMdd).
+ * <p/>
+ * 第i个子表为从窗口开始的第i个分桶,序号直接由时间计算.范围条件只访问与其相交的分桶,比如
+ * create_time >= '2016-03-15' and create_time < '2016-06-01' 只访问201603, 201604, 201605.
+ * 范围条件与没有条件时只访问窗口内的子表,等值条件则路由到值所在的分桶,比如插入未来日期的记录.
+ * <p/>
+ * 分表字段的值可以是Date,Calendar,毫秒数,或者yyyy-MM-dd HH:mm:ss,yyyy-MM-dd以及分表格式的字符串.
+ *
+ * @author gaohang on 16/3/31.
+ */
+final class DateRouter extends AbstractRouter {
+  private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+  private static final String[] DATE_PATTERNS =
+      {"yyyy-MM-dd HH:mm:ss.SSS", "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd"};
+
+  private final Unit unit;
+  private final FastDateFormat format;
+  private final String[] patterns;
+  /**
+   * 窗口开始的分桶的起始时间与编号
+   */
+  private final long startMillis;
+  private final int start;
+  /**
+   * 窗口最后一个子表的序号,为-1时窗口到当前时间所在的分桶为止
+   */
+  private final int end;
+  /**
+   * 窗口内的子表后缀,按需生成
+   */
+  private volatile String[] names = new String[0];
+
+  /**
+   * @param from 窗口开始的分桶,与pattern格式相同
+   * @param to   窗口结束的分桶,为null时窗口到当前时间为止
+   */
+  DateRouter(String column, String pattern, String from, String to) {
+    super(column);
+    this.unit = Unit.of(pattern);
+    this.format = FastDateFormat.getInstance(pattern);
+    this.patterns = ObjectArrays.concat(DATE_PATTERNS, pattern);
+    Calendar first = calendar(parse(from, pattern));
+    this.startMillis = first.getTimeInMillis();
+    this.start = unit.index(first);
+    if (to == null) {
+      this.end = -1;
+    } else {
+      this.end = unit.index(calendar(parse(to, pattern))) - start;
+      checkArgument(end >= 0, "window ends before it starts");
+    }
+  }
+
+  @Override protected void doWithColumnValue(Object value, Set<String> suffixes) {
+    suffixes.add(subTableName(shardOf(value)));
+  }
+
+  @Override protected void doWithColumnValue(Object value, BitSet shards) {
+    shards.set(shardOf(value));
+  }
+
+  @Override protected boolean doWithColumnRange(Object lower, boolean lowerInclusive,
+                                                Object upper, boolean upperInclusive,
+                                                Set<String> suffixes) {
+    BitSet shards = new BitSet();
+    doWithColumnRange(lower, lowerInclusive, upper, upperInclusive, shards);
+    for (int i = shards.nextSetBit(0); i >= 0; i = shards.nextSetBit(i + 1)) {
+      suffixes.add(subTableName(i));
+    }
+    return true;
+  }
+
+  @Override protected boolean doWithColumnRange(Object lower, boolean lowerInclusive,
+                                                Object upper, boolean upperInclusive,
+                                                BitSet shards) {
+    int last = windowEnd();
+    int from = 0;
+    if (lower != null) {
+      //下界不包含时也可能有记录在下界所在的分桶中
+      from = Math.max(from, unit.index(calendar(toDate(lower))) - start);
+    }
+    int to = last;
+    if (upper != null) {
+      Calendar c = calendar(toDate(upper));
+      int i = unit.index(c) - start;
+      if (!upperInclusive && unit.isStart(c)) {
+        //create_time < '2016-06-01'不包含201606
+        i--;
+      }
+      to = Math.min(to, i);
+    }
+    if (from <= to) {
+      shards.set(from, to + 1);
+    }
+    return true;
+  }
+
+  @Override void addAllShards(BitSet shards) {
+    shards.set(0, windowEnd() + 1);
+  }
+
+  @Override protected Set<String> allSubNames() {
+    int last = windowEnd();
+    Set<String> subNames = Sets.newLinkedHashSetWithExpectedSize(last + 1);
+    for (int i = 0; i <= last; i++) {
+      subNames.add(subTableName(i));
+    }
+    return subNames;
+  }
+
+  @Override public String subTableName(int ordinal) {
+    String[] names = this.names;
+    if (ordinal < names.length) {
+      return names[ordinal];
+    }
+    int last = windowEnd();
+    if (ordinal > last) {
+      //窗口之外的子表不缓存
+      return format(ordinal);
+    }
+    synchronized (this) {
+      names = this.names;
+      if (ordinal >= names.length) {
+        String[] grown = new String[last + 1];
+        System.arraycopy(names, 0, grown, 0, names.length);
+        for (int i = names.length; i < grown.length; i++) {
+          grown[i] = format(i);
+        }
+        this.names = names = grown;
+      }
+      return names[ordinal];
+    }
+  }
+
+  private String format(int ordinal) {
+    Calendar c = Calendar.getInstance();
+    c.setTimeInMillis(startMillis);
+    c.add(unit.field, ordinal);
+    return format.format(c);
+  }
+
+  /**
+   * @return 窗口最后一个子表的序号,窗口还没有开始时返回-1
+   */
+  private int windowEnd() {
+    return end >= 0 ? end : Math.max(unit.index(Calendar.getInstance()) - start, -1);
+  }
+
+  private int shardOf(Object value) {
+    int ordinal = unit.index(calendar(toDate(value))) - start;
+    checkArgument(ordinal >= 0, "%s is before the first sub table %s", value, subTableName(0));
+    return ordinal;
+  }
+
+  private Date toDate(Object value) {
+    if (value instanceof Date) {
+      return (Date) value;
+    } else if (value instanceof Calendar) {
+      return ((Calendar) value).getTime();
+    } else if (value instanceof Number) {
+      return new Date(((Number) value).longValue());
+    }
+    return parse(value.toString().trim(), patterns);
+  }
+
+  private static Date parse(String value, String... patterns) {
+    try {
+      return DateUtils.parseDateStrictly(value, patterns);
+    } catch (ParseException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static Calendar calendar(Date date) {
+    Calendar c = Calendar.getInstance();
+    c.setTime(date);
+    return c;
+  }
+
+  /**
+   * 分桶的粒度,分桶的编号按时间递增且相邻的分桶编号连续
+   */
+  private enum Unit {
+    YEAR(Calendar.YEAR) {
+      @Override int index(Calendar c) {
+        return c.get(Calendar.YEAR);
+      }
+
+      @Override boolean isStart(Calendar c) {
+        return c.get(Calendar.DAY_OF_YEAR) == 1 && isMidnight(c);
+      }
+    },
+    MONTH(Calendar.MONTH) {
+      @Override int index(Calendar c) {
+        return c.get(Calendar.YEAR) * 12 + c.get(Calendar.MONTH);
+      }
+
+      @Override boolean isStart(Calendar c) {
+        return c.get(Calendar.DAY_OF_MONTH) == 1 && isMidnight(c);
+      }
+    },
+    DAY(Calendar.DAY_OF_MONTH) {
+      @Override int index(Calendar c) {
+        //当地时间从1970-01-01开始的天数
+        long millis = c.getTimeInMillis() + c.get(Calendar.ZONE_OFFSET)
+            + c.get(Calendar.DST_OFFSET);
+        long days = millis / DAY_MILLIS;
+        return (int) (millis % DAY_MILLIS < 0 ? days - 1 : days);
+      }
+
+      @Override boolean isStart(Calendar c) {
+        return isMidnight(c);
+      }
+    };
+
+    /**
+     * 相邻分桶相差的Calendar字段
+     */
+    final int field;
+
+    Unit(int field) {
+      this.field = field;
+    }
+
+    abstract int index(Calendar c);
+
+    /**
+     * @return 是否为分桶的起始时间
+     */
+    abstract boolean isStart(Calendar c);
+
+    static Unit of(String pattern) {
+      if (pattern.indexOf('d') >= 0) {
+        return DAY;
+      } else if (pattern.indexOf('M') >= 0) {
+        return MONTH;
+      }
+      checkArgument(pattern.indexOf('y') >= 0, "unsupported date pattern %s", pattern);
+      return YEAR;
+    }
+
+    private static boolean isMidnight(Calendar c) {
+      return c.get(Calendar.HOUR_OF_DAY) == 0 && c.get(Calendar.MINUTE) == 0
+          && c.get(Calendar.SECOND) == 0 && c.get(Calendar.MILLISECOND) == 0;
+    }
+  }
+}
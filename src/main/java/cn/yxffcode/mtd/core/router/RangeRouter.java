@@ -0,0 +1,133 @@
+package cn.yxffcode.mtd.core.router;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * 按分表字段的取值范围分表,range(id, 1000, 2000)表示3个子表:
+ * id < 1000在子表0,1000 <= id < 2000在子表1,id >= 2000在子表2.
+ * <p/>
+ * 等值条件与范围条件都通过二分查找边界确定子表,范围条件只路由到与其相交的子表.
+ *
+ * @author gaohang on 16/3/28.
+ */
+final class RangeRouter extends AbstractRouter {
+  private static final BigDecimal MAX = BigDecimal.valueOf(Long.MAX_VALUE);
+  private static final BigDecimal MIN = BigDecimal.valueOf(Long.MIN_VALUE);
+
+  /**
+   * 严格递增的边界
+   */
+  private final long[] boundaries;
+
+  RangeRouter(String column, long[] boundaries) {
+    super(column, Routers.sequence(0, boundaries.length + 1));
+    for (int i = 1; i < boundaries.length; i++) {
+      checkState(boundaries[i - 1] < boundaries[i], "range boundaries must be increasing");
+    }
+    this.boundaries = boundaries;
+  }
+
+  @Override protected void doWithColumnValue(Object value, Set<String> suffixes) {
+    suffixes.add(subTableName(shardOf(value)));
+  }
+
+  @Override protected void doWithColumnValue(Object value, BitSet shards) {
+    shards.set(shardOf(value));
+  }
+
+  @Override protected boolean doWithColumnRange(Object lower, boolean lowerInclusive,
+                                                Object upper, boolean upperInclusive,
+                                                Set<String> suffixes) {
+    BitSet shards = new BitSet();
+    doWithColumnRange(lower, lowerInclusive, upper, upperInclusive, shards);
+    for (int i = shards.nextSetBit(0); i >= 0; i = shards.nextSetBit(i + 1)) {
+      suffixes.add(subTableName(i));
+    }
+    return true;
+  }
+
+  @Override protected boolean doWithColumnRange(Object lower, boolean lowerInclusive,
+                                                Object upper, boolean upperInclusive,
+                                                BitSet shards) {
+    int from = lower == null ? 0 : indexOf(lowest(lower, lowerInclusive));
+    int to = upper == null ? boundaries.length : indexOf(highest(upper, upperInclusive));
+    if (from <= to) {
+      shards.set(from, to + 1);
+    }
+    return true;
+  }
+
+  /**
+   * 小数向下取整后查找子表,-0.5与-1在同一个子表
+   */
+  private int shardOf(Object value) {
+    return indexOf(isIntegral(value) ?
+        ((Number) value).longValue() : clamp(toDecimal(value).setScale(0, RoundingMode.FLOOR)));
+  }
+
+  /**
+   * @return 值所在的子表的序号,等于边界的值属于边界右侧的子表,第i个子表的后缀为i
+   */
+  private int indexOf(long value) {
+    int i = Arrays.binarySearch(boundaries, value);
+    return i >= 0 ? i + 1 : -i - 1;
+  }
+
+  /**
+   * @return 满足下界的最小整数,超出long的范围时取long的边界值
+   */
+  private static long lowest(Object lower, boolean inclusive) {
+    if (isIntegral(lower)) {
+      long v = ((Number) lower).longValue();
+      return inclusive || v == Long.MAX_VALUE ? v : v + 1;
+    }
+    BigDecimal v = toDecimal(lower);
+    BigDecimal ceiling = v.setScale(0, RoundingMode.CEILING);
+    if (!inclusive && ceiling.compareTo(v) == 0) {
+      ceiling = ceiling.add(BigDecimal.ONE);
+    }
+    return clamp(ceiling);
+  }
+
+  /**
+   * @return 满足上界的最大整数,超出long的范围时取long的边界值
+   */
+  private static long highest(Object upper, boolean inclusive) {
+    if (isIntegral(upper)) {
+      long v = ((Number) upper).longValue();
+      return inclusive || v == Long.MIN_VALUE ? v : v - 1;
+    }
+    BigDecimal v = toDecimal(upper);
+    BigDecimal floor = v.setScale(0, RoundingMode.FLOOR);
+    if (!inclusive && floor.compareTo(v) == 0) {
+      floor = floor.subtract(BigDecimal.ONE);
+    }
+    return clamp(floor);
+  }
+
+  private static boolean isIntegral(Object value) {
+    return value instanceof Integer || value instanceof Long
+        || value instanceof Short || value instanceof Byte;
+  }
+
+  private static BigDecimal toDecimal(Object value) {
+    return value instanceof BigDecimal ?
+        (BigDecimal) value : new BigDecimal(value.toString().trim());
+  }
+
+  private static long clamp(BigDecimal value) {
+    if (value.compareTo(MAX) > 0) {
+      return Long.MAX_VALUE;
+    }
+    if (value.compareTo(MIN) < 0) {
+      return Long.MIN_VALUE;
+    }
+    return value.longValue();
+  }
+}
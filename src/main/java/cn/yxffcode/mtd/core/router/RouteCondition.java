@@ -0,0 +1,235 @@
+package cn.yxffcode.mtd.core.router;
+
+import cn.yxffcode.mtd.core.ParameterSupplier;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 编译后的where条件中与分表字段有关的部分,按布尔代数计算需要访问的子表:
+ * and取交集,or取并集,不能计算子表的条件为所有子表.
+ * <p/>
+ * 计算结果为子表序号的BitSet,null表示条件与分表字段无关,对子表没有限制.
+ *
+ * @author gaohang on 16/3/28.
+ */
+abstract class RouteCondition {
+
+  /**
+   * 与分表字段无关的条件,比如其它列的条件
+   */
+  static final RouteCondition ANY = new RouteCondition() {
+    @Override BitSet evaluate(AbstractRouter router, ParameterSupplier parameterSupplier) {
+      return null;
+    }
+  };
+
+  /**
+   * 与分表字段有关但不能计算子表的条件,比如分表字段等于子查询
+   */
+  static final RouteCondition ALL = new RouteCondition() {
+    @Override BitSet evaluate(AbstractRouter router, ParameterSupplier parameterSupplier) {
+      BitSet shards = new BitSet();
+      router.addAllShards(shards);
+      //子表不固定时,比如val(col),不能限制子表
+      return shards.isEmpty() ? null : shards;
+    }
+  };
+
+  /**
+   * @return 满足条件的记录所在的子表的序号,每次返回新的BitSet,null表示对子表没有限制
+   */
+  abstract BitSet evaluate(AbstractRouter router, ParameterSupplier parameterSupplier);
+
+  /**
+   * 忽略and与or,所有条件中的值所在的子表的并集,用于子表不固定的Router在条件互相矛盾时仍然访问实际的子表
+   *
+   * @return null表示对子表没有限制
+   */
+  BitSet union(AbstractRouter router, ParameterSupplier parameterSupplier) {
+    return evaluate(router, parameterSupplier);
+  }
+
+  private static BitSet unionOf(RouteCondition[] conditions, AbstractRouter router,
+                                ParameterSupplier parameterSupplier) {
+    BitSet shards = null;
+    for (RouteCondition condition : conditions) {
+      BitSet current = condition.union(router, parameterSupplier);
+      if (current == null) {
+        continue;
+      }
+      if (shards == null) {
+        shards = current;
+      } else {
+        shards.or(current);
+      }
+    }
+    return shards;
+  }
+
+  static RouteCondition and(List<RouteCondition> conditions) {
+    return new And(conditions.toArray(new RouteCondition[conditions.size()]));
+  }
+
+  /**
+   * 多个等值条件的or合并为一个in,比如 id = ? or id = ?
+   */
+  static RouteCondition or(List<RouteCondition> conditions) {
+    List<RouteCondition> merged = Lists.newArrayListWithCapacity(conditions.size());
+    List<Bound> values = null;
+    for (RouteCondition condition : conditions) {
+      if (condition instanceof Values) {
+        if (values == null) {
+          values = Lists.newArrayList();
+          merged.add(null);
+        }
+        values.addAll(Arrays.asList(((Values) condition).values));
+      } else {
+        merged.add(condition);
+      }
+    }
+    if (values != null) {
+      merged.set(merged.indexOf(null), values(values));
+    }
+    return merged.size() == 1 ?
+        merged.get(0) : new Or(merged.toArray(new RouteCondition[merged.size()]));
+  }
+
+  /**
+   * 分表字段等于其中一个值,比如 = 与 in
+   */
+  static RouteCondition values(List<Bound> values) {
+    return new Values(values.toArray(new Bound[values.size()]));
+  }
+
+  /**
+   * @param lower 下界,为null表示没有下界
+   * @param upper 上界,为null表示没有上界
+   */
+  static RouteCondition range(Bound lower, Bound upper) {
+    return new Range(lower, upper);
+  }
+
+  /**
+   * 条件中的值,为jdbc参数或者字面值
+   */
+  static final class Bound {
+    private final int parameterIndex;
+    private final Object literal;
+    private final boolean inclusive;
+
+    private Bound(int parameterIndex, Object literal, boolean inclusive) {
+      this.parameterIndex = parameterIndex;
+      this.literal = literal;
+      this.inclusive = inclusive;
+    }
+
+    static Bound parameter(int parameterIndex, boolean inclusive) {
+      return new Bound(parameterIndex, null, inclusive);
+    }
+
+    static Bound literal(Object literal, boolean inclusive) {
+      return new Bound(-1, literal, inclusive);
+    }
+
+    /**
+     * @return 边界的值,参数为null时返回null,表示不限制此边界
+     */
+    Object getValue(ParameterSupplier parameterSupplier) {
+      return parameterIndex < 0 ? literal : parameterSupplier.getParameter(parameterIndex);
+    }
+  }
+
+  private static final class And extends RouteCondition {
+    private final RouteCondition[] conditions;
+
+    And(RouteCondition[] conditions) {
+      this.conditions = conditions;
+    }
+
+    @Override BitSet evaluate(AbstractRouter router, ParameterSupplier parameterSupplier) {
+      BitSet shards = null;
+      for (RouteCondition condition : conditions) {
+        BitSet current = condition.evaluate(router, parameterSupplier);
+        if (current == null) {
+          continue;
+        }
+        if (shards == null) {
+          shards = current;
+        } else {
+          shards.and(current);
+        }
+        if (shards.isEmpty()) {
+          break;
+        }
+      }
+      return shards;
+    }
+
+    @Override BitSet union(AbstractRouter router, ParameterSupplier parameterSupplier) {
+      return unionOf(conditions, router, parameterSupplier);
+    }
+  }
+
+  private static final class Or extends RouteCondition {
+    private final RouteCondition[] conditions;
+
+    Or(RouteCondition[] conditions) {
+      this.conditions = conditions;
+    }
+
+    @Override BitSet evaluate(AbstractRouter router, ParameterSupplier parameterSupplier) {
+      BitSet shards = new BitSet();
+      for (RouteCondition condition : conditions) {
+        BitSet current = condition.evaluate(router, parameterSupplier);
+        if (current == null) {
+          return null;
+        }
+        shards.or(current);
+      }
+      return shards;
+    }
+
+    @Override BitSet union(AbstractRouter router, ParameterSupplier parameterSupplier) {
+      return unionOf(conditions, router, parameterSupplier);
+    }
+  }
+
+  private static final class Values extends RouteCondition {
+    private final Bound[] values;
+
+    Values(Bound[] values) {
+      this.values = values;
+    }
+
+    @Override BitSet evaluate(AbstractRouter router, ParameterSupplier parameterSupplier) {
+      BitSet shards = new BitSet();
+      for (Bound value : values) {
+        router.doWithColumnValue(value.getValue(parameterSupplier), shards);
+      }
+      return shards;
+    }
+  }
+
+  private static final class Range extends RouteCondition {
+    private final Bound lower;
+    private final Bound upper;
+
+    Range(Bound lower, Bound upper) {
+      this.lower = lower;
+      this.upper = upper;
+    }
+
+    @Override BitSet evaluate(AbstractRouter router, ParameterSupplier parameterSupplier) {
+      BitSet shards = new BitSet();
+      boolean routed = router.doWithColumnRange(
+          lower == null ? null : lower.getValue(parameterSupplier),
+          lower == null || lower.inclusive,
+          upper == null ? null : upper.getValue(parameterSupplier),
+          upper == null || upper.inclusive, shards);
+      return routed ? shards : ALL.evaluate(router, parameterSupplier);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package cn.yxffcode.mtd.core.router;
+
+import cn.yxffcode.mtd.core.ParameterSupplier;
+import com.google.common.collect.Lists;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 预编译的路由计划,记录一条SQL中与分表字段有关的条件,以及条件中哪些jdbc参数和字面值决定了分表字段的取值.
+ * <p/>
+ * 路由计划只与SQL的语法树有关,与参数无关,所以每个Router对每条解析后的SQL只需要编译一次,
+ * 路由时只需要按下标取参数并计算{@link RouteCondition}.
+ *
+ * @author gaohang on 16/3/19.
+ */
+final class RoutePlan {
+
+  enum Mode {
+    /**
+     * 返回所有子表,比如没有where条件
+     */
+    ALL,
+    /**
+     * 直接返回计算得到的子表,没有子表时返回空集合
+     */
+    EXACT,
+    /**
+     * 不能路由,返回空集合
+     */
+    NONE,
+    /**
+     * 返回计算得到的子表,没有子表时返回所有子表
+     */
+    DEFAULT
+  }
+
+  private final Mode mode;
+  /**
+   * where条件中与分表字段有关的部分,为null时对子表没有限制
+   */
+  private RouteCondition condition;
+  /**
+   * 子查询的路由计划
+   */
+  private final List<RoutePlan> subPlans = Lists.newArrayList();
+
+  RoutePlan(Mode mode) {
+    this.mode = mode;
+  }
+
+  void setCondition(RouteCondition condition) {
+    this.condition = condition;
+  }
+
+  void addSubPlan(RoutePlan subPlan) {
+    subPlans.add(subPlan);
+  }
+
+  Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * @param shards 已经确定的子表,比如头注释中强制指定的子表,计算得到的子表也会加入其中
+   * @return 需要访问的子表的序号
+   */
+  BitSet route(AbstractRouter router, ParameterSupplier parameterSupplier, BitSet shards) {
+    switch (mode) {
+      case ALL:
+        router.addAllShards(shards);
+        return shards;
+      case NONE:
+        shards.clear();
+        return shards;
+      default:
+        break;
+    }
+    BitSet matched = condition == null ? null : condition.evaluate(router, parameterSupplier);
+    for (int i = 0, j = subPlans.size(); i < j; i++) {
+      shards.or(subPlans.get(i).route(router, parameterSupplier, new BitSet()));
+    }
+    if (matched != null) {
+      if (matched.isEmpty() && shards.isEmpty() && mode == Mode.DEFAULT) {
+        //条件互相矛盾,比如id = 1 and id = 2,没有记录满足条件,访问任意一个子表即可
+        router.addAllShards(matched);
+        int first = matched.nextSetBit(0);
+        if (first >= 0) {
+          shards.set(first);
+        } else {
+          //子表不固定,比如val(col),只能访问条件中的值所在的子表,否则会使用逻辑表名查询
+          BitSet union = condition.union(router, parameterSupplier);
+          if (union != null) {
+            shards.or(union);
+          }
+        }
+        return shards;
+      }
+      shards.or(matched);
+    }
+    if (mode == Mode.DEFAULT && shards.isEmpty()) {
+      router.addAllShards(shards);
+    }
+    return shards;
+  }
+}
@@ -0,0 +1,159 @@
+package cn.yxffcode.mtd.core.router;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 判断一条SQL是否可能包含需要分表的表,不需要解析SQL.
+ * <p/>
+ * 使用所有分表的表名构建Aho-Corasick自动机,一次扫描SQL即可找出所有出现的表名,
+ * 表名前后必须不是标识符中的字符.SQL中的列名或字符串与表名相同时也会匹配,
+ * 所以返回true时SQL仍然可能不需要分表,返回false时一定不需要分表.
+ *
+ * @author gaohang on 16/3/20.
+ */
+public final class RouteTableMatcher {
+
+  private static final int ROOT = 0;
+
+  /**
+   * 表名中出现的字符在状态转移表中的下标,不出现的字符为-1
+   */
+  private final int[] alphabet;
+  /**
+   * 状态转移表,goto[state * alphabetSize + c]为下一个状态
+   */
+  private final int[] transitions;
+  private final int alphabetSize;
+  /**
+   * 每个状态可以匹配的表名的长度,包括后缀链接上的表名
+   */
+  private final int[][] outputs;
+  /**
+   * 表名中有非ASCII字符时不做判断,总是返回true
+   */
+  private final boolean matchAll;
+
+  public RouteTableMatcher(Collection<String> tableNames) {
+    //只处理ASCII表名,其它字符不会出现在状态转移表中
+    int[] alphabet = new int[128];
+    Arrays.fill(alphabet, -1);
+    int alphabetSize = 0;
+    boolean matchAll = false;
+    for (String tableName : tableNames) {
+      for (int i = 0; i < tableName.length(); i++) {
+        char c = Character.toLowerCase(tableName.charAt(i));
+        if (c >= 128) {
+          matchAll = true;
+        } else if (alphabet[c] < 0) {
+          alphabet[c] = alphabetSize++;
+        }
+      }
+    }
+    this.matchAll = matchAll;
+    this.alphabet = alphabet;
+    this.alphabetSize = Math.max(alphabetSize, 1);
+
+    //构建trie
+    List<int[]> trie = Lists.newArrayList();
+    trie.add(newState());
+    Map<Integer, Integer> lengths = Maps.newHashMap();
+    for (String tableName : tableNames) {
+      int state = ROOT;
+      for (int i = 0; i < tableName.length() && !matchAll; i++) {
+        char c = Character.toLowerCase(tableName.charAt(i));
+        int[] next = trie.get(state);
+        if (next[alphabet[c]] <= ROOT) {
+          next[alphabet[c]] = trie.size();
+          trie.add(newState());
+        }
+        state = next[alphabet[c]];
+      }
+      if (state != ROOT) {
+        lengths.put(state, tableName.length());
+      }
+    }
+
+    //按广度优先计算失败链接,并将trie转换成完整的状态转移表
+    int stateCount = trie.size();
+    int[] transitions = new int[stateCount * this.alphabetSize];
+    int[] fail = new int[stateCount];
+    int[][] outputs = new int[stateCount][];
+    outputs[ROOT] = new int[0];
+    LinkedList<Integer> queue = Lists.newLinkedList();
+    for (int c = 0; c < this.alphabetSize; c++) {
+      int next = trie.get(ROOT)[c];
+      transitions[c] = next;
+      if (next > ROOT) {
+        fail[next] = ROOT;
+        queue.add(next);
+      }
+    }
+    while (!queue.isEmpty()) {
+      int state = queue.removeFirst();
+      Integer length = lengths.get(state);
+      int[] inherited = outputs[fail[state]];
+      if (length == null) {
+        outputs[state] = inherited;
+      } else {
+        outputs[state] = new int[inherited.length + 1];
+        outputs[state][0] = length;
+        System.arraycopy(inherited, 0, outputs[state], 1, inherited.length);
+      }
+      for (int c = 0; c < this.alphabetSize; c++) {
+        int next = trie.get(state)[c];
+        if (next > ROOT) {
+          fail[next] = transitions[fail[state] * this.alphabetSize + c];
+          transitions[state * this.alphabetSize + c] = next;
+          queue.add(next);
+        } else {
+          transitions[state * this.alphabetSize + c] =
+              transitions[fail[state] * this.alphabetSize + c];
+        }
+      }
+    }
+    this.transitions = transitions;
+    this.outputs = outputs;
+  }
+
+  private int[] newState() {
+    return new int[alphabetSize];
+  }
+
+  /**
+   * @return SQL中是否包含任意一个表名,大小写不敏感
+   */
+  public boolean matches(CharSequence sql) {
+    if (matchAll) {
+      return true;
+    }
+    int state = ROOT;
+    for (int i = 0, j = sql.length(); i < j; i++) {
+      char c = Character.toLowerCase(sql.charAt(i));
+      int index = c < 128 ? alphabet[c] : -1;
+      if (index < 0) {
+        state = ROOT;
+        continue;
+      }
+      state = transitions[state * alphabetSize + index];
+      for (int length : outputs[state]) {
+        int start = i - length + 1;
+        if ((start == 0 || !isIdentifierPart(sql.charAt(start - 1)))
+            && (i + 1 == j || !isIdentifierPart(sql.charAt(i + 1)))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean isIdentifierPart(char c) {
+    return c == '_' || c == '$' || Character.isLetterOrDigit(c);
+  }
+}
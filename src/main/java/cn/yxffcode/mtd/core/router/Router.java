@@ -12,6 +12,9 @@ import java.util.Set;
  */
 public interface Router {
 
+  /**
+   * @return 子表的后缀
+   */
   Set<String> subTableNames(ParsedSqlContext parsedSqlContext, ParameterSupplier parameterSupplier);
 
   void setTableName(String tableName);
@@ -1,16 +1,16 @@
 package cn.yxffcode.mtd.core.router;
 
-import cn.yxffcode.mtd.lang.ImmutableIterator;
 import com.google.common.base.Splitter;
 import com.google.common.base.Throwables;
-import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.FastDateFormat;
 
 import java.text.ParseException;
-import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -28,63 +28,83 @@ public enum Routers {
       List<String> params = comaSplitter.splitToList(paramString);
       checkState(params.size() == 2);
       final int mod = Integer.parseInt(params.get(1));
-      return new AbstractRouter(params.get(0)) {
-        @Override protected Set<String> allSubNames() {
-          return new AbstractSet<String>() {
-            @Override public Iterator<String> iterator() {
-              return new ImmutableIterator<String>() {
-                private int i = 0;
-
-                @Override public boolean hasNext() {
-                  return i < mod;
-                }
-
-                @Override public String next() {
-                  return Integer.toString(i++);
-                }
-              };
-            }
+      return new AbstractRouter(params.get(0), sequence(0, mod)) {
+        @Override protected void doWithColumnValue(Object value, Set<String> suffixes) {
+          suffixes.add(subTableName(shardOf(value)));
+        }
 
-            @Override public int size() {
-              return mod;
-            }
-          };
+        @Override protected void doWithColumnValue(Object value, BitSet shards) {
+          shards.set(shardOf(value));
         }
 
-        @Override protected void doWithColumnValue(Object value, Set<String> suffixes) {
+        /**
+         * 第i个子表的序号为i,负数的余数不在子表中,按其后缀分配序号
+         */
+        private int shardOf(Object value) {
+          long remainder;
           if (value instanceof Integer) {
-            suffixes.add(Integer.toString((Integer) value % mod));
+            remainder = (Integer) value % mod;
           } else if (value instanceof Long) {
-            suffixes.add(Long.toString((Long) value % mod));
+            remainder = (Long) value % mod;
           } else {
-            String v = value.toString();
-            suffixes.add(Integer.toString(Integer.parseInt(v) % mod));
+            remainder = Integer.parseInt(value.toString()) % mod;
           }
+          return remainder >= 0 ? (int) remainder : ordinal(Long.toString(remainder));
         }
       };
     }
   },
   /**
-   * month(date)
+   * range(id, 1000, 2000),边界必须递增,n个边界对应n + 1个子表
+   */
+  RANGE("range") {
+    @Override public Router generateRouter(String paramString) {
+      List<String> params = comaSplitter.splitToList(paramString);
+      checkState(params.size() >= 2);
+      long[] boundaries = new long[params.size() - 1];
+      for (int i = 0; i < boundaries.length; i++) {
+        boundaries[i] = Long.parseLong(params.get(i + 1));
+      }
+      return new RangeRouter(params.get(0), boundaries);
+    }
+  },
+  /**
+   * chash(id, 160, 0, 1, 2),每个子表160个虚拟节点的一致性hash,子表后缀为0, 1, 2
+   */
+  CHASH("chash") {
+    @Override public Router generateRouter(String paramString) {
+      List<String> params = comaSplitter.splitToList(paramString);
+      checkState(params.size() >= 3);
+      return new ConsistentHashRouter(params.get(0), Integer.parseInt(params.get(1)),
+          params.subList(2, params.size()), Hashing.murmur3_32());
+    }
+  },
+  /**
+   * date(create_time, 'yyyyMM', '201501'),按时间分桶,见{@link DateRouter}
+   */
+  DATE("date") {
+    @Override public Router generateRouter(String paramString) {
+      List<String> params = comaSplitter.splitToList(paramString);
+      checkState(params.size() == 3 || params.size() == 4);
+      return new DateRouter(params.get(0), unquote(params.get(1)), unquote(params.get(2)),
+          params.size() == 4 ? unquote(params.get(3)) : null);
+    }
+  },
+  /**
+   * month(date),只按月份分为12个子表,不区分年份,需要区分年份时使用date
    */
   MONTH("month") {
-    private final Set<String> ALL = Sets.newHashSet("1 2 3 4 5 6 7 8 9 10 11 12".split(" "));
-
     @Override public Router generateRouter(String paramString) {
-      return new AbstractRouter(paramString.trim()) {
+      return new AbstractRouter(paramString.trim(), sequence(1, 12)) {
         private FastDateFormat fdf = FastDateFormat.getInstance("yyyy-MM-dd");
 
-        @Override protected Set<String> allSubNames() {
-          return ALL;
-        }
-
         @Override protected void doWithColumnValue(Object value, Set<String> suffixes) {
           if (value instanceof Date) {
             suffixes.add(Integer.toString(((Date) value).getMonth() + 1));
           } else {
             try {
               Date date = fdf.parse(value.toString());
-              suffixes.add(Integer.toString(date.getMonth()));
+              suffixes.add(Integer.toString(date.getMonth() + 1));
             } catch (ParseException e) {
               Throwables.propagate(e);
             }
@@ -122,6 +142,21 @@ public enum Routers {
     return func;
   }
 
+  /**
+   * @return 从start开始的count个连续整数组成的子表后缀
+   */
+  static List<String> sequence(int start, int count) {
+    List<String> names = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      names.add(Integer.toString(start + i));
+    }
+    return names;
+  }
+
+  private static String unquote(String param) {
+    return StringUtils.strip(param, "'\"");
+  }
+
   /**
    * @param paramString String from xml.For example, router strategy is mod(id, 5), the paramString
    *                    is 'id, 5'
@@ -0,0 +1,101 @@
+package cn.yxffcode.mtd.core.router;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 不可变的子表序号集合,按位存储.子表名通过{@link AbstractRouter#subTableName(int)}按序号获取.
+ * <p/>
+ * 遍历方式:
+ * <pre>
+ * for (int i = shards.first(); i >= 0; i = shards.next(i + 1)) {
+ *   ...
+ * }
+ * </pre>
+ *
+ * @author gaohang on 16/3/29.
+ */
+public final class ShardSet {
+
+  public static final ShardSet EMPTY = new ShardSet(new long[0], 0);
+
+  private final long[] words;
+  private final int size;
+
+  private ShardSet(long[] words, int size) {
+    this.words = words;
+    this.size = size;
+  }
+
+  public static ShardSet of(BitSet shards) {
+    if (shards.isEmpty()) {
+      return EMPTY;
+    }
+    return new ShardSet(shards.toLongArray(), shards.cardinality());
+  }
+
+  /**
+   * @return 序号为[0, count)的所有子表
+   */
+  public static ShardSet range(int count) {
+    BitSet shards = new BitSet(count);
+    shards.set(0, count);
+    return of(shards);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean contains(int ordinal) {
+    int word = ordinal >>> 6;
+    return ordinal >= 0 && word < words.length && (words[word] & (1L << ordinal)) != 0;
+  }
+
+  /**
+   * @return 最小的序号,为空时返回-1
+   */
+  public int first() {
+    return next(0);
+  }
+
+  /**
+   * @return 不小于from的最小序号,没有时返回-1
+   */
+  public int next(int from) {
+    int word = from >>> 6;
+    if (from < 0 || word >= words.length) {
+      return -1;
+    }
+    long bits = words[word] & (-1L << from);
+    while (true) {
+      if (bits != 0) {
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+      }
+      if (++word == words.length) {
+        return -1;
+      }
+      bits = words[word];
+    }
+  }
+
+  public BitSet toBitSet() {
+    return BitSet.valueOf(words);
+  }
+
+  @Override public boolean equals(Object o) {
+    return o == this || o instanceof ShardSet && Arrays.equals(words, ((ShardSet) o).words);
+  }
+
+  @Override public int hashCode() {
+    return Arrays.hashCode(words);
+  }
+
+  @Override public String toString() {
+    return toBitSet().toString();
+  }
+}
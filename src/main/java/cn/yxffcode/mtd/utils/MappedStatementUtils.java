@@ -1,14 +1,36 @@
 package cn.yxffcode.mtd.utils;
 
 import cn.yxffcode.mtd.core.mybatis.BoundSqlSource;
+import cn.yxffcode.mtd.core.mybatis.ThreadBoundSqlSource;
+import com.google.common.collect.MapMaker;
 import org.apache.ibatis.mapping.BoundSql;
 import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.mapping.ResultMap;
+import org.apache.ibatis.mapping.ResultMapping;
 import org.apache.ibatis.mapping.SqlSource;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
 /**
  * @author gaohang on 16/3/3.
  */
 public final class MappedStatementUtils {
+  /**
+   * 以原始的MappedStatement为key,key为弱引用,Configuration被回收后复制的MappedStatement也会被回收
+   */
+  private static final ConcurrentMap<MappedStatement, MappedStatement> BOUND_MAPPED_STATEMENTS =
+      new MapMaker().weakKeys().makeMap();
+  private static final ConcurrentMap<MappedStatement, MappedStatement> MAP_RESULT_STATEMENTS =
+      new MapMaker().weakKeys().makeMap();
+  private static final ConcurrentMap<MappedStatement, MappedStatement> STREAM_STATEMENTS =
+      new MapMaker().weakKeys().makeMap();
+
   private MappedStatementUtils() {
   }
 
@@ -16,12 +38,65 @@ public final class MappedStatementUtils {
     return copyMappedStatement(ms, new BoundSqlSource(boundSql));
   }
 
+  /**
+   * 获取使用{@link ThreadBoundSqlSource}的MappedStatement,每个MappedStatement只复制一次.
+   * 执行前需要通过{@link ThreadBoundSqlSource#bind(BoundSql)}绑定BoundSql.
+   */
+  public static MappedStatement getBoundMappedStatement(MappedStatement ms) {
+    MappedStatement bound = BOUND_MAPPED_STATEMENTS.get(ms);
+    if (bound == null) {
+      //并发复制时结果相同,不需要加锁
+      bound = copyMappedStatement(ms, ThreadBoundSqlSource.INSTANCE);
+      BOUND_MAPPED_STATEMENTS.put(ms, bound);
+    }
+    return bound;
+  }
+
+  /**
+   * 获取流式查询使用的MappedStatement,与{@link #getBoundMappedStatement(MappedStatement)}相同,
+   * 但fetch size为指定的值,fetchSize为null时使用ms中的配置.
+   */
+  public static MappedStatement getStreamMappedStatement(MappedStatement ms, Integer fetchSize) {
+    if (fetchSize == null || fetchSize.equals(ms.getFetchSize())) {
+      return getBoundMappedStatement(ms);
+    }
+    MappedStatement stream = STREAM_STATEMENTS.get(ms);
+    if (stream == null || !fetchSize.equals(stream.getFetchSize())) {
+      stream = copyMappedStatement(ms, ThreadBoundSqlSource.INSTANCE, ms.getResultMaps(),
+          fetchSize);
+      STREAM_STATEMENTS.put(ms, stream);
+    }
+    return stream;
+  }
+
+  /**
+   * 获取以HashMap作为查询结果类型的MappedStatement,SqlSource等其它属性与ms相同,
+   * 用于需要取得查询结果中多个列的情况,每个MappedStatement只复制一次.
+   */
+  public static MappedStatement getMapResultMappedStatement(MappedStatement ms) {
+    MappedStatement mapResult = MAP_RESULT_STATEMENTS.get(ms);
+    if (mapResult == null) {
+      ResultMap resultMap = new ResultMap.Builder(ms.getConfiguration(), ms.getId() + "-Map",
+          HashMap.class, Collections.<ResultMapping>emptyList()).build();
+      mapResult = copyMappedStatement(ms, ms.getSqlSource(), Arrays.asList(resultMap),
+          ms.getFetchSize());
+      MAP_RESULT_STATEMENTS.put(ms, mapResult);
+    }
+    return mapResult;
+  }
+
   public static MappedStatement copyMappedStatement(MappedStatement ms, SqlSource sqlSource) {
+    return copyMappedStatement(ms, sqlSource, ms.getResultMaps(), ms.getFetchSize());
+  }
+
+  private static MappedStatement copyMappedStatement(MappedStatement ms, SqlSource sqlSource,
+                                                     List<ResultMap> resultMaps,
+                                                     Integer fetchSize) {
     MappedStatement nms = new MappedStatement.Builder(ms.getConfiguration(), ms.getId(), sqlSource,
         ms.getSqlCommandType()).cache(ms.getCache()).databaseId(ms.getDatabaseId())
-        .fetchSize(ms.getFetchSize()).flushCacheRequired(true).keyGenerator(ms.getKeyGenerator())
+        .fetchSize(fetchSize).flushCacheRequired(true).keyGenerator(ms.getKeyGenerator())
         .parameterMap(ms.getParameterMap()).resource(ms.getResource())
-        .resultMaps(ms.getResultMaps()).resultSetType(ms.getResultSetType())
+        .resultMaps(resultMaps).resultSetType(ms.getResultSetType())
         .statementType(ms.getStatementType()).timeout(ms.getTimeout()).useCache(ms.isUseCache())
         .build();
     Reflections.setField(nms, "keyColumns", ms.getKeyColumns());
@@ -29,4 +104,16 @@ public final class MappedStatementUtils {
     return nms;
   }
 
+  /**
+   * 去掉BoundSql中最后count个参数,BoundSql中的参数列表可能被多个BoundSql共享,所以不能直接修改
+   */
+  public static void removeTrailingParameters(BoundSql boundSql, int count) {
+    if (count <= 0) {
+      return;
+    }
+    List<ParameterMapping> parameterMappings = boundSql.getParameterMappings();
+    Reflections.setField(boundSql, "parameterMappings",
+        new ArrayList<>(parameterMappings.subList(0, parameterMappings.size() - count)));
+  }
+
 }
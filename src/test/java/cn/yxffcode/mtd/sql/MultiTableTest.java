@@ -1,25 +1,126 @@
 package cn.yxffcode.mtd.sql;
 
+import cn.yxffcode.mtd.config.Configuration;
 import cn.yxffcode.mtd.core.FieldMapping;
 import cn.yxffcode.mtd.core.ParameterSupplier;
+import cn.yxffcode.mtd.core.merger.ResultMergeException;
 import cn.yxffcode.mtd.core.merger.ResultMergerImpl;
+import cn.yxffcode.mtd.core.mybatis.MultiTableSqlSession;
+import cn.yxffcode.mtd.core.mybatis.ParallelQueryConfig;
 import cn.yxffcode.mtd.core.parser.ParsedSqlContext;
 import cn.yxffcode.mtd.core.parser.SQLParserImpl;
+import cn.yxffcode.mtd.core.parser.ast.AvgClause;
+import cn.yxffcode.mtd.core.parser.ast.SelectStatement;
 import cn.yxffcode.mtd.core.parser.ast.SqlStatement;
+import cn.yxffcode.mtd.core.parser.ast.UnsupportedStatementException;
+import cn.yxffcode.mtd.core.rewriter.RewriteTemplate;
 import cn.yxffcode.mtd.core.rewriter.SqlRewriterImpl;
+import cn.yxffcode.mtd.core.router.AbstractRouter;
+import cn.yxffcode.mtd.core.router.RouteTableMatcher;
+import cn.yxffcode.mtd.core.router.Router;
+import cn.yxffcode.mtd.core.router.Routers;
+import cn.yxffcode.mtd.core.router.ShardSet;
+import cn.yxffcode.mtd.utils.Reflections;
+import com.google.common.base.Function;
 import com.google.common.base.Supplier;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.builder.xml.dynamic.DynamicSqlSource;
+import org.apache.ibatis.builder.xml.dynamic.IfSqlNode;
+import org.apache.ibatis.builder.xml.dynamic.MixedSqlNode;
+import org.apache.ibatis.builder.xml.dynamic.SqlNode;
+import org.apache.ibatis.builder.xml.dynamic.TextSqlNode;
+import org.apache.ibatis.exceptions.PersistenceException;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.result.DefaultResultContext;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ResultMap;
+import org.apache.ibatis.mapping.ResultMapping;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.mapping.SqlSource;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Plugin;
+import org.apache.ibatis.plugin.Signature;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.ResultContext;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+import org.apache.ibatis.transaction.managed.ManagedTransactionFactory;
 import org.junit.Test;
 
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkState;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author gaohang on 16/3/1.
  */
 public class MultiTableTest {
 
+  private static final ParameterSupplier EMPTY_PARAMETERS = new ParameterSupplier() {
+    @Override public int getParameterCount() {
+      return 0;
+    }
+
+    @Override public Object getParameter(int parameterIndex) {
+      return null;
+    }
+
+    @Override public Object getParameter(String propertyName) {
+      return null;
+    }
+  };
+
+  private static final Supplier<FieldMapping> IDENTITY_MAPPING = new Supplier<FieldMapping>() {
+    @Override public FieldMapping get() {
+      return new FieldMapping() {
+        @Override public String map(String col) {
+          return col;
+        }
+      };
+    }
+  };
+
   @Test
   public void testRewrite() {
     String sql = "select a.i as id, name from crawl_auto a where a.i in (1, 2)";
@@ -45,6 +146,337 @@ public class MultiTableTest {
     }
   }
 
+  @Test
+  public void testRewriteLimit() {
+    String sql = "select a.i as id, name from crawl_auto a where a.i in (1, 2) limit ?, ?";
+    SqlStatement sqlStatement = SQLParserImpl.getInstance().parse(sql);
+    ParsedSqlContext parsedSqlContext = new ParsedSqlContext(sql, sqlStatement);
+
+    Iterator<CharSequence> sqls =
+        SqlRewriterImpl.getInstance().rewrite(parsedSqlContext, new ParameterSupplier() {
+          @Override public int getParameterCount() {
+            return 2;
+          }
+
+          @Override public Object getParameter(int parameterIndex) {
+            return parameterIndex == 0 ? 20 : 10;
+          }
+
+          @Override public Object getParameter(String propertyName) {
+            return null;
+          }
+        });
+    assertEquals(2, parsedSqlContext.getInlinedParameterCount());
+    assertEquals("select a.i as id, name from crawl_auto_1 a where a.i in (1, 2) limit 0, 30",
+        sqls.next().toString());
+    assertEquals("select a.i as id, name from crawl_auto_2 a where a.i in (1, 2) limit 0, 30",
+        sqls.next().toString());
+  }
+
+  @Test
+  public void testRewriteJoin() {
+    String sql = "select a.i, l.msg from crawl_auto a join crawl_log l on a.i = l.auto_id"
+        + " where a.i in (1, 2) and l.log_id in (3, 4)";
+    SqlStatement sqlStatement = SQLParserImpl.getInstance().parse(sql);
+    ParsedSqlContext parsedSqlContext = new ParsedSqlContext(sql, sqlStatement);
+
+    List<CharSequence> sqls = Lists.newArrayList(
+        SqlRewriterImpl.getInstance().rewrite(parsedSqlContext, EMPTY_PARAMETERS));
+    //两张表各两个子表,笛卡尔积共4条SQL
+    Set<String> expected = Sets.newHashSet();
+    for (int auto = 1; auto <= 2; auto++) {
+      for (int log = 3; log <= 4; log++) {
+        expected.add("select a.i, l.msg from crawl_auto_" + auto + " a join crawl_log_" + log
+            + " l on a.i = l.auto_id where a.i in (1, 2) and l.log_id in (3, 4)");
+      }
+    }
+    assertEquals(4, sqls.size());
+    assertEquals(expected, toStrings(sqls));
+  }
+
+  @Test
+  public void testRewriteColocatedJoin() {
+    String sql = "select a.i, d.info from crawl_auto a join crawl_detail d on a.i = d.auto_id"
+        + " where a.i in (1, 2) and d.auto_id in (1, 2)";
+    SqlStatement sqlStatement = SQLParserImpl.getInstance().parse(sql);
+    ParsedSqlContext parsedSqlContext = new ParsedSqlContext(sql, sqlStatement);
+
+    List<CharSequence> sqls = Lists.newArrayList(
+        SqlRewriterImpl.getInstance().rewrite(parsedSqlContext, EMPTY_PARAMETERS));
+    //绑定的表只组合后缀相同的子表
+    assertEquals(Sets.newHashSet(
+        "select a.i, d.info from crawl_auto_1 a join crawl_detail_1 d on a.i = d.auto_id"
+            + " where a.i in (1, 2) and d.auto_id in (1, 2)",
+        "select a.i, d.info from crawl_auto_2 a join crawl_detail_2 d on a.i = d.auto_id"
+            + " where a.i in (1, 2) and d.auto_id in (1, 2)"), toStrings(sqls));
+  }
+
+  @Test
+  public void testRewriteCustomRouter() {
+    //只实现Router接口的路由器按子表后缀组合,实际表名与AbstractRouter相同
+    Router custom = new Router() {
+      @Override public Set<String> subTableNames(ParsedSqlContext parsedSqlContext,
+                                                 ParameterSupplier parameterSupplier) {
+        return Sets.newHashSet("2", "7");
+      }
+
+      @Override public void setTableName(String tableName) {
+      }
+    };
+    Configuration config = Configuration.getInstance();
+    @SuppressWarnings("unchecked")
+    Map<String, Router> routers = (Map<String, Router>) Reflections.getField("routers", config);
+    Map<String, Router> replaced = new HashMap<>(routers);
+    replaced.put("crawl_detail", custom);
+    replaced.put("crawl_log", custom);
+    Reflections.setField(config, "routers", replaced);
+    try {
+      String sql = "select a.i from crawl_auto a join crawl_detail d on a.i = d.auto_id"
+          + " where a.i in (1, 2)";
+      List<CharSequence> sqls = Lists.newArrayList(SqlRewriterImpl.getInstance()
+          .rewrite(new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql)),
+              EMPTY_PARAMETERS));
+      assertEquals(Sets.newHashSet("select a.i from crawl_auto_2 a join crawl_detail_2 d"
+          + " on a.i = d.auto_id where a.i in (1, 2)"), toStrings(sqls));
+
+      sql = "select l.msg from crawl_log l";
+      sqls = Lists.newArrayList(SqlRewriterImpl.getInstance()
+          .rewrite(new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql)),
+              EMPTY_PARAMETERS));
+      assertEquals(Sets.newHashSet("select l.msg from crawl_log_2 l",
+          "select l.msg from crawl_log_7 l"), toStrings(sqls));
+    } finally {
+      Reflections.setField(config, "routers", routers);
+    }
+  }
+
+  @Test
+  public void testRoutePlanReuse() {
+    String sql = "select a.i as id, name from crawl_auto a where a.i = ?";
+    SqlStatement sqlStatement = SQLParserImpl.getInstance().parse(sql);
+
+    //同一条SQL的路由计划只编译一次,每次路由使用不同的参数
+    for (int i = 0; i < 5; i++) {
+      final int id = i + 5;
+      ParsedSqlContext parsedSqlContext = new ParsedSqlContext(sql, sqlStatement);
+      List<CharSequence> sqls = Lists.newArrayList(
+          SqlRewriterImpl.getInstance().rewrite(parsedSqlContext, new ParameterSupplier() {
+            @Override public int getParameterCount() {
+              return 1;
+            }
+
+            @Override public Object getParameter(int parameterIndex) {
+              return id;
+            }
+
+            @Override public Object getParameter(String propertyName) {
+              return null;
+            }
+          }));
+      assertEquals(1, sqls.size());
+      assertEquals("select a.i as id, name from crawl_auto_" + i + " a where a.i = ?",
+          sqls.get(0).toString());
+    }
+  }
+
+  @Test
+  public void testRangeRouter() {
+    Router router = Routers.RANGE.generateRouter("i, 100, 200, 300");
+    router.setTableName("crawl_auto");
+
+    assertEquals(Sets.newHashSet("1"), route(router, "select * from crawl_auto where i = 100"));
+    assertEquals(Sets.newHashSet("1", "2"),
+        route(router, "select * from crawl_auto a where a.i >= 100 and a.i < 300"));
+    assertEquals(Sets.newHashSet("2", "3"),
+        route(router, "select * from crawl_auto where i > 199.5"));
+    assertEquals(Sets.newHashSet("0"), route(router, "select * from crawl_auto where i < 100"));
+    //参数的下标需要包含范围条件中的参数
+    assertEquals(Sets.newHashSet("0", "1", "3"), route(router,
+        "select * from crawl_auto where i between ? and ? or i = ?", 50, 150, 350));
+    assertEquals(Sets.newHashSet("0", "1", "2", "3"),
+        route(router, "select * from crawl_auto where i not between 100 and 200"));
+
+    //小数向下取整,边界左侧的负小数不属于边界所在的子表
+    Router signed = Routers.RANGE.generateRouter("i, 0");
+    signed.setTableName("crawl_auto");
+    assertEquals(Sets.newHashSet("0"), route(signed, "select * from crawl_auto where i = ?", -0.5));
+    assertEquals(Sets.newHashSet("0"), route(signed, "select * from crawl_auto where i = ?",
+        new BigDecimal("-0.5")));
+    assertEquals(Sets.newHashSet("1"), route(signed, "select * from crawl_auto where i = 0.5"));
+  }
+
+  @Test
+  public void testRouteAndOr() {
+    Router router = Routers.MOD.generateRouter("i, 5");
+    router.setTableName("crawl_auto");
+
+    assertEquals(Sets.newHashSet("2"),
+        route(router, "select * from crawl_auto a where a.i in (1, 2) and a.i = 2"));
+    //条件矛盾时只访问一个子表
+    assertEquals(1, route(router, "select * from crawl_auto a where a.i = 1 and a.i = 2").size());
+    assertEquals(Sets.newHashSet("1", "2"), route(router,
+        "select * from crawl_auto a where (a.i = 1 or a.i = ?) and a.name = ?", 2, "x"));
+    assertEquals(5, route(router, "select * from crawl_auto a where a.i = 1 or a.name = 'x'")
+        .size());
+    //与分表字段无关的条件中的参数也需要计数
+    assertEquals(Sets.newHashSet("3"), route(router,
+        "select * from crawl_auto a where a.name like ? and a.id > ? and a.i = ?", "x", 0, 3));
+  }
+
+  @Test
+  public void testRouteContradictionWithoutFixedSubTables() {
+    Router router = Routers.VALUE.generateRouter("i");
+    router.setTableName("crawl_auto");
+    //子表不固定时不能只访问任意一个子表,访问条件中的值所在的子表
+    assertEquals(Sets.newHashSet("1", "2"),
+        route(router, "select * from crawl_auto a where a.i = 1 and a.i = 2"));
+    assertEquals(Sets.newHashSet("1", "2", "3"), route(router,
+        "select * from crawl_auto a where a.i = ? and (a.i = ? or a.i = ?)", 1, 2, 3));
+    assertEquals(Sets.newHashSet("2"),
+        route(router, "select * from crawl_auto a where a.i in (1, 2) and a.i = 2"));
+  }
+
+  @Test
+  public void testShardOrdinals() {
+    AbstractRouter router = (AbstractRouter) Routers.MOD.generateRouter("i, 64");
+    router.setTableName("crawl_auto");
+    StringBuilder sql = new StringBuilder("select * from crawl_auto a where a.i in (?");
+    final Object[] ids = new Object[5000];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = i * 2;
+      if (i > 0) {
+        sql.append(", ?");
+      }
+    }
+    String query = sql.append(")").toString();
+    ShardSet shards = router.subTableOrdinals(
+        new ParsedSqlContext(query, SQLParserImpl.getInstance().parse(query)),
+        new ParameterSupplier() {
+          @Override public int getParameterCount() {
+            return ids.length;
+          }
+
+          @Override public Object getParameter(int parameterIndex) {
+            return ids[parameterIndex];
+          }
+
+          @Override public Object getParameter(String propertyName) {
+            return null;
+          }
+        });
+    //偶数只会落在序号为偶数的子表
+    assertEquals(32, shards.size());
+    int count = 0;
+    for (int i = shards.first(); i >= 0; i = shards.next(i + 1)) {
+      assertEquals(0, i % 2);
+      assertEquals(Integer.toString(i), router.subTableName(i));
+      count++;
+    }
+    assertEquals(32, count);
+    assertFalse(shards.contains(1));
+    assertEquals("crawl_auto_62", router.physicalTableName(62));
+    assertTrue(router.physicalTableName(62) == router.physicalTableName(62));
+  }
+
+  @Test
+  public void testConsistentHashRouter() {
+    Router before = chash(16);
+    Router after = chash(20);
+    String sql = "select * from crawl_auto where i = ?";
+    int moved = 0;
+    for (int id = 0; id < 10000; id++) {
+      String from = route(before, sql, id).iterator().next();
+      String to = route(after, sql, id).iterator().next();
+      if (!from.equals(to)) {
+        //只会迁移到新增的子表
+        assertTrue(Integer.parseInt(to) >= 16);
+        moved++;
+      }
+    }
+    assertTrue("moved " + moved, moved > 1500 && moved < 2500);
+    assertEquals(route(before, "select * from crawl_auto where i = 12345"),
+        route(before, "select * from crawl_auto where i = '12345'"));
+  }
+
+  private static Router chash(int tables) {
+    StringBuilder params = new StringBuilder("i, 160");
+    for (int i = 0; i < tables; i++) {
+      params.append(", ").append(i);
+    }
+    Router router = Routers.CHASH.generateRouter(params.toString());
+    router.setTableName("crawl_auto");
+    return router;
+  }
+
+  @Test
+  public void testDateRouter() {
+    Router router = Routers.DATE.generateRouter("create_time, 'yyyyMM', '201501', '201712'");
+    assertEquals(Sets.newHashSet("201603", "201604", "201605"), route(router, "select * from "
+        + "crawl_log where create_time >= '2016-03-15' and create_time < '2016-06-01'"));
+    assertEquals(Sets.newHashSet("201711", "201712"), route(router,
+        "select * from crawl_log where create_time > ?", new GregorianCalendar(2017, 10, 20)));
+    assertEquals(Collections.singleton("201603"), route(router,
+        "select * from crawl_log where create_time = '2016-03-15 10:00:00'"));
+    assertEquals(Collections.singleton("201603"), route(router,
+        "select * from crawl_log where create_time = ?",
+        new GregorianCalendar(2016, 2, 1).getTime()));
+    assertEquals(36, route(router, "select * from crawl_log").size());
+
+    Router daily = Routers.DATE.generateRouter("create_time, 'yyyyMMdd', '20160101'");
+    assertEquals(Sets.newHashSet("20160228", "20160229", "20160301"), route(daily,
+        "select * from crawl_log where create_time between '2016-02-28' and '2016-03-01'"));
+
+    Router month = Routers.MONTH.generateRouter("create_time");
+    assertEquals(route(month, "select * from crawl_log where create_time = ?",
+        new GregorianCalendar(2016, 2, 15).getTime()),
+        route(month, "select * from crawl_log where create_time = '2016-03-15'"));
+  }
+
+  private static Set<String> route(Router router, String sql, Object... parameters) {
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+    return router.subTableNames(parsedSqlContext, parameters(parameters));
+  }
+
+  private static ParameterSupplier parameters(final Object... parameters) {
+    return new ParameterSupplier() {
+      @Override public int getParameterCount() {
+        return parameters.length;
+      }
+
+      @Override public Object getParameter(int parameterIndex) {
+        return parameters[parameterIndex];
+      }
+
+      @Override public Object getParameter(String propertyName) {
+        return null;
+      }
+    };
+  }
+
+  @Test
+  public void testRouteTableMatcher() {
+    RouteTableMatcher matcher =
+        new RouteTableMatcher(Arrays.asList("crawl_auto", "auto", "order_item"));
+    assertTrue(matcher.matches("select * from crawl_auto"));
+    assertTrue(matcher.matches("select * from CRAWL_AUTO a"));
+    assertTrue(matcher.matches("select * from db.auto where id = 1"));
+    assertTrue(matcher.matches("select * from `order_item`"));
+    //表名必须是完整的标识符
+    assertFalse(matcher.matches("select * from crawl_autos"));
+    assertFalse(matcher.matches("select * from xcrawl_auto"));
+    assertFalse(matcher.matches("select * from order_items"));
+    assertFalse(new RouteTableMatcher(Collections.<String>emptyList()).matches("select 1"));
+  }
+
+  private static Set<String> toStrings(List<CharSequence> sqls) {
+    Set<String> strings = Sets.newHashSet();
+    for (CharSequence sql : sqls) {
+      strings.add(sql.toString());
+    }
+    return strings;
+  }
+
   @Test
   public void testShard() throws SQLException {
     String sql = "select a.i as id, name from table_a a order by i desc limit ?, ?";
@@ -55,8 +487,9 @@ public class MultiTableTest {
 
     List<Object> objects = Lists.newArrayList();
     for (int i = 0; i < 100; i++) {
+      //每个子表的结果已经按order by排好序
       List<Bean> beans = Lists.newArrayList();
-      for (int j = 0; j < 20; j++) {
+      for (int j = 19; j >= 0; j--) {
         Bean bean = new Bean();
         bean.id = i * 20 + j;
         bean.name = "i" + bean.id;
@@ -90,7 +523,812 @@ public class MultiTableTest {
             return null;
           }
         });
-    System.out.println(merge);
+    List<Bean> merged = (List<Bean>) merge;
+    assertEquals(10, merged.size());
+    for (int i = 0; i < merged.size(); i++) {
+      assertEquals(1959 - i, merged.get(i).getId());
+    }
+  }
+
+  @Test
+  public void testOrderByMixedDirections() throws SQLException {
+    String sql = "select a.i as id, a.name as name from table_a a "
+        + "order by a.name asc nulls last, a.i desc";
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+
+    List<Object> objects = Lists.newArrayList();
+    objects.add(Arrays.asList(bean(3, "a"), bean(1, "a"), bean(5, "b"), bean(9, null)));
+    objects.add(Arrays.asList(bean(2, "a"), bean(4, "c"), bean(10, null), bean(7, null)));
+
+    List<Bean> merged = (List<Bean>) ResultMergerImpl.getInstance()
+        .merge(objects, parsedSqlContext, new Supplier<FieldMapping>() {
+          @Override public FieldMapping get() {
+            return new FieldMapping() {
+              @Override public String map(String col) {
+                return col;
+              }
+            };
+          }
+        }, EMPTY_PARAMETERS);
+    int[] expected = {3, 2, 1, 5, 4, 10, 9, 7};
+    assertEquals(expected.length, merged.size());
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], merged.get(i).getId());
+    }
+  }
+
+  @Test
+  public void testOrderByUnsortedTopN() throws SQLException {
+    String sql = "select a.i as id, a.name as name from table_a a order by a.name desc limit 2, 3";
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+    //子表的结果没有按order by排序,如数据库的排序规则不区分大小写
+    List<Object> objects = Lists.newArrayList();
+    objects.add(Arrays.asList(bean(1, "b"), bean(2, "D"), bean(3, "d"), bean(4, "a")));
+    objects.add(Arrays.asList(bean(5, "c"), bean(6, "e"), bean(7, "b")));
+    Configuration config = Configuration.getInstance();
+    Reflections.setField(config, "orderByCollationTrusted", false);
+    try {
+      List<Bean> merged = (List<Bean>) ResultMergerImpl.getInstance()
+          .merge(objects, parsedSqlContext, IDENTITY_MAPPING, EMPTY_PARAMETERS);
+      assertEquals("[Bean{id=5, name='c'}, Bean{id=1, name='b'}, Bean{id=7, name='b'}]",
+          merged.toString());
+      //流式合并同样不能依赖子表的顺序
+      assertFalse(ResultMergerImpl.getInstance().isStreamable(parsedSqlContext));
+    } finally {
+      Reflections.setField(config, "orderByCollationTrusted", true);
+    }
+  }
+
+  @Test
+  public void testOrderByUnsortedDetected() throws SQLException {
+    String sql = "select a.i as id, a.name as name from table_a a order by a.name desc limit 2, 3";
+    //没有配置trust-collation时,归并中发现子表的结果没有排序,自动改为重新排序
+    List<Object> objects = Lists.newArrayList();
+    objects.add(Arrays.asList(bean(1, "b"), bean(2, "D"), bean(3, "d"), bean(4, "a")));
+    objects.add(Arrays.asList(bean(5, "c"), bean(6, "e"), bean(7, "b")));
+    assertEquals("[Bean{id=5, name='c'}, Bean{id=1, name='b'}, Bean{id=7, name='b'}]",
+        merge(sql, objects).toString());
+
+    sql = "select distinct a.i as id, a.name as name from table_a a order by a.name";
+    objects = Lists.newArrayList();
+    objects.add(Arrays.asList(bean(1, "a"), bean(2, "B")));
+    objects.add(Arrays.asList(bean(3, "A"), bean(1, "a")));
+    assertEquals("[Bean{id=3, name='A'}, Bean{id=2, name='B'}, Bean{id=1, name='a'}]",
+        merge(sql, objects).toString());
+  }
+
+  @Test
+  public void testAggregatePromotion() throws SQLException {
+    //int的和溢出时提升为Long
+    List<Object> results = Lists.newArrayList();
+    results.add(Arrays.<Object>asList(Integer.MAX_VALUE));
+    results.add(Arrays.<Object>asList(1));
+    assertEquals(Arrays.<Object>asList(Integer.MAX_VALUE + 1L), merge(
+        "select sum(a.score) as v from crawl_auto a", results));
+
+    //long的和溢出时提升为BigDecimal
+    results = Lists.newArrayList();
+    results.add(Arrays.<Object>asList(Long.MAX_VALUE));
+    results.add(Arrays.<Object>asList(Long.MAX_VALUE));
+    results.add(Arrays.<Object>asList((Object) null));
+    assertEquals(Arrays.<Object>asList(
+        BigDecimal.valueOf(Long.MAX_VALUE).multiply(BigDecimal.valueOf(2))), merge(
+        "select sum(a.score) as v from crawl_auto a", results));
+
+    //不同的驱动返回的count类型不同
+    results = Lists.newArrayList();
+    results.add(Arrays.<Object>asList(new BigDecimal(3)));
+    results.add(Arrays.<Object>asList(BigInteger.valueOf(4)));
+    results.add(Arrays.<Object>asList(5L));
+    assertEquals(Arrays.<Object>asList(12L), merge(
+        "select count(*) as v from crawl_auto a", results));
+
+    results = Lists.newArrayList();
+    results.add(Arrays.<Object>asList(3));
+    results.add(Arrays.<Object>asList(7L));
+    results.add(Arrays.<Object>asList(new BigDecimal("5.5")));
+    assertEquals(Arrays.<Object>asList(7L), merge(
+        "select max(a.score) as v from crawl_auto a", results));
+  }
+
+  @Test
+  public void testStreamMerge() {
+    String sql = "select a.i as id, a.name as name from table_a a order by a.i limit 1, 2";
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+    assertTrue(ResultMergerImpl.getInstance().isStreamable(parsedSqlContext));
+    //记录每个子表被读取的记录数,满足limit后不再读取
+    final int[] reads = new int[1];
+    Function<Object, Object> counter = new Function<Object, Object>() {
+      @Override public Object apply(Object row) {
+        reads[0]++;
+        return row;
+      }
+    };
+    List<Iterator<Object>> sources = Lists.newArrayList();
+    sources.add(Iterators.transform(Arrays.<Object>asList(bean(1, "a"), bean(3, "c"), bean(5, "e"),
+        bean(7, "g")).iterator(), counter));
+    sources.add(Iterators.transform(Arrays.<Object>asList(bean(2, "b"), bean(4, "d"), bean(6, "f"),
+        bean(8, "h")).iterator(), counter));
+    Iterator<Object> merged = ResultMergerImpl.getInstance()
+        .streamMerge(sources, parsedSqlContext, IDENTITY_MAPPING, EMPTY_PARAMETERS);
+    assertEquals("[Bean{id=2, name='b'}, Bean{id=3, name='c'}]",
+        Lists.newArrayList(merged).toString());
+    assertEquals(4, reads[0]);
+
+    sql = "select a.name as name, count(*) as cnt from table_a a group by a.name";
+    parsedSqlContext = new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+    assertFalse(ResultMergerImpl.getInstance().isStreamable(parsedSqlContext));
+  }
+
+  @Test
+  public void testRewriteAvg() throws SQLException {
+    String sql = "select avg(a.score) as v from crawl_auto a where a.i in (1, 2)";
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+    List<CharSequence> sqls = Lists.newArrayList(
+        SqlRewriterImpl.getInstance().rewrite(parsedSqlContext, EMPTY_PARAMETERS));
+    assertTrue(parsedSqlContext.isAvgRewritten());
+    assertEquals(Sets.newHashSet(
+        "select sum(a.score) as mtd_avg_sum, count(a.score) as mtd_avg_count "
+            + "from crawl_auto_1 a where a.i in (1, 2)",
+        "select sum(a.score) as mtd_avg_sum, count(a.score) as mtd_avg_count "
+            + "from crawl_auto_2 a where a.i in (1, 2)"), toStrings(sqls));
+
+    List<Object> results = Lists.newArrayList();
+    results.add(Arrays.asList(avgRow(new BigDecimal("10.5"), 3L)));
+    results.add(Arrays.asList(avgRow(new BigDecimal("4"), 1L)));
+    results.add(Arrays.asList(avgRow(null, 0L)));
+    List<?> merged = (List<?>) ResultMergerImpl.getInstance()
+        .merge(results, parsedSqlContext, null, EMPTY_PARAMETERS);
+    assertEquals(Arrays.asList(new BigDecimal("3.62500")), merged);
+  }
+
+  @Test
+  public void testLocateAvgByAst() {
+    //SQL前面的注释与查询列表中的换行,引号都不影响avg的定位
+    String sql = "/* i:1 */ select a.name,\n  AVG( a.score ) `v`, avg(a.x)\n"
+        + "from crawl_auto a where a.i in (1, 2) group by a.name";
+    SelectStatement selectStatement = (SelectStatement) SQLParserImpl.getInstance().parse(sql);
+    List<AvgClause> avgClauses = selectStatement.getAvgClauses();
+    assertEquals(2, avgClauses.size());
+    assertEquals("v", avgClauses.get(0).getLabel());
+    assertEquals("avg(a.x)", avgClauses.get(1).getLabel());
+
+    List<CharSequence> sqls = Lists.newArrayList(SqlRewriterImpl.getInstance()
+        .rewrite(new ParsedSqlContext(sql, selectStatement), EMPTY_PARAMETERS));
+    assertEquals("/* i:1 */ select a.name,\n  sum(a.score) as mtd_avg_sum, count(a.score) as"
+        + " mtd_avg_count, sum(a.x) as mtd_avg_sum_1, count(a.x) as mtd_avg_count_1\n"
+        + "from crawl_auto_1 a where a.i in (1, 2) group by a.name", sqls.get(0).toString());
+  }
+
+  @Test(expected = UnsupportedStatementException.class)
+  public void testRejectAvgDistinct() {
+    String sql = "select avg(distinct a.score) from crawl_auto a where a.i in (1, 2)";
+    Lists.newArrayList(SqlRewriterImpl.getInstance()
+        .rewrite(new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql)),
+            EMPTY_PARAMETERS));
+  }
+
+  @Test
+  public void testGroupBy() throws SQLException {
+    String sql = "select a.name as name, count(*) as cnt, avg(a.score) as score "
+        + "from crawl_auto a where a.i in (1, 2) group by a.name limit 1, 2";
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+    List<CharSequence> sqls = Lists.newArrayList(
+        SqlRewriterImpl.getInstance().rewrite(parsedSqlContext, EMPTY_PARAMETERS));
+    //子表需要返回所有分组,limit在合并时处理
+    assertEquals(Sets.newHashSet(
+        "select a.name as name, count(*) as cnt, sum(a.score) as mtd_avg_sum, "
+            + "count(a.score) as mtd_avg_count from crawl_auto_1 a where a.i in (1, 2) "
+            + "group by a.name",
+        "select a.name as name, count(*) as cnt, sum(a.score) as mtd_avg_sum, "
+            + "count(a.score) as mtd_avg_count from crawl_auto_2 a where a.i in (1, 2) "
+            + "group by a.name"), toStrings(sqls));
+
+    List<Object> results = Lists.newArrayList();
+    results.add(Arrays.asList(groupRow("a", 2L, 10L, 2L), groupRow("b", 1L, 3L, 1L),
+        groupRow("c", 1L, 5L, 1L)));
+    results.add(Arrays.asList(groupRow("c", 3L, 7L, 3L), groupRow("a", 1L, 2L, 1L)));
+    List<Map<String, Object>> merged = (List<Map<String, Object>>) ResultMergerImpl
+        .getInstance().merge(results, parsedSqlContext, null, EMPTY_PARAMETERS);
+    //分组按第一次出现的顺序排列,跳过第一个分组
+    assertEquals(2, merged.size());
+    assertEquals("b", merged.get(0).get("name"));
+    assertEquals(1L, merged.get(0).get("cnt"));
+    assertEquals("c", merged.get(1).get("name"));
+    assertEquals(4L, merged.get(1).get("cnt"));
+    assertEquals(new BigDecimal("3.0000"), merged.get(1).get("score"));
+    assertFalse(merged.get(1).containsKey("mtd_avg_sum"));
+  }
+
+  @Test
+  public void testGroupByHaving() throws SQLException {
+    String sql = "select a.name as name, count(*) as cnt from crawl_auto a "
+        + "where a.i in (1, 2) group by a.name having count(*) > 2 order by a.name";
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+    List<CharSequence> sqls = Lists.newArrayList(
+        SqlRewriterImpl.getInstance().rewrite(parsedSqlContext, EMPTY_PARAMETERS));
+    //子表中的分组只有部分结果,having在合并后判断
+    assertEquals("select a.name as name, count(*) as cnt from crawl_auto_1 a "
+        + "where a.i in (1, 2) group by a.name order by a.name", sqls.get(0).toString());
+
+    List<Object> results = Lists.newArrayList();
+    results.add(Arrays.asList(groupRow("a", 2L, 0L, 0L), groupRow("b", 3L, 0L, 0L),
+        groupRow("c", 1L, 0L, 0L)));
+    results.add(Arrays.asList(groupRow("a", 1L, 0L, 0L), groupRow("c", 1L, 0L, 0L)));
+    List<Map<String, Object>> merged = (List<Map<String, Object>>) ResultMergerImpl
+        .getInstance().merge(results, parsedSqlContext, IDENTITY_MAPPING, EMPTY_PARAMETERS);
+    //a在每个子表中都不满足having,合并后满足
+    assertEquals(2, merged.size());
+    assertEquals("a", merged.get(0).get("name"));
+    assertEquals(3L, merged.get(0).get("cnt"));
+    assertEquals("b", merged.get(1).get("name"));
+  }
+
+  @Test
+  public void testGroupByHavingNotSelected() throws SQLException {
+    List<Object> results = Lists.newArrayList();
+    results.add(Arrays.asList(groupRow("a", 2L, 0L, 0L)));
+    results.add(Arrays.asList(groupRow("a", 1L, 0L, 0L)));
+    //having中的聚合函数与*都不能与合并后的分组中的值对应
+    for (String sql : new String[]{
+        "select a.name as name from crawl_auto a where a.i in (1, 2) "
+            + "group by a.name having count(*) > 2",
+        "select a.*, count(*) as cnt from crawl_auto a where a.i in (1, 2) "
+            + "group by a.name having count(*) > 2"}) {
+      ParsedSqlContext parsedSqlContext =
+          new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+      SqlRewriterImpl.getInstance().rewrite(parsedSqlContext, EMPTY_PARAMETERS);
+      try {
+        ResultMergerImpl.getInstance()
+            .merge(results, parsedSqlContext, IDENTITY_MAPPING, EMPTY_PARAMETERS);
+        fail("having on values that are not selected cannot be merged");
+      } catch (ResultMergeException e) {
+        //expected
+      }
+    }
+  }
+
+  @Test
+  public void testGroupByHavingParameters() throws SQLException {
+    String sql = "select a.name as name, count(*) as cnt from crawl_auto a "
+        + "where a.i in (?, ?) group by a.name having cnt >= ? and a.name <> ? limit ?";
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+    ParameterSupplier parameters = parameters(1, 2, 3, "b", 1);
+    List<CharSequence> sqls = Lists.newArrayList(
+        SqlRewriterImpl.getInstance().rewrite(parsedSqlContext, parameters));
+    assertEquals("select a.name as name, count(*) as cnt from crawl_auto_1 a "
+        + "where a.i in (?, ?) group by a.name", sqls.get(0).toString());
+    //having与limit的参数都不传给子表
+    assertEquals(3, parsedSqlContext.getInlinedParameterCount());
+
+    List<Object> results = Lists.newArrayList();
+    results.add(Arrays.asList(groupRow("a", 2L, 0L, 0L), groupRow("b", 3L, 0L, 0L),
+        groupRow("c", 1L, 0L, 0L)));
+    results.add(Arrays.asList(groupRow("c", 2L, 0L, 0L), groupRow("a", 1L, 0L, 0L),
+        groupRow("d", 1L, 0L, 0L)));
+    List<Map<String, Object>> merged = (List<Map<String, Object>>) ResultMergerImpl
+        .getInstance().merge(results, parsedSqlContext, IDENTITY_MAPPING, parameters);
+    assertEquals(1, merged.size());
+    assertEquals("a", merged.get(0).get("name"));
+  }
+
+  @Test
+  public void testSortedGroupBy() throws SQLException {
+    String sql = "select a.name as name, max(a.i) as id from table_a a group by a.name "
+        + "order by a.name desc";
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+
+    List<Object> objects = Lists.newArrayList();
+    objects.add(Arrays.asList(bean(3, "c"), bean(8, "b"), bean(1, "a")));
+    objects.add(Arrays.asList(bean(5, "c"), bean(2, "a")));
+    objects.add(Arrays.asList(bean(4, "b")));
+    List<Bean> merged = (List<Bean>) ResultMergerImpl.getInstance()
+        .merge(objects, parsedSqlContext, new Supplier<FieldMapping>() {
+          @Override public FieldMapping get() {
+            return new FieldMapping() {
+              @Override public String map(String col) {
+                return col;
+              }
+            };
+          }
+        }, EMPTY_PARAMETERS);
+    assertEquals(3, merged.size());
+    assertEquals("c", merged.get(0).getName());
+    assertEquals(5, merged.get(0).getId());
+    assertEquals("b", merged.get(1).getName());
+    assertEquals(8, merged.get(1).getId());
+    assertEquals("a", merged.get(2).getName());
+    assertEquals(2, merged.get(2).getId());
+  }
+
+  @Test
+  public void testMultiAggregate() throws SQLException {
+    String sql = "select count(*) as cnt, max(a.ts) as ts, sum(a.amount) as amount "
+        + "from table_a a";
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+
+    //每一列分别合并
+    List<Object> results = Lists.newArrayList();
+    results.add(Collections.singletonList(new Object[] {3L, 20L, new BigDecimal("1.5")}));
+    results.add(Collections.singletonList(new Object[] {0L, null, null}));
+    results.add(Collections.singletonList(new Object[] {2L, 35L, new BigDecimal("2.25")}));
+    List<Object[]> merged = (List<Object[]>) ResultMergerImpl.getInstance()
+        .merge(results, parsedSqlContext, new Supplier<FieldMapping>() {
+          @Override public FieldMapping get() {
+            return new FieldMapping() {
+              @Override public String map(String col) {
+                return col;
+              }
+            };
+          }
+        }, EMPTY_PARAMETERS);
+    assertEquals(1, merged.size());
+    assertEquals(Arrays.<Object>asList(5L, 35L, new BigDecimal("3.75")),
+        Arrays.asList(merged.get(0)));
+  }
+
+  @Test
+  public void testMultiAggregateWithAvg() throws SQLException {
+    String sql = "select count(*) as cnt, avg(a.score) from crawl_auto a where a.i in (1, 2)";
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+    List<CharSequence> sqls = Lists.newArrayList(
+        SqlRewriterImpl.getInstance().rewrite(parsedSqlContext, EMPTY_PARAMETERS));
+    assertTrue(parsedSqlContext.isAvgRewritten());
+    assertEquals("select count(*) as cnt, sum(a.score) as mtd_avg_sum, "
+        + "count(a.score) as mtd_avg_count from crawl_auto_1 a where a.i in (1, 2)",
+        sqls.get(0).toString());
+
+    List<Object> results = Lists.newArrayList();
+    results.add(Arrays.asList(groupRow(null, 4L, 10L, 3L)));
+    results.add(Arrays.asList(groupRow(null, 1L, 5L, 1L)));
+    List<Map<String, Object>> merged = (List<Map<String, Object>>) ResultMergerImpl
+        .getInstance().merge(results, parsedSqlContext, null, EMPTY_PARAMETERS);
+    assertEquals(1, merged.size());
+    assertEquals(5L, merged.get(0).get("cnt"));
+    //没有别名时使用原始SQL中的表达式作为列名
+    assertEquals(new BigDecimal("3.7500"), merged.get(0).get("avg(a.score)"));
+  }
+
+  @Test
+  public void testLimitView() throws SQLException {
+    String sql = "select a.i as id from table_a a limit 2, 4";
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+    List<Object> objects = Lists.newArrayList();
+    objects.add(Arrays.asList(1, 2));
+    objects.add(Collections.emptyList());
+    objects.add(Arrays.asList(3, 4, 5));
+    objects.add(Arrays.asList(6, 7));
+    //不复制记录,随机访问与遍历跨越多个子表的结果
+    List<Object> merged = (List<Object>) ResultMergerImpl.getInstance()
+        .merge(objects, parsedSqlContext, IDENTITY_MAPPING, EMPTY_PARAMETERS);
+    assertTrue(merged instanceof RandomAccess);
+    assertEquals(Arrays.<Object>asList(3, 4, 5, 6), merged);
+    assertEquals(6, merged.get(3));
+    assertEquals(Arrays.<Object>asList(5, 6), merged.subList(2, 4));
+  }
+
+  @Test
+  public void testDistinct() throws SQLException {
+    String sql = "select distinct a.i as id, a.name as name from table_a a limit 1, 3";
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+    List<Object> objects = Lists.newArrayList();
+    objects.add(Arrays.asList(bean(1, "a"), bean(2, "b"), bean(1, "b")));
+    objects.add(Arrays.asList(bean(2, "b"), bean(1, "a"), bean(3, "c")));
+    List<Bean> merged = (List<Bean>) ResultMergerImpl.getInstance()
+        .merge(objects, parsedSqlContext, IDENTITY_MAPPING, EMPTY_PARAMETERS);
+    assertEquals("[Bean{id=2, name='b'}, Bean{id=1, name='b'}, Bean{id=3, name='c'}]",
+        merged.toString());
+
+    //有order by时,重复的记录在order by的值相同的一段记录中
+    sql = "select distinct a.i as id, a.name as name from table_a a order by a.i";
+    parsedSqlContext = new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+    objects = Lists.newArrayList();
+    objects.add(Arrays.asList(bean(1, "a"), bean(1, "b"), bean(2, "b")));
+    objects.add(Arrays.asList(bean(1, "b"), bean(1, "a"), bean(2, "b"), bean(3, "c")));
+    merged = (List<Bean>) ResultMergerImpl.getInstance()
+        .merge(objects, parsedSqlContext, IDENTITY_MAPPING, EMPTY_PARAMETERS);
+    assertEquals("[Bean{id=1, name='a'}, Bean{id=1, name='b'}, Bean{id=2, name='b'}, "
+        + "Bean{id=3, name='c'}]", merged.toString());
+  }
+
+  @Test
+  public void testDistinctSpill() throws SQLException {
+    String sql = "select distinct a.i as id, a.name as name from table_a a";
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+    //记录数超过配置的spill-rows,使用临时文件去重
+    List<Object> objects = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      List<Map<String, Object>> rows = Lists.newArrayList();
+      for (int j = 0; j < 1000; j++) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("id", j * (i + 1) % 1500);
+        row.put("name", new SpilledName("n"));
+        rows.add(row);
+      }
+      objects.add(rows);
+    }
+    SpilledName.WRITES.set(0);
+    List<Map<String, Object>> merged = (List<Map<String, Object>>) ResultMergerImpl
+        .getInstance().merge(objects, parsedSqlContext, IDENTITY_MAPPING, EMPTY_PARAMETERS);
+    //去重的值写入了临时文件
+    assertEquals(3000, SpilledName.WRITES.get());
+    Set<Object> expected = Sets.newLinkedHashSet();
+    for (Object rows : objects) {
+      for (Map<String, Object> row : (List<Map<String, Object>>) rows) {
+        expected.add(row.get("id"));
+      }
+    }
+    List<Object> ids = Lists.newArrayList();
+    for (Map<String, Object> row : merged) {
+      ids.add(row.get("id"));
+    }
+    assertEquals(Lists.newArrayList(expected), ids);
+  }
+
+  @Test
+  public void testParallelQuery() throws InterruptedException {
+    SubTableInterceptor interceptor = new SubTableInterceptor(null);
+    org.apache.ibatis.session.Configuration configuration = mybatisConfiguration(interceptor);
+    String sql = "select i, name from crawl_auto where i in (1, 2, 3, 4) order by i";
+    addStatement(configuration, "select", sql, SqlCommandType.SELECT);
+
+    List<Object> serial = new MultiTableSqlSession(configuration, newExecutor(configuration))
+        .selectList("select");
+    assertEquals(Collections.singleton(Thread.currentThread()), interceptor.threads);
+
+    interceptor.threads.clear();
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    try {
+      MultiTableSqlSession session = new MultiTableSqlSession(configuration,
+          newExecutor(configuration), new ParallelQueryConfig(executorService, 2, 3));
+      List<Object> parallel = session.selectList("select");
+      assertEquals(serial, parallel);
+      assertEquals(8, parallel.size());
+      assertEquals(1, ((Map<String, Object>) parallel.get(0)).get("i"));
+      assertEquals(9, ((Map<String, Object>) parallel.get(7)).get("i"));
+      //子表SQL在线程池中执行
+      assertFalse(interceptor.threads.contains(Thread.currentThread()));
+    } finally {
+      executorService.shutdownNow();
+      executorService.awaitTermination(1, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void testParallelQueryReleasesPermitsOnError() throws InterruptedException {
+    SubTableInterceptor interceptor = new SubTableInterceptor("crawl_auto_2");
+    org.apache.ibatis.session.Configuration configuration = mybatisConfiguration(interceptor);
+    addStatement(configuration, "select", "select i, name from crawl_auto where i in (1, 2, 3, 4)",
+        SqlCommandType.SELECT);
+    ExecutorService executorService = Executors.newFixedThreadPool(2);
+    MultiTableSqlSession session = new MultiTableSqlSession(configuration,
+        newExecutor(configuration), new ParallelQueryConfig(executorService, 2, 2));
+    try {
+      session.selectList("select");
+      fail("the failed sub table query should be thrown");
+    } catch (PersistenceException e) {
+      assertTrue(e.getCause() instanceof SQLException);
+    } finally {
+      //等待剩余的子表SQL结束后再检查许可
+      executorService.shutdown();
+      assertTrue(executorService.awaitTermination(1, TimeUnit.SECONDS));
+    }
+    assertEquals(2, sessionPermits(session).availablePermits());
+  }
+
+  @Test
+  public void testDirtySessionQueriesSerially() throws InterruptedException {
+    SubTableInterceptor interceptor = new SubTableInterceptor(null);
+    org.apache.ibatis.session.Configuration configuration = mybatisConfiguration(interceptor);
+    addStatement(configuration, "select", "select i, name from crawl_auto where i in (1, 2, 3)",
+        SqlCommandType.SELECT);
+    addStatement(configuration, "update", "update crawl_auto set name = 'n' where i = 1",
+        SqlCommandType.UPDATE);
+    ExecutorService executorService = Executors.newFixedThreadPool(3);
+    try {
+      MultiTableSqlSession session = new MultiTableSqlSession(configuration,
+          newExecutor(configuration), new ParallelQueryConfig(executorService, 3, 3));
+      assertEquals(1, session.update("update"));
+      //有未提交的修改时其他连接看不到,需要在当前连接上串行查询
+      interceptor.threads.clear();
+      assertEquals(6, session.selectList("select").size());
+      assertEquals(Collections.singleton(Thread.currentThread()), interceptor.threads);
+
+      session.commit();
+      interceptor.threads.clear();
+      assertEquals(6, session.selectList("select").size());
+      assertFalse(interceptor.threads.contains(Thread.currentThread()));
+    } finally {
+      executorService.shutdownNow();
+      executorService.awaitTermination(1, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void testStreamQuery() throws InterruptedException {
+    SubTableInterceptor interceptor = new SubTableInterceptor(null);
+    org.apache.ibatis.session.Configuration configuration = mybatisConfiguration(interceptor);
+    addStatement(configuration, "select",
+        "select i, name from crawl_auto where i in (1, 2, 3, 4) order by i", SqlCommandType.SELECT);
+    addStatement(configuration, "limit",
+        "select i, name from crawl_auto where i in (1, 2, 3, 4) order by i limit 3",
+        SqlCommandType.SELECT);
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    try {
+      MultiTableSqlSession session = new MultiTableSqlSession(configuration,
+          newExecutor(configuration), new ParallelQueryConfig(executorService, 4, 4));
+      RowCollector rows = new RowCollector();
+      session.select("select", rows);
+      assertEquals(Arrays.asList(1, 2, 3, 4, 6, 7, 8, 9), rows.ids);
+      assertFalse(interceptor.threads.contains(Thread.currentThread()));
+      assertEquals(4, sessionPermits(session).availablePermits());
+
+      //满足limit后停止读取子表的结果
+      rows = new RowCollector();
+      session.select("limit", rows);
+      assertEquals(Arrays.asList(1, 2, 3), rows.ids);
+      assertEquals(4, sessionPermits(session).availablePermits());
+    } finally {
+      executorService.shutdownNow();
+      executorService.awaitTermination(1, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void testStreamQueryError() throws InterruptedException {
+    SubTableInterceptor interceptor = new SubTableInterceptor("crawl_auto_3");
+    org.apache.ibatis.session.Configuration configuration = mybatisConfiguration(interceptor);
+    addStatement(configuration, "select",
+        "select i, name from crawl_auto where i in (1, 2, 3, 4) order by i", SqlCommandType.SELECT);
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    try {
+      MultiTableSqlSession session = new MultiTableSqlSession(configuration,
+          newExecutor(configuration), new ParallelQueryConfig(executorService, 4, 4));
+      try {
+        session.select("select", new RowCollector());
+        fail("the failed sub table query should be thrown");
+      } catch (PersistenceException e) {
+        //关闭时等待所有子表SQL结束后释放许可
+        assertEquals(4, sessionPermits(session).availablePermits());
+      }
+    } finally {
+      executorService.shutdownNow();
+      executorService.awaitTermination(1, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void testStreamQueryWithBusyPool() throws InterruptedException {
+    SubTableInterceptor interceptor = new SubTableInterceptor(null);
+    org.apache.ibatis.session.Configuration configuration = mybatisConfiguration(interceptor);
+    addStatement(configuration, "select",
+        "select i, name from crawl_auto where i in (1, 2, 3, 4) order by i", SqlCommandType.SELECT);
+    ExecutorService executorService = Executors.newFixedThreadPool(2);
+    final CountDownLatch busy = new CountDownLatch(1);
+    try {
+      //线程池中只有一个空闲线程,不能同时执行4条子表SQL
+      executorService.submit(new Callable<Void>() {
+        @Override public Void call() throws InterruptedException {
+          busy.await();
+          return null;
+        }
+      });
+      MultiTableSqlSession session = new MultiTableSqlSession(configuration,
+          newExecutor(configuration), new ParallelQueryConfig(executorService, 4, 4));
+      RowCollector rows = new RowCollector();
+      //等待开始执行超时后改为在所有子表的结果返回后归并
+      session.select("select", rows);
+      assertEquals(Arrays.asList(1, 2, 3, 4, 6, 7, 8, 9), rows.ids);
+      assertEquals(4, sessionPermits(session).availablePermits());
+    } finally {
+      busy.countDown();
+      executorService.shutdownNow();
+      executorService.awaitTermination(1, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void testRouteFilterVerdicts() {
+    final org.apache.ibatis.session.Configuration configuration =
+        new org.apache.ibatis.session.Configuration();
+    final AtomicInteger staticBounds = new AtomicInteger();
+    addStatement(configuration, "static",
+        new StaticSqlSource(configuration, "select * from other_table where id = 1") {
+          @Override public BoundSql getBoundSql(Object parameterObject) {
+            staticBounds.incrementAndGet();
+            return super.getBoundSql(parameterObject);
+          }
+        }, SqlCommandType.SELECT);
+    final AtomicInteger placeholderBounds = new AtomicInteger();
+    addStatement(configuration, "placeholder",
+        new DynamicSqlSource(configuration, new TextSqlNode("select * from ${table}")) {
+          @Override public BoundSql getBoundSql(Object parameterObject) {
+            placeholderBounds.incrementAndGet();
+            return super.getBoundSql(parameterObject);
+          }
+        }, SqlCommandType.SELECT);
+    final AtomicInteger dynamicBounds = new AtomicInteger();
+    addStatement(configuration, "dynamic", new DynamicSqlSource(configuration, new MixedSqlNode(
+        Arrays.<SqlNode>asList(new TextSqlNode("select * from other_table"),
+            new IfSqlNode(new TextSqlNode(" where id = #{id}"), "id != null")))) {
+      @Override public BoundSql getBoundSql(Object parameterObject) {
+        dynamicBounds.incrementAndGet();
+        return super.getBoundSql(parameterObject);
+      }
+    }, SqlCommandType.SELECT);
+    //不需要分表的SQL直接交给executor,不会访问数据库
+    Executor executor = (Executor) Proxy.newProxyInstance(MultiTableTest.class.getClassLoader(),
+        new Class<?>[]{Executor.class}, new InvocationHandler() {
+          @Override public Object invoke(Object proxy, Method method, Object[] args) {
+            return "query".equals(method.getName()) ? Collections.emptyList() : null;
+          }
+        });
+    MultiTableSqlSession session = new MultiTableSqlSession(configuration, executor);
+    Map<String, Object> params = new HashMap<>();
+    params.put("table", "other_table");
+    params.put("id", 1);
+    for (int i = 1; i <= 3; i++) {
+      session.selectList("static", params);
+      session.selectList("placeholder", params);
+      session.selectList("dynamic", params);
+      //SQL不变的语句只在第一次判断是否需要分表,之后不再生成SQL
+      assertEquals(1, staticBounds.get());
+      //包含${}或动态标签的语句每次都需要判断
+      assertEquals(i, placeholderBounds.get());
+      assertEquals(i, dynamicBounds.get());
+    }
+  }
+
+  /**
+   * 子表SQL由interceptor返回结果,不需要连接数据库
+   */
+  private static org.apache.ibatis.session.Configuration mybatisConfiguration(
+      Interceptor interceptor) {
+    DataSource dataSource = (DataSource) Proxy.newProxyInstance(
+        MultiTableTest.class.getClassLoader(), new Class<?>[]{DataSource.class},
+        new InvocationHandler() {
+          @Override public Object invoke(Object proxy, Method method, Object[] args) {
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    org.apache.ibatis.session.Configuration configuration =
+        new org.apache.ibatis.session.Configuration(
+            new Environment("test", new ManagedTransactionFactory(), dataSource));
+    configuration.addInterceptor(interceptor);
+    return configuration;
+  }
+
+  private static void addStatement(org.apache.ibatis.session.Configuration configuration,
+                                   String id, String sql, SqlCommandType type) {
+    addStatement(configuration, id, new StaticSqlSource(configuration, sql), type);
+  }
+
+  private static void addStatement(org.apache.ibatis.session.Configuration configuration,
+                                   String id, SqlSource sqlSource, SqlCommandType type) {
+    ResultMap resultMap = new ResultMap.Builder(configuration, id + "-map", HashMap.class,
+        new ArrayList<ResultMapping>()).build();
+    configuration.addMappedStatement(new MappedStatement.Builder(configuration, id,
+        sqlSource, type).resultMaps(Collections.singletonList(resultMap)).build());
+  }
+
+  private static Executor newExecutor(org.apache.ibatis.session.Configuration configuration) {
+    Environment environment = configuration.getEnvironment();
+    return configuration.newExecutor(environment.getTransactionFactory()
+        .newTransaction(environment.getDataSource(), null, false), ExecutorType.SIMPLE, false);
+  }
+
+  @Test
+  public void testRewriteTemplateMultiLine() {
+    String sql = "select a.i, a.name\n"
+        + "from crawl_auto a\n"
+        + "  join crawl_detail d on a.i = d.auto_id\n"
+        + "where a.name = 'crawl_auto' and d.auto_id = 1";
+    //字符串中的表名与别名都不改写
+    assertEquals("select a.i, a.name\n"
+            + "from crawl_auto_1 a\n"
+            + "  join crawl_detail_1 d on a.i = d.auto_id\n"
+            + "where a.name = 'crawl_auto' and d.auto_id = 1",
+        render(sql, "crawl_auto", "crawl_auto_1", "crawl_detail", "crawl_detail_1"));
+  }
+
+  @Test
+  public void testRewriteTemplateQualifiedColumns() {
+    String sql = "select crawl_auto.i,\n"
+        + "  crawl_auto.name as crawl_auto_name\n"
+        + "from crawl_auto\n"
+        + "where crawl_auto.i = 1 and crawl_auto.name like '%crawl_auto.i%'";
+    assertEquals("select crawl_auto_1.i,\n"
+            + "  crawl_auto_1.name as crawl_auto_name\n"
+            + "from crawl_auto_1\n"
+            + "where crawl_auto_1.i = 1 and crawl_auto_1.name like '%crawl_auto.i%'",
+        render(sql, "crawl_auto", "crawl_auto_1"));
+  }
+
+  @Test
+  public void testRewriteTemplateHint() {
+    String sql = "select /*+ index(_crawl_auto_ idx_i) */ i\n"
+        + "from crawl_auto /* crawl_auto */\n"
+        + "where i = 1";
+    //只改写注释中"_表名_"形式的表名
+    assertEquals("select /*+ index(_crawl_auto_1_ idx_i) */ i\n"
+            + "from crawl_auto_1 /* crawl_auto */\n"
+            + "where i = 1",
+        render(sql, "crawl_auto", "crawl_auto_1"));
+  }
+
+  @Test
+  public void testRewriteTemplateQuoted() {
+    String sql = "select `crawl_auto`.i from `crawl_auto`\n"
+        + "where `crawl_auto`.name = '`crawl_auto`'";
+    //保留引号,只替换引号中的表名
+    assertEquals("select `crawl_auto_1`.i from `crawl_auto_1`\n"
+            + "where `crawl_auto_1`.name = '`crawl_auto`'",
+        render(sql, "crawl_auto", "crawl_auto_1"));
+
+    sql = "select \"crawl_auto\".i from \"crawl_auto\" a where a.i = 1";
+    assertEquals("select \"crawl_auto_1\".i from \"crawl_auto_1\" a where a.i = 1",
+        render(sql, "crawl_auto", "crawl_auto_1"));
+  }
+
+  /**
+   * @param tables 逻辑表名与实际表名交替出现
+   */
+  private static String render(String sql, String... tables) {
+    RewriteTemplate template = SQLParserImpl.getInstance().parse(sql).getRewriteTemplate();
+    assertEquals(tables.length / 2, template.getLogicTableCount());
+    String[] physicalTables = new String[template.getLogicTableCount()];
+    for (int i = 0; i < tables.length; i += 2) {
+      physicalTables[template.indexOf(tables[i])] = tables[i + 1];
+    }
+    return template.render(physicalTables);
+  }
+
+  private static Semaphore sessionPermits(MultiTableSqlSession session) {
+    return (Semaphore) Reflections
+        .getField("sessionPermits", Reflections.getField("parallelQueryExecutor", session));
+  }
+
+  private static Object merge(String sql, List<Object> results) throws SQLException {
+    ParsedSqlContext parsedSqlContext =
+        new ParsedSqlContext(sql, SQLParserImpl.getInstance().parse(sql));
+    return ResultMergerImpl.getInstance()
+        .merge(results, parsedSqlContext, IDENTITY_MAPPING, EMPTY_PARAMETERS);
+  }
+
+  private static Map<String, Object> groupRow(String name, long cnt, long sum, long count) {
+    Map<String, Object> row = new HashMap<>();
+    row.put("name", name);
+    row.put("cnt", cnt);
+    row.put("mtd_avg_sum", BigDecimal.valueOf(sum));
+    row.put("mtd_avg_count", count);
+    return row;
+  }
+
+  private static Map<String, Object> avgRow(Object sum, Object count) {
+    Map<String, Object> row = new HashMap<>();
+    row.put("MTD_AVG_SUM", sum);
+    row.put("MTD_AVG_COUNT", count);
+    return row;
+  }
+
+  private static Bean bean(int id, String name) {
+    Bean bean = new Bean();
+    bean.id = id;
+    bean.name = name;
+    return bean;
   }
 
   public static class Bean {
@@ -120,4 +1358,99 @@ public class MultiTableTest {
           '}';
     }
   }
+
+  /**
+   * 按子表后缀返回两条记录,i为后缀与后缀加5,并记录执行子表SQL的线程
+   */
+  @Intercepts({
+      @Signature(type = Executor.class, method = "query",
+          args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class}),
+      @Signature(type = Executor.class, method = "update",
+          args = {MappedStatement.class, Object.class})})
+  private static final class SubTableInterceptor implements Interceptor {
+    private static final Pattern SUB_TABLE = Pattern.compile("crawl_auto_(\\d+)");
+
+    private final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+    private final String failedTable;
+
+    private SubTableInterceptor(String failedTable) {
+      this.failedTable = failedTable;
+    }
+
+    @Override public Object intercept(Invocation invocation) throws Throwable {
+      threads.add(Thread.currentThread());
+      Object[] args = invocation.getArgs();
+      String sql = ((MappedStatement) args[0]).getBoundSql(args[1]).getSql();
+      if (failedTable != null && sql.contains(failedTable)) {
+        throw new SQLException("failed to query " + failedTable);
+      }
+      if ("update".equals(invocation.getMethod().getName())) {
+        return 1;
+      }
+      Matcher matcher = SUB_TABLE.matcher(sql);
+      checkState(matcher.find(), "not a sub table sql: %s", sql);
+      int suffix = Integer.parseInt(matcher.group(1));
+      List<Object> rows = Lists.newArrayList();
+      for (int i : new int[]{suffix, suffix + 5}) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("i", i);
+        row.put("name", "n" + i);
+        rows.add(row);
+      }
+      ResultHandler handler = (ResultHandler) args[3];
+      if (handler == null) {
+        return rows;
+      }
+      DefaultResultContext context = new DefaultResultContext();
+      for (int i = 0; i < rows.size() && !context.isStopped(); i++) {
+        context.nextResultObject(rows.get(i));
+        handler.handleResult(context);
+      }
+      return Collections.emptyList();
+    }
+
+    @Override public Object plugin(Object target) {
+      return Plugin.wrap(target, this);
+    }
+
+    @Override public void setProperties(Properties properties) {
+    }
+  }
+
+  /**
+   * 记录流式查询返回的i
+   */
+  private static final class RowCollector implements ResultHandler {
+    private final List<Object> ids = Lists.newArrayList();
+
+    @Override public void handleResult(ResultContext context) {
+      ids.add(((Map<String, Object>) context.getResultObject()).get("i"));
+    }
+  }
+
+  /**
+   * 记录被序列化的次数,用于确认distinct使用了临时文件
+   */
+  private static final class SpilledName implements Serializable {
+    private static final AtomicInteger WRITES = new AtomicInteger();
+
+    private final String name;
+
+    private SpilledName(String name) {
+      this.name = name;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+      WRITES.incrementAndGet();
+      out.defaultWriteObject();
+    }
+
+    @Override public boolean equals(Object o) {
+      return o instanceof SpilledName && name.equals(((SpilledName) o).name);
+    }
+
+    @Override public int hashCode() {
+      return name.hashCode();
+    }
+  }
 }
@@ -1,14 +1,25 @@
 package cn.yxffcode.mtd.sql;
 
+import cn.yxffcode.mtd.core.parser.SqlStatementCache;
+import cn.yxffcode.mtd.core.parser.ast.SelectStatement;
+import cn.yxffcode.mtd.core.parser.ast.SqlStatement;
+import cn.yxffcode.mtd.core.parser.ast.UnsupportedStatementException;
+import com.google.common.base.Function;
 import net.sf.jsqlparser.JSQLParserException;
 import net.sf.jsqlparser.parser.CCJSqlParserManager;
 import net.sf.jsqlparser.parser.JSqlParser;
 import net.sf.jsqlparser.statement.Statement;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 /**
  * @author gaohang on 16/3/3.
@@ -24,4 +35,50 @@ public class TestSqlParser {
       System.out.println(statement);
     }
   }
+
+  @Test
+  public void testStatementCache() throws IOException {
+    final AtomicInteger loads = new AtomicInteger();
+    Function<String, SqlStatement> loader = new Function<String, SqlStatement>() {
+      @Override public SqlStatement apply(String sql) {
+        loads.incrementAndGet();
+        if (sql.startsWith("bad")) {
+          throw new UnsupportedStatementException("bad sql");
+        }
+        return new SelectStatement();
+      }
+    };
+    SqlStatementCache cache = new SqlStatementCache(2, false, 60000);
+    SqlStatement first = cache.get("select 1", loader);
+    assertSame(first, cache.get("select 1", loader));
+    for (int i = 0; i < 2; i++) {
+      try {
+        cache.get("bad sql", loader);
+        fail();
+      } catch (UnsupportedStatementException e) {
+        //解析失败的结果也会被缓存
+      }
+    }
+    assertEquals(2, loads.get());
+    cache.get("select 2", loader);
+    cache.get("select 3", loader);
+
+    SqlStatementCache.Stats stats = cache.stats();
+    assertEquals(1, stats.getHitCount());
+    assertEquals(1, stats.getNegativeHitCount());
+    assertEquals(4, stats.getMissCount());
+    assertEquals(1, stats.getLoadFailureCount());
+    assertEquals(1, stats.getEvictionCount());
+    assertEquals(2, stats.getSize());
+
+    File snapshot = File.createTempFile("sql-cache", ".snapshot");
+    try {
+      cache.saveSnapshot(snapshot, 10);
+      SqlStatementCache warmed = new SqlStatementCache(100, true, 0);
+      assertEquals(2, warmed.warmUp(snapshot, loader));
+      assertEquals(2, warmed.size());
+    } finally {
+      snapshot.delete();
+    }
+  }
 }